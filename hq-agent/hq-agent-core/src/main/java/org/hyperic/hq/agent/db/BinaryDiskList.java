@@ -0,0 +1,516 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+
+/**
+ * A BinaryDiskList is a FIFO list of fixed width binary records on disk.
+ * Unlike the {@link DiskList} there is no per record String encoding,
+ * padding or separate index file.  Records are appended to the tail of the
+ * data file and are removed from the head only, which is the way the agent
+ * spools use their lists.  The iterators returned support the remove()
+ * operation for the record at the head of the list and will fail-fast
+ * with a ConcurrentModificationException if records are removed by someone
+ * else while iteration is occuring.
+ *
+ * The format of the data file is as follows:
+ *
+ * [Header]
+ *      int      - Magic number
+ *      int      - Format version
+ *      int      - recordSize
+ *      int      - Unused
+ *      long int - Index of the head record
+ *      long int - Number of records moved to the front by a compaction
+ *                 which has not finished yet, 0 if none
+ * [Record]
+ *      data     - recordSize bytes containing the raw data
+ *
+ * Only the header is rewritten in place, so a crash can at worst leave a
+ * partially appended record at the end of the file, which is discarded
+ * when the list is opened again, or an unfinished compaction, which is
+ * finished then.
+ */
+public class BinaryDiskList implements BinaryList {
+    private static final Log log = LogFactory.getLog(BinaryDiskList.class.getName());
+
+    private static final int  MAGIC        = 0x48514254; // "HQBT"
+    private static final int  VERSION      = 1;
+    private static final int  HEADER_LEN   = 32;
+    private static final int  HEAD_OFFSET  = 16;
+    private static final int  COMPACT_OFFSET = 24;
+    // Number of records read from disk at a time by the iterator
+    private static final int  READ_AHEAD   = 256;
+
+    private final String           fileName;
+    private final RandomAccessFile dataFile;
+    private final int              recordSize;  // Size of each record
+    private final long             checkSize;   // Start to compact the file
+                                                // when the removed head
+                                                // reaches this size in bytes
+    private final int              checkPerc;   // Max percent (0-100) of
+                                                // removed records allowed in
+                                                // the data file
+    private final long             maxLength;   // Max file size in bytes
+    private long                   headRec;     // IDX of first record
+    private long                   tailRec;     // IDX one past the last record
+    private int                    modNum;      // Modification number
+    private boolean                closed;
+
+    private static final AgentStatsCollector statsCollector = AgentStatsCollector.getInstance();
+    private static final String BINARY_LIST_ADD_TO_LIST_TIME = AgentStatsCollector.BINARY_LIST_ADD_TO_LIST_TIME;
+    private static final String BINARY_LIST_READ_RECORD_TIME = AgentStatsCollector.BINARY_LIST_READ_RECORD_TIME;
+    private static final String BINARY_LIST_REMOVE_TIME = AgentStatsCollector.BINARY_LIST_REMOVE_TIME;
+    private static final String BINARY_LIST_COMPACT_TIME = AgentStatsCollector.BINARY_LIST_COMPACT_TIME;
+    static {
+        statsCollector.register(BINARY_LIST_ADD_TO_LIST_TIME);
+        statsCollector.register(BINARY_LIST_READ_RECORD_TIME);
+        statsCollector.register(BINARY_LIST_REMOVE_TIME);
+        statsCollector.register(BINARY_LIST_COMPACT_TIME);
+    }
+
+    /**
+     * Construct a new BinaryDiskList
+     *
+     * @param dataFile   the location for the datafile.
+     * @param recordSize The size of every record within the data file.
+     * @param checkSize  Size in bytes of removed records at the head of the
+     *                   file to start checking for compaction
+     * @param checkPerc  Maximum percentage of removed records allowed when
+     *                   the removed head is greater than checkSize.
+     * @param maxLength  Max size of the data file in bytes.  When the data
+     *                   file grows beyond this all records are deleted.
+     */
+    public BinaryDiskList(File dataFile, int recordSize, long checkSize, int checkPerc, long maxLength)
+        throws IOException
+    {
+        if (recordSize <= 0) {
+            throw new IllegalArgumentException("recordSize must be positive");
+        }
+        this.fileName   = dataFile.getName();
+        this.dataFile   = new RandomAccessFile(dataFile, "rw");
+        this.recordSize = recordSize;
+        this.checkSize  = checkSize;
+        this.checkPerc  = checkPerc;
+        this.maxLength  = maxLength;
+        this.modNum     = 0;
+        this.closed     = false;
+        try {
+            readHeader();
+        } catch (IOException e) {
+            this.dataFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the header from the data file, or writes a fresh one if the file
+     * is new.  A trailing partial record left behind by a crash is dropped.
+     */
+    private void readHeader() throws IOException {
+        long length = this.dataFile.length();
+        if (length < HEADER_LEN) {
+            writeHeader(0);
+            this.dataFile.setLength(HEADER_LEN);
+            this.headRec = 0;
+            this.tailRec = 0;
+            return;
+        }
+        this.dataFile.seek(0);
+        int magic = this.dataFile.readInt();
+        int version = this.dataFile.readInt();
+        int recSize = this.dataFile.readInt();
+        this.dataFile.readInt();
+        long head = this.dataFile.readLong();
+        long compacted = this.dataFile.readLong();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException(this.fileName + " is not a valid binary list file");
+        }
+        if (recSize != this.recordSize) {
+            throw new IOException("Record size of " + this.fileName + " is " + recSize +
+                                  ", expected " + this.recordSize);
+        }
+        if (compacted > 0 && (HEADER_LEN + compacted * this.recordSize) <= length) {
+            // the live records were copied to the front before the crash
+            log.warn("Finishing the compaction of " + this.fileName + " to " + compacted +
+                     " records");
+            length = HEADER_LEN + compacted * this.recordSize;
+            this.dataFile.setLength(length);
+            head = 0;
+            writeHead(0);
+        } else if (compacted != 0) {
+            log.warn("Invalid compaction record count " + compacted + " in " + this.fileName +
+                     ", ignoring");
+            writeHead(head);
+        }
+        long numRecs = (length - HEADER_LEN) / this.recordSize;
+        if ((HEADER_LEN + numRecs * this.recordSize) != length) {
+            log.warn("Discarding partial record at the end of " + this.fileName);
+            this.dataFile.setLength(HEADER_LEN + numRecs * this.recordSize);
+        }
+        if (head < 0 || head > numRecs) {
+            log.warn("Invalid head record " + head + " in " + this.fileName + ", resetting");
+            head = numRecs;
+            writeHeader(head);
+        }
+        this.headRec = head;
+        this.tailRec = numRecs;
+    }
+
+    private void writeHeader(long head) throws IOException {
+        this.dataFile.seek(0);
+        this.dataFile.writeInt(MAGIC);
+        this.dataFile.writeInt(VERSION);
+        this.dataFile.writeInt(this.recordSize);
+        this.dataFile.writeInt(0);
+        this.dataFile.writeLong(head);
+        this.dataFile.writeLong(0);
+    }
+
+    /**
+     * Writes the head index and clears the compaction record count
+     */
+    private void writeHead(long head) throws IOException {
+        this.dataFile.seek(HEAD_OFFSET);
+        this.dataFile.writeLong(head);
+        this.dataFile.writeLong(0);
+    }
+
+    private void writeCompacted(long numRecs) throws IOException {
+        this.dataFile.seek(COMPACT_OFFSET);
+        this.dataFile.writeLong(numRecs);
+    }
+
+    public int getRecordSize() {
+        return this.recordSize;
+    }
+
+    /**
+     * @return the number of records currently in the list
+     */
+    public long size() {
+        synchronized(this.dataFile) {
+            return this.tailRec - this.headRec;
+        }
+    }
+
+    /**
+     * Add a record to the end of the list.
+     *
+     * @param data Data to add to the end of the list, must be exactly
+     *             recordSize bytes long
+     */
+    public void addToList(byte[] data) throws IOException {
+        addAllToList(Collections.singletonList(data));
+    }
+
+    /**
+     * Add records to the end of the list using a single write.
+     *
+     * @param records Records to add, each must be exactly recordSize bytes long
+     */
+    public void addAllToList(Collection<byte[]> records) throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        final long start = now();
+        byte[] buf = new byte[records.size() * this.recordSize];
+        int off = 0;
+        for (byte[] rec : records) {
+            if (rec.length != this.recordSize) {
+                throw new IOException("Data length(" + rec.length + ") does not match " +
+                                      "record length(" + this.recordSize + ")");
+            }
+            System.arraycopy(rec, 0, buf, off, this.recordSize);
+            off += this.recordSize;
+        }
+        synchronized(this.dataFile) {
+            this.dataFile.seek(HEADER_LEN + this.tailRec * this.recordSize);
+            this.dataFile.write(buf);
+            this.tailRec += records.size();
+            // checked under the same lock so that no other add or read
+            // runs between the write and the truncation
+            if (this.dataFile.length() > this.maxLength) {
+                log.error("Maximum file size for data file: " + this.fileName + " reached (" +
+                          this.maxLength + " bytes), truncating.");
+                deleteAllRecords();
+            }
+        }
+        statsCollector.addStat(now() - start, BINARY_LIST_ADD_TO_LIST_TIME);
+    }
+
+    /**
+     * Read up to max records starting at recNo into buf.
+     * @return the number of records read
+     */
+    private int readRecords(long recNo, byte[] buf, int max) throws IOException {
+        final long start = now();
+        int num;
+        synchronized(this.dataFile) {
+            num = (int) Math.min(max, this.tailRec - recNo);
+            if (num <= 0) {
+                return 0;
+            }
+            this.dataFile.seek(HEADER_LEN + recNo * this.recordSize);
+            this.dataFile.readFully(buf, 0, num * this.recordSize);
+        }
+        statsCollector.addStat(now() - start, BINARY_LIST_READ_RECORD_TIME);
+        return num;
+    }
+
+    /**
+     * Remove up to num records from the head of the list.  Only the head
+     * index in the header is rewritten, the space is reclaimed when the list
+     * drains or the removed part exceeds the compaction thresholds.
+     *
+     * @return the number of records removed
+     */
+    public long removeFirst(long num) throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        final long start = now();
+        long removed;
+        synchronized(this.dataFile) {
+            removed = Math.min(num, this.tailRec - this.headRec);
+            if (removed <= 0) {
+                return 0;
+            }
+            this.modNum++;
+            this.headRec += removed;
+            if (this.headRec == this.tailRec) {
+                // list is empty, reclaim everything.  The head is reset
+                // last, a crash in between leaves it past the end of the
+                // file, which is read as an empty list
+                this.dataFile.setLength(HEADER_LEN);
+                writeHead(0);
+                this.headRec = 0;
+                this.tailRec = 0;
+            } else {
+                writeHead(this.headRec);
+                long freeBytes = this.headRec * this.recordSize;
+                long perc = (freeBytes * 100) / (this.tailRec * this.recordSize);
+                if (freeBytes > this.checkSize && perc > this.checkPerc) {
+                    compact();
+                }
+            }
+        }
+        statsCollector.addStat(now() - start, BINARY_LIST_REMOVE_TIME);
+        return removed;
+    }
+
+    /**
+     * Move the live records to the front of the data file and truncate it.
+     * Only called when more than half of the file is free, so the copied
+     * region never overlaps the source and the old head stays valid until
+     * the header is rewritten.  The number of copied records is recorded in
+     * the header before the file is truncated and the head is reset only
+     * after that, a crash in between is finished by readHeader().
+     */
+    private void compact() throws IOException {
+        final long start = now();
+        long numRecs = this.tailRec - this.headRec;
+        if (numRecs > this.headRec) {
+            return;
+        }
+        byte[] buf = new byte[READ_AHEAD * this.recordSize];
+        for (long i = 0; i < numRecs; i += READ_AHEAD) {
+            int n = (int) Math.min(READ_AHEAD, numRecs - i);
+            this.dataFile.seek(HEADER_LEN + (this.headRec + i) * this.recordSize);
+            this.dataFile.readFully(buf, 0, n * this.recordSize);
+            this.dataFile.seek(HEADER_LEN + i * this.recordSize);
+            this.dataFile.write(buf, 0, n * this.recordSize);
+        }
+        writeCompacted(numRecs);
+        this.dataFile.setLength(HEADER_LEN + numRecs * this.recordSize);
+        writeHead(0);
+        long num = this.headRec;
+        this.headRec = 0;
+        this.tailRec = numRecs;
+        log.info("Deleted " + (num * this.recordSize) + " bytes from " + this.fileName +
+                 " (" + num + " records)");
+        statsCollector.addStat(now() - start, BINARY_LIST_COMPACT_TIME);
+    }
+
+    /**
+     * Delete all the records from storage.
+     */
+    public void deleteAllRecords() throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        synchronized(this.dataFile) {
+            this.modNum++;
+            this.dataFile.setLength(HEADER_LEN);
+            writeHead(0);
+            this.headRec = 0;
+            this.tailRec = 0;
+        }
+    }
+
+    /**
+     * Records are written straight through to the data file, there is
+     * nothing to flush.
+     */
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Close the BinaryDiskList.  All subsequent methods will
+     * result in an IOException being thrown.
+     */
+    public void close() throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        this.closed = true;
+        this.dataFile.close();
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return an iterator over the records in the list, or null if the list
+     * is empty to match the behavior of {@link DiskList#getListIterator()}
+     */
+    public Iterator<byte[]> getListIterator() {
+        synchronized(this.dataFile) {
+            if (this.headRec == this.tailRec) {
+                return null;
+            }
+            return new BinaryDiskListIterator(this, this.headRec, this.modNum);
+        }
+    }
+
+    public static class BinaryDiskListIterator implements Iterator<byte[]> {
+        private final BinaryDiskList diskList;
+        private final byte[]         buf;
+        private long                 bufStart;  // IDX of the first record in buf
+        private int                  bufLen;    // Number of records in buf
+        private long                 nextIdx;
+        private long                 curIdx;
+        private boolean              calledNext;
+        private int                  modNum;
+
+        private BinaryDiskListIterator(BinaryDiskList diskList, long nextIdx, int modNum) {
+            this.diskList   = diskList;
+            this.buf        = new byte[READ_AHEAD * diskList.recordSize];
+            this.bufStart   = nextIdx;
+            this.bufLen     = 0;
+            this.nextIdx    = nextIdx;
+            this.curIdx     = -1;
+            this.calledNext = false;
+            this.modNum     = modNum;
+        }
+
+        public boolean hasNext() {
+            synchronized(this.diskList.dataFile) {
+                return this.nextIdx < this.diskList.tailRec;
+            }
+        }
+
+        public byte[] next() throws NoSuchElementException {
+            int recSize = this.diskList.recordSize;
+            synchronized(this.diskList.dataFile) {
+                if (this.diskList.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                if (this.nextIdx >= this.diskList.tailRec) {
+                    throw new NoSuchElementException();
+                }
+                if (this.nextIdx >= this.bufStart + this.bufLen) {
+                    try {
+                        this.bufStart = this.nextIdx;
+                        this.bufLen = this.diskList.readRecords(this.nextIdx, this.buf, READ_AHEAD);
+                    } catch (IOException e) {
+                        log.error("IOException while reading record");
+                        if (log.isDebugEnabled()) {
+                            log.debug("IOException while trying to read record number " + this.nextIdx, e);
+                        }
+                        NoSuchElementException ex = new NoSuchElementException("Error getting next element: " + e);
+                        ex.initCause(e);
+                        throw ex;
+                    }
+                }
+            }
+            byte[] rtn = new byte[recSize];
+            System.arraycopy(this.buf, (int) (this.nextIdx - this.bufStart) * recSize, rtn, 0, recSize);
+            this.curIdx = this.nextIdx++;
+            this.calledNext = true;
+            return rtn;
+        }
+
+        /**
+         * Only the record at the head of the list may be removed.
+         */
+        public void remove() {
+            if (!this.calledNext) {
+                throw new IllegalStateException("remove() called without first calling next()");
+            }
+            this.calledNext = false;
+            synchronized(this.diskList.dataFile) {
+                if (this.diskList.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                if (this.curIdx != this.diskList.headRec) {
+                    throw new UnsupportedOperationException("Only the head of a binary list may be removed");
+                }
+                try {
+                    this.diskList.removeFirst(1);
+                } catch (IOException exc) {
+                    log.error("IOException while removing record");
+                    if (log.isDebugEnabled()) {
+                        log.debug(exc, exc);
+                    }
+                    throw new IllegalStateException("Error removing record: " + exc, exc);
+                }
+                // removal may have compacted or truncated the file, which
+                // shifts the record indexes
+                long shift = this.nextIdx - this.diskList.headRec;
+                this.nextIdx = this.diskList.headRec;
+                this.bufStart -= shift;
+                this.modNum = this.diskList.modNum;
+            }
+        }
+    }
+}
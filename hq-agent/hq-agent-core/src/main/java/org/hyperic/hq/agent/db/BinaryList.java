@@ -0,0 +1,88 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A FIFO list of fixed width binary records kept on disk.  Records are
+ * added to the tail of the list and removed from the head, either in bulk
+ * or one at a time through the iterator.
+ */
+public interface BinaryList {
+
+    /**
+     * @return the exact size in bytes of every record in the list
+     */
+    int getRecordSize();
+
+    /**
+     * @return the number of records currently in the list
+     */
+    long size();
+
+    /**
+     * Add a record to the end of the list.
+     */
+    void addToList(byte[] data) throws IOException;
+
+    /**
+     * Add records to the end of the list, preserving their order.
+     */
+    void addAllToList(Collection<byte[]> records) throws IOException;
+
+    /**
+     * Remove up to num records from the head of the list.
+     *
+     * @return the number of records removed
+     */
+    long removeFirst(long num) throws IOException;
+
+    /**
+     * Delete all the records from storage.
+     */
+    void deleteAllRecords() throws IOException;
+
+    /**
+     * @return an iterator over the records in the list starting at the
+     * head, or null if the list is empty.  Only the record at the head of
+     * the list may be removed through the iterator.
+     */
+    Iterator<byte[]> getListIterator();
+
+    /**
+     * Force any buffered records to permanent storage.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Close the list.  All subsequent methods will result in an
+     * IOException being thrown.
+     */
+    void close() throws IOException;
+}
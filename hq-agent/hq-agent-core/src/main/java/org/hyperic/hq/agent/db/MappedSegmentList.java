@@ -0,0 +1,664 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+
+/**
+ * A MappedSegmentList is an append only log of fixed width binary records
+ * split across memory mapped segment files.  Records are always appended
+ * sequentially to the last segment and consumed from the first one, when
+ * every record of a segment has been removed the whole segment file is
+ * deleted.  There is no seek per record and no free list to maintain, so
+ * the cost of adding and removing records does not depend on how large the
+ * backlog has grown.
+ *
+ * The segments live in a directory, one file per segment named after its
+ * sequence number.  The format of a segment file is as follows:
+ *
+ * [Header]
+ *      int      - Magic number
+ *      int      - Format version
+ *      int      - recordSize
+ *      int      - Capacity of the segment in records
+ *      int      - Number of records written to the segment
+ *      int      - Number of records removed from the segment
+ *      long int - Unused
+ * [Record]
+ *      data     - recordSize bytes containing the raw data
+ *
+ * The written count is only updated after the record itself, so a segment
+ * never exposes a partially written record.  Writes to the mapping survive
+ * a crash of the agent process; flush() forces them to the disk so they
+ * also survive a crash of the host.
+ */
+public class MappedSegmentList implements BinaryList {
+    private static final Log log = LogFactory.getLog(MappedSegmentList.class.getName());
+
+    private static final int    MAGIC          = 0x48515347; // "HQSG"
+    private static final int    VERSION        = 1;
+    private static final int    HEADER_LEN     = 32;
+    private static final int    CAPACITY_OFFSET = 12;
+    private static final int    COUNT_OFFSET   = 16;
+    private static final int    HEAD_OFFSET    = 20;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    public static final int     DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File     dir;
+    private final String   name;
+    private final int      recordSize;
+    private final int      segmentCapacity; // records per segment
+    private final long     maxLength;       // max size of all segments in bytes
+    // Segments ordered by sequence number, the first one is the head
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private long           nextSeq;
+    private long           size;
+    private int            modNum;
+    private boolean        closed;
+
+    private static final Unmapper UNMAPPER = findUnmapper();
+
+    private static final AgentStatsCollector statsCollector = AgentStatsCollector.getInstance();
+    private static final String SEGMENT_LIST_ADD_TO_LIST_TIME = AgentStatsCollector.SEGMENT_LIST_ADD_TO_LIST_TIME;
+    private static final String SEGMENT_LIST_REMOVE_TIME = AgentStatsCollector.SEGMENT_LIST_REMOVE_TIME;
+    private static final String SEGMENT_LIST_NUM_SEGMENTS = AgentStatsCollector.SEGMENT_LIST_NUM_SEGMENTS;
+    static {
+        statsCollector.register(SEGMENT_LIST_ADD_TO_LIST_TIME);
+        statsCollector.register(SEGMENT_LIST_REMOVE_TIME);
+        statsCollector.register(SEGMENT_LIST_NUM_SEGMENTS);
+    }
+
+    /**
+     * Construct a new MappedSegmentList
+     *
+     * @param dir         the directory holding the segment files, created
+     *                    if it does not exist
+     * @param recordSize  The size of every record in the list.
+     * @param segmentSize The approximate size in bytes of each segment file.
+     * @param maxLength   Max size in bytes of all segments.  When exceeded
+     *                    the oldest segments are dropped.
+     */
+    public MappedSegmentList(File dir, int recordSize, int segmentSize, long maxLength) throws IOException {
+        if (recordSize <= 0) {
+            throw new IllegalArgumentException("recordSize must be positive");
+        }
+        this.dir             = dir;
+        this.name            = dir.getName();
+        this.recordSize      = recordSize;
+        this.segmentCapacity = Math.max(1, (segmentSize - HEADER_LEN) / recordSize);
+        this.maxLength       = maxLength;
+        this.closed          = false;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        if (!dir.isDirectory()) {
+            throw new IOException(dir + " is not a directory");
+        }
+        recover();
+    }
+
+    /**
+     * Map all existing segments in sequence order, dropping the ones which
+     * are unreadable or already fully consumed.
+     */
+    private void recover() throws IOException {
+        File[] files = this.dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        this.nextSeq = 0;
+        this.size = 0;
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fname = file.getName();
+            long seq;
+            try {
+                seq = Long.parseLong(fname.substring(0, fname.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unknown file " + file + " in " + this.dir);
+                continue;
+            }
+            this.nextSeq = Math.max(this.nextSeq, seq + 1);
+            Segment seg;
+            try {
+                seg = Segment.open(file, seq, this.recordSize);
+            } catch (IOException e) {
+                log.error("Discarding unreadable segment " + file + ": " + e);
+                file.delete();
+                continue;
+            }
+            this.segments.put(seq, seg);
+        }
+        // Only the last segment may still be appended to, fully consumed
+        // segments before it can go.
+        while (this.segments.size() > 1) {
+            Segment first = firstSegment();
+            if (first.head < first.count) {
+                break;
+            }
+            deleteSegment(first);
+        }
+        for (Segment seg : this.segments.values()) {
+            this.size += seg.count - seg.head;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Recovered " + this.segments.size() + " segments with " + this.size +
+                      " records from " + this.dir);
+        }
+    }
+
+    /**
+     * Caller must hold the segments lock.
+     * @return the head segment or null if there are no segments
+     */
+    private Segment firstSegment() {
+        return this.segments.isEmpty() ? null : this.segments.get(this.segments.firstKey());
+    }
+
+    /**
+     * Caller must hold the segments lock.
+     * @return the tail segment or null if there are no segments
+     */
+    private Segment lastSegment() {
+        return this.segments.isEmpty() ? null : this.segments.get(this.segments.lastKey());
+    }
+
+    public int getRecordSize() {
+        return this.recordSize;
+    }
+
+    public long size() {
+        synchronized(this.segments) {
+            return this.size;
+        }
+    }
+
+    public void addToList(byte[] data) throws IOException {
+        addAllToList(Collections.singletonList(data));
+    }
+
+    public void addAllToList(Collection<byte[]> records) throws IOException {
+        final long start = now();
+        synchronized(this.segments) {
+            if (this.closed) {
+                throw new IOException("List already closed");
+            }
+            for (byte[] rec : records) {
+                if (rec.length != this.recordSize) {
+                    throw new IOException("Data length(" + rec.length + ") does not match " +
+                                          "record length(" + this.recordSize + ")");
+                }
+                Segment tail = lastSegment();
+                if (tail == null || tail.isFull()) {
+                    tail = newSegment();
+                }
+                tail.append(rec);
+                this.size++;
+            }
+            enforceMaxLength();
+        }
+        statsCollector.addStat(now() - start, SEGMENT_LIST_ADD_TO_LIST_TIME);
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment tail = lastSegment();
+        if (tail != null) {
+            // the previous tail will not be written to again
+            tail.force();
+        }
+        long seq = this.nextSeq++;
+        File file = new File(this.dir, Long.toString(seq) + SEGMENT_SUFFIX);
+        Segment seg = Segment.create(file, seq, this.recordSize, this.segmentCapacity);
+        this.segments.put(seq, seg);
+        statsCollector.addStat(this.segments.size(), SEGMENT_LIST_NUM_SEGMENTS);
+        return seg;
+    }
+
+    /**
+     * Drop the oldest segments while the list is above its maximum size.
+     * Caller must hold the segments lock.
+     */
+    private void enforceMaxLength() {
+        while (this.segments.size() > 1 && ((long) this.segments.size() * segmentLength()) > this.maxLength) {
+            Segment first = firstSegment();
+            log.error("Maximum size for list: " + this.name + " reached (" + this.maxLength +
+                      " bytes), dropping " + (first.count - first.head) + " records.");
+            this.size -= first.count - first.head;
+            this.modNum++;
+            deleteSegment(first);
+        }
+    }
+
+    private long segmentLength() {
+        return HEADER_LEN + (long) this.segmentCapacity * this.recordSize;
+    }
+
+    /**
+     * Remove up to num records from the head of the list.  Each segment
+     * that becomes fully consumed is deleted as a whole.
+     */
+    public long removeFirst(long num) throws IOException {
+        final long start = now();
+        long removed = 0;
+        synchronized(this.segments) {
+            if (this.closed) {
+                throw new IOException("List already closed");
+            }
+            while (removed < num && !this.segments.isEmpty()) {
+                Segment first = firstSegment();
+                int n = (int) Math.min(num - removed, first.count - first.head);
+                first.setHead(first.head + n);
+                removed += n;
+                if (first.head < first.count) {
+                    break;
+                }
+                if (first.isFull() || this.segments.size() > 1) {
+                    deleteSegment(first);
+                } else {
+                    // drained the tail segment, it is reused by the next add
+                    break;
+                }
+            }
+            if (removed > 0) {
+                this.size -= removed;
+                this.modNum++;
+            }
+        }
+        if (removed > 0) {
+            statsCollector.addStat(now() - start, SEGMENT_LIST_REMOVE_TIME);
+        }
+        return removed;
+    }
+
+    private void deleteSegment(Segment seg) {
+        this.segments.remove(seg.seq);
+        seg.close();
+        if (!seg.file.delete()) {
+            log.warn("Unable to delete segment " + seg.file);
+        }
+    }
+
+    public void deleteAllRecords() throws IOException {
+        synchronized(this.segments) {
+            if (this.closed) {
+                throw new IOException("List already closed");
+            }
+            while (!this.segments.isEmpty()) {
+                deleteSegment(firstSegment());
+            }
+            this.size = 0;
+            this.modNum++;
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized(this.segments) {
+            if (this.closed) {
+                return;
+            }
+            // the tail has the unforced records, the other segments may
+            // have had their head moved since they were last forced
+            for (Segment seg : this.segments.values()) {
+                if (seg.dirty) {
+                    seg.force();
+                }
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized(this.segments) {
+            if (this.closed) {
+                throw new IOException("List already closed");
+            }
+            this.closed = true;
+            for (Segment seg : this.segments.values()) {
+                seg.force();
+                seg.close();
+            }
+            this.segments.clear();
+        }
+    }
+
+    public Iterator<byte[]> getListIterator() {
+        synchronized(this.segments) {
+            if (this.size == 0) {
+                return null;
+            }
+            Segment first = firstSegment();
+            return new SegmentIterator(first.seq, first.head, this.modNum);
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    private class SegmentIterator implements Iterator<byte[]> {
+        private Segment seg;        // Segment of the next record, if known
+        private long    seq;        // Sequence number of that segment
+        private int     pos;        // Position of the next record
+        private long    curSeq = -1;
+        private int     curPos = -1;
+        private boolean calledNext;
+        private int     modNum;
+
+        private SegmentIterator(long seq, int pos, int modNum) {
+            this.seq = seq;
+            this.pos = pos;
+            this.modNum = modNum;
+        }
+
+        /**
+         * Moves to the segment holding the next record.
+         * @return the segment or null if there are no more records
+         */
+        private Segment advance() {
+            // fast path, still reading from a live segment
+            if (this.seg != null && this.seg.buf != null && this.pos < this.seg.count) {
+                return this.seg;
+            }
+            this.seg = null;
+            for (Segment seg : segments.tailMap(this.seq).values()) {
+                if (seg.seq != this.seq) {
+                    this.seq = seg.seq;
+                    this.pos = seg.head;
+                }
+                if (this.pos < seg.count) {
+                    this.seg = seg;
+                    return seg;
+                }
+            }
+            return null;
+        }
+
+        public boolean hasNext() {
+            synchronized(segments) {
+                return !closed && advance() != null;
+            }
+        }
+
+        public byte[] next() {
+            synchronized(segments) {
+                if (MappedSegmentList.this.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                Segment seg = closed ? null : advance();
+                if (seg == null) {
+                    throw new NoSuchElementException();
+                }
+                byte[] rtn = seg.read(this.pos);
+                this.curSeq = this.seq;
+                this.curPos = this.pos++;
+                this.calledNext = true;
+                return rtn;
+            }
+        }
+
+        /**
+         * Only the record at the head of the list may be removed.
+         */
+        public void remove() {
+            if (!this.calledNext) {
+                throw new IllegalStateException("remove() called without first calling next()");
+            }
+            this.calledNext = false;
+            synchronized(segments) {
+                if (MappedSegmentList.this.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                Segment first = firstSegment();
+                if (first == null || first.seq != this.curSeq || first.head != this.curPos) {
+                    throw new UnsupportedOperationException("Only the head of a segment list may be removed");
+                }
+                try {
+                    removeFirst(1);
+                } catch (IOException exc) {
+                    log.error("IOException while removing record");
+                    if (log.isDebugEnabled()) {
+                        log.debug(exc, exc);
+                    }
+                    throw new IllegalStateException("Error removing record: " + exc, exc);
+                }
+                this.modNum = MappedSegmentList.this.modNum;
+            }
+        }
+    }
+
+    /**
+     * A single memory mapped segment file.  All access is guarded by the
+     * owning list's segments lock.
+     */
+    private static class Segment {
+        private final File             file;
+        private final long             seq;
+        private final int              recordSize;
+        private final int              capacity;
+        private final RandomAccessFile raf;
+        private MappedByteBuffer       buf;
+        // positional views of buf used for bulk record access
+        private ByteBuffer             writer;
+        private ByteBuffer             reader;
+        private int                    count;
+        private int                    head;
+        // the mapping was changed since it was last forced
+        private boolean                dirty;
+
+        private Segment(File file, long seq, int recordSize, int capacity, RandomAccessFile raf)
+            throws IOException
+        {
+            this.file       = file;
+            this.seq        = seq;
+            this.recordSize = recordSize;
+            this.capacity   = capacity;
+            this.raf        = raf;
+            this.buf        = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                   HEADER_LEN + (long) capacity * recordSize);
+            this.writer     = this.buf.duplicate();
+            this.reader     = this.buf.duplicate();
+        }
+
+        private static Segment create(File file, long seq, int recordSize, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(HEADER_LEN + (long) capacity * recordSize);
+                Segment seg = new Segment(file, seq, recordSize, capacity, raf);
+                seg.buf.putInt(0, MAGIC);
+                seg.buf.putInt(4, VERSION);
+                seg.buf.putInt(8, recordSize);
+                seg.buf.putInt(CAPACITY_OFFSET, capacity);
+                seg.buf.putInt(COUNT_OFFSET, 0);
+                seg.buf.putInt(HEAD_OFFSET, 0);
+                return seg;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        private static Segment open(File file, long seq, int recordSize) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < HEADER_LEN) {
+                    throw new IOException("segment is too short");
+                }
+                int magic = raf.readInt();
+                int version = raf.readInt();
+                int recSize = raf.readInt();
+                int capacity = raf.readInt();
+                if (magic != MAGIC || version != VERSION) {
+                    throw new IOException("not a valid segment file");
+                }
+                if (recSize != recordSize) {
+                    throw new IOException("record size is " + recSize + ", expected " + recordSize);
+                }
+                if (capacity <= 0 || raf.length() < HEADER_LEN + (long) capacity * recordSize) {
+                    throw new IOException("segment is truncated");
+                }
+                Segment seg = new Segment(file, seq, recordSize, capacity, raf);
+                seg.count = Math.max(0, Math.min(capacity, seg.buf.getInt(COUNT_OFFSET)));
+                seg.head = Math.max(0, Math.min(seg.count, seg.buf.getInt(HEAD_OFFSET)));
+                return seg;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        private boolean isFull() {
+            return this.count >= this.capacity;
+        }
+
+        private void append(byte[] rec) {
+            this.writer.position(HEADER_LEN + this.count * this.recordSize);
+            this.writer.put(rec);
+            this.count++;
+            this.buf.putInt(COUNT_OFFSET, this.count);
+            this.dirty = true;
+        }
+
+        private byte[] read(int pos) {
+            byte[] rtn = new byte[this.recordSize];
+            this.reader.position(HEADER_LEN + pos * this.recordSize);
+            this.reader.get(rtn);
+            return rtn;
+        }
+
+        private void setHead(int head) {
+            this.head = head;
+            this.buf.putInt(HEAD_OFFSET, head);
+            this.dirty = true;
+        }
+
+        private void force() {
+            if (this.buf != null) {
+                this.buf.force();
+                this.dirty = false;
+            }
+        }
+
+        private void close() {
+            MappedByteBuffer b = this.buf;
+            this.buf = null;
+            this.writer = null;
+            this.reader = null;
+            unmap(b);
+            try {
+                this.raf.close();
+            } catch (IOException e) {
+                log.debug(e, e);
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping, see {@link #findUnmapper()}
+     */
+    private interface Unmapper {
+        void unmap(MappedByteBuffer buf) throws Exception;
+    }
+
+    /**
+     * Looks up how this JVM releases a mapping, Unsafe.invokeCleaner() from
+     * Java 9 on and the cleaner of the direct buffer before.
+     * @return null if the JVM offers neither
+     */
+    private static Unmapper findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return new Unmapper() {
+                public void unmap(MappedByteBuffer buf) throws Exception {
+                    invokeCleaner.invoke(unsafe, buf);
+                }
+            };
+        } catch (Throwable e) {
+            // not Java 9 or later
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return new Unmapper() {
+                public void unmap(MappedByteBuffer buf) throws Exception {
+                    Object c = cleaner.invoke(buf);
+                    if (c != null) {
+                        clean.invoke(c);
+                    }
+                }
+            };
+        } catch (Throwable e) {
+            log.info("Unable to release segment mappings explicitly, they are released " +
+                     "once garbage collected: " + e);
+            return null;
+        }
+    }
+
+    static boolean canUnmap() {
+        return UNMAPPER != null;
+    }
+
+    /**
+     * Release a mapping right away instead of waiting for the buffer to be
+     * garbage collected, otherwise deleting the segment file fails on some
+     * platforms.  Best effort, the buffer must not be accessed afterwards.
+     */
+    private static void unmap(MappedByteBuffer buf) {
+        if (buf == null || UNMAPPER == null) {
+            return;
+        }
+        try {
+            UNMAPPER.unmap(buf);
+        } catch (Throwable e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to unmap segment: " + e);
+            }
+        }
+    }
+}
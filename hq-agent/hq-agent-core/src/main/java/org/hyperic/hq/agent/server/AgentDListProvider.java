@@ -47,6 +47,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -60,7 +61,10 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.agent.AgentKeystoreConfig;
+import org.hyperic.hq.agent.db.BinaryDiskList;
+import org.hyperic.hq.agent.db.BinaryList;
 import org.hyperic.hq.agent.db.DiskList;
+import org.hyperic.hq.agent.db.MappedSegmentList;
 import org.hyperic.hq.agent.stats.AgentStatsCollector;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.util.file.FileUtil;
@@ -76,11 +80,15 @@ public class AgentDListProvider implements AgentStorageProvider {
     private static final long MAXSIZE = 50 * 1024 * 1024; // 50MB
     private static final long CHKSIZE = 10 * 1024 * 1024;  // 10MB
     private static final int CHKPERC  = 50; // Only allow < 50% free
+    private static final String BINARY_LIST_SUFFIX = ".blist";
+    private static final String SEGMENT_LIST_SUFFIX = ".segments";
+    private static final String SEGMENTED_LIST_TYPE = "segmented";
 
     private final AgentStatsCollector agentStatsCollector = AgentStatsCollector.getInstance();
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private HashMap<EncVal, EncVal>  keyVals;
     private HashMap<String, DiskList>  lists;
+    private HashMap<String, BinaryList> binaryLists;
     private HashMap<String, ListInfo> overloads;
     private File writeDir;
     private File keyValFile;
@@ -120,7 +128,8 @@ public class AgentDListProvider implements AgentStorageProvider {
      * @return A string describing the functionality of the object.
      */
     public String getDescription(){
-        return "Agent D-list provider.  Data is written to data/idx files for lists, and a single file for key/values";
+        return "Agent D-list provider.  Data is written to data/idx files for lists, .blist files for binary lists, " +
+               "and a single file for key/values";
     }
 
     private DiskList intrCreateList(String name, int recSize) throws IOException {
@@ -136,6 +145,24 @@ public class AgentDListProvider implements AgentStorageProvider {
         return new DiskList(new File(this.writeDir, name), recSize, _chkSize, _chkPerc, _maxSize);
     }
 
+    private BinaryList intrCreateBinaryList(String name, int recSize) throws IOException {
+        long _maxSize = maxSize;
+        long _chkSize = chkSize;
+        int _chkPerc = chkPerc;
+        ListInfo info = overloads.get(name);
+        if (info != null) {
+            _maxSize = info.maxSize;
+            _chkSize = info.chkSize;
+            _chkPerc = info.chkPerc;
+            if (info.segmented) {
+                return new MappedSegmentList(new File(this.writeDir, name + SEGMENT_LIST_SUFFIX), recSize,
+                                             MappedSegmentList.DEFAULT_SEGMENT_SIZE, _maxSize);
+            }
+        }
+        return new BinaryDiskList(new File(this.writeDir, name + BINARY_LIST_SUFFIX), recSize, _chkSize, _chkPerc,
+                                  _maxSize);
+    }
+
     /**
      * Create a list of non-standard record size.
      */
@@ -150,9 +177,22 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
     }
 
+    /**
+     * List info string is a series of properties seperated by ':'
+     *
+     * Unit of the sizes, 'm' or 'k'
+     * Maximum size of the list
+     * Size to start checking for unused blocks
+     * Maximum percentage of free blocks allowed
+     * Optional, 'segmented' to keep a binary list in memory mapped
+     * segment files rather than a single data file
+     *
+     * e.g. 'm:50:10:50:segmented'
+     */
     private ListInfo parseInfo(String info) throws AgentStorageException {
         StringTokenizer st = new StringTokenizer(info, ":");
-        if (st.countTokens() != 4) {
+        int numTokens = st.countTokens();
+        if (numTokens != 4 && numTokens != 5) {
             throw new AgentStorageException(info + " is an invalid agent disklist configuration");
         }
         String s = st.nextToken().trim();
@@ -173,6 +213,13 @@ public class AgentDListProvider implements AgentStorageProvider {
             throw new AgentStorageException("Invalid agent disklist " +
                     "configuration: " + e);
         }
+        if (st.hasMoreTokens()) {
+            String type = st.nextToken().trim();
+            if (!SEGMENTED_LIST_TYPE.equalsIgnoreCase(type)) {
+                throw new AgentStorageException(info + " is an invalid agent disklist configuration");
+            }
+            listInfo.segmented = true;
+        }
         return listInfo;
     }
 
@@ -284,6 +331,7 @@ public class AgentDListProvider implements AgentStorageProvider {
         if (shutdown.get() && !toShutdown) {
             return;
         }
+        flushBinaryLists();
         final long start = System.currentTimeMillis();
         BufferedOutputStream bOs = null;
         FileOutputStream fOs = null;
@@ -342,6 +390,18 @@ public class AgentDListProvider implements AgentStorageProvider {
         agentStatsCollector.addStat(System.currentTimeMillis() - start, AgentStatsCollector.DISK_LIST_KEYVALS_FLUSH_TIME);
     }
 
+    private void flushBinaryLists() {
+        synchronized(binaryLists) {
+            for (final Entry<String, BinaryList> entry : binaryLists.entrySet()) {
+                try {
+                    entry.getValue().flush();
+                } catch (IOException e) {
+                    log.error("Error flushing binary list '" + entry.getKey() + "'", e);
+                }
+            }
+        }
+    }
+
     private void close(OutputStream os) {
         try {
             if (os != null) {
@@ -377,6 +437,7 @@ public class AgentDListProvider implements AgentStorageProvider {
 
         keyVals = new HashMap<EncVal, EncVal>();
         lists = new HashMap<String, DiskList>();
+        binaryLists = new HashMap<String, BinaryList>();
         overloads = new HashMap<String, ListInfo>();
         String dir = st.nextToken();
         this.writeDir = new File(dir);
@@ -630,6 +691,15 @@ public class AgentDListProvider implements AgentStorageProvider {
                 log.error("Unable to dispose of disk list '" + entry.getKey() + "'", exc);
             }
         }
+        synchronized(binaryLists) {
+            for (final Entry<String, BinaryList> entry : binaryLists.entrySet()) {
+                try {
+                    entry.getValue().close();
+                } catch(Exception exc){
+                    log.error("Unable to dispose of binary disk list '" + entry.getKey() + "'", exc);
+                }
+            }
+        }
 
     }
 
@@ -728,10 +798,80 @@ public class AgentDListProvider implements AgentStorageProvider {
         return dList;
     }
 
+    /*** BINARY LIST FUNCTIONALITY ***/
+
+    public void createBinaryList(String listName, int recSize) throws AgentStorageException {
+        synchronized(binaryLists) {
+            BinaryList bList = binaryLists.get(listName);
+            if (bList != null) {
+                if (bList.getRecordSize() != recSize) {
+                    throw new AgentStorageException("Binary list '" + listName + "' already exists with record size " +
+                                                    bList.getRecordSize());
+                }
+                return;
+            }
+            try {
+                binaryLists.put(listName, intrCreateBinaryList(listName, recSize));
+            } catch (IOException e) {
+                AgentStorageException toThrow = new AgentStorageException("Unable to create binary list: " + e);
+                toThrow.initCause(e);
+                throw toThrow;
+            }
+        }
+    }
+
+    public void addToBinaryList(String listName, Collection<byte[]> records) throws AgentStorageException {
+        if (shutdown.get()) {
+            return;
+        }
+        BinaryList bList = getBinaryList(listName);
+        if (null == bList) {
+            throw new AgentStorageException("Binary list '" + listName + "' has not been created");
+        }
+        try {
+            bList.addAllToList(records);
+        } catch(IOException exc){
+            log.error("Error adding to binary list '" + listName + "'", exc);
+            AgentStorageException toThrow = new AgentStorageException("Error adding data to list: " + exc);
+            toThrow.initCause(exc);
+            throw toThrow;
+        }
+    }
+
+    public Iterator<byte[]> getBinaryListIterator(String listName) {
+        BinaryList bList = getBinaryList(listName);
+        if (null == bList) {
+            return null;
+        }
+        return bList.getListIterator();
+    }
+
+    public void deleteBinaryList(String listName) {
+        if (shutdown.get()) {
+            return;
+        }
+        BinaryList bList = getBinaryList(listName);
+        if (null == bList) {
+            return;
+        }
+        try {
+            bList.deleteAllRecords();
+        } catch(IOException exc){
+            log.error("Error deleting all records", exc);
+        }
+    }
+
+    private BinaryList getBinaryList(String listName) {
+        synchronized(binaryLists) {
+            return binaryLists.get(listName);
+        }
+    }
+
     private static class ListInfo {
         long      maxSize;
         long      chkSize;
         int       chkPerc;
+        boolean   segmented;
     }
 
     private class EncVal {
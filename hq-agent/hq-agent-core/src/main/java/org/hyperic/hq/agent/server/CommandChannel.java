@@ -0,0 +1,208 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.AgentCommand;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+
+/**
+ * The agent side of a command channel opened by the server with the
+ * open channel command.  Commands are read from the connection as they come
+ * in and dispatched to the command pools like the commands of a connection
+ * per command, their results are written back tagged with the request id
+ * in the order they complete.
+ *
+ * The channel is closed when the server closes the connection or when it is
+ * idle for the read timeout of the connection.
+ */
+class CommandChannel implements Runnable {
+    static final String PROP_VERSION = "version";
+    static final int VERSION = 1;
+
+    private static final OutputStream NO_OUTPUT = new OutputStream() {
+        public void write(int b) throws IOException {
+            throw new IOException("Commands on a command channel cannot stream data");
+        }
+    };
+
+    private final Log log = LogFactory.getLog(CommandChannel.class);
+    private final CommandListener listener;
+    private final AgentServerConnection conn;
+    private final int agentVersion;
+    private final Object writeLock = new Object();
+    private DataOutputStream out;
+    // number of commands which are dispatched but have no result yet,
+    // guarded by this
+    private int inFlight = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * @param agentVersion the version of the agent API the server sent
+     *        the open channel command with
+     */
+    CommandChannel(CommandListener listener, AgentServerConnection conn, int agentVersion) {
+        this.listener = listener;
+        this.conn = conn;
+        this.agentVersion = agentVersion;
+    }
+
+    public void run() {
+        try {
+            AgentRemoteValue res = new AgentRemoteValue();
+            res.setValue(PROP_VERSION, String.valueOf(VERSION));
+            conn.sendSuccessResponse(res);
+            out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+            while (!closed) {
+                int first = readFirstByte(in);
+                if (first < 0) {
+                    break;
+                }
+                int id = (first << 24) | (in.readUnsignedByte() << 16) |
+                         (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                int cmdVersion = in.readInt();
+                String cmd = in.readUTF();
+                AgentRemoteValue arg = AgentRemoteValue.fromStream(in);
+                synchronized (this) {
+                    inFlight++;
+                }
+                listener.dispatch(new ChannelRequest(id),
+                                  new AgentCommand(agentVersion, cmdVersion, cmd, arg));
+            }
+        } catch (EOFException e) {
+            log.debug("Command channel closed by the server");
+        } catch (IOException e) {
+            if (!closed) {
+                log.warn("Error reading from command channel: " + e);
+                log.debug(e, e);
+            }
+        } catch (AgentConnectionException e) {
+            if (!closed) {
+                log.warn("Error opening command channel: " + e);
+                log.debug(e, e);
+            }
+        } finally {
+            close();
+            listener.removeChannel(this);
+        }
+    }
+
+    /**
+     * @return -1 if the channel is idle or closed by the server
+     */
+    private int readFirstByte(InputStream in) throws IOException {
+        while (true) {
+            try {
+                return in.read();
+            } catch (SocketTimeoutException e) {
+                synchronized (this) {
+                    if (inFlight == 0) {
+                        log.debug("Closing idle command channel");
+                        return -1;
+                    }
+                }
+            }
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            // connections don't support being closed twice
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        conn.close();
+    }
+
+    /**
+     * Stands in for the connection of a single command, writes the result
+     * of the command to the channel
+     */
+    private class ChannelRequest extends AgentServerConnection {
+        private final int id;
+        private final InputStream noInput = new ByteArrayInputStream(new byte[0]);
+
+        private ChannelRequest(int id) {
+            this.id = id;
+        }
+
+        public InputStream getInputStream() {
+            return noInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return NO_OUTPUT;
+        }
+
+        public void close() {
+            synchronized (CommandChannel.this) {
+                inFlight--;
+            }
+        }
+
+        public void sendErrorResponse(String msg) throws AgentConnectionException {
+            synchronized (writeLock) {
+                try {
+                    out.writeInt(id);
+                    out.writeInt(1);
+                    out.writeUTF(msg);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new AgentConnectionException("Unable to send error: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        public void sendSuccessResponse(AgentRemoteValue res) throws AgentConnectionException {
+            synchronized (writeLock) {
+                try {
+                    out.writeInt(id);
+                    out.writeInt(0);
+                    res.toStream(out);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new AgentConnectionException("Unable to send response: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -30,8 +30,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -65,6 +69,8 @@ public class CommandListener extends AgentMonitorSimple {
     /** Shutdown the listenLoop thread and all thread pools */
     private AtomicBoolean shutdown = new AtomicBoolean(true);
     private AtomicReference<AgentConnectionListener> listener = new AtomicReference<AgentConnectionListener>();
+    private final Set<CommandChannel> channels = new HashSet<CommandChannel>();
+    private final AtomicLong channelNum = new AtomicLong(0);
 
     /**
      * Setup a listener on a specified port, with a dispatcher containing
@@ -123,6 +129,13 @@ public class CommandListener extends AgentMonitorSimple {
             pool.shutdownNow();
             log.info("Shut down executor service for CommandListener " + entry.getKey());
         }
+        final List<CommandChannel> toClose;
+        synchronized (channels) {
+            toClose = new ArrayList<CommandChannel>(channels);
+        }
+        for (final CommandChannel channel : toClose) {
+            channel.close();
+        }
     }
 
     /**
@@ -153,10 +166,11 @@ public class CommandListener extends AgentMonitorSimple {
                     final AgentServerConnection conn = listener.get().getNewConnection();
                     if (logDebug) log.debug("Opened new connection");
                     final AgentCommand cmd = conn.readCommand();
-                    final ExecutorService pool = getPool(cmd);
-                    if (logDebug) log.debug("Dispatching command " + cmd.getCommand() + " to pool: " + pool);
-                    pool.execute(new AgentDispatchTask(conn, cmd));
-                    if (logDebug) log.debug("Done dispatching command " + cmd.getCommand() + " to pool " + pool);
+                    if (AgentCommandsAPI.command_open_channel.equals(cmd.getCommand())) {
+                        openChannel(conn, cmd);
+                    } else {
+                        dispatch(conn, cmd);
+                    }
                 } catch (EOFException e) {
                     log.debug(e, e);
                 } catch (InterruptedIOException e){
@@ -182,6 +196,39 @@ public class CommandListener extends AgentMonitorSimple {
         }
     }
     
+    /**
+     * Run the command on its pool, the result is written to the connection
+     * which is closed afterwards
+     */
+    void dispatch(AgentServerConnection conn, AgentCommand cmd) {
+        final boolean logDebug = log.isDebugEnabled();
+        final ExecutorService pool = getPool(cmd);
+        if (logDebug) log.debug("Dispatching command " + cmd.getCommand() + " to pool: " + pool);
+        pool.execute(new AgentDispatchTask(conn, cmd));
+        if (logDebug) log.debug("Done dispatching command " + cmd.getCommand() + " to pool " + pool);
+    }
+
+    /**
+     * Hand the connection to a {@link CommandChannel} thread which reads
+     * the commands the server pipelines over it
+     */
+    private void openChannel(AgentServerConnection conn, AgentCommand cmd) {
+        final CommandChannel channel = new CommandChannel(this, conn, cmd.getAgentVersion());
+        synchronized (channels) {
+            channels.add(channel);
+        }
+        final Thread thread = new Thread(channel, "commandchannel-" + channelNum.getAndIncrement());
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Opened command channel " + thread.getName());
+    }
+
+    void removeChannel(CommandChannel channel) {
+        synchronized (channels) {
+            channels.remove(channel);
+        }
+    }
+
     private ExecutorService getPool(AgentCommand cmd) {
         final ExecutorService pool = threadPools.get(cmd.getCommand());
         return (pool == null) ? threadPools.get(GENERIC_POOL) : pool;
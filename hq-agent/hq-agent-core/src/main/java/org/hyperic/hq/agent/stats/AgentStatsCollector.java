@@ -44,6 +44,8 @@ public class AgentStatsCollector extends AbstractStatsCollector {
     public static final String SCHEDULE_THREAD_METRICS_COLLECTED_TIME = "SCHEDULE_THREAD_METRICS_COLLECTED_TIME";
     public static final String SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED = "SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED";
     public static final String SCHEDULE_THREAD_METRIC_COLLECT_FAILED  = "SCHEDULE_THREAD_METRIC_COLLECT_FAILED";
+    public static final String SCHEDULE_THREAD_METRIC_LATENESS = "SCHEDULE_THREAD_METRIC_LATENESS";
+    public static final String SCHEDULE_THREAD_METRIC_COLLECT_OVERDUE = "SCHEDULE_THREAD_METRIC_COLLECT_OVERDUE";
     public static final String COLLECTOR_THREAD_METRIC_COLLECTED_TIME = "COLLECTOR_THREAD_METRIC_COLLECTED_TIME";
     public static final String SENDER_THREAD_SEND_NUM_METRICS = "SENDER_THREAD_NUM_SEND_METRICS";
     public static final String SENDER_THREAD_SEND_METRICS_TIME = "SENDER_THREAD_SEND_METRICS_TIME";
@@ -52,6 +54,16 @@ public class AgentStatsCollector extends AbstractStatsCollector {
     public static final String DISK_LIST_ADD_TO_LIST_TIME = "DISK_LIST_ADD_TO_LIST_TIME";
     public static final String DISK_LIST_DELETE_ALL_RECORDS_TIME = "DISK_LIST_DELETE_ALL_RECORDS_TIME";
     public static final String DISK_LIST_KEYVALS_FLUSH_TIME = "DISK_LIST_KEYVALS_FLUSH_TIME";
+    public static final String BINARY_LIST_ADD_TO_LIST_TIME = "BINARY_LIST_ADD_TO_LIST_TIME";
+    public static final String BINARY_LIST_READ_RECORD_TIME = "BINARY_LIST_READ_RECORD_TIME";
+    public static final String BINARY_LIST_REMOVE_TIME = "BINARY_LIST_REMOVE_TIME";
+    public static final String BINARY_LIST_COMPACT_TIME = "BINARY_LIST_COMPACT_TIME";
+    public static final String SEGMENT_LIST_ADD_TO_LIST_TIME = "SEGMENT_LIST_ADD_TO_LIST_TIME";
+    public static final String SEGMENT_LIST_REMOVE_TIME = "SEGMENT_LIST_REMOVE_TIME";
+    public static final String SEGMENT_LIST_NUM_SEGMENTS = "SEGMENT_LIST_NUM_SEGMENTS";
+    public static final String SENDER_THREAD_ENCODE_RECORDS_TIME = "SENDER_THREAD_ENCODE_RECORDS_TIME";
+    public static final String SENDER_THREAD_DECODE_RECORDS_TIME = "SENDER_THREAD_DECODE_RECORDS_TIME";
+    public static final String SENDER_THREAD_SPOOL_BYTES_PER_RECORD = "SENDER_THREAD_SPOOL_BYTES_PER_RECORD";
 
     private AgentStatsCollector() {
         super(getMBeanServer());
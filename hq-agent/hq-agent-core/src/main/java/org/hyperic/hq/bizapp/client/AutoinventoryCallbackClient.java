@@ -31,6 +31,7 @@ import org.hyperic.hq.autoinventory.ScanState;
 import org.hyperic.hq.bizapp.agent.ProviderInfo;
 import org.hyperic.hq.bizapp.shared.lather.AiSendReport_args;
 import org.hyperic.hq.bizapp.shared.lather.AiSendRuntimeReport_args;
+import org.hyperic.hq.bizapp.shared.lather.AiSendRuntimeReport_result;
 import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
 
 public class AutoinventoryCallbackClient 
@@ -52,16 +53,30 @@ public class AutoinventoryCallbackClient
         this.invokeLatherCall(provider, CommandInfo.CMD_AI_SEND_REPORT, args);
     }
 
-    public void aiSendRuntimeReport(CompositeRuntimeResourceReport report) 
+    /**
+     * @return true if the server keeps track of the report digests and
+     * accepted the report, so that the next report may leave out the
+     * unchanged server reports.  false if the server is too old to support
+     * differential reports or asked for a full report.
+     */
+    public boolean aiSendRuntimeReport(CompositeRuntimeResourceReport report) 
         throws AutoinventoryException, AgentCallbackClientException 
     {
         AiSendRuntimeReport_args args;
         ProviderInfo provider;
+        Object res;
         
         provider = this.getProvider();
         args = new AiSendRuntimeReport_args(report);
 
-        this.invokeLatherCall(provider, CommandInfo.CMD_AI_SEND_RUNTIME_REPORT,
-                              args);
+        res = this.invokeLatherCall(provider, 
+                                    CommandInfo.CMD_AI_SEND_RUNTIME_REPORT,
+                                    args);
+
+        if (!(res instanceof AiSendRuntimeReport_result)) {
+            // older servers return a NullLatherValue
+            return false;
+        }
+        return !((AiSendRuntimeReport_result) res).isFullSync();
     }
 }
@@ -41,10 +41,22 @@ import org.hyperic.lather.LatherRemoteException;
 public class MeasurementCallbackClient 
     extends AgentCallbackClient
 {
+    private volatile long backoff = 0;
+    // set once the server replied that it decodes packed reports
+    private volatile boolean packedReports = false;
+
     public MeasurementCallbackClient(ProviderFetcher fetcher){
         super(fetcher);
     }
 
+    /**
+     * Returns the time in ms the server asked the agent to wait before
+     * sending more backlogged data with the last report
+     */
+    public long getBackoff() {
+        return this.backoff;
+    }
+
     /**
      * Returns the current server time
      */
@@ -57,13 +69,23 @@ public class MeasurementCallbackClient
 
         provider = this.getProvider();
         args = new MeasurementSendReport_args();
-        args.setReport(report);
+        args.setReport(report, this.packedReports);
 
-        res = (MeasurementSendReport_result)
-            this.invokeLatherCall(provider, 
-                                  CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
-                                  args);
+        try {
+            res = (MeasurementSendReport_result)
+                this.invokeLatherCall(provider, 
+                                      CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
+                                      args);
+        } catch (AgentCallbackClientException exc) {
+            // the agent may have failed over to an older server, fall back
+            // to the format every server decodes until a server asks for
+            // packed reports again
+            this.packedReports = false;
+            throw exc;
+        }
 
+        this.backoff = res.getBackoff();
+        this.packedReports = res.isPackedReports();
         try {
             return res.getTime();
         } catch (LatherRemoteException exc) {
@@ -0,0 +1,309 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BinaryDiskListTest extends TestCase {
+
+    private static final int RECSIZE = 24;
+    private static final int HEADER_LEN = 32;
+
+    private File file;
+
+    public BinaryDiskListTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("binarylist", ".blist");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private BinaryDiskList newList(long maxLength) throws IOException {
+        return new BinaryDiskList(file, RECSIZE, 10 * RECSIZE, 50, maxLength);
+    }
+
+    public void testWriteReadRoundTrip() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        assertNull(list.getListIterator());
+        list.addAllToList(records(0, 600));
+        list.addToList(record(600));
+        assertEquals(601, list.size());
+        assertEquals(HEADER_LEN + 601 * RECSIZE, file.length());
+
+        // more records than the iterator reads ahead at a time
+        int expected = 0;
+        for (Iterator<byte[]> it = list.getListIterator(); it.hasNext();) {
+            byte[] rec = it.next();
+            assertEquals(RECSIZE, rec.length);
+            assertEquals(expected, value(rec));
+            assertEquals(expected * 3L, ByteBuffer.wrap(rec).getLong(4));
+            expected++;
+        }
+        assertEquals(601, expected);
+        list.close();
+    }
+
+    public void testRecordSizeIsEnforced() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        try {
+            list.addToList(new byte[RECSIZE - 1]);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected outcome
+        }
+        assertEquals(0, list.size());
+        list.close();
+        try {
+            new BinaryDiskList(file, RECSIZE + 1, 10 * RECSIZE, 50, Long.MAX_VALUE);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected outcome
+        }
+    }
+
+    public void testRemoveHeadCompacts() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        list.addAllToList(records(0, 40));
+        // below the compaction thresholds only the head index moves
+        assertEquals(5, list.removeFirst(5));
+        assertEquals(HEADER_LEN + 40 * RECSIZE, file.length());
+
+        int expected = 5;
+        Iterator<byte[]> it = list.getListIterator();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(expected++, value(it.next()));
+            it.remove();
+        }
+        // the removed head passed both thresholds and was compacted away
+        assertEquals(15, list.size());
+        assertTrue(file.length() < HEADER_LEN + 40 * RECSIZE);
+        // the iterator keeps going after the records moved
+        while (it.hasNext()) {
+            assertEquals(expected++, value(it.next()));
+        }
+        assertEquals(40, expected);
+
+        // draining the list truncates the file
+        assertEquals(15, list.removeFirst(100));
+        assertEquals(0, list.size());
+        assertEquals(HEADER_LEN, file.length());
+        assertNull(list.getListIterator());
+        list.close();
+    }
+
+    public void testRemoveByOthersFailsIterator() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        list.addAllToList(records(0, 3));
+        Iterator<byte[]> it = list.getListIterator();
+        it.next();
+        list.removeFirst(1);
+        try {
+            it.next();
+            fail("Expected ConcurrentModificationException");
+        } catch (ConcurrentModificationException e) {
+            // expected outcome
+        }
+        list.close();
+    }
+
+    public void testReopenAfterClose() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        list.addAllToList(records(0, 10));
+        list.removeFirst(4);
+        list.close();
+        try {
+            list.addToList(record(10));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected outcome
+        }
+
+        list = newList(Long.MAX_VALUE);
+        assertEquals(6, list.size());
+        list.addAllToList(records(10, 2));
+        int expected = 4;
+        for (Iterator<byte[]> it = list.getListIterator(); it.hasNext();) {
+            assertEquals(expected++, value(it.next()));
+        }
+        assertEquals(12, expected);
+        list.close();
+    }
+
+    public void testReopenDropsPartialRecord() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        list.addAllToList(records(0, 3));
+        list.close();
+        // a crash in the middle of an append
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() + RECSIZE / 2);
+        raf.close();
+
+        list = newList(Long.MAX_VALUE);
+        assertEquals(3, list.size());
+        assertEquals(HEADER_LEN + 3 * RECSIZE, file.length());
+        list.addToList(record(3));
+        Iterator<byte[]> it = list.getListIterator();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, value(it.next()));
+        }
+        list.close();
+    }
+
+    public void testReopenFinishesInterruptedCompaction() throws Exception {
+        for (int truncated = 0; truncated < 2; truncated++) {
+            BinaryDiskList list = newList(Long.MAX_VALUE);
+            list.addAllToList(records(0, 40));
+            list.close();
+            // a crash during compact() after the live records 30-39 were
+            // copied to the front, before or after the truncate
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            for (int i = 0; i < 10; i++) {
+                raf.seek(HEADER_LEN + i * RECSIZE);
+                raf.write(record(30 + i));
+            }
+            raf.seek(16);
+            raf.writeLong(30);
+            raf.writeLong(10);
+            if (truncated == 1) {
+                raf.setLength(HEADER_LEN + 10 * RECSIZE);
+            }
+            raf.close();
+
+            list = newList(Long.MAX_VALUE);
+            assertEquals(10, list.size());
+            assertEquals(HEADER_LEN + 10 * RECSIZE, file.length());
+            int expected = 30;
+            for (Iterator<byte[]> it = list.getListIterator(); it.hasNext();) {
+                assertEquals(expected++, value(it.next()));
+            }
+            assertEquals(40, expected);
+            list.close();
+            // the compaction is not finished twice
+            list = newList(Long.MAX_VALUE);
+            assertEquals(10, list.size());
+            list.close();
+            file.delete();
+        }
+    }
+
+    public void testReopenAfterCrashWhileDraining() throws Exception {
+        BinaryDiskList list = newList(Long.MAX_VALUE);
+        list.addAllToList(records(0, 5));
+        list.removeFirst(3);
+        list.close();
+        // a crash in removeFirst() after the drained file was truncated,
+        // before the head was reset
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16);
+        raf.writeLong(5);
+        raf.setLength(HEADER_LEN);
+        raf.close();
+
+        list = newList(Long.MAX_VALUE);
+        assertEquals(0, list.size());
+        assertNull(list.getListIterator());
+        list.close();
+    }
+
+    public void testMaxLengthDeletesAllRecords() throws Exception {
+        BinaryDiskList list = newList(HEADER_LEN + 10 * RECSIZE);
+        list.addAllToList(records(0, 10));
+        assertEquals(10, list.size());
+        list.addToList(record(10));
+        assertEquals(0, list.size());
+        assertEquals(HEADER_LEN, file.length());
+        list.addToList(record(11));
+        assertEquals(11, value(list.getListIterator().next()));
+        list.close();
+    }
+
+    public void testConcurrentAddsStayWithinMaxLength() throws Exception {
+        final BinaryDiskList list = newList(HEADER_LEN + 50 * RECSIZE);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int base = i * 1000;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 500; j++) {
+                            list.addAllToList(records(base + j, 3));
+                            if (file.length() > HEADER_LEN + 53 * RECSIZE) {
+                                throw new AssertionError("file grew to " + file.length());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(list.size() <= 50);
+        assertEquals(HEADER_LEN + list.size() * RECSIZE, file.length());
+        list.close();
+    }
+
+    private static List<byte[]> records(int start, int num) {
+        List<byte[]> rtn = new ArrayList<byte[]>(num);
+        for (int i = start; i < start + num; i++) {
+            rtn.add(record(i));
+        }
+        return rtn;
+    }
+
+    private static byte[] record(int i) {
+        return ByteBuffer.allocate(RECSIZE).putInt(i).putLong(i * 3L).array();
+    }
+
+    private static int value(byte[] rec) {
+        return ByteBuffer.wrap(rec).getInt();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the MappedSegmentList and BinaryDiskList spool implementations.
+ */
+public class MappedSegmentListTest extends TestCase {
+
+    private static final int RECSIZE = 24;
+    // room for 10 records per segment
+    private static final int SEGSIZE = 32 + (10 * RECSIZE);
+
+    private File dir;
+
+    public MappedSegmentListTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    public void testAppendAndRemoveAcrossSegments() throws Exception {
+        MappedSegmentList list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+        list.addAllToList(records(0, 35));
+        assertEquals(35, list.size());
+        assertEquals(4, dir.listFiles().length);
+
+        // remove through the iterator the way the sender does
+        int expected = 0;
+        Iterator<byte[]> it = list.getListIterator();
+        for (int i = 0; i < 25; i++) {
+            assertEquals(expected++, value(it.next()));
+            it.remove();
+        }
+        assertEquals(10, list.size());
+        // the first two segments are fully consumed and deleted
+        assertEquals(2, dir.listFiles().length);
+
+        assertEquals(10, list.removeFirst(100));
+        assertEquals(0, list.size());
+        assertNull(list.getListIterator());
+        list.close();
+    }
+
+    public void testRecoveryKeepsOrderAndHead() throws Exception {
+        MappedSegmentList list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+        list.addAllToList(records(0, 23));
+        list.removeFirst(12);
+        list.close();
+
+        list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+        assertEquals(11, list.size());
+        list.addAllToList(records(23, 5));
+        int expected = 12;
+        for (Iterator<byte[]> it = list.getListIterator(); it.hasNext();) {
+            assertEquals(expected++, value(it.next()));
+        }
+        assertEquals(28, expected);
+        list.close();
+    }
+
+    public void testMaxLengthDropsOldestSegments() throws Exception {
+        MappedSegmentList list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, 3 * SEGSIZE);
+        list.addAllToList(records(0, 40));
+        assertEquals(3, dir.listFiles().length);
+        assertEquals(30, list.size());
+        assertEquals(10, value(list.getListIterator().next()));
+        list.close();
+    }
+
+    public void testOnlyHeadMayBeRemoved() throws Exception {
+        MappedSegmentList list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+        list.addAllToList(records(0, 3));
+        Iterator<byte[]> it = list.getListIterator();
+        it.next();
+        it.next();
+        try {
+            it.remove();
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // expected outcome
+        }
+        list.close();
+    }
+
+    public void testSegmentsCanBeUnmapped() throws Exception {
+        // one of the ways to release a mapping is found on this JVM
+        assertTrue(MappedSegmentList.canUnmap());
+        MappedSegmentList list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+        list.addAllToList(records(0, 25));
+        list.removeFirst(15);
+        list.flush();
+        assertEquals(2, dir.listFiles().length);
+        list.close();
+
+        list = new MappedSegmentList(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+        assertEquals(10, list.size());
+        assertEquals(15, value(list.getListIterator().next()));
+        list.close();
+    }
+
+    public void testBinaryDiskListCompaction() throws Exception {
+        File file = new File(dir, "list.blist");
+        BinaryDiskList list = new BinaryDiskList(file, RECSIZE, 10 * RECSIZE, 50, Long.MAX_VALUE);
+        list.addAllToList(records(0, 100));
+        int expected = 0;
+        Iterator<byte[]> it = list.getListIterator();
+        for (int i = 0; i < 70; i++) {
+            assertEquals(expected++, value(it.next()));
+            it.remove();
+        }
+        assertEquals(30, list.size());
+        // the removed head has been compacted away at least once
+        assertTrue(file.length() < 32 + 70 * RECSIZE);
+        list.close();
+
+        list = new BinaryDiskList(file, RECSIZE, 10 * RECSIZE, 50, Long.MAX_VALUE);
+        for (it = list.getListIterator(); it.hasNext();) {
+            assertEquals(expected++, value(it.next()));
+        }
+        assertEquals(100, expected);
+        list.close();
+    }
+
+    private static List<byte[]> records(int start, int num) {
+        List<byte[]> rtn = new ArrayList<byte[]>(num);
+        for (int i = start; i < start + num; i++) {
+            rtn.add(ByteBuffer.allocate(RECSIZE).putInt(i).array());
+        }
+        return rtn;
+    }
+
+    private static int value(byte[] rec) throws IOException {
+        return ByteBuffer.wrap(rec).getInt();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hyperic.util.encoding.Base64;
+
+/**
+ * Compares the spool implementations the way the SenderThread uses them:
+ * the backlog is filled in batches of one collection interval and then
+ * drained in batches of agent.maxBatchSize records.
+ *
+ * Usage: SpoolBenchmark [numRecords] [workDir]
+ */
+public class SpoolBenchmark {
+    private static final int RECSIZE = 24;
+    private static final int ADD_BATCH = 2000;
+    private static final int SEND_BATCH = 500;
+
+    public static void main(String[] args) throws Exception {
+        int num = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File dir = new File((args.length > 1) ? args[1] : System.getProperty("java.io.tmpdir"),
+                            "spoolbench-" + System.currentTimeMillis());
+        dir.mkdirs();
+
+        System.out.println("Benchmarking " + num + " records in " + dir);
+        benchDiskList(new File(dir, "disklist"), num);
+        benchBinaryList("BinaryDiskList",
+            new BinaryDiskList(new File(dir, "binary.blist"), RECSIZE, 10 * 1024 * 1024, 50, Long.MAX_VALUE), num);
+        benchBinaryList("MappedSegmentList",
+            new MappedSegmentList(new File(dir, "binary.segments"), RECSIZE,
+                                  MappedSegmentList.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE), num);
+    }
+
+    private static byte[] record(int i) {
+        ByteBuffer buf = ByteBuffer.allocate(RECSIZE);
+        buf.putInt(i);
+        buf.putLong(System.currentTimeMillis());
+        buf.putInt(i);
+        buf.putDouble(i);
+        return buf.array();
+    }
+
+    private static void benchDiskList(File file, int num) throws Exception {
+        DiskList list = new DiskList(file, 34, 10 * 1024 * 1024, 50);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < num; i++) {
+            list.addToList(Base64.encode(record(i)));
+        }
+        long added = System.currentTimeMillis();
+        int drained = 0;
+        Iterator<String> it;
+        while ((it = list.getListIterator()) != null) {
+            for (int i = 0; i < SEND_BATCH && it.hasNext(); i++) {
+                Base64.decode(it.next());
+            }
+            it = list.getListIterator();
+            for (int i = 0; i < SEND_BATCH && it.hasNext(); i++, drained++) {
+                it.next();
+                it.remove();
+            }
+        }
+        report("DiskList", num, drained, start, added, System.currentTimeMillis());
+        list.close();
+    }
+
+    private static void benchBinaryList(String name, BinaryList list, int num) throws Exception {
+        long start = System.currentTimeMillis();
+        List<byte[]> batch = new ArrayList<byte[]>(ADD_BATCH);
+        for (int i = 0; i < num; i++) {
+            batch.add(record(i));
+            if (batch.size() == ADD_BATCH) {
+                list.addAllToList(batch);
+                batch.clear();
+            }
+        }
+        list.addAllToList(batch);
+        list.flush();
+        long added = System.currentTimeMillis();
+        int drained = 0;
+        Iterator<byte[]> it;
+        while ((it = list.getListIterator()) != null) {
+            for (int i = 0; i < SEND_BATCH && it.hasNext(); i++) {
+                ByteBuffer.wrap(it.next()).getDouble(16);
+            }
+            drained += list.removeFirst(SEND_BATCH);
+        }
+        report(name, num, drained, start, added, System.currentTimeMillis());
+        list.close();
+    }
+
+    private static void report(String name, int num, int drained, long start, long added, long end) {
+        System.out.println(name + ": added " + num + " in " + (added - start) + " ms (" +
+                           rate(num, added - start) + " rec/s), drained " + drained + " in " +
+                           (end - added) + " ms (" + rate(drained, end - added) + " rec/s)");
+    }
+
+    private static long rate(long num, long millis) {
+        return (millis == 0) ? num * 1000 : (num * 1000) / millis;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.agent.AgentAPIInfo;
+import org.hyperic.hq.agent.AgentCommandsAPI;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+import org.hyperic.hq.agent.client.AgentConnection;
+
+public class CommandChannelTest extends TestCase {
+
+    private static final String CMD_ECHO = "test:echo";
+    private static final String CMD_FAIL = "test:fail";
+    private static final int VERSION = new AgentCommandsAPI().getVersion();
+
+    private final AtomicInteger numConnections = new AtomicInteger(0);
+    private ServerSocket serverSocket;
+    private CommandListener commandListener;
+    private Thread listenThread;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        serverSocket = new ServerSocket(0);
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        dispatcher.addServerHandler(new TestHandler());
+        commandListener = new CommandListener(dispatcher);
+        commandListener.setConnectionListener(new AgentConnectionListener(null) {
+            public void setup(int timeout) {
+                try {
+                    serverSocket.setSoTimeout(timeout);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.toString());
+                }
+            }
+            public AgentServerConnection getNewConnection()
+                throws AgentConnectionException, InterruptedIOException {
+                try {
+                    Socket socket = serverSocket.accept();
+                    numConnections.incrementAndGet();
+                    return new DefaultServerConnection(socket);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    throw new AgentConnectionException(e.toString(), e);
+                }
+            }
+            public void cleanup() {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        });
+        commandListener.setup();
+        listenThread = new Thread() {
+            public void run() {
+                commandListener.listenLoop();
+            }
+        };
+        listenThread.start();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        commandListener.die();
+        listenThread.join(5000);
+    }
+
+    public void testPipelinedCommands() throws Exception {
+        final AgentConnection conn = new ChannelConnection(serverSocket.getLocalPort());
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            String val = thread + "-" + j;
+                            assertEquals(val, echo(conn, val));
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(errors.toString(), 0, errors.size());
+        // all of the commands went over the channel
+        assertEquals(1, numConnections.get());
+    }
+
+    public void testRemoteError() throws Exception {
+        AgentConnection conn = new ChannelConnection(serverSocket.getLocalPort());
+        try {
+            conn.sendCommand(CMD_FAIL, VERSION, new AgentRemoteValue());
+            fail();
+        } catch (AgentRemoteException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        // the channel is still usable
+        assertEquals("a", echo(conn, "a"));
+        assertEquals(1, numConnections.get());
+    }
+
+    public void testFallbackToConnectionPerCommand() throws Exception {
+        final ServerSocket oldAgent = new ServerSocket(0);
+        final AtomicInteger oldConnections = new AtomicInteger(0);
+        Thread oldAgentThread = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = oldAgent.accept();
+                        oldConnections.incrementAndGet();
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                        in.readInt();
+                        in.readInt();
+                        String cmd = in.readUTF();
+                        AgentRemoteValue arg = AgentRemoteValue.fromStream(in);
+                        if (CMD_ECHO.equals(cmd)) {
+                            out.writeInt(0);
+                            arg.toStream(out);
+                        } else {
+                            out.writeInt(1);
+                            out.writeUTF("Unknown command, '" + cmd + "'");
+                        }
+                        out.flush();
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        oldAgentThread.start();
+        try {
+            AgentConnection conn = new ChannelConnection(oldAgent.getLocalPort());
+            assertEquals("a", echo(conn, "a"));
+            // the rejected open channel command and the command itself
+            assertEquals(2, oldConnections.get());
+            assertEquals("b", echo(conn, "b"));
+            // no further attempt to open a channel
+            assertEquals(3, oldConnections.get());
+        } finally {
+            oldAgent.close();
+        }
+    }
+
+    private String echo(AgentConnection conn, String val) throws Exception {
+        AgentRemoteValue arg = new AgentRemoteValue();
+        arg.setValue("val", val);
+        return conn.sendCommand(CMD_ECHO, VERSION, arg).getValue("val");
+    }
+
+    private static class ChannelConnection extends AgentConnection {
+        ChannelConnection(int port) {
+            super("127.0.0.1", port);
+        }
+
+        protected boolean isCommandChannelEnabled() {
+            return true;
+        }
+    }
+
+    private static class TestHandler implements AgentServerHandler {
+        public String[] getCommandSet() {
+            return new String[] {CMD_ECHO, CMD_FAIL};
+        }
+
+        public AgentAPIInfo getAPIInfo() {
+            return new AgentCommandsAPI();
+        }
+
+        public AgentRemoteValue dispatchCommand(String cmd, AgentRemoteValue arg,
+                                                InputStream inStream, OutputStream outStream)
+            throws AgentRemoteException {
+            if (CMD_FAIL.equals(cmd)) {
+                throw new AgentRemoteException("failed");
+            }
+            return arg;
+        }
+
+        public void startup(AgentDaemon agent) {
+        }
+
+        public void postInitActions() {
+        }
+
+        public void shutdown() {
+        }
+    }
+}
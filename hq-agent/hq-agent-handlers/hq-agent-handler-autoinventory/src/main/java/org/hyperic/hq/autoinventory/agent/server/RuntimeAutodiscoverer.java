@@ -25,6 +25,7 @@
 
 package org.hyperic.hq.autoinventory.agent.server;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -50,6 +51,7 @@ import org.hyperic.hq.autoinventory.CompositeRuntimeResourceReport;
 import org.hyperic.hq.autoinventory.RuntimeScanner;
 import org.hyperic.hq.autoinventory.Scanner;
 import org.hyperic.hq.bizapp.client.AutoinventoryCallbackClient;
+import org.hyperic.hq.bizapp.shared.lather.RuntimeResourceReportLatherValue;
 import org.hyperic.hq.product.AutoinventoryPluginManager;
 import org.hyperic.hq.product.PlatformResource;
 import org.hyperic.hq.product.PluginException;
@@ -94,6 +96,9 @@ class RuntimeAutodiscoverer implements RuntimeScanner, AgentDiagnosticObject {
     private final AtomicReference<CompositeRuntimeResourceReport> _lastReport =
         new AtomicReference<CompositeRuntimeResourceReport>();
     private final AtomicBoolean _writeLastReportDiag = new AtomicBoolean(true);
+    // serverId -> digest of the server reports the server accepted last,
+    // empty as long as the server does not support differential reports
+    private volatile Map<Integer, String> _acceptedDigests = Collections.emptyMap();
 
     public RuntimeAutodiscoverer (AutoinventoryCommandsServer aicmd,
                                   AgentStorageProvider storageProvider,
@@ -299,10 +304,7 @@ class RuntimeAutodiscoverer implements RuntimeScanner, AgentDiagnosticObject {
             _lastReport.set(compositeReport);
             _writeLastReportDiag.set(true);
             try {
-                if (_log.isDebugEnabled()) {
-                    _log.debug("Sending RuntimeReport: " + compositeReport.simpleSummary());
-                }
-                _client.aiSendRuntimeReport(compositeReport);
+                sendRuntimeReport(compositeReport);
             } catch (Exception e) {
                 _log.error(errMsg + e, e);
             }
@@ -312,6 +314,49 @@ class RuntimeAutodiscoverer implements RuntimeScanner, AgentDiagnosticObject {
         _currentScanInterval = _normalScanInterval;
     }
 
+    /**
+     * Fingerprint each server report and only send the ones which changed
+     * since the last report the server accepted.  Falls back to the full
+     * report if the server does not support differential reports or if its
+     * digests do not match ours.
+     */
+    private void sendRuntimeReport(CompositeRuntimeResourceReport compositeReport)
+        throws Exception {
+        final Map<Integer, String> accepted = _acceptedDigests;
+        final Map<Integer, String> digests = new HashMap<Integer, String>();
+        final CompositeRuntimeResourceReport diffReport = new CompositeRuntimeResourceReport();
+        for (RuntimeResourceReport report : compositeReport.getServerReports()) {
+            final String digest = RuntimeResourceReportLatherValue.getDigest(report);
+            report.setDigest(digest);
+            digests.put(report.getServerId(), digest);
+            if (digest.equals(accepted.get(report.getServerId()))) {
+                diffReport.addUnchangedServerReport(report.getServerId(), digest);
+            } else {
+                diffReport.addServerReport(report);
+            }
+        }
+
+        // if the send fails we don't know what the server got
+        _acceptedDigests = Collections.emptyMap();
+        if (diffReport.getUnchangedServerReports().length > 0) {
+            if (_log.isDebugEnabled()) {
+                _log.debug("Sending differential RuntimeReport: " + diffReport.simpleSummary());
+            }
+            if (_client.aiSendRuntimeReport(diffReport)) {
+                _acceptedDigests = digests;
+                return;
+            }
+            _log.info("Server is out of sync with the runtime report digests, sending full report");
+        }
+
+        if (_log.isDebugEnabled()) {
+            _log.debug("Sending RuntimeReport: " + compositeReport.simpleSummary());
+        }
+        if (_client.aiSendRuntimeReport(compositeReport)) {
+            _acceptedDigests = digests;
+        }
+    }
+
     private long loadScanInterval(String type) {
         // get scan intervals from agent.properties.
         Properties bootProps = _agent.getBootConfig().getBootProperties(); 
@@ -0,0 +1,374 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Worker pool shared by the metric collections of all the plugins.  Each
+ * plugin has its own FIFO queue and a cap on the number of its collections
+ * running at the same time.  An idle worker takes the next collection from
+ * whichever plugin is next in a round robin over the plugins which have
+ * queued collections and are below their cap, so a slow plugin can only tie
+ * up as many workers as its cap allows while the other plugins keep using the
+ * rest of the pool.  Workers are started on demand up to maxWorkers and exit
+ * after being idle for the keep alive time.
+ * <br>
+ * A collection which did not start before its deadline, usually the time the
+ * next collection of the same metric is due, is dropped rather than run late.
+ */
+class CollectionPool {
+    private static final Log log = LogFactory.getLog(CollectionPool.class.getName());
+
+    interface Limits {
+        /**
+         * @return the max number of collections of the plugin running at the
+         *         same time
+         */
+        int getMaxConcurrency(String plugin);
+
+        /**
+         * @return the max number of queued collections of the plugin
+         */
+        int getMaxQueued(String plugin);
+    }
+
+    abstract static class Task implements Runnable {
+        private final long dueTime;
+        private final long deadline;
+        // guarded by the lock of the task
+        private Thread runner;
+        private volatile long startTime = 0;
+
+        /**
+         * @param dueTime the time the collection was scheduled for
+         * @param deadline the collection is dropped if it did not start by
+         *        then
+         */
+        Task(long dueTime, long deadline) {
+            this.dueTime = dueTime;
+            this.deadline = deadline;
+        }
+
+        long getDueTime() {
+            return dueTime;
+        }
+
+        /**
+         * @return 0 if the task did not start yet
+         */
+        long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Invoked from the worker instead of run() if the task did not start
+         * before its deadline
+         */
+        abstract void overdue();
+    }
+
+    /**
+     * Snapshot of the counters of a plugin
+     */
+    static class PluginStats {
+        String plugin;
+        int queued;
+        int active;
+        long submitted;
+        long completed;
+        long overdue;
+        long rejected;
+        long totalLateness;
+        long maxLateness;
+
+        long getAvgLateness() {
+            long started = completed + active;
+            return (started == 0) ? 0 : totalLateness / started;
+        }
+
+        public String toString() {
+            return "plugin=" + plugin +
+                   " queued=" + queued +
+                   " active=" + active +
+                   " submitted=" + submitted +
+                   " completed=" + completed +
+                   " overdue=" + overdue +
+                   " rejected=" + rejected +
+                   " avgLateness=" + getAvgLateness() + "ms" +
+                   " maxLateness=" + maxLateness + "ms";
+        }
+    }
+
+    private static class PluginQueue {
+        private final String plugin;
+        private final int maxConcurrency;
+        private final int maxQueued;
+        private final LinkedList<Task> tasks = new LinkedList<Task>();
+        private int active = 0;
+        private boolean isReady = false;
+        private final PluginStats stats = new PluginStats();
+
+        private PluginQueue(String plugin, int maxConcurrency, int maxQueued) {
+            this.plugin = plugin;
+            this.maxConcurrency = Math.max(1, maxConcurrency);
+            this.maxQueued = maxQueued;
+            this.stats.plugin = plugin;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final String name;
+    private final int maxWorkers;
+    private final long keepAlive;
+    private final Limits limits;
+    // all guarded by lock
+    private final Map<String, PluginQueue> queues = new HashMap<String, PluginQueue>();
+    // plugins which have queued tasks and are below their cap, in round
+    // robin order
+    private final LinkedList<PluginQueue> ready = new LinkedList<PluginQueue>();
+    private final List<Task> running = new ArrayList<Task>();
+    private int workers = 0;
+    private int idleWorkers = 0;
+    private int workerNum = 0;
+    private boolean shutdown = false;
+
+    CollectionPool(String name, int maxWorkers, long keepAlive, Limits limits) {
+        this.name = name;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.keepAlive = keepAlive;
+        this.limits = limits;
+    }
+
+    /**
+     * @return false if the queue of the plugin is full or the pool was shut
+     *         down
+     */
+    boolean submit(String plugin, Task task) {
+        synchronized (lock) {
+            if (shutdown) {
+                return false;
+            }
+            PluginQueue queue = queues.get(plugin);
+            if (queue == null) {
+                queue = new PluginQueue(plugin, limits.getMaxConcurrency(plugin),
+                                        limits.getMaxQueued(plugin));
+                queues.put(plugin, queue);
+                log.info("Collecting metrics of plugin '" + plugin + "' with a concurrency=" +
+                         queue.maxConcurrency + " queuesize=" + queue.maxQueued);
+            }
+            if (queue.tasks.size() >= queue.maxQueued) {
+                queue.stats.rejected++;
+                return false;
+            }
+            queue.tasks.addLast(task);
+            queue.stats.submitted++;
+            makeReady(queue);
+            return true;
+        }
+    }
+
+    /**
+     * Interrupt the task if it is still running
+     *
+     * @return false if the task is not running
+     */
+    boolean cancel(Task task) {
+        synchronized (task) {
+            if (task.runner == null) {
+                return false;
+            }
+            task.runner.interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * @return the tasks which are currently running
+     */
+    List<Task> getRunningTasks() {
+        synchronized (lock) {
+            return new ArrayList<Task>(running);
+        }
+    }
+
+    List<PluginStats> getPluginStats() {
+        List<PluginStats> rtn = new ArrayList<PluginStats>();
+        synchronized (lock) {
+            for (Iterator<PluginQueue> it = queues.values().iterator(); it.hasNext();) {
+                PluginQueue queue = it.next();
+                PluginStats stats = new PluginStats();
+                stats.plugin = queue.plugin;
+                stats.queued = queue.tasks.size();
+                stats.active = queue.active;
+                stats.submitted = queue.stats.submitted;
+                stats.completed = queue.stats.completed;
+                stats.overdue = queue.stats.overdue;
+                stats.rejected = queue.stats.rejected;
+                stats.totalLateness = queue.stats.totalLateness;
+                stats.maxLateness = queue.stats.maxLateness;
+                rtn.add(stats);
+            }
+        }
+        return rtn;
+    }
+
+    int getNumWorkers() {
+        synchronized (lock) {
+            return workers;
+        }
+    }
+
+    /**
+     * Drop the queued tasks and interrupt the running ones
+     *
+     * @return the number of queued tasks which were dropped
+     */
+    int shutdown() {
+        int rtn = 0;
+        List<Task> interrupt;
+        synchronized (lock) {
+            shutdown = true;
+            for (Iterator<PluginQueue> it = queues.values().iterator(); it.hasNext();) {
+                PluginQueue queue = it.next();
+                rtn += queue.tasks.size();
+                queue.tasks.clear();
+            }
+            ready.clear();
+            interrupt = new ArrayList<Task>(running);
+            lock.notifyAll();
+        }
+        for (Iterator<Task> it = interrupt.iterator(); it.hasNext();) {
+            cancel(it.next());
+        }
+        return rtn;
+    }
+
+    // must hold lock
+    private void makeReady(PluginQueue queue) {
+        if (queue.isReady || queue.tasks.isEmpty() || (queue.active >= queue.maxConcurrency)) {
+            return;
+        }
+        queue.isReady = true;
+        ready.addLast(queue);
+        if (idleWorkers > 0) {
+            lock.notify();
+        } else if (workers < maxWorkers) {
+            workers++;
+            Thread worker = new Thread(new Worker(), name + "-" + workerNum++);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while (true) {
+                PluginQueue queue;
+                Task task;
+                synchronized (lock) {
+                    long idleSince = System.currentTimeMillis();
+                    while (ready.isEmpty() && !shutdown) {
+                        long wait = keepAlive - (System.currentTimeMillis() - idleSince);
+                        if (wait <= 0) {
+                            workers--;
+                            return;
+                        }
+                        idleWorkers++;
+                        try {
+                            lock.wait(wait);
+                        } catch (InterruptedException e) {
+                            // the interrupt was meant for the previous task
+                        } finally {
+                            idleWorkers--;
+                        }
+                    }
+                    if (shutdown) {
+                        workers--;
+                        return;
+                    }
+                    queue = ready.removeFirst();
+                    queue.isReady = false;
+                    task = queue.tasks.removeFirst();
+                    queue.active++;
+                    // back of the line if there is more to do
+                    makeReady(queue);
+                }
+                execute(queue, task);
+            }
+        }
+
+        private void execute(PluginQueue queue, Task task) {
+            long now = System.currentTimeMillis();
+            boolean isOverdue = now > task.deadline;
+            synchronized (lock) {
+                if (isOverdue) {
+                    queue.stats.overdue++;
+                } else {
+                    queue.stats.totalLateness += Math.max(0, now - task.dueTime);
+                    queue.stats.maxLateness =
+                        Math.max(queue.stats.maxLateness, now - task.dueTime);
+                    running.add(task);
+                }
+            }
+            try {
+                if (isOverdue) {
+                    task.overdue();
+                } else {
+                    synchronized (task) {
+                        task.runner = Thread.currentThread();
+                    }
+                    task.startTime = now;
+                    task.run();
+                }
+            } catch (Throwable t) {
+                log.error(t, t);
+            } finally {
+                synchronized (task) {
+                    task.runner = null;
+                }
+                // clear an interrupt which came in too late
+                Thread.interrupted();
+                synchronized (lock) {
+                    queue.active--;
+                    if (!isOverdue) {
+                        running.remove(task);
+                        queue.stats.completed++;
+                    }
+                    makeReady(queue);
+                }
+            }
+        }
+    }
+}
@@ -27,27 +27,22 @@ package org.hyperic.hq.measurement.agent.server;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -89,12 +84,15 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     private static final String SCHEDULE_THREAD_METRICS_COLLECTED_TIME = AgentStatsCollector.SCHEDULE_THREAD_METRICS_COLLECTED_TIME;
     private static final String SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED = AgentStatsCollector.SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED;
     private static final String SCHEDULE_THREAD_METRIC_COLLECT_FAILED  = AgentStatsCollector.SCHEDULE_THREAD_METRIC_COLLECT_FAILED;
+    private static final String SCHEDULE_THREAD_METRIC_LATENESS = AgentStatsCollector.SCHEDULE_THREAD_METRIC_LATENESS;
+    private static final String SCHEDULE_THREAD_METRIC_COLLECT_OVERDUE = AgentStatsCollector.SCHEDULE_THREAD_METRIC_COLLECT_OVERDUE;
 
     // Agent properties configuration
     static final String PROP_POOLSIZE = "scheduleThread.poolsize."; // e.g. scheduleThread.poolsize.system=10
     static final String PROP_FETCH_LOG_TIMEOUT = "scheduleThread.fetchLogTimeout";
     static final String PROP_CANCEL_TIMEOUT = "scheduleThread.cancelTimeout";
     static final String PROP_QUEUE_SIZE = "scheduleThread.queuesize.";
+    static final String PROP_MAX_WORKERS = "scheduleThread.maxWorkers";
 
     private boolean deductServerTimeDiff = true;
 
@@ -106,6 +104,8 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     private static final long FETCH_TIME  = 2000; // 2 seconds.
     private static final long CANCEL_TIME = 5000; // 5 seconds.
     private static final int  EXECUTOR_QUEUE_SIZE = 10000;
+    private static final int  MAX_WORKERS = 32;
+    private static final long WORKER_KEEP_ALIVE = 60000;
 
     private long logFetchTimeout = FETCH_TIME;
     private long cancelTimeout = CANCEL_TIME;
@@ -114,18 +114,23 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
 
     // AppdefID -> Schedule
     private final Map<String,ResourceSchedule> schedules = new HashMap<String,ResourceSchedule>();
+    // The time each ResourceSchedule is next due, guarded by schedules.
+    // Entries whose time no longer matches ResourceSchedule.queuedAt are
+    // stale and skipped.
+    private final PriorityQueue<Deadline> deadlines =
+        new PriorityQueue<Deadline>(64, new Comparator<Deadline>() {
+            public int compare(Deadline d1, Deadline d2) {
+                return (d1.time < d2.time) ? -1 : ((d1.time == d2.time) ? 0 : 1);
+            }
+        });
     // Should I shut down?
     private final AtomicBoolean shouldDie = new AtomicBoolean(false);
-    // Interrupt object
-    private final Object interrupter = new Object();
     // Hash of DSNs to their errors
     private final HashMap<String,String> errors = new HashMap<String,String>();
     private final Properties agentConfig; // agent.properties
 
-    // Map of Executors, one per plugin
-    private final HashMap<String,ThreadPoolExecutor> executors = new HashMap<String,ThreadPoolExecutor>();
-    // Map of asynchronous MetricTasks pending confirmation
-    private final HashMap<Future<?>,MetricTask> metricCollections = new HashMap<Future<?>,MetricTask>();
+    // Workers shared by the collections of all the plugins
+    private final CollectionPool pool;
     // The executor confirming metric collections, cancelling tasks that exceed
     // our timeouts.
     private final ScheduledExecutorService metricVerificationService;
@@ -154,6 +159,8 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         this.statsCollector.register(SCHEDULE_THREAD_METRIC_COLLECT_FAILED);
         this.statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED);
         this.statsCollector.register(SCHEDULE_THREAD_METRICS_COLLECTED_TIME);
+        this.statsCollector.register(SCHEDULE_THREAD_METRIC_LATENESS);
+        this.statsCollector.register(SCHEDULE_THREAD_METRIC_COLLECT_OVERDUE);
         this.agentConfig = config;
         this.manager = manager;
         this.sender = sender;
@@ -187,6 +194,27 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
             }
         }
 
+        int maxWorkers = MAX_WORKERS;
+        String sMaxWorkers = agentConfig.getProperty(PROP_MAX_WORKERS);
+        if (sMaxWorkers != null) {
+            try {
+                maxWorkers = Integer.parseInt(sMaxWorkers);
+                log.info("Max collection workers set to " + maxWorkers);
+            } catch(NumberFormatException exc){
+                log.error("Invalid setting for " + PROP_MAX_WORKERS + " value=" +
+                           sMaxWorkers + ", using defaults.");
+            }
+        }
+        pool = new CollectionPool("MetricCollector", maxWorkers, WORKER_KEEP_ALIVE,
+            new CollectionPool.Limits() {
+                public int getMaxConcurrency(String plugin) {
+                    return getPoolSize(plugin);
+                }
+                public int getMaxQueued(String plugin) {
+                    return getQueueSize(plugin);
+                }
+            });
+
         metricVerificationService = Executors.newSingleThreadScheduledExecutor();
         metricVerificationTask = metricVerificationService.scheduleAtFixedRate(new MetricVerificationTask(),
                                                                                POLL_PERIOD, POLL_PERIOD,
@@ -203,79 +231,72 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     }
 
     /**
-     * Task for printing Executor statistics
+     * Task for printing the collection statistics of each plugin
      */
     private class MetricLoggingTask implements Runnable {
         public void run() {
-            for (String plugin : executors.keySet()) {
-                ThreadPoolExecutor executor = executors.get(plugin);
-                if (log.isDebugEnabled()) {
-                    log.debug("Plugin=" + plugin + ", " +
-                              "CompletedTaskCount=" + executor.getCompletedTaskCount() + ", " +
-                              "ActiveCount=" + executor.getActiveCount() + ", " +
-                              "TaskCount=" + executor.getTaskCount() + ", " +
-                              "PoolSize=" + executor.getPoolSize());
-                }
+            if (!log.isDebugEnabled()) {
+                return;
+            }
+            log.debug("Collection workers=" + pool.getNumWorkers());
+            for (CollectionPool.PluginStats stats : pool.getPluginStats()) {
+                log.debug(stats);
             }
         }
     }
 
     /**
-     * The MetricVerificationTask iterates over the list of FutureTasks that
-     * have been submitted for execution.  Each task is checked for completion
-     * and then removed.  For tasks that do not complete within the timeout
-     * are cancelled, which will attempt to free up the executor running the
-     * task.
+     * The MetricVerificationTask checks the metric collections which are
+     * running.  Collections that do not complete within the timeout are
+     * cancelled, which will attempt to free up the worker running the task.
      * NOTE: This will only work if the hung task is in an interrupt-able state
      *       i.e. sleep() or wait()
      */
     private class MetricVerificationTask implements Runnable  {
         public void run() {
-            boolean isDebugEnabled = log.isDebugEnabled();
-            synchronized (metricCollections) {
-                if (isDebugEnabled && (metricCollections.size() > 0)) {
-                    log.debug(metricCollections.size() + " metrics to validate.");
+            for (CollectionPool.Task t : pool.getRunningTasks()) {
+                MetricTask mt = (MetricTask) t;
+                if (mt.cancelled || (mt.getExecutionDuration() <= cancelTimeout)) {
+                    continue;
                 }
-                for (Iterator<Future<?>> i = metricCollections.keySet().iterator(); i.hasNext();) {
-                    Future<?> t = i.next();
-                    MetricTask mt = metricCollections.get(t);
-                    if (t.isDone()) {
-                        if (isDebugEnabled) {
-                            log.debug("Metric task '" + mt +
-                                   "' complete, duration: " +
-                                   mt.getExecutionDuration());
-                        }
-                        i.remove();
-                    } else {
-                        // Not complete, check for timeout
-                        if (mt.getExecutionDuration() > cancelTimeout) {
-                            boolean res = t.cancel(true);
-                            log.error("Metric '" + mt +
-                                       "' took too long to run (" + mt.getExecutionDuration() +
-                                       "ms), cancelled (result=" + res + ")");
-
-                            // If the metric is Availability, send a down data point in
-                            // case the metric cancellation fails.
-                            ParsedTemplate pt = getParsedTemplate(mt.meas);
-                            if (pt.metric.isAvail()) {
-                                MetricValue data = new MetricValue(MeasurementConstants.AVAIL_DOWN);
-                                sender.processData(mt.meas.getDsnID(), data,
-                                                   mt.meas.getDerivedID(), true);
-                            }
-                            // Task will be removed on next iteration
-                        }
-                    }
+                mt.cancelled = true;
+                boolean res = pool.cancel(mt);
+                log.error("Metric '" + mt +
+                           "' took too long to run (" + mt.getExecutionDuration() +
+                           "ms), cancelled (result=" + res + ")");
+
+                // If the metric is Availability, send a down data point in
+                // case the metric cancellation fails.
+                ParsedTemplate pt = getParsedTemplate(mt.meas);
+                if (pt.metric.isAvail()) {
+                    MetricValue data = new MetricValue(MeasurementConstants.AVAIL_DOWN);
+                    sender.processData(mt.meas.getDsnID(), data,
+                                       mt.meas.getDerivedID(), true);
                 }
             }
         }
     }
 
+    private static class Deadline {
+        private final long time;
+        private final ResourceSchedule rs;
+
+        private Deadline(long time, ResourceSchedule rs) {
+            this.time = time;
+            this.rs = rs;
+        }
+    }
+
     private static class ResourceSchedule {
         private final Schedule       schedule = new Schedule();
         private AppdefEntityID id;
         private long           lastUnreachble = 0;
+        // guarded by schedules
         private final List<ScheduledMeasurement> retry = new ArrayList<ScheduledMeasurement>();
         private final IntHashMap collected = new IntHashMap();
+        // the time of the live entry in deadlines, guarded by schedules
+        private long queuedAt = Long.MAX_VALUE;
+        private boolean removed = false;
     }
 
     private ResourceSchedule getSchedule(ScheduledMeasurement meas) {
@@ -294,10 +315,36 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         return schedule;
     }
 
-    // TODO: I don't think this works properly, hence the slow agent shutdowns..
     private void interruptMe(){
-        synchronized (interrupter) {
-            interrupter.notify();
+        synchronized (schedules) {
+            schedules.notify();
+        }
+    }
+
+    /**
+     * Make sure the resource schedule is visited at the given time, unless
+     * it is already due earlier.  Wakes up the schedule thread if this is
+     * the new earliest deadline.
+     */
+    private void enqueue(ResourceSchedule rs, long time) {
+        synchronized (schedules) {
+            if (rs.removed || (time >= rs.queuedAt)) {
+                return;
+            }
+            rs.queuedAt = time;
+            Deadline head = deadlines.peek();
+            deadlines.add(new Deadline(time, rs));
+            if ((head == null) || (time < head.time)) {
+                schedules.notify();
+            }
+        }
+    }
+
+    private void enqueue(ResourceSchedule rs) {
+        try {
+            enqueue(rs, rs.schedule.getTimeOfNext());
+        } catch (EmptyScheduleException e) {
+            // nothing to collect until a measurement is scheduled
         }
     }
 
@@ -306,12 +353,8 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
      */
     void die(){
         shouldDie.set(true);
-        for (String s : executors.keySet()) {
-            ThreadPoolExecutor executor = executors.get(s);
-            List<Runnable> queuedMetrics = executor.shutdownNow();
-            log.info("Shut down executor service for plugin '" + s + "'" +
-                      " with " + queuedMetrics.size() + " queued collections");
-        }
+        int queuedMetrics = pool.shutdown();
+        log.info("Shut down metric collection with " + queuedMetrics + " queued collections");
 
         metricLoggingTask.cancel(true);
         metricVerificationTask.cancel(true);
@@ -338,6 +381,9 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         ResourceSchedule rs;
         synchronized (schedules) {
             rs = schedules.remove(key);
+            if (rs != null) {
+                rs.removed = true;
+            }
         }
 
         if (rs == null) {
@@ -386,6 +432,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         setDiagScheduled(rs, true);
         try {
             rs.schedule.scheduleItem(meas, meas.getInterval(), true, true);
+            enqueue(rs);
             if (log.isDebugEnabled()) {
                 Long timeOfNext;
                 try {
@@ -495,17 +542,33 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         return tmpl;
     }
 
-    private class MetricTask implements Runnable {
+    private class MetricTask extends CollectionPool.Task {
         ResourceSchedule rs;
         ScheduledMeasurement meas;
-        long executeStartTime = 0;
-        long executeEndTime = 0;
+        volatile long executeStartTime = 0;
+        volatile long executeEndTime = 0;
+        volatile boolean cancelled = false;
 
-        MetricTask(ResourceSchedule rs, ScheduledMeasurement meas) {
+        /**
+         * @param dueTime the time the collection was scheduled for, the
+         *        collection is dropped if it did not start by the time the
+         *        next one is due
+         */
+        MetricTask(ResourceSchedule rs, ScheduledMeasurement meas, long dueTime) {
+            super(dueTime, dueTime + meas.getInterval());
             this.rs = rs;
             this.meas = meas;
         }
 
+        @Override
+        void overdue() {
+            statsCollector.addStat(1, SCHEDULE_THREAD_METRIC_COLLECT_OVERDUE);
+            if (log.isDebugEnabled()) {
+                log.debug("Dropping collection of metric '" + this + "' due at " +
+                          TimeUtil.toString(getDueTime()) + ", the next one is due");
+            }
+        }
+
         /**
          * @return The string representing this metric.
          */
@@ -539,13 +602,17 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
             MetricValue data = null;
             executeStartTime = System.currentTimeMillis();
             boolean success = false;
+            statsCollector.addStat(Math.max(0, executeStartTime - getDueTime()),
+                                   SCHEDULE_THREAD_METRIC_LATENESS);
 
             if (rs.lastUnreachble != 0) {
                 if (!category.equals(MeasurementConstants.CAT_AVAILABILITY)) {
                     // Prevent stacktrace bombs if a resource is
                     // down, but don't skip processing availability metrics.
                     statsCollector.addStat(1, SCHEDULE_THREAD_METRIC_COLLECT_FAILED);
-                    statNumMetricsFailed++;
+                    synchronized (statsLock) {
+                        statNumMetricsFailed++;
+                    }
                     return;
                 }
             }
@@ -654,7 +721,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
                     //rather than waiting for the metric's own interval
                     //which could take much longer to hit
                     //(e.g. Windows Updates on an 8 hour interval)
-                    rs.retry.add(meas);
+                    retry(rs, meas);
                     return;
                 }
                 
@@ -674,6 +741,13 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         }
     }
 
+    private void retry(ResourceSchedule rs, ScheduledMeasurement meas) {
+        synchronized (schedules) {
+            rs.retry.add(meas);
+        }
+        enqueue(rs, System.currentTimeMillis() + POLL_PERIOD);
+    }
+
     private void setDiagInfo(MetricValue data, ParsedTemplate dsn, ResourceSchedule rs, int mid) {
         final AppdefEntityID aeid = rs.id;
         synchronized (diagInfo) {
@@ -729,7 +803,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         return 1;
     }
 
-    private void collect(ResourceSchedule rs, List<ScheduledMeasurement> items) {
+    private void collect(ResourceSchedule rs, List<ScheduledMeasurement> items, long dueTime) {
         final boolean debug = log.isDebugEnabled();
         for (int i=0; (i<items.size()) && (!shouldDie.get()); i++) {
             ScheduledMeasurement meas = items.get(i);
@@ -738,70 +812,39 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
                 log.warn("template for meas id=" + meas.getDerivedID() + " is null");
                 continue;
             }
-            ThreadPoolExecutor executor;
             String plugin;
-            synchronized (executors) {
-                try {
-                    GenericPlugin p = manager.getPlugin(tmpl.plugin).getProductPlugin();
-                    plugin = p.getName();
-                } catch (PluginNotFoundException e) {
-                    if (debug) {
-                        log.debug("Could not find plugin name from template '" + tmpl.plugin +
-                                  "'. Associated plugin might not be initialized yet.");
-                    }
-                    continue;
-                }
-                executor = executors.get(plugin);
-                if (executor == null) {
-                    final int poolSize = getPoolSize(plugin);
-                    final int queueSize = getQueueSize(plugin);
-                    log.info("Creating executor for plugin '" + plugin +
-                              "' with a poolsize=" + poolSize + " queuesize=" + queueSize);
-                    final ThreadFactory factory = getFactory(plugin);
-                    executor = new ThreadPoolExecutor(poolSize, poolSize,
-                                                 60, TimeUnit.SECONDS,
-                                                 new LinkedBlockingQueue<Runnable>(queueSize), factory,
-                                                 new ThreadPoolExecutor.AbortPolicy());
-                    executors.put(plugin, executor);
+            try {
+                GenericPlugin p = manager.getPlugin(tmpl.plugin).getProductPlugin();
+                plugin = p.getName();
+            } catch (PluginNotFoundException e) {
+                if (debug) {
+                    log.debug("Could not find plugin name from template '" + tmpl.plugin +
+                              "'. Associated plugin might not be initialized yet.");
                 }
+                continue;
             }
-            MetricTask metricTask = new MetricTask(rs, meas);
+            MetricTask metricTask = new MetricTask(rs, meas, dueTime);
             statsCollector.addStat(1, SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED);
-            try {
-                Future<?> task = executor.submit(metricTask);
-                synchronized (metricCollections) {
-                    metricCollections.put(task,metricTask);
+            if (!pool.submit(plugin, metricTask)) {
+                log.warn("Collection queue of plugin '" + plugin + "' rejected metric task " +
+                         metricTask);
+                synchronized (statsLock) {
+                    statNumMetricsFailed++;
                 }
-            } catch (RejectedExecutionException e) {
-                log.warn("Executor[" + plugin + "] rejected metric task " + metricTask);
-                statNumMetricsFailed++;
             }
         }
     }
 
-    private ThreadFactory getFactory(final String plugin) {
-        final SecurityManager s = System.getSecurityManager();
-        final ThreadGroup group = (s != null)? s.getThreadGroup() : Thread.currentThread().getThreadGroup();
-        return new ThreadFactory() {
-            private final AtomicLong num = new AtomicLong();
-            public Thread newThread(Runnable r) {
-                final Thread rtn = new Thread(group, r);
-                rtn.setDaemon(true);
-                rtn.setName(plugin + "-" + num.getAndIncrement());
-                return rtn;
-            }
-        };
-    }
-
+    /**
+     * Submit the collections of the resource which are due.
+     *
+     * @return the time the resource is due next, Long.MAX_VALUE if nothing
+     *         is scheduled
+     */
     private long collect(ResourceSchedule rs) {
         long timeOfNext;
         long now = System.currentTimeMillis();
         Schedule schedule = rs.schedule;
-        try {
-            timeOfNext = schedule.getTimeOfNext();
-        } catch (EmptyScheduleException e) {
-            return POLL_PERIOD + now;
-        }
 
         if (rs.lastUnreachble != 0) {
             if ((now - rs.lastUnreachble) > UNREACHABLE_EXPIRE) {
@@ -812,12 +855,24 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
 
         rs.collected.clear();
 
-        if (rs.retry.size() != 0) {
+        List<ScheduledMeasurement> retry = null;
+        synchronized (schedules) {
+            if (rs.retry.size() != 0) {
+                retry = new ArrayList<ScheduledMeasurement>(rs.retry);
+                rs.retry.clear();
+            }
+        }
+        if (retry != null) {
             if (log.isDebugEnabled()) {
-                log.debug("Retrying " + rs.retry.size() + " items (MetricValue.FUTUREs)");
+                log.debug("Retrying " + retry.size() + " items (MetricValue.FUTUREs)");
             }
-            collect(rs, rs.retry);
-            rs.retry.clear();
+            collect(rs, retry, now);
+        }
+
+        try {
+            timeOfNext = schedule.getTimeOfNext();
+        } catch (EmptyScheduleException e) {
+            return Long.MAX_VALUE;
         }
 
         if (now < timeOfNext) {
@@ -828,77 +883,93 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
 
         try {
             items = schedule.consumeNextItems();
-            timeOfNext = schedule.getTimeOfNext();
+            collect(rs, items, timeOfNext);
+            return schedule.getTimeOfNext();
         } catch (EmptyScheduleException e) {
-            return POLL_PERIOD + now;
+            return Long.MAX_VALUE;
         }
-        collect(rs, items);
-        return timeOfNext;
     }
-    
-    private long collect() {
-        long timeOfNext = 0;
-        
-        Map<String,ResourceSchedule> schedules = null;
-        synchronized (this.schedules) {
-            if (this.schedules.size() == 0) {
-                //nothing scheduled
-                timeOfNext = POLL_PERIOD + System.currentTimeMillis();
-            } else {
-                schedules = new HashMap<String,ResourceSchedule>(this.schedules);
-            }
-        }
 
-        if (schedules != null) {
-            for (Iterator<ResourceSchedule> it = schedules.values().iterator(); it.hasNext() && (!shouldDie.get());) {
-                ResourceSchedule rs = it.next();
-                try {
-                    long next = collect(rs);
-                    if (timeOfNext == 0) {
-                        timeOfNext = next;
-                    } else {
-                        timeOfNext = Math.min(next, timeOfNext);
-                    }
-                } catch (Throwable e) {
-                    log.error(e.getMessage(), e);
+    /**
+     * @return the resource schedules which are due, waits until the next
+     *         one is due if there are none
+     */
+    private List<ResourceSchedule> takeDue() {
+        final boolean isDebug = log.isDebugEnabled();
+        List<ResourceSchedule> rtn = new ArrayList<ResourceSchedule>();
+        synchronized (schedules) {
+            long now = System.currentTimeMillis();
+            Deadline head;
+            while (((head = deadlines.peek()) != null) && (head.time <= now)) {
+                deadlines.poll();
+                if (!head.rs.removed && (head.rs.queuedAt == head.time)) {
+                    head.rs.queuedAt = Long.MAX_VALUE;
+                    rtn.add(head.rs);
                 }
             }
+            if (!rtn.isEmpty() || shouldDie.get()) {
+                return rtn;
+            }
+            long wait = (head == null) ? 0 : head.time - now;
+            if (isDebug) {
+                log.debug((head == null) ? "Waiting for measurements to be scheduled" :
+                          "Waiting " + wait + " ms until " + TimeUtil.toString(head.time));
+            }
+            try {
+                schedules.wait(wait);
+            } catch (InterruptedException e) {
+                log.debug("Schedule thread kicked");
+            }
         }
-        
-        return timeOfNext;
+        return rtn;
     }
 
     /**
-     * The main loop of the ScheduleThread, which watches the schedule
-     * waits the appropriate time, and executes scheduled operations.
+     * The main loop of the ScheduleThread, which waits until the resource
+     * schedule with the earliest deadline is due and hands its metrics to
+     * the collection pool.
      */
     public void run(){
-        final boolean isDebug = log.isDebugEnabled();
         final int fudgeFactor = getFudgeFactor();
         while (!shouldDie.get()) {
-            long timeOfNext = collect();
-            if (fudgeFactor > 0) {
-                timeOfNext += rand.nextInt(fudgeFactor);
-            }
-            long now = System.currentTimeMillis();
-            if (timeOfNext > now) {
-                long wait = timeOfNext - now;
-                if (isDebug) {
-                    log.debug("Waiting " + wait + " ms until " +
-                               TimeUtil.toString(now+wait));
+            for (ResourceSchedule rs : takeDue()) {
+                if (shouldDie.get()) {
+                    break;
                 }
                 try {
-                    synchronized (interrupter) {
-                        interrupter.wait(wait);
+                    long timeOfNext = collect(rs);
+                    if (timeOfNext != Long.MAX_VALUE) {
+                        if (fudgeFactor > 0) {
+                            timeOfNext += rand.nextInt(fudgeFactor);
+                        }
+                        enqueue(rs, timeOfNext);
                     }
-                } catch (InterruptedException e) {
-                    log.debug("Schedule thread kicked");
+                } catch (Throwable e) {
+                    log.error(e.getMessage(), e);
+                    // the resource is no longer queued, put it back so that
+                    // one failure does not stop its collection for good
+                    requeue(rs);
                 }
             }
         }
         log.info("Schedule thread shut down");
     }
 
+    /**
+     * Queue the resource schedule again after its collection failed, no
+     * sooner than the next poll if its items are still due.
+     */
+    private void requeue(ResourceSchedule rs) {
+        final long now = System.currentTimeMillis();
+        long timeOfNext;
+        try {
+            timeOfNext = rs.schedule.getTimeOfNext();
+        } catch (EmptyScheduleException e) {
+            return;
+        }
+        enqueue(rs, (timeOfNext > now) ? timeOfNext : now + POLL_PERIOD);
+    }
+
     /**
      * HQ-3904 Fudge factor is only for scale environments.  DO NOT USE IN PRODUCTION!
      */
@@ -976,6 +1047,9 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     
     public String getDiagStatus() {
         StringBuilder rtn = new StringBuilder();
+        for (CollectionPool.PluginStats stats : pool.getPluginStats()) {
+            rtn.append(stats).append("\n");
+        }
         synchronized (diagInfo) {
             for (Entry<AppdefEntityID, DiagInfo> entry : diagInfo.entrySet()) {
                 AppdefEntityID aeid = entry.getKey();
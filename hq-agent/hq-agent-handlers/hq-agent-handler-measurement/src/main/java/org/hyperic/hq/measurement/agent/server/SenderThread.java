@@ -30,11 +30,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -49,6 +51,7 @@ import org.hyperic.hq.agent.server.AgentStorageException;
 import org.hyperic.hq.agent.server.AgentStorageProvider;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorException;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorSimple;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
 import org.hyperic.hq.bizapp.agent.CommandsAPIInfo;
 import org.hyperic.hq.bizapp.client.AgentCallbackClientException;
 import org.hyperic.hq.bizapp.client.MeasurementCallbackClient;
@@ -78,6 +81,13 @@ implements Sender, Runnable
 			"agent.maxBatchSize";
 	private static final String PROP_METRICDEBUG  = 
 			"agent.metricDebug";
+	// Set to false to keep spooling metrics as Base64 strings in the
+	// legacy DiskList format
+	private static final String PROP_BINARYSPOOL  = 
+			"agent.binarySpool";
+	// Set in storage while a legacy list is copied into the binary spool
+	private static final String PROP_MIGRATING  = 
+			"agent.binarySpool.migrating.";
 
 	// The threshold for logging server offset issues in the agent log.
 	// XXX: May need to revisit this, potentially alot of output for
@@ -86,6 +96,8 @@ implements Sender, Runnable
 	private static final long   MAX_SERVERDIFF = 3 * 60 * 1000;
 
 	private static final int    PROP_RECSIZE  = 34; // 34 byte records.
+	// derivedID, timestamp, dsnId, value
+	private static final int    BINARY_RECSIZE = 4 + 8 + 4 + 8;
 
 	private static final int    SEND_INTERVAL = 60000;
 	private static final int    SLEEP_INTERVAL = 300000;
@@ -108,6 +120,8 @@ implements Sender, Runnable
 	private          int                       maxBatchSize = MAX_BATCHSIZE;
 	private final          Set                       metricDebug;
 	private final          MeasurementSchedule       schedule;
+	private          boolean                   binarySpool = true;
+	private final          AgentStatsCollector       statsCollector;
 
 	// Current difference time between the server and agent in ns.
 	// Update on each call to sendMeasurementReport().
@@ -130,6 +144,10 @@ implements Sender, Runnable
 		this.transitionQueue = new LinkedList<Record>();
 		this.metricDebug     = new HashSet();
 		this.schedule        = schedule;
+		this.statsCollector  = AgentStatsCollector.getInstance();
+		this.statsCollector.register(AgentStatsCollector.SENDER_THREAD_ENCODE_RECORDS_TIME);
+		this.statsCollector.register(AgentStatsCollector.SENDER_THREAD_DECODE_RECORDS_TIME);
+		this.statsCollector.register(AgentStatsCollector.SENDER_THREAD_SPOOL_BYTES_PER_RECORD);
 
 		String measuementInfo = bootProps.getProperty(MEASURENENT_LISTNAME);
 		if (measuementInfo != null) {
@@ -150,6 +168,24 @@ implements Sender, Runnable
 			// already exists.  Will fall back to the old 1k size.
 		}
 
+		String sBinarySpool = bootProps.getProperty(PROP_BINARYSPOOL);
+		if (sBinarySpool != null) {
+			this.binarySpool = Boolean.valueOf(sBinarySpool.trim()).booleanValue();
+		}
+		if (this.binarySpool) {
+			try {
+				this.storage.createBinaryList(MEASURENENT_LISTNAME, BINARY_RECSIZE);
+				this.storage.createBinaryList(AVAILABILITY_LISTNAME, BINARY_RECSIZE);
+				migrateLegacySpool(this.storage, AVAILABILITY_LISTNAME);
+				migrateLegacySpool(this.storage, MEASURENENT_LISTNAME);
+			} catch (AgentStorageException exc) {
+				this.log.error("Unable to create binary metric spool, falling back to " +
+						"the legacy spool format: " + exc, exc);
+				this.binarySpool = false;
+			}
+		}
+		this.log.info("Spooling metrics in " + (this.binarySpool ? "binary" : "legacy") + " format");
+
 		sMetricDup = bootProps.getProperty(PROP_METRICDUP);
 		if(sMetricDup != null){
 			try {
@@ -257,6 +293,38 @@ implements Sender, Runnable
 		}
 	}
 
+	private static Record decodeRecord(Object val)
+			throws IOException
+			{
+		if (val instanceof byte[]) {
+			return decodeRecord((byte[])val);
+		}
+		return decodeRecord((String)val);
+			}
+
+	private static Record decodeRecord(byte[] val)
+			throws IOException
+			{
+		if (val.length != BINARY_RECSIZE) {
+			throw new IOException("Invalid record length " + val.length);
+		}
+		ByteBuffer buf = ByteBuffer.wrap(val);
+		int derivedID = buf.getInt();
+		long retTime  = buf.getLong();
+		int dsnID     = buf.getInt();
+		MetricValue measVal = new MetricValue(buf.getDouble(), retTime);
+		return new Record(dsnID, measVal, derivedID);
+			}
+
+	private static byte[] encodeBinaryRecord(Record record) {
+		ByteBuffer buf = ByteBuffer.allocate(BINARY_RECSIZE);
+		buf.putInt(record.derivedID);
+		buf.putLong(record.data.getTimestamp());
+		buf.putInt(record.dsnId);
+		buf.putDouble(record.data.getValue());
+		return buf.array();
+	}
+
 	private static Record decodeRecord(String val)
 			throws IOException
 			{
@@ -333,22 +401,12 @@ implements Sender, Runnable
 	 * the storage provider, so it can be shipped to the server.
 	 */
 	private void processTransitionQueue(){
-		String encodedRec;
 		synchronized(this.transitionQueue){
-			for (Record rec : this.transitionQueue) {
-				try {
-					encodedRec = encodeRecord(rec);
-					if (rec.isAvail) {
-						this.storage.addToList(AVAILABILITY_LISTNAME, encodedRec);
-					}
-					else {
-						this.storage.addToList(MEASURENENT_LISTNAME, encodedRec);
-					}
-				} catch(Exception exc){
-					this.log.error("Unable to store data: " + exc, exc);
-				}
+			if (this.binarySpool) {
+				storeBinaryRecords();
+			} else {
+				storeRecords();
 			}
-
 			this.transitionQueue.clear();
 
 			try {
@@ -359,6 +417,127 @@ implements Sender, Runnable
 		}
 	}
 
+	/**
+	 * Stores the transition queue as Base64 strings in the legacy DiskList
+	 * spool.  Caller must hold the transitionQueue lock.
+	 */
+	private void storeRecords() {
+		String encodedRec;
+		final long start = now();
+		long bytes = 0;
+		for (Record rec : this.transitionQueue) {
+			try {
+				encodedRec = encodeRecord(rec);
+				bytes += encodedRec.length();
+				if (rec.isAvail) {
+					this.storage.addToList(AVAILABILITY_LISTNAME, encodedRec);
+				}
+				else {
+					this.storage.addToList(MEASURENENT_LISTNAME, encodedRec);
+				}
+			} catch(Exception exc){
+				this.log.error("Unable to store data: " + exc, exc);
+			}
+		}
+		addSpoolStats(start, bytes, this.transitionQueue.size());
+	}
+
+	/**
+	 * Stores the transition queue in the binary spool, each list is written
+	 * to storage with a single call.  Caller must hold the transitionQueue
+	 * lock.
+	 */
+	private void storeBinaryRecords() {
+		if (this.transitionQueue.isEmpty()) {
+			return;
+		}
+		final long start = now();
+		List<byte[]> avails = new ArrayList<byte[]>();
+		List<byte[]> measurements = new ArrayList<byte[]>(this.transitionQueue.size());
+		for (Record rec : this.transitionQueue) {
+			if (rec.isAvail) {
+				avails.add(encodeBinaryRecord(rec));
+			} else {
+				measurements.add(encodeBinaryRecord(rec));
+			}
+		}
+		try {
+			if (!avails.isEmpty()) {
+				this.storage.addToBinaryList(AVAILABILITY_LISTNAME, avails);
+			}
+			if (!measurements.isEmpty()) {
+				this.storage.addToBinaryList(MEASURENENT_LISTNAME, measurements);
+			}
+		} catch(Exception exc){
+			this.log.error("Unable to store data: " + exc, exc);
+		}
+		addSpoolStats(start, (long) BINARY_RECSIZE * this.transitionQueue.size(), this.transitionQueue.size());
+	}
+
+	private void addSpoolStats(long start, long bytes, int numRecords) {
+		if (numRecords == 0) {
+			return;
+		}
+		this.statsCollector.addStat(now() - start, AgentStatsCollector.SENDER_THREAD_ENCODE_RECORDS_TIME);
+		this.statsCollector.addStat(bytes / numRecords, AgentStatsCollector.SENDER_THREAD_SPOOL_BYTES_PER_RECORD);
+	}
+
+	/**
+	 * Moves records left in the legacy Base64 DiskList spool by a previous
+	 * version of the agent into the binary spool, keeping their order.  The
+	 * legacy list is deleted once all its records are copied.  A marker is
+	 * kept in storage while copying, so that the partial copy left behind
+	 * if the agent stops before the legacy list is deleted is discarded on
+	 * the next start instead of being sent twice.
+	 */
+	static void migrateLegacySpool(AgentStorageProvider storage, String listName)
+			throws AgentStorageException {
+		final Log log = LogFactory.getLog(SenderThread.class);
+		final String migratingKey = PROP_MIGRATING + listName;
+		Iterator<String> it = storage.getListIterator(listName);
+		if (it == null) {
+			if (storage.getValue(migratingKey) != null) {
+				// stopped after the legacy list was deleted
+				storage.setValue(migratingKey, null);
+				storage.flush();
+			}
+			return;
+		}
+		if (storage.getValue(migratingKey) != null) {
+			log.warn("Discarding the partial copy of " + listName +
+					" left by an interrupted migration");
+			storage.deleteBinaryList(listName);
+		}
+		storage.setValue(migratingKey, Boolean.TRUE.toString());
+		storage.flush();
+		List<byte[]> records = new ArrayList<byte[]>();
+		int failed = 0;
+		while (it.hasNext()) {
+			try {
+				records.add(encodeBinaryRecord(decodeRecord(it.next())));
+			} catch (IOException exc) {
+				failed++;
+				if (log.isDebugEnabled()) {
+					log.debug("Dropping invalid record from " + listName + ": " + exc, exc);
+				}
+			}
+			if (records.size() >= MAX_BATCHSIZE) {
+				storage.addToBinaryList(listName, records);
+				records.clear();
+			}
+		}
+		storage.addToBinaryList(listName, records);
+		storage.deleteList(listName);
+		storage.setValue(migratingKey, null);
+		storage.flush();
+		log.info("Migrated " + listName + " to the binary spool format" +
+				((failed > 0) ? ", dropped " + failed + " invalid records" : ""));
+	}
+
+	private Iterator<?> getSpoolIterator(String listName) {
+		return this.binarySpool ? this.storage.getBinaryListIterator(listName) : this.storage.getListIterator(listName);
+	}
+
 	/**
 	 * Send a batch of measurement points back to the server.  This
 	 * method sends at most maxBatchSize elements back.
@@ -391,7 +570,8 @@ implements Sender, Runnable
 
 		// first we are going to ensure that all the data points that
 		// we send over to the server are unique
-		for (Iterator<String> it=storage.getListIterator(listName); (it!=null) && it.hasNext() && (numUsed < maxBatchSize); numUsed++) {
+		final long decodeStart = now();
+		for (Iterator<?> it=getSpoolIterator(listName); (it!=null) && it.hasNext() && (numUsed < maxBatchSize); numUsed++) {
 			try {
 				Record r = SenderThread.decodeRecord(it.next());
 				currentRecords.add(r);
@@ -413,6 +593,9 @@ implements Sender, Runnable
 				continue;
 			}
 		}
+		if (numUsed > 0) {
+			statsCollector.addStat(now() - decodeStart, AgentStatsCollector.SENDER_THREAD_DECODE_RECORDS_TIME);
+		}
 
 		int num = 0;
 		long firstMetricTime = Long.MAX_VALUE;
@@ -554,7 +737,7 @@ implements Sender, Runnable
 	private int removeMeasurements(int num, String listName) {
 		int j = 0;
 
-		for (Iterator i = this.storage.getListIterator(listName);
+		for (Iterator<?> i = getSpoolIterator(listName);
 				(i != null) && i.hasNext() && (j < num);
 				j++) {
 			i.next();
@@ -673,6 +856,19 @@ implements Sender, Runnable
 					this.log.info("Dying with measurements backlogged");
 					return;
 				}
+				// the server is falling behind inserting the data of all the agents
+				long backoff = this.client.getBackoff();
+				if (backoff > 0) {
+					if (log.isDebugEnabled()) {
+						log.debug("Server asked to back off, waiting " + backoff + " ms before sending more " + listName);
+					}
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException e) {
+						this.log.info("Dying with measurements backlogged");
+						return;
+					}
+				}
 			}
 			final long total = System.currentTimeMillis() - start;
 			if (total > SEND_INTERVAL) {
@@ -0,0 +1,170 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class CollectionPoolTest extends TestCase {
+
+    private static CollectionPool newPool(int maxWorkers, final int concurrency,
+                                          final int queueSize) {
+        return new CollectionPool("test", maxWorkers, 1000, new CollectionPool.Limits() {
+            public int getMaxConcurrency(String plugin) {
+                return concurrency;
+            }
+            public int getMaxQueued(String plugin) {
+                return queueSize;
+            }
+        });
+    }
+
+    private static class TestTask extends CollectionPool.Task {
+        private final CountDownLatch done;
+        private final CountDownLatch release;
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+        private volatile boolean isOverdue = false;
+
+        TestTask(long deadline, CountDownLatch done, CountDownLatch release,
+                 AtomicInteger running, AtomicInteger maxRunning) {
+            super(System.currentTimeMillis(), deadline);
+            this.done = done;
+            this.release = release;
+            this.running = running;
+            this.maxRunning = maxRunning;
+        }
+
+        public void run() {
+            int num = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), num));
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // cancelled
+            } finally {
+                running.decrementAndGet();
+                done.countDown();
+            }
+        }
+
+        void overdue() {
+            isOverdue = true;
+            done.countDown();
+        }
+    }
+
+    public void testSlowPluginDoesNotBlockOthers() throws Exception {
+        CollectionPool pool = newPool(4, 2, 100);
+        CountDownLatch slowDone = new CountDownLatch(10);
+        CountDownLatch fastDone = new CountDownLatch(10);
+        CountDownLatch hang = new CountDownLatch(1);
+        AtomicInteger slowRunning = new AtomicInteger();
+        AtomicInteger slowMax = new AtomicInteger();
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(pool.submit("slow", new TestTask(deadline, slowDone, hang,
+                                                        slowRunning, slowMax)));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(pool.submit("fast", new TestTask(deadline, fastDone, new CountDownLatch(0),
+                                                        new AtomicInteger(), new AtomicInteger())));
+        }
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+        assertEquals(2, slowMax.get());
+        assertEquals(2, pool.getRunningTasks().size());
+        assertTrue(pool.getNumWorkers() <= 4);
+        hang.countDown();
+        assertTrue(slowDone.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+    }
+
+    public void testOverdueTaskIsDropped() throws Exception {
+        CollectionPool pool = newPool(1, 1, 100);
+        CountDownLatch done = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        TestTask first = new TestTask(Long.MAX_VALUE, done, release,
+                                      new AtomicInteger(), new AtomicInteger());
+        TestTask late = new TestTask(System.currentTimeMillis() + 20, done, release,
+                                     new AtomicInteger(), new AtomicInteger());
+        pool.submit("p", first);
+        pool.submit("p", late);
+        Thread.sleep(50);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(first.isOverdue);
+        assertTrue(late.isOverdue);
+        List<CollectionPool.PluginStats> stats = pool.getPluginStats();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.get(0).overdue);
+        pool.shutdown();
+    }
+
+    public void testQueueLimitAndCancel() throws Exception {
+        CollectionPool pool = newPool(2, 1, 2);
+        CountDownLatch done = new CountDownLatch(3);
+        CountDownLatch hang = new CountDownLatch(1);
+        List<TestTask> tasks = new ArrayList<TestTask>();
+        for (int i = 0; i < 3; i++) {
+            tasks.add(new TestTask(Long.MAX_VALUE, done, hang,
+                                   new AtomicInteger(), new AtomicInteger()));
+            assertTrue(pool.submit("p", tasks.get(i)));
+            // wait for the first one to start so that the others queue up
+            while (pool.getRunningTasks().isEmpty()) {
+                Thread.sleep(1);
+            }
+        }
+        assertFalse(pool.submit("p", new TestTask(Long.MAX_VALUE, done, hang,
+                                                  new AtomicInteger(), new AtomicInteger())));
+        assertEquals(1, pool.getPluginStats().get(0).rejected);
+        // cancelling the hung tasks lets the queued ones run
+        for (int i = 0; i < 3; i++) {
+            CollectionPool.Task running;
+            while ((running = first(pool.getRunningTasks())) == null) {
+                Thread.sleep(1);
+            }
+            assertTrue(pool.cancel(running));
+            while (running == first(pool.getRunningTasks())) {
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(pool.cancel(tasks.get(0)));
+        assertEquals(0, pool.shutdown());
+        assertFalse(pool.submit("p", tasks.get(0)));
+    }
+
+    private static CollectionPool.Task first(List<CollectionPool.Task> tasks) {
+        return tasks.isEmpty() ? null : tasks.get(0);
+    }
+}
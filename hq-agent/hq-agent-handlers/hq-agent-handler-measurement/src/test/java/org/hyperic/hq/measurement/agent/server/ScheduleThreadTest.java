@@ -274,6 +274,38 @@ public class ScheduleThreadTest extends TestCase {
 
     }
 
+    public void testCollectionResumesAfterFailure() throws Exception {
+
+        FailOnceValueGetter getter = new FailOnceValueGetter();
+        ScheduleThread st = new ScheduleThread(new SimpleSender(), getter, new Properties());
+
+        st.scheduleMeasurement(createMeasurement(DSN_PLATFORM_LOAD, 20));
+
+        Thread t = new Thread(st);
+        t.start();
+
+        try {
+            Thread.sleep(600);
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+
+        // The first collection throws, the resource must still be collected
+        // on the following intervals
+        assertEquals("Collection did not fail", 1, getter.failures);
+        assertTrue("Resource was not collected after the failure",
+                   getter.lookups > 3); // Should be 30, but can vary
+        assertTrue("Wrong number of metric collections",
+                   st.getNumMetricsFetched() > 0);
+
+        st.die();
+        try {
+            t.join();
+        } catch (InterruptedException ie) {
+            fail("Thread should not be interrupted");
+        }
+    }
+
     public static class SimpleSender implements org.hyperic.hq.measurement.agent.server.Sender {
 
         public void processData(int dsnId, MetricValue data, int derivedID, boolean isAvail) {
@@ -333,6 +365,21 @@ public class ScheduleThreadTest extends TestCase {
         }
     }
 
+    public static class FailOnceValueGetter extends SimpleValueGetter {
+
+        volatile int failures = 0;
+        volatile int lookups = 0;
+
+        public GenericPlugin getPlugin(String plugin) throws PluginNotFoundException {
+            if (failures == 0) {
+                failures++;
+                throw new IllegalStateException("Plugin blew up");
+            }
+            lookups++;
+            return super.getPlugin(plugin);
+        }
+    }
+
     public static class NullValueGetter implements MeasurementValueGetter {
 
         public GenericPlugin getPlugin(String plugin) throws PluginNotFoundException {
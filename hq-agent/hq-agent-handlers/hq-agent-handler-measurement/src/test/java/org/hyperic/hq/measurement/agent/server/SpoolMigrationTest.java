@@ -0,0 +1,303 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.agent.db.BinaryDiskList;
+import org.hyperic.hq.agent.db.DiskList;
+import org.hyperic.hq.agent.server.AgentStorageException;
+import org.hyperic.hq.agent.server.AgentStorageProvider;
+import org.hyperic.util.encoding.Base64;
+
+/**
+ * Tests the migration of the legacy Base64 DiskList spool into the binary
+ * spool done by the SenderThread on startup.
+ */
+public class SpoolMigrationTest extends TestCase {
+
+    private static final String LIST = "measurement_spool";
+    private static final int RECSIZE = 4 + 8 + 4 + 8;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("spool", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    public void testMigrationDropsInvalidRecords() throws Exception {
+        TestStorage storage = new TestStorage();
+        // more than one batch of records with an invalid one in between
+        for (int i = 0; i < 1200; i++) {
+            storage.legacy.addToList(encode(i));
+            if (i == 600) {
+                storage.legacy.addToList(Base64.encode(new byte[] {1, 2, 3}));
+            }
+        }
+        SenderThread.migrateLegacySpool(storage, LIST);
+        assertNull(storage.getListIterator(LIST));
+        assertNull(storage.getValue(migratingKey()));
+        assertEquals(1200, storage.binary.size());
+        assertRecords(storage, 0, 1200);
+        storage.close();
+
+        // nothing left to migrate on the next start
+        storage = new TestStorage();
+        SenderThread.migrateLegacySpool(storage, LIST);
+        assertRecords(storage, 0, 1200);
+        storage.close();
+    }
+
+    public void testInterruptedMigrationIsNotDuplicated() throws Exception {
+        TestStorage storage = new TestStorage();
+        for (int i = 0; i < 1200; i++) {
+            storage.legacy.addToList(encode(i));
+        }
+        // the agent stops after the first batch has been copied
+        storage.failAfterBatches = 1;
+        try {
+            SenderThread.migrateLegacySpool(storage, LIST);
+            fail("Expected AgentStorageException");
+        } catch (AgentStorageException e) {
+            // expected outcome
+        }
+        assertEquals(500, storage.binary.size());
+        assertNotNull(storage.getValue(migratingKey()));
+        Map<String, String> keyVals = storage.keyVals;
+        storage.close();
+
+        storage = new TestStorage();
+        storage.keyVals.putAll(keyVals);
+        SenderThread.migrateLegacySpool(storage, LIST);
+        assertEquals(1200, storage.binary.size());
+        assertRecords(storage, 0, 1200);
+        assertNull(storage.getValue(migratingKey()));
+        storage.close();
+    }
+
+    public void testExistingBinaryRecordsAreKept() throws Exception {
+        TestStorage storage = new TestStorage();
+        List<byte[]> recs = new ArrayList<byte[]>();
+        for (int i = 0; i < 5; i++) {
+            recs.add(ByteBuffer.allocate(RECSIZE).putInt(i).putLong(i).array());
+        }
+        storage.addToBinaryList(LIST, recs);
+        for (int i = 5; i < 10; i++) {
+            storage.legacy.addToList(encode(i));
+        }
+        SenderThread.migrateLegacySpool(storage, LIST);
+        assertRecords(storage, 0, 10);
+        storage.close();
+    }
+
+    private static String migratingKey() {
+        return "agent.binarySpool.migrating." + LIST;
+    }
+
+    private static String encode(int i) throws IOException {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+        DataOutputStream dOs = new DataOutputStream(bOs);
+        dOs.writeInt(i);
+        dOs.writeLong(i);
+        dOs.writeInt(i);
+        dOs.writeDouble(i);
+        return Base64.encode(bOs.toByteArray());
+    }
+
+    private static void assertRecords(TestStorage storage, int start, int end) {
+        int expected = start;
+        for (Iterator<byte[]> it = storage.getBinaryListIterator(LIST); it.hasNext();) {
+            ByteBuffer buf = ByteBuffer.wrap(it.next());
+            assertEquals(expected, buf.getInt());
+            assertEquals(expected, buf.getLong());
+            expected++;
+        }
+        assertEquals(end, expected);
+    }
+
+    /**
+     * Holds the spool lists on disk the way the AgentDListProvider does,
+     * the key values are kept in memory.
+     */
+    private class TestStorage implements AgentStorageProvider {
+        final Map<String, String> keyVals = new HashMap<String, String>();
+        final DiskList legacy;
+        final BinaryDiskList binary;
+        int failAfterBatches = -1;
+
+        TestStorage() throws IOException {
+            legacy = new DiskList(new File(dir, LIST), 34, Long.MAX_VALUE, 100);
+            binary = new BinaryDiskList(new File(dir, LIST + ".blist"), RECSIZE, Long.MAX_VALUE,
+                                        100, Long.MAX_VALUE);
+        }
+
+        void close() throws IOException {
+            legacy.close();
+            binary.close();
+        }
+
+        public String getValue(String key) {
+            return keyVals.get(key);
+        }
+
+        public void setValue(String key, String value) {
+            if (value == null) {
+                keyVals.remove(key);
+            } else {
+                keyVals.put(key, value);
+            }
+        }
+
+        public Set getKeys() {
+            return keyVals.keySet();
+        }
+
+        public void flush() {
+        }
+
+        public Iterator<String> getListIterator(String listName) {
+            return legacy.getListIterator();
+        }
+
+        public void deleteList(String listName) {
+            try {
+                legacy.deleteAllRecords();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void addToBinaryList(String listName, Collection<byte[]> records)
+            throws AgentStorageException {
+            if (failAfterBatches == 0) {
+                throw new AgentStorageException("Agent stopped");
+            }
+            failAfterBatches--;
+            try {
+                binary.addAllToList(records);
+            } catch (IOException e) {
+                throw new AgentStorageException(e.toString());
+            }
+        }
+
+        public Iterator<byte[]> getBinaryListIterator(String listName) {
+            return binary.getListIterator();
+        }
+
+        public void deleteBinaryList(String listName) {
+            try {
+                binary.deleteAllRecords();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void createBinaryList(String listName, int recSize) {
+        }
+
+        public void addToList(String listName, String value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void createList(String listName, int recSize) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void addOverloadedInfo(String listName, String info) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void convertListToCurrentRecordSize(String listName) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void removeFromList(String listName, long recNumber) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void addObjectToFolder(String folderName, Object obj, long createTime,
+                                      int maxElementsInFolder) {
+            throw new UnsupportedOperationException();
+        }
+
+        public <T> List<T> getObjectsFromFolder(String folderName, int maxNumOfObjects) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void deleteObjectsFromFolder(String folderName, String... objects) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void saveObject(Object obj, String objectName) {
+            throw new UnsupportedOperationException();
+        }
+
+        public <T> T getObject(String objectName) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void deleteObject(String objectName) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getDescription() {
+            return "test spool storage";
+        }
+
+        public void init(String info) {
+        }
+
+        public void dispose() {
+        }
+    }
+}
@@ -27,6 +27,7 @@ package org.hyperic.hibernate.dialect;
 
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 public interface HQDialect
 {
@@ -88,6 +89,13 @@ public interface HQDialect
      */
     public boolean tableExists(Statement stmt, String tableName)
         throws SQLException;
+
+    /**
+     * Returns the upper case names of the tables of the schema which start
+     * with the specified prefix
+     */
+    public List<String> getTableNames(Statement stmt, String prefix)
+        throws SQLException;
     
     /**
      * Returns the limit string.
@@ -134,4 +142,11 @@ public interface HQDialect
     public boolean supportsAsyncCommit();
 
     public String getSetAsyncCommitStmt(boolean on);
+
+    /**
+     * @param rows the number of rows to fetch per round trip
+     * @return the fetch size which makes a forward only, read only result set
+     *         stream its rows instead of loading them all in memory
+     */
+    public int getStreamingFetchSize(int rows);
 }
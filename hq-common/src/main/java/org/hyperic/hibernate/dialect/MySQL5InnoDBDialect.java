@@ -124,6 +124,31 @@ public class MySQL5InnoDBDialect
         }
     }
 
+    public List<String> getTableNames(Statement stmt, String prefix)
+        throws SQLException
+    {
+        ResultSet rs = null;
+        try
+        {
+            String sql = "SELECT table_name from information_schema.tables"+
+                         " WHERE table_name LIKE '"+prefix+"%'"+
+                         " AND table_schema = database()";
+            rs = stmt.executeQuery(sql);
+            List<String> rtn = new ArrayList<String>();
+            while (rs.next()) {
+                String table = rs.getString(1).toUpperCase();
+                // '_' is a wildcard of LIKE
+                if (table.startsWith(prefix.toUpperCase())) {
+                    rtn.add(table);
+                }
+            }
+            return rtn;
+        }
+        finally {
+            DBUtil.closeResultSet(logCtx, rs);
+        }
+    }
+
     public String getLimitBuf(String sql, int offset, int limit) {
         StringBuilder buf = new StringBuilder(sql);
         buf.append(" LIMIT ");
@@ -437,4 +462,9 @@ public class MySQL5InnoDBDialect
     public String getSetAsyncCommitStmt(boolean on) {
         return null;
     }
-}
\ No newline at end of file
+
+    public int getStreamingFetchSize(int rows) {
+        // the driver only streams result sets with this fetch size
+        return Integer.MIN_VALUE;
+    }
+}
@@ -29,8 +29,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import org.hyperic.util.jdbc.DBUtil;
 
@@ -101,6 +103,30 @@ public class Oracle9Dialect
         }
     }
 
+    public List<String> getTableNames(Statement stmt, String prefix)
+        throws SQLException
+    {
+        ResultSet rs = null;
+        try
+        {
+            String sql = "SELECT table_name from user_tables"+
+                         " WHERE lower(table_name) LIKE lower('"+prefix+"%')";
+            rs = stmt.executeQuery(sql);
+            List<String> rtn = new ArrayList<String>();
+            while (rs.next()) {
+                String table = rs.getString(1).toUpperCase();
+                // '_' is a wildcard of LIKE
+                if (table.startsWith(prefix.toUpperCase())) {
+                    rtn.add(table);
+                }
+            }
+            return rtn;
+        }
+        finally {
+            DBUtil.closeResultSet(logCtx, rs);
+        }
+    }
+
     public String getLimitString(int num) {
         return "AND ROWNUM <= "+num;
     }
@@ -263,4 +289,8 @@ public class Oracle9Dialect
     public String getSetAsyncCommitStmt(boolean on) {
         return null;
     }
+
+    public int getStreamingFetchSize(int rows) {
+        return rows;
+    }
 }
@@ -28,8 +28,10 @@ package org.hyperic.hibernate.dialect;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 
 import org.hyperic.util.jdbc.DBUtil;
 
@@ -94,6 +96,30 @@ implements HQDialect {
         }
     }
 
+    public List<String> getTableNames(Statement stmt, String prefix)
+        throws SQLException
+    {
+        ResultSet rs = null;
+        try
+        {
+            String sql = "SELECT tablename from pg_tables"+
+                         " WHERE lower(tablename) LIKE lower('"+prefix+"%')";
+            rs = stmt.executeQuery(sql);
+            List<String> rtn = new ArrayList<String>();
+            while (rs.next()) {
+                String table = rs.getString(1).toUpperCase();
+                // '_' is a wildcard of LIKE
+                if (table.startsWith(prefix.toUpperCase())) {
+                    rtn.add(table);
+                }
+            }
+            return rtn;
+        }
+        finally {
+            DBUtil.closeResultSet(logCtx, rs);
+        }
+    }
+
     public boolean viewExists(Statement stmt, String viewName)
         throws SQLException
     {
@@ -221,4 +247,8 @@ implements HQDialect {
     public String getSetAsyncCommitStmt(boolean on) {
         return "set synchronous_commit to " + (on ? "on" : "off");
     }
-}
\ No newline at end of file
+
+    public int getStreamingFetchSize(int rows) {
+        return rows;
+    }
+}
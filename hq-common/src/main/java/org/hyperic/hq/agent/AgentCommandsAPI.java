@@ -47,6 +47,8 @@ public final class AgentCommandsAPI extends AgentAPIInfo {
     public static final String command_die          = commandPrefix + "die";
     public static final String command_remove_file  = commandPrefix + "remove_file";
     public static final String command_receive_file = commandPrefix + "receive_file";
+    // handled by the agent's command listener, not part of the command set
+    public static final String command_open_channel = commandPrefix + "open_channel";
     
     public static final String[] commandSet = {
         AgentCommandsAPI.command_ping,
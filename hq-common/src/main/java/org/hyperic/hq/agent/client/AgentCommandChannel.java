@@ -0,0 +1,429 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.AgentAPI;
+import org.hyperic.hq.agent.AgentCommandsAPI;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+
+/**
+ * A persistent connection to an agent which pipelines commands.  The channel
+ * is opened with the {@link AgentCommandsAPI#command_open_channel} command
+ * on a regular agent connection, after that every command is a frame of
+ * (request id, command version, command, argument) and every result a frame
+ * of (request id, error flag, result).  The agent runs the commands as they
+ * come in and writes the results as they complete, so any number of callers
+ * share the connection and the SSL handshake.
+ *
+ * Agents which don't know the open channel command reject it and get their
+ * commands over a connection per command for {@link #UNSUPPORTED_RETRY}.
+ * Commands which stream data, see {@link AgentConnection#sendCommandHeaders},
+ * always use a connection of their own.
+ */
+class AgentCommandChannel {
+    private static final Log log = LogFactory.getLog(AgentCommandChannel.class);
+
+    static final String PROP_ENABLED = "agent.commandChannel";
+    static final String PROP_IDLE_TIMEOUT = "agent.commandChannel.idleTimeout";
+    static final String PROP_VERSION = "version";
+    static final int VERSION = 1;
+
+    // agents close connections after 2 minutes without a command
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+    // the socket timeout, idle and stalled channels are detected this late
+    private static final int POLL_TIMEOUT = 15 * 1000;
+    // how long to wait for a result, the post handshake timeout of the
+    // connection per command
+    private static final long RESULT_TIMEOUT = 5 * 60 * 1000;
+    private static final long UNSUPPORTED_RETRY = 10 * 60 * 1000;
+    private static final long FAILED_RETRY = 60 * 1000;
+
+    // channel key -> AgentCommandChannel
+    private static final Map<String, AgentCommandChannel> channels =
+        new HashMap<String, AgentCommandChannel>();
+    // channel key -> time to try to open a channel again
+    private static final Map<String, Long> retryAt = new HashMap<String, Long>();
+    // channel key -> lock held while opening the channel
+    private static final Map<String, Object> openLocks = new HashMap<String, Object>();
+
+    private static class Result {
+        private boolean done = false;
+        private AgentRemoteValue value;
+        private String remoteError;
+        private AgentConnectionException error;
+        private final long sentAt;
+
+        private Result(long sentAt) {
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final String key;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final long idleTimeout;
+    private final Object writeLock = new Object();
+    // request id -> Result, guarded by itself
+    private final Map<Integer, Result> pending = new HashMap<Integer, Result>();
+    // guarded by pending
+    private int nextId = 1;
+    private boolean closed = false;
+    private long lastUsed = System.currentTimeMillis();
+
+    private AgentCommandChannel(String key, Socket socket, long idleTimeout)
+        throws IOException
+    {
+        this.key = key;
+        this.socket = socket;
+        this.idleTimeout = idleTimeout;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    static boolean isEnabled() {
+        return !"false".equals(System.getProperty(PROP_ENABLED));
+    }
+
+    /**
+     * @return the result of the command or null if there is no channel to
+     * the agent, in which case the command has not been sent and should
+     * be sent with a connection of its own.
+     */
+    static AgentRemoteValue sendCommand(AgentConnection conn, String cmdName, int cmdVersion,
+                                        AgentRemoteValue arg)
+        throws AgentRemoteException, AgentConnectionException
+    {
+        // a second try in case the channel was closed as being idle
+        for (int i = 0; i < 2; i++) {
+            AgentCommandChannel channel = getChannel(conn);
+            if (channel == null) {
+                return null;
+            }
+            Result res = channel.send(cmdName, cmdVersion, arg);
+            if (res != null) {
+                return channel.getResult(res);
+            }
+        }
+        return null;
+    }
+
+    private static AgentCommandChannel getChannel(AgentConnection conn) {
+        final String key = conn.getChannelKey();
+        Object lock;
+        synchronized (channels) {
+            AgentCommandChannel channel = channels.get(key);
+            if (channel != null || !canOpen(key)) {
+                return channel;
+            }
+            lock = openLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                openLocks.put(key, lock);
+            }
+        }
+        // concurrent callers wait for the channel to be opened rather than
+        // opening their own
+        synchronized (lock) {
+            synchronized (channels) {
+                AgentCommandChannel channel = channels.get(key);
+                if (channel != null || !canOpen(key)) {
+                    return channel;
+                }
+            }
+            AgentCommandChannel channel = open(conn, key);
+            synchronized (channels) {
+                openLocks.remove(key);
+                if (channel != null) {
+                    channels.put(key, channel);
+                }
+            }
+            if (channel != null) {
+                channel.start();
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Must be called holding the channels lock
+     */
+    private static boolean canOpen(String key) {
+        Long retry = retryAt.get(key);
+        if (retry == null) {
+            return true;
+        }
+        if (retry.longValue() > System.currentTimeMillis()) {
+            return false;
+        }
+        retryAt.remove(key);
+        return true;
+    }
+
+    private static void setRetryAt(String key, long delay) {
+        synchronized (channels) {
+            retryAt.put(key, new Long(System.currentTimeMillis() + delay));
+        }
+    }
+
+    private static AgentCommandChannel open(AgentConnection conn, String key) {
+        Socket socket = null;
+        try {
+            socket = conn.getSocket();
+            AgentCommandChannel channel = new AgentCommandChannel(key, socket, getIdleTimeout());
+            AgentRemoteValue arg = new AgentRemoteValue();
+            arg.setValue(PROP_VERSION, String.valueOf(VERSION));
+            channel.out.writeInt(new AgentAPI().getVersion());
+            channel.out.writeInt(new AgentCommandsAPI().getVersion());
+            channel.out.writeUTF(AgentCommandsAPI.command_open_channel);
+            arg.toStream(channel.out);
+            channel.out.flush();
+            if (channel.in.readInt() != 0) {
+                String msg = channel.in.readUTF();
+                log.debug("Agent " + key + " does not support command channels: " + msg);
+                closeSocket(socket);
+                setRetryAt(key, UNSUPPORTED_RETRY);
+                return null;
+            }
+            AgentRemoteValue.fromStream(channel.in);
+            socket.setSoTimeout(POLL_TIMEOUT);
+            log.debug("Opened command channel to " + key);
+            return channel;
+        } catch (IOException e) {
+            // the connection per command reports the error, and retries
+            log.debug("Unable to open command channel to " + key + ": " + e, e);
+            closeSocket(socket);
+            setRetryAt(key, FAILED_RETRY);
+            return null;
+        }
+    }
+
+    private void start() {
+        Thread reader = new Thread("AgentCommandChannel-" + key) {
+            public void run() {
+                readLoop();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private static long getIdleTimeout() {
+        try {
+            return Long.parseLong(System.getProperty(PROP_IDLE_TIMEOUT));
+        } catch (NumberFormatException e) {
+            return IDLE_TIMEOUT;
+        }
+    }
+
+    /**
+     * @return null if the command has not been sent because the channel is
+     * closed
+     */
+    private Result send(String cmdName, int cmdVersion, AgentRemoteValue arg) {
+        final long now = System.currentTimeMillis();
+        final Result res = new Result(now);
+        final int id;
+        synchronized (pending) {
+            if (closed) {
+                return null;
+            }
+            id = nextId++;
+            pending.put(new Integer(id), res);
+            lastUsed = now;
+        }
+        try {
+            synchronized (writeLock) {
+                out.writeInt(id);
+                out.writeInt(cmdVersion);
+                out.writeUTF(cmdName);
+                arg.toStream(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            synchronized (pending) {
+                pending.remove(new Integer(id));
+            }
+            close(e);
+            // not sent, or at least not completely
+            return null;
+        }
+        return res;
+    }
+
+    private AgentRemoteValue getResult(Result res)
+        throws AgentRemoteException, AgentConnectionException
+    {
+        synchronized (res) {
+            while (!res.done) {
+                try {
+                    res.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AgentConnectionException("Interrupted waiting for result from " + key);
+                }
+            }
+        }
+        if (res.error != null) {
+            throw res.error;
+        }
+        if (res.remoteError != null) {
+            throw new AgentRemoteException(res.remoteError);
+        }
+        return res.value;
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int first = readFirstByte();
+                if (first < 0) {
+                    close(null);
+                    return;
+                }
+                int id = (first << 24) | (in.readUnsignedByte() << 16) |
+                         (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                Result res;
+                if (in.readInt() == 1) {
+                    String msg = in.readUTF();
+                    res = complete(id);
+                    res.remoteError = msg;
+                } else {
+                    AgentRemoteValue value = AgentRemoteValue.fromStream(in);
+                    res = complete(id);
+                    res.value = value;
+                }
+                synchronized (res) {
+                    res.done = true;
+                    res.notifyAll();
+                }
+            }
+        } catch (EOFException e) {
+            close(e);
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            log.error(e, e);
+            close(e);
+        }
+    }
+
+    /**
+     * Wait for the first byte of the next result, closing the channel when
+     * it has not been used for idleTimeout or a result takes too long.
+     *
+     * @return -1 if the channel was closed
+     */
+    private int readFirstByte() throws IOException {
+        while (true) {
+            try {
+                return in.read();
+            } catch (SocketTimeoutException e) {
+                final long now = System.currentTimeMillis();
+                synchronized (pending) {
+                    if (pending.isEmpty() && now - lastUsed >= idleTimeout) {
+                        // closed while holding the lock, so that no new
+                        // command is sent on it
+                        closed = true;
+                        return -1;
+                    }
+                    for (Result res : pending.values()) {
+                        if (now - res.sentAt >= RESULT_TIMEOUT) {
+                            throw new IOException("No result for " + (now - res.sentAt) + " ms");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private Result complete(int id) throws IOException {
+        Result res;
+        synchronized (pending) {
+            res = pending.remove(new Integer(id));
+        }
+        if (res == null) {
+            throw new IOException("Unexpected result for request " + id);
+        }
+        return res;
+    }
+
+    private void close(Exception cause) {
+        final List<Result> failed;
+        synchronized (pending) {
+            closed = true;
+            failed = new ArrayList<Result>(pending.values());
+            pending.clear();
+        }
+        synchronized (channels) {
+            if (channels.get(key) == this) {
+                channels.remove(key);
+            }
+        }
+        closeSocket(socket);
+        if (cause == null) {
+            log.debug("Closed idle command channel to " + key);
+        } else {
+            log.debug("Closed command channel to " + key + ": " + cause);
+        }
+        for (Result res : failed) {
+            synchronized (res) {
+                res.error = new AgentConnectionException("Command channel to " + key +
+                                                         " closed: " + cause, cause);
+                res.done = true;
+                res.notifyAll();
+            }
+        }
+    }
+
+    private static void closeSocket(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug(e, e);
+        }
+    }
+}
@@ -111,6 +111,10 @@ public class AgentConnection {
     public AgentRemoteValue sendCommand(String cmdName, int cmdVersion, AgentRemoteValue arg)
     throws AgentRemoteException, AgentConnectionException {
         if (log.isDebugEnabled()) log.debug(_agentAddress + ":" + _agentPort + " -> " + cmdName);
+        AgentRemoteValue res = this.sendChannelCommand(cmdName, cmdVersion, arg);
+        if (res != null) {
+            return res;
+        }
         AgentStreamPair sPair = this.sendCommandHeaders(cmdName, cmdVersion, arg);
         return this.getCommandResult(sPair);
     }
@@ -135,10 +139,47 @@ public class AgentConnection {
                                         boolean withRetries)
     throws AgentRemoteException, AgentConnectionException {
         if (log.isDebugEnabled()) log.debug(_agentAddress + ":" + _agentPort + " -> " + cmdName);
+        AgentRemoteValue res = this.sendChannelCommand(cmdName, cmdVersion, arg);
+        if (res != null) {
+            return res;
+        }
         AgentStreamPair sPair = this.sendCommandHeaders(cmdName, cmdVersion, arg, withRetries);
         return this.getCommandResult(sPair);
     }
 
+    /**
+     * Send the command over the command channel shared by all the
+     * connections to the agent.
+     *
+     * @return null if there is no channel to the agent and the command has
+     *         not been sent.
+     */
+    private AgentRemoteValue sendChannelCommand(String cmdName, int cmdVersion,
+                                                AgentRemoteValue arg)
+    throws AgentRemoteException, AgentConnectionException {
+        if (!this.isCommandChannelEnabled() || !AgentCommandChannel.isEnabled()) {
+            return null;
+        }
+        return AgentCommandChannel.sendCommand(this, cmdName, cmdVersion, arg);
+    }
+
+    /**
+     * @return true if commands which don't stream data may be pipelined
+     *         over a command channel, see {@link AgentCommandChannel}.
+     *         Plain connections open a connection per command.
+     */
+    protected boolean isCommandChannelEnabled() {
+        return false;
+    }
+
+    /**
+     * @return the key of the command channel, connections with the same key
+     *         share the channel
+     */
+    protected String getChannelKey() {
+        return _agentAddress + ":" + _agentPort;
+    }
+
     /**
      * Send the command to the agent, not waiting for it to process the
      * result.  This call must be paired with a single 'getCommandResult'
@@ -26,6 +26,7 @@
 package org.hyperic.hq.agent.server;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -193,4 +194,38 @@ public interface AgentStorageProvider extends GenericValueMap {
 	 * @throws AgentStorageException
 	 */
 	public void removeFromList(String listName, long recNumber) throws AgentStorageException;
+
+    /**
+     * Create a list of fixed width binary records in storage.  Binary lists
+     * are FIFO lists, records are added to the end and removed from the
+     * head via the iterator returned by getBinaryListIterator().
+     *
+     * @param listName Name of the list to create
+     * @param recSize  Exact size in bytes of every record in the list
+     */
+    public void createBinaryList(String listName, int recSize)
+        throws AgentStorageException;
+
+    /**
+     * Add records to the end of a binary list created with createBinaryList().
+     *
+     * @param listName Name of the list to add to
+     * @param records  Records to add, each must be exactly recSize bytes
+     */
+    public void addToBinaryList(String listName, Collection<byte[]> records)
+        throws AgentStorageException;
+
+    /**
+     * Get an iterator for a named binary list.  If the list does not exist,
+     * or contains 0 elements, null will be returned.  Only the record at the
+     * head of the list may be removed through the iterator.
+     *
+     * @param listName name of the list to get an iterator for.
+     */
+    public Iterator<byte[]> getBinaryListIterator(String listName);
+
+    /**
+     * Delete all records of a binary list from storage.
+     */
+    public void deleteBinaryList(String listName);
 }
@@ -165,6 +165,17 @@ public class SecureAgentConnection
         return socket;
     }
 
+    @Override
+    protected boolean isCommandChannelEnabled() {
+        return true;
+    }
+
+    @Override
+    protected String getChannelKey() {
+        // the channel is authenticated with the token it was opened with
+        return super.getChannelKey() + ":" + this.authToken;
+    }
+
     public String toString(){
         return this.agentAddress + ":" + this.agentPort;
     }
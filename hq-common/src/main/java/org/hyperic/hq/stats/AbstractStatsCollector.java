@@ -25,9 +25,13 @@
 
 package org.hyperic.hq.stats;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -35,6 +39,7 @@ import java.util.concurrent.atomic.AtomicReference;
 
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
 import javax.management.MBeanException;
 import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
@@ -48,15 +53,16 @@ import org.hyperic.sigar.Sigar;
 import org.hyperic.sigar.SigarException;
 import org.hyperic.util.stats.StatCollector;
 import org.hyperic.util.stats.StatUnreachableException;
-import org.hyperic.util.stats.StatsObject;
 
 public abstract class AbstractStatsCollector {
 	private final Log log = LogFactory.getLog(AbstractStatsCollector.class);
 
     // using tree due to ordering capabilities
     private final Map<String, StatCollector> statKeys = new TreeMap<String, StatCollector>();
-	private final ConcurrentLinkedQueue<StatsObject> queue = new ConcurrentLinkedQueue<StatsObject>();
+    // the stats which are added with addStat() rather than sampled
+    private final Map<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
     private final AtomicBoolean hasStarted = new AtomicBoolean(false);
+    private volatile StatDistributions distributions;
     private Long pid;
     protected final Sigar sigar = new Sigar();
     protected final MBeanServer mBeanServer;
@@ -107,6 +113,7 @@ public abstract class AbstractStatsCollector {
             return;
         }
         statKeys.put(statId, null);
+        stats.put(statId, new Stat());
     }
 
     public void register(final StatCollector stat) {
@@ -127,15 +134,14 @@ public abstract class AbstractStatsCollector {
     }
 
     public void addStat(final long value, final String id) {
-        if (!statKeys.containsKey(id)) {
+        final Stat stat = stats.get(id);
+        if (stat == null) {
             return;
         }
         final long now = System.currentTimeMillis();
-        // may want to look at pooling these objects to avoid creation overhead
-        final StatsObject stat = new StatsObject(value, id);
-        queue.add(stat);
+        stat.record(value);
         final long total = System.currentTimeMillis() - now;
-        queue.add(new StatsObject(total, STATS_COLLECTOR));
+        stats.get(STATS_COLLECTOR).record(total);
     }
 
     private final void registerInternalStats() {
@@ -302,14 +308,78 @@ public abstract class AbstractStatsCollector {
         return pid.longValue();
     }
     
-    public StatsObject generateMarker() {
-    	final StatsObject marker = new StatsObject(-1, null);
-    	queue.add(marker);
-    	return marker;
+    /**
+     * Register the distributions of the stats which are added with
+     * addStat() with the MBeanServer, if there is one.
+     */
+    void registerMBean(String name) {
+        if (mBeanServer == null) {
+            return;
+        }
+        final StatDistributions mbean = new StatDistributions(new TreeSet<String>(stats.keySet()));
+        try {
+            final ObjectName objectName = new ObjectName("hyperic.jmx:type=Stats,name=" + name);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(mbean, objectName);
+            }
+            distributions = mbean;
+        } catch (JMException e) {
+            log.warn("Unable to register the stats mbean: " + e, e);
+        }
+    }
+
+    void setLastSnapshots(Map<String, StatHistogram.Snapshot> snapshots) {
+        final StatDistributions mbean = distributions;
+        if (mbean != null) {
+            mbean.setSnapshots(snapshots);
+        }
     }
 
-    public StatsObject pollQueue() {
-    	return queue.poll();
+    /**
+     * Merge the values recorded by all the threads since the last call.
+     * @return the stat ids mapped to their values, a stat without values is
+     * not included
+     */
+    Map<String, StatHistogram.Snapshot> getSnapshots() {
+        final Map<String, StatHistogram.Snapshot> rtn = new HashMap<String, StatHistogram.Snapshot>();
+        for (final Map.Entry<String, Stat> entry : stats.entrySet()) {
+            final StatHistogram.Snapshot snapshot = entry.getValue().drain();
+            if (snapshot.getCount() > 0) {
+                rtn.put(entry.getKey(), snapshot);
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * The values of one stat, each thread records into its own histogram.
+     */
+    private static class Stat {
+        private final CopyOnWriteArrayList<StatHistogram> histograms =
+            new CopyOnWriteArrayList<StatHistogram>();
+        private final ThreadLocal<StatHistogram> local = new ThreadLocal<StatHistogram>() {
+            protected StatHistogram initialValue() {
+                final StatHistogram rtn = new StatHistogram(Thread.currentThread());
+                histograms.add(rtn);
+                return rtn;
+            }
+        };
+
+        private void record(long value) {
+            local.get().record(value);
+        }
+
+        private StatHistogram.Snapshot drain() {
+            final StatHistogram.Snapshot rtn = new StatHistogram.Snapshot();
+            for (final Iterator<StatHistogram> it = histograms.iterator(); it.hasNext();) {
+                final StatHistogram histogram = it.next();
+                if (!histogram.drainTo(rtn)) {
+                    // the thread is gone and its last values are drained
+                    histograms.remove(histogram);
+                }
+            }
+            return rtn;
+        }
     }
 
     protected class StatSampler implements StatCollector {
@@ -447,7 +517,7 @@ public abstract class AbstractStatsCollector {
     }
     
     public void destory() { 
-        this.queue.clear() ;
+        this.stats.clear() ;
         this.statKeys.clear() ; 
     }//EOM 
 
@@ -34,11 +34,8 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.zip.GZIPOutputStream;
@@ -48,7 +45,6 @@ import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.util.stats.StatCollector;
 import org.hyperic.util.stats.StatUnreachableException;
-import org.hyperic.util.stats.StatsObject;
 
 public abstract class AbstractStatsWriter {
 	private static final Log log = LogFactory.getLog(AbstractStatsWriter.class);
@@ -62,6 +58,8 @@ public abstract class AbstractStatsWriter {
     private String filePrefix;
     /** Write period is in seconds **/
     public static final int WRITE_PERIOD = 15;
+    /** Columns written after the total of a stat which is added with addStat() **/
+    static final String[] DISTRIBUTION_SUFFIXES = { "_COUNT", "_MIN", "_MAX", "_P50", "_P99" };
     
     public AbstractStatsWriter(AbstractStatsCollector statsCollector, Retention retentionType, String filePrefix) {
     	this.statsCollector = statsCollector;
@@ -73,6 +71,7 @@ public abstract class AbstractStatsWriter {
         basedir = getAndSetupBasedir();
         setFileInfo();
         printHeader();
+        statsCollector.registerMBean(filePrefix);
         scheduleWithFixedDelay(new StatsWriter(), new Date(now()+(WRITE_PERIOD*1000)), WRITE_PERIOD*1000);
         statsCollector.setStarted(true);
         log.info("StatsCollector has started");
@@ -129,17 +128,18 @@ public abstract class AbstractStatsWriter {
 
     private final void printHeader() {
         final StringBuilder buf = new StringBuilder("timestamp,");
-        final String countAppend = "_COUNT";
         for (Map.Entry<String, StatCollector> entry : statsCollector.getStatKeys().entrySet()) {
             final String key = (String) entry.getKey();
             final StatCollector value = (StatCollector) entry.getValue();
             buf.append(key).append(',');
-            // Only print the COUNT column if the StatCollector object doesn't
-            // exist.
+            // Only print the COUNT and distribution columns if the
+            // StatCollector object doesn't exist.
             // This means that the stat counts come in asynchronously rather
             // than begin calculated every interval.
             if (value == null) {
-                buf.append(key).append(countAppend).append(',');
+                for (final String suffix : DISTRIBUTION_SUFFIXES) {
+                    buf.append(key).append(suffix).append(',');
+                }
             }
         }
         try {
@@ -223,7 +223,8 @@ public abstract class AbstractStatsWriter {
     private class StatsWriter implements Runnable {
         public synchronized void run() {
             try {
-                Map<String, List<Number>> stats = getStatsByKey();
+                Map<String, StatHistogram.Snapshot> stats = statsCollector.getSnapshots();
+                statsCollector.setLastSnapshots(stats);
                 StringBuilder buf = getCSVBuf(stats);
                 final FileWriter fw = getFileWriter();
                 fw.append(buf.append("\n").toString());
@@ -244,7 +245,7 @@ public abstract class AbstractStatsWriter {
             }
             return file;
         }
-        private final StringBuilder getCSVBuf(Map<String, List<Number>> stats) {
+        private final StringBuilder getCSVBuf(Map<String, StatHistogram.Snapshot> stats) {
             final StringBuilder rtn = new StringBuilder();
             rtn.append(System.currentTimeMillis()).append(',');
             for (Map.Entry<String, StatCollector> entry : statsCollector.getStatKeys().entrySet()) {
@@ -262,42 +263,24 @@ public abstract class AbstractStatsWriter {
                         continue;
                     }
                 } else {
-                    List<Number> list = stats.get(key);
-                    long total = 0l;
-                    if (list != null) {
-                        for (Number val : list) {
-                            total += val.longValue();
-                        }
-                        rtn.append(total).append(',').append(list.size()).append(",");
+                    final StatHistogram.Snapshot snapshot = stats.get(key);
+                    if (snapshot != null) {
+                        rtn.append(snapshot.getSum()).append(',')
+                           .append(snapshot.getCount()).append(',')
+                           .append(snapshot.getMin()).append(',')
+                           .append(snapshot.getMax()).append(',')
+                           .append(snapshot.getPercentile(50)).append(',')
+                           .append(snapshot.getPercentile(99)).append(',');
                     } else {
-                        rtn.append(',').append(',');
+                        rtn.append(',');
+                        for (int i = 0; i < DISTRIBUTION_SUFFIXES.length; i++) {
+                            rtn.append(',');
+                        }
                     }
                 }
             }
             return rtn;
         }
-        private Map<String, List<Number>> getStatsByKey() {
-            final Map<String, List<Number>> rtn = new HashMap<String, List<Number>>();
-            final StatsObject marker = statsCollector.generateMarker();
-            List<Number> tmp;
-            Object obj;
-            while (marker != (obj = statsCollector.pollQueue())) {
-                final StatsObject stat = (StatsObject) obj;
-                final String id = stat.getId();
-                // HHQ-5724 - this line should not be needed, but marker != (..) should do the trick
-                // id == null is the id of the marker.
-                if (id == null) {
-                    break;
-                }
-                final Long val = stat.getVal();
-                if (null == (tmp = rtn.get(id))) {
-                    tmp = new ArrayList<Number>();
-                    rtn.put(id, tmp);
-                }
-                tmp.add(new Long(val));
-            }
-            return rtn;
-        }
     }
 
     protected long now() {
@@ -0,0 +1,133 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+package org.hyperic.hq.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Exposes the total, count, min, max and percentiles of the stats which are
+ * added with {@link AbstractStatsCollector#addStat(long, String)} over JMX.
+ * The values are the ones of the last write period of the stats writer, the
+ * attributes are named like the columns of the stats csv file.
+ */
+class StatDistributions implements DynamicMBean {
+    private final List<String> statIds;
+    private final MBeanInfo info;
+    private volatile Map<String, Long> values = Collections.emptyMap();
+
+    StatDistributions(Collection<String> statIds) {
+        this.statIds = new ArrayList<String>(statIds);
+        final List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (final String id : this.statIds) {
+            attrs.add(newAttributeInfo(id));
+            for (final String suffix : AbstractStatsWriter.DISTRIBUTION_SUFFIXES) {
+                attrs.add(newAttributeInfo(id + suffix));
+            }
+        }
+        info = new MBeanInfo(getClass().getName(), "Distribution of the HQ stats",
+                             attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+                             new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+                             new MBeanNotificationInfo[0]);
+    }
+
+    private static MBeanAttributeInfo newAttributeInfo(String name) {
+        return new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+    }
+
+    void setSnapshots(Map<String, StatHistogram.Snapshot> snapshots) {
+        final Map<String, Long> rtn = new HashMap<String, Long>();
+        for (final String id : statIds) {
+            final StatHistogram.Snapshot snapshot = snapshots.get(id);
+            if (snapshot == null) {
+                continue;
+            }
+            final String[] suffixes = AbstractStatsWriter.DISTRIBUTION_SUFFIXES;
+            rtn.put(id, snapshot.getSum());
+            rtn.put(id + suffixes[0], snapshot.getCount());
+            rtn.put(id + suffixes[1], snapshot.getMin());
+            rtn.put(id + suffixes[2], snapshot.getMax());
+            rtn.put(id + suffixes[3], snapshot.getPercentile(50));
+            rtn.put(id + suffixes[4], snapshot.getPercentile(99));
+        }
+        values = rtn;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Long rtn = values.get(attribute);
+        if (rtn != null) {
+            return rtn;
+        }
+        for (final MBeanAttributeInfo attr : info.getAttributes()) {
+            if (attr.getName().equals(attribute)) {
+                // nothing was recorded during the last period
+                return new Long(0);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList rtn = new AttributeList();
+        for (final String name : attributes) {
+            try {
+                rtn.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // left out as defined by DynamicMBean
+            }
+        }
+        return rtn;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+}
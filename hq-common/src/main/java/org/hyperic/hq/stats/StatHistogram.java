@@ -0,0 +1,173 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+package org.hyperic.hq.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size log-linear histogram of the values of one stat recorded by one
+ * thread.  Values below 8 have a bucket each, above that every power of two
+ * is split into 8 buckets, so a percentile is off by at most 12.5%.
+ * Recording a value does not allocate.
+ *
+ * The owning thread records while the stats writer drains the histogram
+ * into a {@link Snapshot}, each bucket is reset atomically so no value is
+ * lost or counted twice.
+ */
+class StatHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final Thread owner;
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    // set once a value was recorded since the last drain
+    private final AtomicLong dirty = new AtomicLong();
+
+    StatHistogram(Thread owner) {
+        this.owner = owner;
+    }
+
+    void record(long value) {
+        buckets.incrementAndGet(getBucket(value));
+        sum.addAndGet(value);
+        long curr;
+        while (value < (curr = min.get()) && !min.compareAndSet(curr, value));
+        while (value > (curr = max.get()) && !max.compareAndSet(curr, value));
+        dirty.set(1);
+    }
+
+    /**
+     * Move the recorded values into the snapshot
+     *
+     * @return false if the owner thread has died, the histogram will not
+     * record any more values
+     */
+    boolean drainTo(Snapshot snapshot) {
+        final boolean alive = owner.isAlive();
+        if (dirty.getAndSet(0) == 0) {
+            return alive;
+        }
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (buckets.get(i) != 0) {
+                final long n = buckets.getAndSet(i, 0);
+                snapshot.counts[i] += n;
+                snapshot.count += n;
+            }
+        }
+        snapshot.sum += sum.getAndSet(0);
+        snapshot.min = Math.min(snapshot.min, min.getAndSet(Long.MAX_VALUE));
+        snapshot.max = Math.max(snapshot.max, max.getAndSet(Long.MIN_VALUE));
+        return alive;
+    }
+
+    static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (value < 0) ? 0 : (int) value;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the smallest value which falls into the bucket
+     */
+    static long getBucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+    }
+
+    /**
+     * @return the largest value which falls into the bucket
+     */
+    static long getBucketEnd(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return getBucketStart(bucket) + (1L << shift) - 1;
+    }
+
+    /**
+     * The merged values of all the threads which recorded a stat during one
+     * write period.
+     */
+    static class Snapshot {
+        private final long[] counts = new long[NUM_BUCKETS];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        long getCount() {
+            return count;
+        }
+
+        long getSum() {
+            return sum;
+        }
+
+        long getMin() {
+            return min;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the midpoint of the bucket which holds the percentile,
+         * bounded by the min and max value
+         */
+        long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            if (percentile >= 100) {
+                return max;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    final long start = getBucketStart(i);
+                    final long mid = start + (getBucketEnd(i) - start) / 2;
+                    return Math.max(min, Math.min(max, mid));
+                }
+            }
+            return max;
+        }
+    }
+}
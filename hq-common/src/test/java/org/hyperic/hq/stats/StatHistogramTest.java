@@ -0,0 +1,128 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+package org.hyperic.hq.stats;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+public class StatHistogramTest extends TestCase {
+
+    public void testBucketsCoverAllValues() {
+        int last = -1;
+        for (long val = 0; val < 100000; val++) {
+            final int bucket = StatHistogram.getBucket(val);
+            assertTrue(bucket == last || bucket == last + 1);
+            assertTrue(StatHistogram.getBucketStart(bucket) <= val);
+            assertTrue(StatHistogram.getBucketEnd(bucket) >= val);
+            last = bucket;
+        }
+        assertEquals(StatHistogram.NUM_BUCKETS - 1, StatHistogram.getBucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, StatHistogram.getBucketEnd(StatHistogram.NUM_BUCKETS - 1));
+        assertEquals(0, StatHistogram.getBucket(-5));
+    }
+
+    public void testPercentilesWithinBucketPrecision() {
+        final StatHistogram histogram = new StatHistogram(Thread.currentThread());
+        for (long val = 1; val <= 10000; val++) {
+            histogram.record(val);
+        }
+        final StatHistogram.Snapshot snapshot = new StatHistogram.Snapshot();
+        assertTrue(histogram.drainTo(snapshot));
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(50005000, snapshot.getSum());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000, snapshot.getPercentile(50), 5000 * 0.125);
+        assertEquals(9900, snapshot.getPercentile(99), 9900 * 0.125);
+        assertEquals(10000, snapshot.getPercentile(100));
+    }
+
+    public void testDrainResets() {
+        final StatHistogram histogram = new StatHistogram(Thread.currentThread());
+        histogram.record(7);
+        histogram.drainTo(new StatHistogram.Snapshot());
+        final StatHistogram.Snapshot snapshot = new StatHistogram.Snapshot();
+        histogram.drainTo(snapshot);
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        histogram.record(3);
+        histogram.drainTo(snapshot);
+        assertEquals(3, snapshot.getMin());
+        assertEquals(3, snapshot.getMax());
+    }
+
+    public void testMergesThreads() throws Exception {
+        final StatHistogram.Snapshot snapshot = new StatHistogram.Snapshot();
+        final StatHistogram[] histograms = new StatHistogram[4];
+        final Thread[] threads = new Thread[histograms.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        histograms[n].record(n);
+                        if (j % 1000 == 0) {
+                            // drain concurrently, nothing may get lost
+                            synchronized (snapshot) {
+                                histograms[n].drainTo(snapshot);
+                            }
+                        }
+                    }
+                }
+            };
+            histograms[i] = new StatHistogram(threads[i]);
+        }
+        for (final Thread t : threads) {
+            t.start();
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        for (final StatHistogram histogram : histograms) {
+            // the owner is gone
+            assertFalse(histogram.drainTo(snapshot));
+        }
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(100000 * (0 + 1 + 2 + 3), snapshot.getSum());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(3, snapshot.getMax());
+    }
+
+    public void testMBeanExposesLastPeriod() throws Exception {
+        final StatDistributions mbean = new StatDistributions(Collections.singleton("TIME"));
+        assertEquals(0L, mbean.getAttribute("TIME_P99"));
+        final StatHistogram histogram = new StatHistogram(Thread.currentThread());
+        histogram.record(10);
+        histogram.record(20);
+        final StatHistogram.Snapshot snapshot = new StatHistogram.Snapshot();
+        histogram.drainTo(snapshot);
+        mbean.setSnapshots(Collections.singletonMap("TIME", snapshot));
+        assertEquals(30L, mbean.getAttribute("TIME"));
+        assertEquals(2L, mbean.getAttribute("TIME_COUNT"));
+        assertEquals(20L, mbean.getAttribute("TIME_MAX"));
+        assertEquals(6, mbean.getMBeanInfo().getAttributes().length);
+    }
+}
@@ -27,6 +27,7 @@ package org.hyperic.hq.measurement;
 
 import static org.junit.Assert.assertEquals;
 
+import org.hyperic.hq.measurement.server.session.DataCompressionDAO;
 import org.hyperic.hq.measurement.server.session.MetricProblemDAO;
 import org.hyperic.hq.measurement.shared.MeasRangeObj;
 import org.hyperic.hq.test.BaseInfrastructureTest;
@@ -55,6 +56,15 @@ public class DataPurgeJobTest
     @Autowired
     private MetricProblemDAO metricProblemDAO;
 
+    @Autowired
+    private DataCompressionDAO dataCompressionDAO;
+
+    private void insertRollupData(String rollupTable, long timestamp) {
+        jdbcTemplate.update("INSERT INTO " + dataCompressionDAO.getRollupPartition(rollupTable, timestamp) +
+                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
+                            timestamp + ",1,1,1)");
+    }
+
     /**
      * Sanity test that no exceptions are thrown on truncating measurement data
      * (not sure how to verify that tables have been truncated)
@@ -66,30 +76,25 @@ public class DataPurgeJobTest
 
     @Test
     public void testPurgeMeasurementsOneHourTable() {
-        long measurementTimestamps = System.currentTimeMillis();
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_1H +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                            measurementTimestamps + ",1,1,1)");
-        // Purge all measurements older than 100 ms in the future (so..
-        // everything)
-        dataPurgeJob.purgeMeasurements(MeasurementConstants.HOUR, measurementTimestamps + 100l);
+        long measurementTimestamps = System.currentTimeMillis() - 60 * MeasurementConstants.DAY;
+        insertRollupData(MeasurementConstants.TAB_DATA_1H, measurementTimestamps);
+        // The partition of the measurement ends long before the purge cutoff
+        dataPurgeJob.purgeMeasurements(MeasurementConstants.HOUR,
+            measurementTimestamps + 30 * MeasurementConstants.DAY);
         assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) from " +
                                                  MeasurementConstants.TAB_DATA_1H));
     }
 
     @Test
     public void testPurgeMeasurementsSixHourTable() {
-        long measurementTimestamps = System.currentTimeMillis();
-        long purgeOlderThan = measurementTimestamps + 100l;
+        long now = System.currentTimeMillis();
+        long measurementTimestamps = now - 120 * MeasurementConstants.DAY;
+        long purgeOlderThan = now - 60 * MeasurementConstants.DAY;
 
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_6H +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                            measurementTimestamps + ",1,1,1)");
+        insertRollupData(MeasurementConstants.TAB_DATA_6H, measurementTimestamps);
 
         // This is more recent than purge cutoff - should remain
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_6H +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                            measurementTimestamps + 200l + ",1,1,1)");
+        insertRollupData(MeasurementConstants.TAB_DATA_6H, now);
 
         dataPurgeJob.purgeMeasurements(MeasurementConstants.SIX_HOUR, purgeOlderThan);
         assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) from " +
@@ -97,14 +102,22 @@ public class DataPurgeJobTest
     }
 
     @Test
-    public void testPurgeMeasurementsOneDayTable() {
+    public void testPurgeMeasurementsKeepsPartitionOfCutoff() {
         long measurementTimestamps = System.currentTimeMillis();
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_1D +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                            measurementTimestamps + ",1,1,1)");
-        // Purge all measurements older than 100 ms in the future (so..
-        // everything)
-        dataPurgeJob.purgeMeasurements(MeasurementConstants.DAY, measurementTimestamps + 100l);
+        insertRollupData(MeasurementConstants.TAB_DATA_1H, measurementTimestamps);
+        // Only whole partitions are purged
+        dataPurgeJob.purgeMeasurements(MeasurementConstants.HOUR, measurementTimestamps + 100l);
+        assertEquals(1, jdbcTemplate.queryForInt("SELECT COUNT(*) from " +
+                                                 MeasurementConstants.TAB_DATA_1H));
+    }
+
+    @Test
+    public void testPurgeMeasurementsOneDayTable() {
+        long measurementTimestamps = System.currentTimeMillis() - 400 * MeasurementConstants.DAY;
+        insertRollupData(MeasurementConstants.TAB_DATA_1D, measurementTimestamps);
+        // The partition of the measurement ends long before the purge cutoff
+        dataPurgeJob.purgeMeasurements(MeasurementConstants.DAY,
+            measurementTimestamps + 200 * MeasurementConstants.DAY);
         assertEquals(0, jdbcTemplate.queryForInt("SELECT COUNT(*) from " +
                                                  MeasurementConstants.TAB_DATA_1D));
     }
@@ -151,12 +164,8 @@ public class DataPurgeJobTest
         long fiveHoursAgo = now - MeasurementConstants.HOUR * 5;
         long thirteenHoursAgo = now - MeasurementConstants.HOUR * 13;
     
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_1H +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                           fiveHoursAgo + ",1,1,1)");
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_6H +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                            thirteenHoursAgo + ",1,1,1)");
+        insertRollupData(MeasurementConstants.TAB_DATA_1H, fiveHoursAgo);
+        insertRollupData(MeasurementConstants.TAB_DATA_6H, thirteenHoursAgo);
         // compression starts at 13 hours ago + 6 hours (since last entry in 6H
         // table is 13 hours old)
         dataPurgeJob.compressData(MeasurementConstants.SIX_HOUR, now);
@@ -173,9 +182,7 @@ public class DataPurgeJobTest
     public void testCompressDataToOneDay() {
         long now = System.currentTimeMillis();
         long thirteenHoursAgo = now - MeasurementConstants.HOUR * 26;
-        jdbcTemplate.update("INSERT INTO " + MeasurementConstants.TAB_DATA_6H +
-                            "(measurement_id, timestamp, value, minvalue, maxvalue) values(12345," +
-                            thirteenHoursAgo + ",1,1,1)");
+        insertRollupData(MeasurementConstants.TAB_DATA_6H, thirteenHoursAgo);
 
         // compression starts at oldest timestamp in 6 hour table
         dataPurgeJob.compressData(MeasurementConstants.DAY, now);
@@ -25,18 +25,28 @@
 
 package org.hyperic.lather.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.util.EntityUtils;
 import org.hyperic.hq.agent.AgentKeystoreConfig;
 import org.hyperic.hq.common.SystemException;
@@ -50,6 +60,16 @@ import org.hyperic.util.http.HttpConfig;
 /**
  * The LatherClient is the base object which is used to invoke
  * remote Lather methods.  
+ *
+ * Two wire formats are supported.  The original one posts the Base64
+ * encoded LatherValue as an 'args' form parameter and gets a Base64 body
+ * back.  The binary one streams the LatherXCoder output as the request
+ * body, gzip compressed unless lather.compress=false, with the method and
+ * argument class in headers, and gets a binary body back.  A client starts
+ * with the original format and switches to the binary one for a server
+ * once that server advertises it through the {@link #HDR_BINARY} response
+ * header, so agents and servers of different versions keep working
+ * together.  Setting lather.binary=false disables the binary format.
  */
 public class LatherHTTPClient 
     implements LatherClient
@@ -59,6 +79,17 @@ public class LatherHTTPClient
 
     public static final String HDR_ERROR      = "X-error-response";
     public static final String HDR_VALUECLASS = "X-latherValue-class";
+    public static final String HDR_METHOD     = "X-lather-method";
+    public static final String HDR_BINARY     = "X-lather-binary";
+
+    public static final String CONTENT_TYPE_BINARY = "application/octet-stream";
+    public static final String ENCODING_GZIP       = "gzip";
+
+    private static final String PROP_BINARY   = "lather.binary";
+    private static final String PROP_COMPRESS = "lather.compress";
+
+    // Server URLs which advertised the binary wire format
+    private static final Map<String, Boolean> binaryServers = new ConcurrentHashMap<String, Boolean>();
 
     private HQHttpClient client;
     private LatherXCoder xCoder;
@@ -94,7 +125,19 @@ public class LatherHTTPClient
     	}
     }
 
+    private boolean useBinary() {
+        return binaryServers.containsKey(this.baseURL) &&
+               !"false".equalsIgnoreCase(System.getProperty(PROP_BINARY));
+    }
+
+    private static boolean useCompression() {
+        return !"false".equalsIgnoreCase(System.getProperty(PROP_COMPRESS));
+    }
+
     public LatherValue invoke(String method, LatherValue args) throws IOException, LatherRemoteException {
+        if (useBinary()) {
+            return invokeBinary(method, args);
+        }
         ByteArrayOutputStream bOs = new ByteArrayOutputStream();
         DataOutputStream dOs = new DataOutputStream(bOs);
         
@@ -122,6 +165,10 @@ public class LatherHTTPClient
                 throw new LatherRemoteException(responseBody);
             }
 
+            if (response.getFirstHeader(HDR_BINARY) != null) {
+                binaryServers.put(this.baseURL, Boolean.TRUE);
+            }
+
             if (clsHeader == null) {
                 throw new IOException("Server returned malformed result: did not contain a value class header");
             }
@@ -147,4 +194,80 @@ public class LatherHTTPClient
 	        throw new IOException("Connection failure: " + response.getStatusLine());
 	    }
     }
+
+    /**
+     * Invoke a remote method using the binary wire format.  The encoded
+     * arguments are streamed straight into the request body and the result
+     * is decoded straight from the response body.
+     */
+    private LatherValue invokeBinary(String method, final LatherValue args)
+        throws IOException, LatherRemoteException
+    {
+        final boolean compress = useCompression();
+        HttpPost post = new HttpPost(this.baseURL);
+        post.addHeader(HDR_METHOD, method);
+        post.addHeader(HDR_VALUECLASS, args.getClass().getName());
+        post.addHeader("Accept-Encoding", ENCODING_GZIP);
+
+        EntityTemplate reqEntity = new EntityTemplate(new ContentProducer() {
+            public void writeTo(OutputStream out) throws IOException {
+                GZIPOutputStream gOs = compress ? new GZIPOutputStream(out) : null;
+                DataOutputStream dOs = new DataOutputStream(new BufferedOutputStream((gOs != null) ? gOs : out));
+                xCoder.encode(args, dOs);
+                dOs.flush();
+                if (gOs != null) {
+                    gOs.finish();
+                }
+            }
+        });
+        reqEntity.setContentType(CONTENT_TYPE_BINARY);
+        reqEntity.setChunked(true);
+        if (compress) {
+            reqEntity.setContentEncoding(ENCODING_GZIP);
+        }
+        post.setEntity(reqEntity);
+
+        HttpResponse response = client.execute(post);
+        HttpEntity entity = response.getEntity();
+
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            EntityUtils.consume(entity);
+            // the server may have been downgraded, fall back to the original
+            // wire format on the next call
+            binaryServers.remove(this.baseURL);
+            throw new IOException("Connection failure: " + response.getStatusLine());
+        }
+
+        Header errHeader = response.getFirstHeader(HDR_ERROR);
+        Header clsHeader = response.getFirstHeader(HDR_VALUECLASS);
+
+        if (errHeader != null) {
+            throw new LatherRemoteException(EntityUtils.toString(entity));
+        }
+
+        if (clsHeader == null) {
+            EntityUtils.consume(entity);
+            throw new IOException("Server returned malformed result: did not contain a value class header");
+        }
+
+        Class<?> resClass;
+        try {
+            resClass = Class.forName(clsHeader.getValue());
+        } catch(ClassNotFoundException exc){
+            EntityUtils.consume(entity);
+            throw new LatherRemoteException("Server returned a class '" + clsHeader.getValue() +
+                                            "' which the client did not have access to");
+        }
+
+        InputStream in = entity.getContent();
+        try {
+            Header encHeader = response.getFirstHeader("Content-Encoding");
+            if (encHeader != null && ENCODING_GZIP.equalsIgnoreCase(encHeader.getValue())) {
+                in = new GZIPInputStream(in);
+            }
+            return this.xCoder.decode(new DataInputStream(new BufferedInputStream(in)), resClass);
+        } finally {
+            in.close();
+        }
+    }
 }
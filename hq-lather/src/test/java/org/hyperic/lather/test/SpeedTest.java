@@ -29,13 +29,18 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.TestCase;
 
 import org.hyperic.util.StringUtil;
+import org.hyperic.util.encoding.Base64;
 import org.hyperic.lather.LatherValue;
 import org.hyperic.lather.xcode.LatherXCoder;
 
@@ -119,4 +124,71 @@ public class SpeedTest
                            nBytes / NUM_VALUES + " bytes");
         
     }
+
+    /**
+     * Compare the cost of the original Base64/form encoded wire format with
+     * the binary one used by LatherHTTPClient, with and without gzip.
+     */
+    public void testWireFormats()
+        throws Exception
+    {
+        LatherXCoder xCoder = new LatherXCoder();
+        Random r = new Random();
+        int numValues = NUM_VALUES / 10;
+        ArrayList l = new ArrayList();
+        for(int i=0; i<numValues; i++){
+            l.add(this.genValue(r));
+        }
+
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+        long formBytes = 0, rawBytes = 0, gzipBytes = 0;
+        long formTime = 0, rawTime = 0, gzipTime = 0;
+        long start;
+
+        for(Iterator i=l.iterator(); i.hasNext(); ){
+            LatherValue v = (LatherValue)i.next();
+
+            start = System.currentTimeMillis();
+            bOs.reset();
+            xCoder.encode(v, new DataOutputStream(bOs));
+            String body = "args=" +
+                URLEncoder.encode(Base64.encode(bOs.toByteArray()), "UTF-8");
+            String args = URLDecoder.decode(body.substring(5), "UTF-8");
+            xCoder.decode(new DataInputStream(
+                new ByteArrayInputStream(Base64.decode(args))), PassThroughLatherValue.class);
+            formTime += System.currentTimeMillis() - start;
+            formBytes += body.length();
+
+            start = System.currentTimeMillis();
+            bOs.reset();
+            DataOutputStream dOs = new DataOutputStream(bOs);
+            xCoder.encode(v, dOs);
+            dOs.flush();
+            xCoder.decode(new DataInputStream(
+                new ByteArrayInputStream(bOs.toByteArray())), PassThroughLatherValue.class);
+            rawTime += System.currentTimeMillis() - start;
+            rawBytes += bOs.size();
+
+            start = System.currentTimeMillis();
+            bOs.reset();
+            GZIPOutputStream gOs = new GZIPOutputStream(bOs);
+            dOs = new DataOutputStream(gOs);
+            xCoder.encode(v, dOs);
+            dOs.flush();
+            gOs.finish();
+            xCoder.decode(new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(bOs.toByteArray()))), PassThroughLatherValue.class);
+            gzipTime += System.currentTimeMillis() - start;
+            gzipBytes += bOs.size();
+        }
+
+        System.out.println("Form/Base64: " + formBytes / numValues + " bytes/value in " +
+                           StringUtil.formatDuration(formTime));
+        System.out.println("Binary:      " + rawBytes / numValues + " bytes/value in " +
+                           StringUtil.formatDuration(rawTime));
+        System.out.println("Binary/gzip: " + gzipBytes / numValues + " bytes/value in " +
+                           StringUtil.formatDuration(gzipTime));
+        assertTrue(rawBytes < formBytes);
+        assertTrue(gzipBytes < rawBytes);
+    }
 }
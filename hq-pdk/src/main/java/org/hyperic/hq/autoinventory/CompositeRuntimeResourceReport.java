@@ -48,12 +48,21 @@ import org.hyperic.hq.product.RuntimeResourceReport;
  * the platforms, servers, and services that were detected in the scan
  * for that server.
  * <br><br>
+ * Agents which send differential reports leave out the reports of the
+ * servers which did not change since the last report the CAM server
+ * accepted.  Those are listed as unchanged reports which only carry the
+ * serverId and the digest of the report, so that the CAM server can tell
+ * whether it is in sync with the agent.
+ * <br><br>
  */
 public class CompositeRuntimeResourceReport {
 
     private RuntimeResourceReport[] _serverReports =
         new RuntimeResourceReport[0];
 
+    private RuntimeResourceReport[] _unchangedReports =
+        new RuntimeResourceReport[0];
+
     public RuntimeResourceReport[] getServerReports () { 
         return _serverReports; 
     }
@@ -80,6 +89,46 @@ public class CompositeRuntimeResourceReport {
             ArrayUtil.combine(_serverReports, newReportArray);
     }
 
+    /**
+     * @return The reports which did not change since the last report, with
+     * no platforms but the serverId and digest only.
+     */
+    public RuntimeResourceReport[] getUnchangedServerReports () {
+        return _unchangedReports;
+    }
+
+    public void setUnchangedServerReports (RuntimeResourceReport[] unchangedReports) {
+        _unchangedReports = unchangedReports;
+    }
+
+    /**
+     * Record that the report of the specified server did not change since
+     * the last report.
+     */
+    public void addUnchangedServerReport (int serverId, String digest) {
+        RuntimeResourceReport report = new RuntimeResourceReport(serverId);
+        report.setDigest(digest);
+        RuntimeResourceReport newReportArray[] = { report };
+        _unchangedReports = (RuntimeResourceReport[])
+            ArrayUtil.combine(_unchangedReports, newReportArray);
+    }
+
+    /**
+     * @return true if the reports were fingerprinted by the agent, in which
+     * case the CAM server may keep track of the digests.
+     */
+    public boolean isDifferential () {
+        if (_unchangedReports.length > 0) {
+            return true;
+        }
+        for (int i=0; i<_serverReports.length; i++) {
+            if (_serverReports[i].getDigest() == null) {
+                return false;
+            }
+        }
+        return _serverReports.length > 0;
+    }
+
     public String toString () {
         return "[CompositeRRR " + StringUtil.arrayToString(_serverReports) + "]";
     }
@@ -115,6 +164,12 @@ public class CompositeRuntimeResourceReport {
 
     public String simpleSummary () {
         String rstr = "[CompositeRRR ";
+        if (_unchangedReports.length > 0) {
+            rstr += "\n\tUnchanged reports from reporting servers=";
+            for (int i=0; i<_unchangedReports.length; i++) {
+                rstr += ((i > 0) ? "," : "") + _unchangedReports[i].getServerId();
+            }
+        }
         for ( int i=0; i<_serverReports.length; i++ ) {
             rstr += "\n\tReport #" + i + " from " + "reporting server=" + _serverReports[i].getServerId() + ": ";
             AIPlatformValue[] platforms = _serverReports[i].getAIPlatforms();
@@ -0,0 +1,68 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.shared.lather;
+
+import org.hyperic.lather.LatherKeyNotFoundException;
+import org.hyperic.lather.LatherRemoteException;
+import org.hyperic.lather.LatherValue;
+
+/**
+ * Returned by servers which keep track of the digests of the runtime
+ * reports sent by the agents.  Older servers return a NullLatherValue, in
+ * which case the agent keeps sending full reports.
+ */
+public class AiSendRuntimeReport_result
+    extends LatherValue
+{
+    private static final String PROP_FULLSYNC = "fullSync";
+
+    public AiSendRuntimeReport_result(){
+        super();
+    }
+
+    /**
+     * @param fullSync true if the digests of the unchanged reports did not
+     *        match the ones known to the server, so the report was dropped
+     *        and the agent has to send a full report
+     */
+    public void setFullSync(boolean fullSync) {
+        this.setIntValue(PROP_FULLSYNC, fullSync ? 1 : 0);
+    }
+
+    public boolean isFullSync() {
+        return this.getIntValue(PROP_FULLSYNC) == 1;
+    }
+
+    public void validate()
+        throws LatherRemoteException
+    {
+        try {
+            this.isFullSync();
+        } catch(LatherKeyNotFoundException exc){
+            throw new LatherRemoteException("All values not set");
+        }
+    }
+}
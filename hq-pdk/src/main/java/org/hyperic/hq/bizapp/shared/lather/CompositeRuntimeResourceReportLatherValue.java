@@ -34,7 +34,8 @@ import org.hyperic.hq.product.RuntimeResourceReport;
 public class CompositeRuntimeResourceReportLatherValue
     extends LatherValue
 {
-    private static final String PROP_REPORTS = "reports";
+    private static final String PROP_REPORTS   = "reports";
+    private static final String PROP_UNCHANGED = "unchanged";
 
     public CompositeRuntimeResourceReportLatherValue(){
         super();
@@ -52,6 +53,12 @@ public class CompositeRuntimeResourceReportLatherValue
                              new RuntimeResourceReportLatherValue(reports[i]));
             }
         }
+
+        RuntimeResourceReport[] unchanged = v.getUnchangedServerReports();
+        for(int i=0; i<unchanged.length; i++){
+            this.addObjectToList(PROP_UNCHANGED,
+                             new RuntimeResourceReportLatherValue(unchanged[i]));
+        }
     }
 
     public CompositeRuntimeResourceReport getReport(){
@@ -73,6 +80,22 @@ public class CompositeRuntimeResourceReportLatherValue
         } catch(LatherKeyNotFoundException exc){
             r.setServerReports(new RuntimeResourceReport[0]);
         }
+
+        try {
+            RuntimeResourceReport[] unchanged;
+            LatherValue[] lUnchanged;
+
+            lUnchanged = (LatherValue[])this.getObjectList(PROP_UNCHANGED);
+            unchanged  = new RuntimeResourceReport[lUnchanged.length];
+            for(int i=0; i<unchanged.length; i++){
+                unchanged[i] = ((RuntimeResourceReportLatherValue)
+                                lUnchanged[i]).getReport();
+            }
+
+            r.setUnchangedServerReports(unchanged);
+        } catch(LatherKeyNotFoundException exc){
+            // full report, or an older agent
+        }
         return r;
     }
 
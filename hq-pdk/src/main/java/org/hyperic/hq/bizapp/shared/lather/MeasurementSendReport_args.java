@@ -34,6 +34,7 @@ import org.hyperic.hq.measurement.data.DSNList;
 import org.hyperic.hq.measurement.data.MeasurementReport;
 import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
 import org.hyperic.hq.measurement.data.ValueList;
+import org.hyperic.hq.measurement.data.ValueListCodec;
 import org.hyperic.hq.product.MetricValue;
 
 import org.apache.commons.logging.Log;
@@ -54,12 +55,24 @@ public class MeasurementSendReport_args
     private static final String PROP_SRN_ENT_ID   = "srnEntId";
     private static final String PROP_SRN_REVNO    = "srnRevNo";
     private static final String PROP_AGENT_TOKEN  = "agentToken";
+    private static final String PROP_PACKED_CIDS  = "packedCids";
+    private static final String PROP_PACKED_DSNS  = "packedDsns";
 
     public MeasurementSendReport_args(){
         super();
     }
 
     public void setReport(MeasurementReport report){
+        this.setReport(report, false);
+    }
+
+    /**
+     * @param packed true to send the values of each client id as a single
+     * byte array encoded by {@link ValueListCodec}, which only servers
+     * replying {@link MeasurementSendReport_result#isPackedReports()} can
+     * decode.  false to send a list entry per data point.
+     */
+    public void setReport(MeasurementReport report, boolean packed){
         DSNList[] clientIDs;
         SRN[] srnList;
 
@@ -67,6 +80,23 @@ public class MeasurementSendReport_args
                              report.getAgentToken());
 
         clientIDs = report.getClientIdList();
+        if(packed){
+            this.addPackedDataPoints(clientIDs);
+        } else {
+            this.addDataPoints(clientIDs);
+        }
+
+        srnList = report.getSRNList();
+        for(int i=0; i<srnList.length; i++){
+            AppdefEntityID ent = srnList[i].getEntity();
+
+            this.addIntToList(PROP_SRN_ENT_TYPE, ent.getType());
+            this.addIntToList(PROP_SRN_ENT_ID, ent.getID());
+            this.addIntToList(PROP_SRN_REVNO, srnList[i].getRevisionNumber());
+        }
+    }
+
+    private void addDataPoints(DSNList[] clientIDs){
         for(int cidIdx=0; cidIdx < clientIDs.length; cidIdx++){
             ValueList[] dsns = clientIDs[cidIdx].getDsns();
 
@@ -85,14 +115,14 @@ public class MeasurementSendReport_args
                 }
             }
         }
-        
-        srnList = report.getSRNList();
-        for(int i=0; i<srnList.length; i++){
-            AppdefEntityID ent = srnList[i].getEntity();
+    }
 
-            this.addIntToList(PROP_SRN_ENT_TYPE, ent.getType());
-            this.addIntToList(PROP_SRN_ENT_ID, ent.getID());
-            this.addIntToList(PROP_SRN_REVNO, srnList[i].getRevisionNumber());
+    private void addPackedDataPoints(DSNList[] clientIDs){
+        for(int cidIdx=0; cidIdx < clientIDs.length; cidIdx++){
+            this.addIntToList(PROP_PACKED_CIDS,
+                              clientIDs[cidIdx].getClientId());
+            this.addByteAToList(PROP_PACKED_DSNS,
+                ValueListCodec.encode(clientIDs[cidIdx].getDsns()));
         }
     }
 
@@ -106,33 +136,16 @@ public class MeasurementSendReport_args
         int[] cidList, dsnIdList, srnEntTypeList, srnEntIdList, srnRevNoList;
         SRN[] srnList;
 
-        con = new MeasurementReportConstructor();
-
-        cidList    = this.getIntList(PROP_CIDLIST);
-        dsnIdList  = this.getIntList(PROP_DSNIDLIST);
-        tStampList = this.getDoubleList(PROP_TSTAMPLIST);
-        valueList  = this.getDoubleList(PROP_VALUELIST);
-
         srnEntTypeList = this.getIntList(PROP_SRN_ENT_TYPE);
         srnEntIdList   = this.getIntList(PROP_SRN_ENT_ID);
         srnRevNoList   = this.getIntList(PROP_SRN_REVNO);
 
-        if(dsnIdList.length       != tStampList.length   ||
-           dsnIdList.length       != valueList.length    ||
-           dsnIdList.length       != cidList.length      ||
-           srnEntTypeList.length  != srnEntIdList.length ||
+        if(srnEntTypeList.length  != srnEntIdList.length ||
            srnEntTypeList.length  != srnRevNoList.length)
         {
             throw new LatherRemoteException("Measurement report mismatch");
         }
 
-        for(int i=0; i<dsnIdList.length; i++)
-        {
-            con.addDataPoint(cidList[i], dsnIdList[i],
-                             new MetricValue(valueList[i],
-                                             (long)tStampList[i]));
-        }
-
         res = new MeasurementReport();
         try {
             res.setAgentToken(this.getStringValue(PROP_AGENT_TOKEN));
@@ -140,7 +153,31 @@ public class MeasurementSendReport_args
             _log.error("Unable to find agent token", e);
         }
 
-        res.setClientIdList(con.constructDSNList());
+        if(this.getByteALists().containsKey(PROP_PACKED_DSNS)){
+            res.setClientIdList(this.getPackedClientIdList());
+        } else {
+            con = new MeasurementReportConstructor();
+
+            cidList    = this.getIntList(PROP_CIDLIST);
+            dsnIdList  = this.getIntList(PROP_DSNIDLIST);
+            tStampList = this.getDoubleList(PROP_TSTAMPLIST);
+            valueList  = this.getDoubleList(PROP_VALUELIST);
+
+            if(dsnIdList.length != tStampList.length ||
+               dsnIdList.length != valueList.length  ||
+               dsnIdList.length != cidList.length)
+            {
+                throw new LatherRemoteException("Measurement report mismatch");
+            }
+
+            for(int i=0; i<dsnIdList.length; i++)
+            {
+                con.addDataPoint(cidList[i], dsnIdList[i],
+                                 new MetricValue(valueList[i],
+                                                 (long)tStampList[i]));
+            }
+            res.setClientIdList(con.constructDSNList());
+        }
 
         srnList = new SRN[srnEntTypeList.length];
 
@@ -155,4 +192,28 @@ public class MeasurementSendReport_args
         res.setSRNList(srnList);
         return res;
     }
+
+    /**
+     * The value lists are decoded when they are first accessed, so that
+     * the values of measurements the server drops are never decoded
+     */
+    private DSNList[] getPackedClientIdList()
+        throws LatherRemoteException
+    {
+        int[] cidList     = this.getIntList(PROP_PACKED_CIDS);
+        byte[][] dsnsList = this.getByteAList(PROP_PACKED_DSNS);
+        DSNList[] res;
+
+        if(cidList.length != dsnsList.length){
+            throw new LatherRemoteException("Measurement report mismatch");
+        }
+
+        res = new DSNList[cidList.length];
+        for(int i=0; i<cidList.length; i++){
+            res[i] = new DSNList();
+            res[i].setClientId(cidList[i]);
+            res[i].setPackedDsns(dsnsList[i]);
+        }
+        return res;
+    }
 }
@@ -33,6 +33,8 @@ public class MeasurementSendReport_result
     extends LatherValue
 {
     private static final String PROP_TIME = "serverTime";
+    private static final String PROP_BACKOFF = "backoff";
+    private static final String PROP_PACKED_REPORTS = "packedReports";
 
     public MeasurementSendReport_result(){
         super();
@@ -48,6 +50,48 @@ public class MeasurementSendReport_result
         return this.getLongValue(PROP_TIME);
     }
 
+    /**
+     * @param backoff ms the agent should wait before sending more
+     *        backlogged data
+     */
+    public void setBackoff(long backoff) {
+        this.setLongValue(PROP_BACKOFF, backoff);
+    }
+
+    /**
+     * @return ms the agent should wait before sending more backlogged data,
+     * 0 if the server did not ask the agent to back off
+     */
+    public long getBackoff() {
+        try {
+            return this.getLongValue(PROP_BACKOFF);
+        } catch (LatherKeyNotFoundException exc) {
+            // older servers don't send it
+            return 0;
+        }
+    }
+
+    /**
+     * @param packedReports true if the server decodes reports with packed
+     *        value lists
+     */
+    public void setPackedReports(boolean packedReports) {
+        this.setIntValue(PROP_PACKED_REPORTS, packedReports ? 1 : 0);
+    }
+
+    /**
+     * @return true if the agent may send the next reports with packed value
+     * lists, see {@link MeasurementSendReport_args#setReport(org.hyperic.hq.measurement.data.MeasurementReport, boolean)}
+     */
+    public boolean isPackedReports() {
+        try {
+            return this.getIntValue(PROP_PACKED_REPORTS) != 0;
+        } catch (LatherKeyNotFoundException exc) {
+            // older servers don't send it
+            return false;
+        }
+    }
+
     public void validate()
         throws LatherRemoteException
     {
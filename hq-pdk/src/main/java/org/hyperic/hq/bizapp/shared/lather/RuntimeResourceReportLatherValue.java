@@ -25,17 +25,22 @@
 
 package org.hyperic.hq.bizapp.shared.lather;
 
+import java.io.IOException;
+
 import org.hyperic.lather.LatherKeyNotFoundException;
 import org.hyperic.lather.LatherRemoteException;
 import org.hyperic.lather.LatherValue;
 import org.hyperic.hq.appdef.shared.AIPlatformValue;
+import org.hyperic.hq.autoinventory.LatherUtil;
 import org.hyperic.hq.product.RuntimeResourceReport;
+import org.hyperic.util.security.MD5;
 
 public class RuntimeResourceReportLatherValue
     extends LatherValue
 {
     private static final String PROP_SERVERID = "serverId";
     private static final String PROP_PLATFORM = "platform";
+    private static final String PROP_DIGEST   = "digest";
 
     public RuntimeResourceReportLatherValue(){
         super();
@@ -45,6 +50,9 @@ public class RuntimeResourceReportLatherValue
         super();
 
         this.setIntValue(PROP_SERVERID, v.getServerId());
+        if(v.getDigest() != null){
+            this.setStringValue(PROP_DIGEST, v.getDigest());
+        }
         if(v.getAIPlatforms() != null){
             AIPlatformValue[] plats = v.getAIPlatforms();
 
@@ -59,6 +67,11 @@ public class RuntimeResourceReportLatherValue
         RuntimeResourceReport r = new RuntimeResourceReport();
 
         r.setServerId(this.getIntValue(PROP_SERVERID));
+        try {
+            r.setDigest(this.getStringValue(PROP_DIGEST));
+        } catch(LatherKeyNotFoundException exc){
+            // older agents don't send it
+        }
         try {
             AIPlatformValue[] plats;
             LatherValue[] lPlats;
@@ -77,6 +90,22 @@ public class RuntimeResourceReportLatherValue
         return r;
     }
 
+    /**
+     * Fingerprint the report the way it is sent over the wire, any digest
+     * the report already carries is left out.
+     */
+    public static String getDigest(RuntimeResourceReport report)
+        throws IOException
+    {
+        RuntimeResourceReport r =
+            new RuntimeResourceReport(report.getServerId());
+        r.setAIPlatforms(report.getAIPlatforms());
+
+        MD5 md5 = new MD5();
+        md5.add(LatherUtil.serialize(new RuntimeResourceReportLatherValue(r)));
+        return md5.getDigestString();
+    }
+
     public void validate()
         throws LatherRemoteException
     {
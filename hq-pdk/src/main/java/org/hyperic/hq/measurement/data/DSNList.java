@@ -30,6 +30,7 @@ public class DSNList
 {
     private int         clientId;
     private ValueList[] dsns;
+    private byte[]      packedDsns;
 
     public DSNList(){
         this.clientId = 0;
@@ -45,10 +46,28 @@ public class DSNList
     }
 
     public void setDsns(ValueList[] dsns){
-        this.dsns = dsns;
+        this.dsns       = dsns;
+        this.packedDsns = null;
     }
 
+    /**
+     * Set the value lists encoded by {@link ValueListCodec}, they are
+     * decoded on the first call to {@link #getDsns()}.
+     */
+    public void setPackedDsns(byte[] packedDsns){
+        this.dsns       = null;
+        this.packedDsns = packedDsns;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the packed value lists are not
+     * a valid encoding
+     */
     public ValueList[] getDsns(){
+        if(this.dsns == null && this.packedDsns != null){
+            this.dsns       = ValueListCodec.decode(this.packedDsns);
+            this.packedDsns = null;
+        }
         return this.dsns;
     }
 }
@@ -0,0 +1,286 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.data;
+
+import org.hyperic.hq.product.MetricValue;
+
+/**
+ * Packs the value lists of a {@link DSNList} into a single byte array.
+ * Timestamps are written as the delta of the delta to the previous one,
+ * which is zero or a few bits for regularly collected metrics, values are
+ * written as the XOR of their bits with the previous value, which is a single
+ * bit for repeated values (Gorilla compression, Pelkonen et al., VLDB 2015).
+ * Timestamps and values are restored exactly.
+ */
+public class ValueListCodec {
+
+    private static final int VERSION = 1;
+
+    private ValueListCodec() {}
+
+    public static byte[] encode(ValueList[] dsns) {
+        int numVals = 0;
+        for (int i = 0; i < dsns.length; i++) {
+            numVals += dsns[i].getValues().length;
+        }
+        BitWriter out = new BitWriter(16 + dsns.length * 24 + numVals * 4);
+        out.write(VERSION, 8);
+        out.write(dsns.length, 32);
+        for (int i = 0; i < dsns.length; i++) {
+            MetricValue[] vals = dsns[i].getValues();
+            out.write(dsns[i].getDsnId(), 32);
+            out.write(vals.length, 32);
+            encode(vals, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the data is not a valid encoding
+     */
+    public static ValueList[] decode(byte[] data) {
+        BitReader in = new BitReader(data);
+        int version = (int) in.read(8);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported encoding version " + version);
+        }
+        int numDsns = (int) in.read(32);
+        // every value list takes at least 64 bits
+        if (numDsns < 0 || numDsns > in.remaining() / 64) {
+            throw new IllegalArgumentException("Invalid number of value lists " + numDsns);
+        }
+        ValueList[] rtn = new ValueList[numDsns];
+        for (int i = 0; i < numDsns; i++) {
+            rtn[i] = new ValueList();
+            rtn[i].setDsnId((int) in.read(32));
+            int numVals = (int) in.read(32);
+            // every value after the first takes at least 2 bits
+            if (numVals < 0 || numVals > in.remaining() / 2 + 1) {
+                throw new IllegalArgumentException("Invalid number of values " + numVals);
+            }
+            rtn[i].setValues(decode(numVals, in));
+        }
+        return rtn;
+    }
+
+    private static void encode(MetricValue[] vals, BitWriter out) {
+        if (vals.length == 0) {
+            return;
+        }
+        long prevTime = vals[0].getTimestamp();
+        long prevBits = Double.doubleToRawLongBits(vals[0].getValue());
+        long prevDelta = 0;
+        int prevLeading = -1;
+        int prevTrailing = 0;
+        out.write(prevTime, 64);
+        out.write(prevBits, 64);
+        for (int i = 1; i < vals.length; i++) {
+            long time = vals[i].getTimestamp();
+            long delta = time - prevTime;
+            writeTimestamp(delta - prevDelta, out);
+            prevTime = time;
+            prevDelta = delta;
+
+            long bits = Double.doubleToRawLongBits(vals[i].getValue());
+            long xor = bits ^ prevBits;
+            prevBits = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                // the meaningful bits fit into the previous window
+                out.write(2, 2);
+                out.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+            } else {
+                int significant = 64 - leading - trailing;
+                out.write(3, 2);
+                out.write(leading, 5);
+                out.write(significant - 1, 6);
+                out.write(xor >>> trailing, significant);
+                prevLeading = leading;
+                prevTrailing = trailing;
+            }
+        }
+    }
+
+    private static MetricValue[] decode(int numVals, BitReader in) {
+        MetricValue[] rtn = new MetricValue[numVals];
+        if (numVals == 0) {
+            return rtn;
+        }
+        long prevTime = in.read(64);
+        long prevBits = in.read(64);
+        long prevDelta = 0;
+        int prevLeading = -1;
+        int prevTrailing = 0;
+        rtn[0] = new MetricValue(Double.longBitsToDouble(prevBits), prevTime);
+        for (int i = 1; i < numVals; i++) {
+            prevDelta += readTimestamp(in);
+            prevTime += prevDelta;
+
+            if (in.read(1) != 0) {
+                if (in.read(1) == 0) {
+                    if (prevLeading < 0) {
+                        throw new IllegalArgumentException("No previous value window");
+                    }
+                    prevBits ^= in.read(64 - prevLeading - prevTrailing) << prevTrailing;
+                } else {
+                    int leading = (int) in.read(5);
+                    int significant = (int) in.read(6) + 1;
+                    int trailing = 64 - leading - significant;
+                    if (trailing < 0) {
+                        throw new IllegalArgumentException("Invalid value window");
+                    }
+                    prevBits ^= in.read(significant) << trailing;
+                    prevLeading = leading;
+                    prevTrailing = trailing;
+                }
+            }
+            rtn[i] = new MetricValue(Double.longBitsToDouble(prevBits), prevTime);
+        }
+        return rtn;
+    }
+
+    private static void writeTimestamp(long deltaOfDelta, BitWriter out) {
+        // zigzag, so that small negative values are small as well
+        long zz = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+        if (zz == 0) {
+            out.write(0, 1);
+        } else if ((zz >>> 7) == 0) {
+            out.write(2, 2);
+            out.write(zz, 7);
+        } else if ((zz >>> 9) == 0) {
+            out.write(6, 3);
+            out.write(zz, 9);
+        } else if ((zz >>> 12) == 0) {
+            out.write(14, 4);
+            out.write(zz, 12);
+        } else if ((zz >>> 32) == 0) {
+            out.write(30, 5);
+            out.write(zz, 32);
+        } else {
+            out.write(31, 5);
+            out.write(zz, 64);
+        }
+    }
+
+    private static long readTimestamp(BitReader in) {
+        long zz;
+        if (in.read(1) == 0) {
+            return 0;
+        } else if (in.read(1) == 0) {
+            zz = in.read(7);
+        } else if (in.read(1) == 0) {
+            zz = in.read(9);
+        } else if (in.read(1) == 0) {
+            zz = in.read(12);
+        } else if (in.read(1) == 0) {
+            zz = in.read(32);
+        } else {
+            zz = in.read(64);
+        }
+        return (zz >>> 1) ^ -(zz & 1);
+    }
+
+    private static class BitWriter {
+        private byte[] buf;
+        private int pos = 0;
+        // number of bits used in buf[pos]
+        private int bitPos = 0;
+
+        private BitWriter(int size) {
+            buf = new byte[Math.max(size, 16)];
+        }
+
+        /**
+         * Write the lowest numBits bits of value, most significant first
+         */
+        private void write(long value, int numBits) {
+            while (numBits > 0) {
+                if (pos == buf.length) {
+                    byte[] tmp = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, tmp, 0, pos);
+                    buf = tmp;
+                }
+                int free = 8 - bitPos;
+                int take = Math.min(free, numBits);
+                int bits = (int) (value >>> (numBits - take)) & ((1 << take) - 1);
+                buf[pos] |= bits << (free - take);
+                bitPos += take;
+                numBits -= take;
+                if (bitPos == 8) {
+                    pos++;
+                    bitPos = 0;
+                }
+            }
+        }
+
+        private byte[] toByteArray() {
+            int len = (bitPos == 0) ? pos : pos + 1;
+            byte[] rtn = new byte[len];
+            System.arraycopy(buf, 0, rtn, 0, len);
+            return rtn;
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] buf;
+        private int pos = 0;
+        // number of bits read from buf[pos]
+        private int bitPos = 0;
+
+        private BitReader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private long remaining() {
+            return (buf.length - pos) * 8L - bitPos;
+        }
+
+        private long read(int numBits) {
+            long rtn = 0;
+            while (numBits > 0) {
+                if (pos == buf.length) {
+                    throw new IllegalArgumentException("Unexpected end of data");
+                }
+                int avail = 8 - bitPos;
+                int take = Math.min(avail, numBits);
+                int bits = ((buf[pos] & 0xff) >>> (avail - take)) & ((1 << take) - 1);
+                rtn = (rtn << take) | bits;
+                bitPos += take;
+                numBits -= take;
+                if (bitPos == 8) {
+                    pos++;
+                    bitPos = 0;
+                }
+            }
+            return rtn;
+        }
+    }
+}
@@ -65,6 +65,10 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
 
     public static final String PROP_TABLE    = "table";
     public static final String PROP_INDEX    = "index";
+
+    //agent properties
+    public static final String PROP_POOL_SIZE = "jdbc.pool.size";
+    public static final String PROP_BATCH_MAX_AGE = "jdbc.batch.maxAge";
     
     private static final String USER_KEY = "user";
     private static final String PASSWORD_KEY = "password";
@@ -73,6 +77,9 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
 
     private static long FIVE_MINUTES_MILLIS = 5 * 60 * 1000;
 
+    private static final int DEFAULT_POOL_SIZE = 5;
+    private static final long DEFAULT_BATCH_MAX_AGE = 5000;
+
     protected String _sqlLog;
     
     private Double _data;
@@ -83,6 +90,10 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
     private int _numRows;
     
     private final static HashMap<String,Queue> connectionPools = new HashMap<String, Queue>();
+    //max number of idle connections kept per database
+    private static volatile int poolSize = DEFAULT_POOL_SIZE;
+    private final static JDBCQueryBatcher queryBatcher =
+        new JDBCQueryBatcher(DEFAULT_BATCH_MAX_AGE);
     private final static Timer poolsShrinkTimer = new Timer("JDBCMeasurementPlugin.poolsShrink");
     static {
         poolsShrinkTimer.scheduleAtFixedRate(new TimerTask() {
@@ -102,6 +113,7 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
                         }
                     }
                 }
+                queryBatcher.logStats(log);
             }
         }, FIVE_MINUTES_MILLIS, FIVE_MINUTES_MILLIS);
     }
@@ -128,13 +140,26 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
     
     /**
      * Verifies that JDBC driver returned by the getDriver() method
-     * can be loaded by the plugin.
+     * can be loaded by the plugin and applies the connection pool
+     * and query batching settings from the agent properties.
      */
     public void init(PluginManager manager)
         throws PluginException
     {
         super.init(manager);
 
+        String val;
+        try {
+            if ((val = manager.getProperty(PROP_POOL_SIZE)) != null) {
+                poolSize = Integer.parseInt(val);
+            }
+            if ((val = manager.getProperty(PROP_BATCH_MAX_AGE)) != null) {
+                queryBatcher.setMaxAge(Long.parseLong(val));
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Invalid JDBC pool setting: " + e.getMessage());
+        }
+
         try {
             getDriver();
         } catch (ClassNotFoundException e) {
@@ -165,6 +190,7 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
             }
             connectionPools.clear();
         }
+        queryBatcher.clear();
     }
 
     /**
@@ -293,12 +319,15 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
     protected void returnCachedConnection(String url, String user, String pass, Connection conn) {
         String cacheKey = calculateKey(url, user, pass);
         Queue<Connection> pool = connectionPools.get(cacheKey);
-        if (pool != null) {
+        if (conn == null) {
+            return;
+        }
+        if (pool != null && pool.size() < poolSize) {
             pool.add(conn);
             log.debug("[retCC] Connection for '" + cacheKey + "' returned (pool.size=" + pool.size() + ")");
         } else {
             DBUtil.closeJDBCObjects(log, conn, null, null);
-            log.debug("[retCC] Pool for '" + cacheKey + "' not found, closing connection");
+            log.debug("[retCC] Pool for '" + cacheKey + "' not found or full, closing connection");
         }
     }
 
@@ -306,7 +335,9 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
      * Do the database query returned by the getQuery() method
      * and return the result.  A cached connection will be used
      * if one exists, otherwise the created connection will be
-     * cached for future use.
+     * cached for future use.  Metrics which map to the same
+     * query within a collection cycle share a single execution
+     * of the query, see JDBCQueryBatcher.
      */
     protected double getQueryValue(Metric jdsn)
         throws MetricNotFoundException, PluginException,
@@ -336,6 +367,10 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
             user = props.getProperty(PROP_USER),
             pass = props.getProperty(PROP_PASSWORD);
 
+        if (!logSql) {
+            return getBatchedQueryValue(jdsn, query, url, user, pass);
+        }
+
         Connection conn = null;
         Statement stmt = null;
         ResultSet rs = null;
@@ -351,53 +386,106 @@ public abstract class JDBCMeasurementPlugin extends MeasurementPlugin {
                 return Metric.AVAIL_UP;
             }
 
-            int column = getColumn(jdsn);
-            if (logSql) {
-                _data = null;
-                _sqlLog = getSqlRow(stmt);
-            } else if (column != COL_INVALID) {
-                rs = stmt.getResultSet();
-                if (rs != null && rs.next()) {
-                    return rs.getDouble(column);
-                } else {
-                    throw new MetricNotFoundException(attr);
-                }
-            }
+            _data = null;
+            _sqlLog = getSqlRow(stmt);
             if (_data != null) {
                 return _data.doubleValue();
             }
-            return rs.getDouble(getColumnName(jdsn));
+            throw new MetricNotFoundException(attr);
         } catch (SQLException e) {
-            // Remove this connection from the cache.
-            removeCachedConnection(url, user, pass);
+            return handleQueryFailure(jdsn, query, url, user, pass, e);
+        } finally {
+            returnCachedConnection(url, user, pass, conn);
+            DBUtil.closeJDBCObjects(log, null, stmt, rs);
+        }
+    }
+
+    private double getBatchedQueryValue(Metric jdsn, String query,
+                                        final String url,
+                                        final String user,
+                                        final String pass)
+        throws MetricNotFoundException, PluginException,
+               MetricUnreachableException
+    {
+        String attr = jdsn.getAttributeName();
+        boolean isAvail = attr.equalsIgnoreCase(AVAIL_ATTR);
+
+        JDBCQueryBatcher.Executor executor = new JDBCQueryBatcher.Executor() {
+            public JDBCQueryBatcher.Row execute(String query)
+                throws SQLException {
+
+                Connection conn = null;
+                Statement stmt = null;
+                ResultSet rs = null;
+                try {
+                    conn = getCachedConnection(url, user, pass);
+                    stmt = conn.createStatement();
+                    stmt.execute(query);
+                    rs = stmt.getResultSet();
+                    return JDBCQueryBatcher.Row.read(rs);
+                } finally {
+                    returnCachedConnection(url, user, pass, conn);
+                    DBUtil.closeJDBCObjects(log, null, stmt, rs);
+                }
+            }
+        };
+
+        try {
+            JDBCQueryBatcher.Row row =
+                queryBatcher.execute(calculateKey(url, user, pass),
+                                     query, executor);
 
+            // If the query executed without error, we don't care if any 
+            // results were returned.
             if (isAvail) {
-                log.debug("AVAIL_DOWN", e);
-                return Metric.AVAIL_DOWN;
+                return Metric.AVAIL_UP;
+            }
+            if (!row.exists()) {
+                throw new MetricNotFoundException(attr);
+            }
+            int column = getColumn(jdsn);
+            if (column != COL_INVALID) {
+                return row.getDouble(column);
             }
+            return row.getDouble(getColumnName(jdsn));
+        } catch (SQLException e) {
+            return handleQueryFailure(jdsn, query, url, user, pass, e);
+        }
+    }
 
-            String msg = "Query failed for " + attr +
-                ", while attempting to issue query " + query +
-                ":" + e.getMessage();
-
-            //XXX these two are oracle specific.
-            // Catch divide by 0 errors and return 0
-            if(e.getErrorCode() == DBUtil.ORACLE_ERROR_DIVIDE_BY_ZERO ||
-               e.getErrorCode() == DBUtil.POSTGRES_ERROR_DIVIDE_BY_ZERO)
-                return 0;
-            if(e.getErrorCode() == DBUtil.ORACLE_ERROR_NOT_AVAILABLE    ||
-               e.getErrorCode() == DBUtil.POSTGRES_CONNECTION_EXCEPTION ||
-               e.getErrorCode() == DBUtil.POSTGRES_CONNECTION_FAILURE   ||
-               e.getErrorCode() == DBUtil.POSTGRES_UNABLE_TO_CONNECT    ||
-               e.getErrorCode() == DBUtil.MYSQL_LOCAL_CONN_ERROR        ||
-               e.getErrorCode() == DBUtil.MYSQL_REMOTE_CONN_ERROR)
-                throw new MetricUnreachableException(msg, e);
-                
-            throw new MetricNotFoundException(msg, e);
-        } finally {
-            returnCachedConnection(url, user, pass, conn);
-            DBUtil.closeJDBCObjects(log, null, stmt, rs);
+    private double handleQueryFailure(Metric jdsn, String query,
+                                      String url, String user, String pass,
+                                      SQLException e)
+        throws MetricNotFoundException, MetricUnreachableException
+    {
+        String attr = jdsn.getAttributeName();
+
+        // Remove this connection from the cache.
+        removeCachedConnection(url, user, pass);
+
+        if (attr.equalsIgnoreCase(AVAIL_ATTR)) {
+            log.debug("AVAIL_DOWN", e);
+            return Metric.AVAIL_DOWN;
         }
+
+        String msg = "Query failed for " + attr +
+            ", while attempting to issue query " + query +
+            ":" + e.getMessage();
+
+        //XXX these two are oracle specific.
+        // Catch divide by 0 errors and return 0
+        if(e.getErrorCode() == DBUtil.ORACLE_ERROR_DIVIDE_BY_ZERO ||
+           e.getErrorCode() == DBUtil.POSTGRES_ERROR_DIVIDE_BY_ZERO)
+            return 0;
+        if(e.getErrorCode() == DBUtil.ORACLE_ERROR_NOT_AVAILABLE    ||
+           e.getErrorCode() == DBUtil.POSTGRES_CONNECTION_EXCEPTION ||
+           e.getErrorCode() == DBUtil.POSTGRES_CONNECTION_FAILURE   ||
+           e.getErrorCode() == DBUtil.POSTGRES_UNABLE_TO_CONNECT    ||
+           e.getErrorCode() == DBUtil.MYSQL_LOCAL_CONN_ERROR        ||
+           e.getErrorCode() == DBUtil.MYSQL_REMOTE_CONN_ERROR)
+            throw new MetricUnreachableException(msg, e);
+
+        throw new MetricNotFoundException(msg, e);
     }
     
     private String getSqlRow(Statement stmt) throws SQLException {
@@ -0,0 +1,269 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Executes each distinct query of the JDBC measurement plugins once per
+ * collection cycle.  Metrics which map to the same query on the same
+ * database, e.g. the columns of a table status query, are collected within
+ * moments of each other since they share the collection interval.  The first
+ * request once the last execution is older than maxAge runs the query, the
+ * requests which arrive while it runs wait for it, and all of them read their
+ * column from the first row of the same result.  Failures are shared the
+ * same way, so a database which is down is not hit once per metric.
+ * <br>
+ * The execution time of each query is tracked so that expensive queries can
+ * be spotted in the agent log.
+ */
+class JDBCQueryBatcher {
+
+    // forget about queries which are no longer executed, e.g. because the
+    // metric was unscheduled
+    private static final long QUERY_TIMEOUT = 60 * 60 * 1000;
+
+    interface Executor {
+        /**
+         * @return the first row of the result of the query
+         */
+        Row execute(String query) throws SQLException;
+    }
+
+    /**
+     * The first row of a result, read into memory so the statement and the
+     * connection can be released right away.
+     */
+    static class Row {
+        private final boolean exists;
+        private final double[] values;
+        private final SQLException[] errors;
+        // lower case column label -> column index
+        private final Map<String, Integer> labels;
+
+        private Row(boolean exists, double[] values, SQLException[] errors,
+                    Map<String, Integer> labels) {
+            this.exists = exists;
+            this.values = values;
+            this.errors = errors;
+            this.labels = labels;
+        }
+
+        /**
+         * Read the first row of the result set, which may be null.
+         */
+        static Row read(ResultSet rs) throws SQLException {
+            if (rs == null || !rs.next()) {
+                return new Row(false, new double[0], new SQLException[0],
+                               new HashMap<String, Integer>());
+            }
+            ResultSetMetaData md = rs.getMetaData();
+            int count = md.getColumnCount();
+            double[] values = new double[count];
+            SQLException[] errors = new SQLException[count];
+            Map<String, Integer> labels = new HashMap<String, Integer>();
+            for (int i=0; i<count; i++) {
+                // the column may not be numeric, which only matters if a
+                // metric reads it
+                try {
+                    values[i] = rs.getDouble(i+1);
+                } catch (SQLException e) {
+                    errors[i] = e;
+                }
+                String label = md.getColumnLabel(i+1).toLowerCase();
+                if (!labels.containsKey(label)) {
+                    labels.put(label, new Integer(i+1));
+                }
+            }
+            return new Row(true, values, errors, labels);
+        }
+
+        boolean exists() {
+            return exists;
+        }
+
+        /**
+         * @param column the column index starting at 1
+         */
+        double getDouble(int column) throws SQLException {
+            if (column < 1 || column > values.length) {
+                throw new SQLException("Column index out of range: " + column);
+            }
+            if (errors[column-1] != null) {
+                throw errors[column-1];
+            }
+            return values[column-1];
+        }
+
+        double getDouble(String column) throws SQLException {
+            Integer index = labels.get(column.toLowerCase());
+            if (index == null) {
+                throw new SQLException("Column '" + column + "' not found");
+            }
+            return getDouble(index.intValue());
+        }
+    }
+
+    private static class Result {
+        private final String query;
+        private Row row;
+        private SQLException error;
+        private long executedAt = 0;
+        // read without the lock of the result, which is held during an
+        // execution
+        private volatile long lastRequested;
+
+        // execution stats, guarded by the lock of the result
+        private long executions = 0;
+        private long failures = 0;
+        private long requests = 0;
+        private long totalTime = 0;
+        private long maxTime = 0;
+        private long lastTime = 0;
+
+        private Result(String query) {
+            this.query = query;
+        }
+    }
+
+    // guarded by this
+    private final Map<String, Result> results = new HashMap<String, Result>();
+    private long lastSweep = System.currentTimeMillis();
+    private volatile long maxAge;
+
+    /**
+     * @param maxAge how long the result of an execution is served, 0
+     *        disables batching
+     */
+    JDBCQueryBatcher(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param database identifies the database and the credentials the query
+     *        is executed with
+     */
+    Row execute(String database, String query, Executor executor)
+        throws SQLException {
+
+        Result result = getResult(database + "\n" + query, query);
+        synchronized (result) {
+            long now = System.currentTimeMillis();
+            result.lastRequested = now;
+            result.requests++;
+            if ((result.executedAt == 0) || (now - result.executedAt >= maxAge)) {
+                result.row = null;
+                result.error = null;
+                try {
+                    result.row = executor.execute(query);
+                } catch (SQLException e) {
+                    result.error = e;
+                    result.failures++;
+                }
+                result.executedAt = System.currentTimeMillis();
+                long time = result.executedAt - now;
+                result.executions++;
+                result.totalTime += time;
+                result.lastTime = time;
+                if (time > result.maxTime) {
+                    result.maxTime = time;
+                }
+            }
+            if (result.error != null) {
+                throw result.error;
+            }
+            return result.row;
+        }
+    }
+
+    /**
+     * Log the execution stats of each query at debug level.
+     */
+    void logStats(Log log) {
+        if (!log.isDebugEnabled()) {
+            return;
+        }
+        List<Result> list;
+        synchronized (this) {
+            list = new ArrayList<Result>(results.values());
+        }
+        for (Iterator<Result> it = list.iterator(); it.hasNext();) {
+            Result result = it.next();
+            StringBuffer msg = new StringBuffer("[queryStats] '");
+            synchronized (result) {
+                msg.append(result.query).append("'")
+                   .append(" requests=").append(result.requests)
+                   .append(" executions=").append(result.executions)
+                   .append(" failures=").append(result.failures)
+                   .append(" avg=")
+                   .append((result.executions == 0) ?
+                           0 : result.totalTime / result.executions)
+                   .append("ms max=").append(result.maxTime)
+                   .append("ms last=").append(result.lastTime).append("ms");
+            }
+            log.debug(msg.toString());
+        }
+    }
+
+    /**
+     * Drop all the results, e.g. when the plugins shut down.
+     */
+    synchronized void clear() {
+        results.clear();
+    }
+
+    private synchronized Result getResult(String key, String query) {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep > QUERY_TIMEOUT) {
+            lastSweep = now;
+            for (Iterator<Result> it = results.values().iterator(); it.hasNext();) {
+                if (now - it.next().lastRequested > QUERY_TIMEOUT) {
+                    it.remove();
+                }
+            }
+        }
+        Result rtn = results.get(key);
+        if (rtn == null) {
+            rtn = new Result(query);
+            rtn.lastRequested = now;
+            results.put(key, rtn);
+        }
+        return rtn;
+    }
+}
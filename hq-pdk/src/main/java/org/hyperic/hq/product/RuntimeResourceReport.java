@@ -44,6 +44,7 @@ public class RuntimeResourceReport {
 
     private int _serverId = -1;
     private AIPlatformValue[] _aiplatforms;
+    private String _digest;
 
     public RuntimeResourceReport () {}
     public RuntimeResourceReport (int serverId) {
@@ -57,6 +58,17 @@ public class RuntimeResourceReport {
         _serverId = serverId;
     }
 
+    /**
+     * @return The fingerprint of the report as computed by the agent,
+     * null if the agent does not send differential reports.
+     */
+    public String getDigest () {
+        return _digest;
+    }
+    public void setDigest (String digest) {
+        _digest = digest;
+    }
+
     public AIPlatformValue[] getAIPlatforms () {
         return _aiplatforms;
     }
@@ -109,6 +121,9 @@ public class RuntimeResourceReport {
     public String toString () {
         StringBuffer sb = new StringBuffer();
         sb.append("[RuntimeResourceReport serverId=").append(_serverId);
+        if (_digest != null) {
+            sb.append(" digest=").append(_digest);
+        }
         if (_aiplatforms != null) {
             sb.append(" platforms={");
             for (int i=0; i<_aiplatforms.length; i++) {
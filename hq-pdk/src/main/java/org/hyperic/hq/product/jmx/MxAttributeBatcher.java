@@ -0,0 +1,205 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product.jmx;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Fetches the attributes of an MBean which are collected together with a
+ * single getAttributes call.  The attributes requested for an ObjectName are
+ * remembered, the first request once the last fetch is older than maxAge
+ * fetches all of them and the following requests are served from that
+ * fetch.  Since the metrics of an MBean are usually scheduled at the same
+ * interval, this turns a round trip per metric into a round trip per MBean
+ * and collection interval.
+ * <br>
+ * Attributes which are missing from the fetch, or all of them when the
+ * getAttributes call itself fails, are fetched by themselves, so that the
+ * caller gets the same exceptions as with getAttribute.
+ */
+class MxAttributeBatcher {
+
+    private static final Log log = LogFactory.getLog(MxAttributeBatcher.class);
+
+    // forget about attributes which are no longer requested, e.g. because
+    // the metric was unscheduled
+    private static final long ATTRIBUTE_TIMEOUT = 60 * 60 * 1000;
+
+    private static class Batch {
+        // attribute -> last time it was requested
+        private final Map<String, Long> requested = new HashMap<String, Long>();
+        // attribute -> value of the last fetch
+        private final Map<String, Object> values = new HashMap<String, Object>();
+        private long fetchedAt = 0;
+        // read without the lock of the batch, which is held during a fetch
+        private volatile long lastRequested;
+    }
+
+    private static class BatchKey {
+        private final Object endpoint;
+        private final ObjectName name;
+
+        private BatchKey(Object endpoint, ObjectName name) {
+            this.endpoint = endpoint;
+            this.name = name;
+        }
+
+        public boolean equals(Object rhs) {
+            if (!(rhs instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey r = (BatchKey) rhs;
+            return r.endpoint.equals(endpoint) && r.name.equals(name);
+        }
+
+        public int hashCode() {
+            return endpoint.hashCode() * 31 + name.hashCode();
+        }
+    }
+
+    // guarded by this
+    private final Map<BatchKey, Batch> batches = new HashMap<BatchKey, Batch>();
+    private long lastSweep = System.currentTimeMillis();
+    private volatile long maxAge;
+
+    /**
+     * @param maxAge how long the values of a fetch are served, 0 disables
+     *        batching
+     */
+    MxAttributeBatcher(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param endpoint identifies the MBeanServer, e.g. the JMX url
+     */
+    Object getAttribute(MBeanServerConnection mServer, Object endpoint,
+                        ObjectName name, String attribute)
+        throws IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException {
+
+        if (maxAge <= 0) {
+            return mServer.getAttribute(name, attribute);
+        }
+        final Batch batch = getBatch(new BatchKey(endpoint, name));
+        long fetchedAt;
+        synchronized (batch) {
+            final long now = System.currentTimeMillis();
+            batch.requested.put(attribute, new Long(now));
+            batch.lastRequested = now;
+            if (now - batch.fetchedAt >= maxAge) {
+                fetch(mServer, name, batch, now);
+            }
+            if (batch.values.containsKey(attribute)) {
+                return batch.values.get(attribute);
+            }
+            fetchedAt = batch.fetchedAt;
+        }
+
+        // requested for the first time, or the MBean could not return it
+        // along with the others
+        final Object rtn = mServer.getAttribute(name, attribute);
+        synchronized (batch) {
+            if (batch.fetchedAt == fetchedAt) {
+                batch.values.put(attribute, rtn);
+            }
+        }
+        return rtn;
+    }
+
+    private void fetch(MBeanServerConnection mServer, ObjectName name,
+                       Batch batch, long now)
+        throws IOException,
+               InstanceNotFoundException {
+
+        for (final Iterator<Long> it = batch.requested.values().iterator(); it.hasNext();) {
+            if (now - it.next().longValue() > ATTRIBUTE_TIMEOUT) {
+                it.remove();
+            }
+        }
+        final String[] attributes =
+            (String[]) batch.requested.keySet().toArray(new String[batch.requested.size()]);
+        batch.values.clear();
+        batch.fetchedAt = now;
+        final AttributeList list;
+        try {
+            list = mServer.getAttributes(name, attributes);
+        } catch (ReflectionException e) {
+            // some MBeans do not implement getAttributes, the attributes are
+            // fetched by themselves until the next fetch
+            log.debug("getAttributes failed for " + name + ": " + e);
+            return;
+        } catch (RuntimeException e) {
+            log.debug("getAttributes failed for " + name + ": " + e);
+            return;
+        }
+        for (final Iterator<?> it = list.iterator(); it.hasNext();) {
+            final Attribute attr = (Attribute) it.next();
+            batch.values.put(attr.getName(), attr.getValue());
+        }
+    }
+
+    private synchronized Batch getBatch(BatchKey key) {
+        final long now = System.currentTimeMillis();
+        if (now - lastSweep > ATTRIBUTE_TIMEOUT) {
+            lastSweep = now;
+            for (final Iterator<Batch> it = batches.values().iterator(); it.hasNext();) {
+                if (now - it.next().lastRequested > ATTRIBUTE_TIMEOUT) {
+                    it.remove();
+                }
+            }
+        }
+        Batch rtn = batches.get(key);
+        if (rtn == null) {
+            rtn = new Batch();
+            rtn.lastRequested = now;
+            batches.put(key, rtn);
+        }
+        return rtn;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product.jmx;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.remote.JMXConnector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pool of JMXConnectors per endpoint (url and credentials).  A borrowed
+ * connector is used by one thread at a time and goes back to the pool when
+ * it is closed, so that requests to the same endpoint no longer queue up
+ * behind a single connector.  Connectors which sat idle for a while are
+ * checked with a round trip to the MBeanServer before they are handed out,
+ * and closed once they sat idle longer than the idle timeout.
+ * <br>
+ * Each endpoint also has a single shared connector which is never handed
+ * out exclusively, for callers which hold on to the MBeanServerConnection.
+ */
+class MxConnectorPool {
+
+    private static final Log log = LogFactory.getLog(MxConnectorPool.class);
+
+    interface ConnectorFactory {
+        JMXConnector create(Properties config) throws IOException;
+    }
+
+    static class Key {
+        private final String url;
+        private final String user;
+        private final String pass;
+
+        Key(Properties config) {
+            this(config.getProperty(MxUtil.PROP_JMX_URL),
+                 config.getProperty(MxUtil.PROP_JMX_USERNAME),
+                 config.getProperty(MxUtil.PROP_JMX_PASSWORD));
+        }
+
+        Key(String url, String user, String pass) {
+            this.url = url;
+            this.user = user;
+            this.pass = pass;
+        }
+
+        public boolean equals(Object rhs) {
+            if (this == rhs) {
+                return true;
+            }
+            if (!(rhs instanceof Key)) {
+                return false;
+            }
+            Key r = (Key) rhs;
+            return equals(r.url, url) && equals(r.user, user) && equals(r.pass, pass);
+        }
+
+        private static boolean equals(String buf1, String buf2) {
+            return (buf1 == null) ? buf2 == null : buf1.equals(buf2);
+        }
+
+        public int hashCode() {
+            int rtn = (url != null) ? url.hashCode() * 7 : 0;
+            rtn += (user != null) ? user.hashCode() * 7 : 0;
+            rtn += (pass != null) ? pass.hashCode() * 7 : 0;
+            return rtn;
+        }
+
+        public String toString() {
+            return url;
+        }
+    }
+
+    private static class Pooled {
+        private final JMXConnector connector;
+        private final int generation;
+        private long lastUsed;
+        private long lastValidated;
+
+        private Pooled(JMXConnector connector, int generation, long now) {
+            this.connector = connector;
+            this.generation = generation;
+            this.lastUsed = now;
+            this.lastValidated = now;
+        }
+    }
+
+    private static class Endpoint {
+        // most recently used first, so that the others age out
+        private final LinkedList<Pooled> idle = new LinkedList<Pooled>();
+        // idle and borrowed connectors
+        private int total = 0;
+        // bumped when the endpoint is found broken, connectors of an older
+        // generation are closed instead of going back to the pool
+        private int generation = 0;
+        // guarded by the pool, the endpoint itself is locked while
+        // connecting it
+        private JMXConnector shared;
+    }
+
+    private final ConnectorFactory factory;
+    // guarded by this
+    private final Map<Key, Endpoint> endpoints = new HashMap<Key, Endpoint>();
+    private long lastSweep = System.currentTimeMillis();
+
+    private volatile int maxPerEndpoint = 4;
+    private volatile long idleTimeout = 10 * 60 * 1000;
+    private volatile long validationInterval = 60 * 1000;
+    private volatile long maxWait = 60 * 1000;
+
+    MxConnectorPool(ConnectorFactory factory) {
+        this.factory = factory;
+    }
+
+    void setMaxPerEndpoint(int maxPerEndpoint) {
+        this.maxPerEndpoint = Math.max(1, maxPerEndpoint);
+    }
+
+    void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Borrow a connector for the endpoint, blocking up to maxWait when all
+     * the connectors of the endpoint are in use.  The connector goes back to
+     * the pool when it is closed.
+     */
+    JMXConnector borrow(Properties config) throws IOException {
+        final Key key = new Key(config);
+        final long deadline = System.currentTimeMillis() + maxWait;
+        while (true) {
+            Endpoint endpoint;
+            Pooled pooled = null;
+            int generation;
+            synchronized (this) {
+                sweep();
+                endpoint = getEndpoint(key);
+                while (true) {
+                    if (!endpoint.idle.isEmpty()) {
+                        pooled = endpoint.idle.removeFirst();
+                        break;
+                    }
+                    if (endpoint.total < maxPerEndpoint) {
+                        endpoint.total++;
+                        break;
+                    }
+                    final long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new IOException("Timed out waiting for a JMX connection to " + key);
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted waiting for a JMX connection to " + key);
+                    }
+                }
+                generation = endpoint.generation;
+            }
+
+            if (pooled == null) {
+                // connect without holding the lock, this may take a while
+                try {
+                    JMXConnector connector = factory.create(config);
+                    return wrap(key, new Pooled(connector, generation, System.currentTimeMillis()));
+                } catch (IOException e) {
+                    discard(key, null);
+                    throw e;
+                } catch (RuntimeException e) {
+                    discard(key, null);
+                    throw e;
+                }
+            }
+
+            final long now = System.currentTimeMillis();
+            if (now - pooled.lastValidated < validationInterval || isAlive(pooled.connector)) {
+                pooled.lastValidated = now;
+                return wrap(key, pooled);
+            }
+            log.debug("Discarding dead pooled JMX connection to " + key);
+            discard(key, pooled);
+        }
+    }
+
+    /**
+     * @return the connector of the endpoint which is shared among all its
+     *         callers, it is never closed by the pool unless the endpoint is
+     *         invalidated
+     */
+    JMXConnector getShared(Properties config) throws IOException {
+        final Key key = new Key(config);
+        Endpoint endpoint;
+        synchronized (this) {
+            endpoint = getEndpoint(key);
+            if (endpoint.shared != null) {
+                return endpoint.shared;
+            }
+        }
+        final List<JMXConnector> toClose = new ArrayList<JMXConnector>();
+        JMXConnector rtn;
+        // only one thread connects to the endpoint
+        synchronized (endpoint) {
+            synchronized (this) {
+                endpoint = getEndpoint(key);
+                if (endpoint.shared != null) {
+                    return endpoint.shared;
+                }
+            }
+            rtn = factory.create(config);
+            synchronized (this) {
+                endpoint = getEndpoint(key);
+                if (endpoint.shared != null) {
+                    toClose.add(rtn);
+                    rtn = endpoint.shared;
+                } else {
+                    endpoint.shared = rtn;
+                    log.debug("Opened new shared connector for: " + key);
+                }
+                // credentials changed, close the connectors of the old ones
+                for (final Map.Entry<Key, Endpoint> entry : endpoints.entrySet()) {
+                    final Endpoint other = entry.getValue();
+                    if (other != endpoint && other.shared != null &&
+                        Key.equals(entry.getKey().url, key.url)) {
+                        toClose.add(other.shared);
+                        other.shared = null;
+                    }
+                }
+            }
+        }
+        for (final JMXConnector connector : toClose) {
+            MxUtil.close(connector);
+        }
+        return rtn;
+    }
+
+    /**
+     * Close the shared connector of the endpoint if it is still the given
+     * one, e.g. after it failed
+     */
+    void closeShared(Properties config, JMXConnector connector) {
+        final Key key = new Key(config);
+        synchronized (this) {
+            final Endpoint endpoint = endpoints.get(key);
+            if (endpoint == null || endpoint.shared != connector) {
+                return;
+            }
+            endpoint.shared = null;
+        }
+        MxUtil.close(connector);
+    }
+
+    /**
+     * Close all the connectors of the endpoint once they are no longer in
+     * use, e.g. after the endpoint could not be reached.
+     */
+    void invalidate(Properties config) {
+        final Key key = new Key(config);
+        final List<JMXConnector> toClose = new ArrayList<JMXConnector>();
+        synchronized (this) {
+            final Endpoint endpoint = endpoints.get(key);
+            if (endpoint == null) {
+                return;
+            }
+            endpoint.generation++;
+            for (final Pooled pooled : endpoint.idle) {
+                toClose.add(pooled.connector);
+            }
+            endpoint.total -= endpoint.idle.size();
+            endpoint.idle.clear();
+            if (endpoint.shared != null) {
+                toClose.add(endpoint.shared);
+                endpoint.shared = null;
+            }
+            notifyAll();
+        }
+        if (!toClose.isEmpty()) {
+            log.debug("Removing (stale) cached connections for: " + key);
+        }
+        for (final JMXConnector connector : toClose) {
+            MxUtil.close(connector);
+        }
+    }
+
+    private Endpoint getEndpoint(Key key) {
+        Endpoint rtn = endpoints.get(key);
+        if (rtn == null) {
+            rtn = new Endpoint();
+            endpoints.put(key, rtn);
+        }
+        return rtn;
+    }
+
+    private boolean isAlive(JMXConnector connector) {
+        try {
+            connector.getMBeanServerConnection().getMBeanCount();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void release(Key key, Pooled pooled, boolean broken) {
+        synchronized (this) {
+            final Endpoint endpoint = endpoints.get(key);
+            if (!broken && endpoint != null && endpoint.generation == pooled.generation) {
+                pooled.lastUsed = System.currentTimeMillis();
+                endpoint.idle.addFirst(pooled);
+                notifyAll();
+                return;
+            }
+        }
+        discard(key, pooled);
+    }
+
+    /**
+     * Give up the slot of the connector in the pool and close it
+     */
+    private void discard(Key key, Pooled pooled) {
+        synchronized (this) {
+            final Endpoint endpoint = endpoints.get(key);
+            if (endpoint != null) {
+                endpoint.total--;
+            }
+            notifyAll();
+        }
+        if (pooled != null) {
+            MxUtil.close(pooled.connector);
+        }
+    }
+
+    /**
+     * Close the connectors which sat idle longer than the idle timeout and
+     * drop the endpoints which are no longer used.  Called with the lock
+     * held, the connectors are closed by a separate thread so that a hung
+     * endpoint does not block the pool.
+     */
+    private void sweep() {
+        final long now = System.currentTimeMillis();
+        if (now - lastSweep < Math.min(idleTimeout, 60 * 1000)) {
+            return;
+        }
+        lastSweep = now;
+        final List<JMXConnector> toClose = new ArrayList<JMXConnector>();
+        for (final Iterator<Endpoint> it = endpoints.values().iterator(); it.hasNext();) {
+            final Endpoint endpoint = it.next();
+            for (final Iterator<Pooled> i = endpoint.idle.iterator(); i.hasNext();) {
+                final Pooled pooled = i.next();
+                if (now - pooled.lastUsed > idleTimeout) {
+                    i.remove();
+                    endpoint.total--;
+                    toClose.add(pooled.connector);
+                }
+            }
+            if (endpoint.total == 0 && endpoint.shared == null) {
+                it.remove();
+            }
+        }
+        if (toClose.isEmpty()) {
+            return;
+        }
+        log.debug("Closing " + toClose.size() + " idle JMX connections");
+        final Thread closer = new Thread("MxConnectorPool closer") {
+            public void run() {
+                for (final JMXConnector connector : toClose) {
+                    MxUtil.close(connector);
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private JMXConnector wrap(final Key key, final Pooled pooled) {
+        final InvocationHandler handler = new InvocationHandler() {
+            private boolean closed = false;
+            private boolean broken = false;
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+                if (method.getName().equals("close")) {
+                    synchronized (this) {
+                        if (closed) {
+                            return null;
+                        }
+                        closed = true;
+                    }
+                    release(key, pooled, broken);
+                    return null;
+                }
+                try {
+                    return method.invoke(pooled.connector, args);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof IOException) {
+                        broken = true;
+                    }
+                    throw e.getCause();
+                }
+            }
+        };
+        return (JMXConnector) Proxy.newProxyInstance(Thread.currentThread().getContextClassLoader(),
+                                                     new Class<?>[] {JMXConnector.class}, handler);
+    }
+}
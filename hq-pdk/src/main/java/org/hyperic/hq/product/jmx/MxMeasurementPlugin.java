@@ -33,11 +33,19 @@ import org.hyperic.hq.product.MetricNotFoundException;
 import org.hyperic.hq.product.MetricUnreachableException;
 import org.hyperic.hq.product.MetricValue;
 import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.PluginManager;
 import org.hyperic.util.config.ConfigResponse;
 
 public class MxMeasurementPlugin
     extends MeasurementPlugin {
 
+    public void init(PluginManager manager)
+        throws PluginException {
+
+        super.init(manager);
+        MxUtil.configure(manager);
+    }
+
     private double doubleValue(Object obj)
         throws PluginException {
 
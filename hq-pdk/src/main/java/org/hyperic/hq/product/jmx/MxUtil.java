@@ -26,10 +26,8 @@
 package org.hyperic.hq.product.jmx;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.MalformedURLException;
 import java.rmi.RemoteException;
@@ -67,6 +65,7 @@ import org.hyperic.hq.product.MetricInvalidException;
 import org.hyperic.hq.product.MetricNotFoundException;
 import org.hyperic.hq.product.MetricUnreachableException;
 import org.hyperic.hq.product.PluginException;
+import org.hyperic.hq.product.PluginManager;
 import org.hyperic.sigar.Sigar;
 import org.hyperic.sigar.ptql.ProcessFinder;
 import org.hyperic.util.config.ConfigResponse;
@@ -81,11 +80,51 @@ public class MxUtil {
     public static final String PROP_JMX_PASSWORD = "jmx.password";
     public static final String PROP_JMX_PROVIDER_PKGS = "jmx.provider.pkgs";
 
+    //agent properties to tune the connection pool and attribute batching
+    public static final String PROP_POOL_MAX_CONNECTIONS = "jmx.pool.maxConnections";
+    public static final String PROP_POOL_IDLE_TIMEOUT = "jmx.pool.idleTimeout";
+    public static final String PROP_POOL_VALIDATION_INTERVAL = "jmx.pool.validationInterval";
+    public static final String PROP_BATCH_MAX_AGE = "jmx.batch.maxAge";
+
     private static final String STATS_PREFIX = "Stats.";
     private static final String COMPOSITE_PREFIX = "Composite.";
 
+    private static final long DEFAULT_BATCH_MAX_AGE = 5000;
+
     private static final Log log = LogFactory.getLog(MxUtil.class);
-    private static HashMap cache = new HashMap();
+
+    private static final MxConnectorPool pool =
+        new MxConnectorPool(new MxConnectorPool.ConnectorFactory() {
+            public JMXConnector create(Properties config) throws IOException {
+                return getMBeanConnector(config);
+            }
+        });
+
+    private static final MxAttributeBatcher batcher =
+        new MxAttributeBatcher(DEFAULT_BATCH_MAX_AGE);
+
+    /**
+     * Apply the pool and batching settings from the agent properties
+     */
+    static void configure(PluginManager manager) {
+        String val;
+        try {
+            if ((val = manager.getProperty(PROP_POOL_MAX_CONNECTIONS)) != null) {
+                pool.setMaxPerEndpoint(Integer.parseInt(val));
+            }
+            if ((val = manager.getProperty(PROP_POOL_IDLE_TIMEOUT)) != null) {
+                pool.setIdleTimeout(Long.parseLong(val));
+            }
+            if ((val = manager.getProperty(PROP_POOL_VALIDATION_INTERVAL)) != null) {
+                pool.setValidationInterval(Long.parseLong(val));
+            }
+            if ((val = manager.getProperty(PROP_BATCH_MAX_AGE)) != null) {
+                batcher.setMaxAge(Long.parseLong(val));
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Invalid JMX pool setting: " + e.getMessage());
+        }
+    }
 
     //expand Foo=* -> Foo=%Foo%
     static String expandObjectName(String name) {
@@ -279,6 +318,26 @@ public class MxUtil {
                ReflectionException,
                PluginException {
 
+        return getCompositeMetric(mServer, null, objName, attribute);
+    }
+
+    /**
+     * @param endpoint if not null the composite attribute is fetched along
+     *        with the other attributes of the MBean
+     */
+    private static Object getCompositeMetric(MBeanServerConnection mServer,
+                                             Object endpoint,
+                                             ObjectName objName,
+                                             String attribute)
+        throws MalformedURLException,
+               MalformedObjectNameException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException,
+               PluginException {
+
         String name =
             attribute.substring(COMPOSITE_PREFIX.length());
 
@@ -290,7 +349,9 @@ public class MxUtil {
         String attr = name.substring(0, ix);
         String key = name.substring(ix+1);
         
-        Object obj = mServer.getAttribute(objName, attr);
+        Object obj = (endpoint == null) ?
+            mServer.getAttribute(objName, attr) :
+            batcher.getAttribute(mServer, endpoint, objName, attr);
         if (obj instanceof CompositeData) {
             return MxCompositeData.getValue((CompositeData)obj, key);
         }
@@ -310,7 +371,7 @@ public class MxUtil {
         Properties config = metric.getProperties();
 
         try {
-            return getValue(config, objectName, attribute);
+            return getValue(config, objectName, attribute, true);
         } catch (MalformedURLException e) {
             throw invalidURL(metric.getProperties(), e);
         } catch (MalformedObjectNameException e) {
@@ -369,11 +430,7 @@ public class MxUtil {
     }
 
     private static void removeMBeanConnector(Properties config) {
-        String jmxUrl = config.getProperty(MxUtil.PROP_JMX_URL);
-        if (cache.get(jmxUrl) != null) {
-            log.debug("Removing (stale) cached connection for: " + jmxUrl);
-            disconnect(jmxUrl);
-        }
+        pool.invalidate(config);
     }
 
     //vmid == pid; use undocumented ConnectorAddressLink.importFrom(pid)
@@ -423,82 +480,16 @@ public class MxUtil {
         return address;
     }
 
-    private static final Map<JMXConnectorKey, JMXConnector> mbeanConns = new HashMap<JMXConnectorKey, JMXConnector>();
+    /**
+     * Borrow a connector from the pool of the endpoint.  The connector is
+     * used exclusively by the caller and must be closed, which returns it to
+     * the pool.
+     */
     public static JMXConnector getCachedMBeanConnector(Properties config)
     throws MalformedURLException, IOException {
-        String jmxUrl = config.getProperty(MxUtil.PROP_JMX_URL);
-        String user = config.getProperty(PROP_JMX_USERNAME);
-        String pass = config.getProperty(PROP_JMX_PASSWORD);
-        JMXConnectorKey key = new JMXConnectorKey(jmxUrl, user, pass);
-        JMXConnector rtn = null;
-        synchronized(mbeanConns) {
-            rtn = mbeanConns.get(key);
-            if (rtn == null) {
-                rtn = getMBeanConnector(config);
-                mbeanConns.put(key, rtn);
-            }
-            try {
-                // ensure that the connection is not broken
-                rtn.getMBeanServerConnection();
-            } catch (IOException e) {
-                close(rtn);
-                rtn = getMBeanConnector(config);
-                mbeanConns.put(key, rtn);
-            }
-        }
-        final JMXConnector c = rtn;
-        final InvocationHandler handler = new InvocationHandler() {
-            private final JMXConnector conn = c;
-            public Object invoke(Object proxy, Method method, Object[] args)
-            throws Throwable {
-                if (method.getName().equals("close")) {
-                    return null;
-                }
-                synchronized (conn) {
-                    return method.invoke(conn, args);
-                }
-            }
-        };
-        return (JMXConnector) Proxy.newProxyInstance(Thread.currentThread().getContextClassLoader(),
-                                                     new Class<?>[] {JMXConnector.class}, handler);
+        return pool.borrow(config);
     }
 
-    private static class JMXConnectorKey {
-        private final String url;
-        private final String user;
-        private final String pass;
-        private JMXConnectorKey(String url, String user, String pass) {
-            this.url = url;
-            this.user = user;
-            this.pass = pass;
-        }
-        public boolean equals(Object rhs) {
-            if (this == rhs) {
-                return true;
-            }
-            if (!(rhs instanceof JMXConnectorKey)) {
-                return false;
-            }
-            JMXConnectorKey r = (JMXConnectorKey) rhs;
-            return r.url.equals(url) && equals(r.user, user) && equals(r.pass, pass);
-        }
-        private boolean equals(String buf1, String buf2) {
-            if (buf1 == buf2) {
-                return true;
-            }
-            if (buf1 == null && buf2 != null || buf2 == null && buf1 != null) {
-                return false;
-            }
-            return buf1.equals(buf2);
-        }
-        public int hashCode() {
-            int rtn = url.hashCode() * 7;
-            rtn += (user != null) ? user.hashCode() * 7 : 0;
-            rtn += (pass != null) ? pass.hashCode() * 7 : 0;
-            return rtn;
-        }
-    }
-    
     public static JMXConnector getMBeanConnector(Properties config)
     throws MalformedURLException, IOException {
 
@@ -546,100 +537,44 @@ public class MxUtil {
         return connector;
     }
 
-    private static void disconnect(String jmxUrl) {
-        Object obj = cache.remove(jmxUrl);
-        if (obj != null) {
-            JMXConnector connector = ((ConnectorInstance)obj).connector;
-            close(connector);
-            if (log.isDebugEnabled()) {
-                log.debug("Closed previous connector (" + address(connector) + ") for: " + jmxUrl);
-            }
-        }        
-    }
-
-    private static JMXConnector connect(Properties config,
-                                        String jmxUrl,
-                                        String jmxUsername,
-                                        String jmxPassword)
-        throws IOException {
-
-        disconnect(jmxUrl);
-        JMXConnector connector = getMBeanConnector(config);
-        cache.put(jmxUrl, new ConnectorInstance(connector, jmxUsername, jmxPassword));
-        log.debug("Opened new connector (" +
-                  address(connector) + ") for: " + jmxUrl);
-        return connector;
-    }
-
-    private static String address(Object obj) {
-        return "@" + Integer.toHexString(obj.hashCode());
-    }
-
-    private static String mask(String val) {
-        return val.replaceAll(".", "*");
-    }
-
-    private static String diff(String old, String cur) {
-        return "'" + old + "'->'" + cur + "'";  
-    }
-
+    /**
+     * @return the connection of the connector which is shared among all the
+     *         callers for the endpoint, it is not to be closed
+     */
     public static MBeanServerConnection getMBeanServer(Properties config)
         throws MalformedURLException,
                IOException {
 
-        String jmxUrl = config.getProperty(MxUtil.PROP_JMX_URL);
-        String jmxUsername = config.getProperty(MxUtil.PROP_JMX_USERNAME, "");
-        String jmxPassword = config.getProperty(MxUtil.PROP_JMX_PASSWORD, "");
-
-        boolean isCached = false;
-        JMXConnector connector;
-        ConnectorInstance instance = (ConnectorInstance)cache.get(jmxUrl);
-        if (instance != null) {
-            connector = instance.connector;
-            String username = instance.username;
-            String password = instance.password;
-            boolean usernameChanged = !username.equals(jmxUsername);
-            boolean passwordChanged = !password.equals(jmxPassword);
-            if (usernameChanged || passwordChanged) {
-                if (log.isDebugEnabled()) {
-                    String diff = "";
-                    if (usernameChanged) {
-                        diff += "user:" + diff(username, jmxUsername);
-                    }
-                    if (passwordChanged) {
-                        if (diff.length() != 0) {
-                            diff += ",";
-                        }
-                        diff += "pass:" + diff(mask(password), mask(jmxPassword));
-                    }
-                    log.debug("Credentials changed (" + diff +
-                              ") reconnecting cached connection for: " + jmxUrl);                    
-                }
-                connector = connect(config, jmxUrl, jmxUsername, jmxPassword);
-            }
-            else {
-                isCached = true;
-            }
-        } else {
-            connector = connect(config, jmxUrl, jmxUsername, jmxPassword);
-            log.debug("Caching connector for: " + jmxUrl);
-        }
-
+        JMXConnector connector = pool.getShared(config);
         try {
             return connector.getMBeanServerConnection();
         } catch (IOException e) {
-            if (isCached) {
-                log.debug("Reconnecting cached connection for: " + jmxUrl);
-                connector = connect(config, jmxUrl, jmxUsername, jmxPassword);
-                return connector.getMBeanServerConnection();
-            }
-            else {
-                throw e;
-            }
+            log.debug("Reconnecting cached connection for: " +
+                      config.getProperty(MxUtil.PROP_JMX_URL));
+            pool.closeShared(config, connector);
+            return pool.getShared(config).getMBeanServerConnection();
         }
     }
     
     public static Object getValue(Properties config, String objectName, String attribute)
+    throws MalformedURLException,
+           MalformedObjectNameException,
+           IOException,
+           MBeanException,
+           AttributeNotFoundException,
+           InstanceNotFoundException,
+           ReflectionException,
+           PluginException {
+        return getValue(config, objectName, attribute, false);
+    }
+
+    /**
+     * @param batched fetch the attribute along with the other attributes of
+     *        the MBean which are collected, the value may be up to
+     *        jmx.batch.maxAge old
+     */
+    private static Object getValue(Properties config, String objectName, String attribute,
+                                   boolean batched)
     throws MalformedURLException,
            MalformedObjectNameException,
            IOException,
@@ -649,17 +584,22 @@ public class MxUtil {
            ReflectionException,
            PluginException {
         ObjectName objName = new ObjectName(objectName);
+        Object endpoint = batched ? new MxConnectorPool.Key(config) : null;
         JMXConnector connector = null;
         try {
             connector = getCachedMBeanConnector(config);
+            MBeanServerConnection mServer = connector.getMBeanServerConnection();
             if (attribute.startsWith(STATS_PREFIX)) {
-                return getJSR77Statistic(connector.getMBeanServerConnection(), objName, attribute);
+                return getJSR77Statistic(mServer, objName, attribute);
             }
             else if (attribute.startsWith(COMPOSITE_PREFIX)) {
-                return getCompositeMetric(connector.getMBeanServerConnection(), objName, attribute);
+                return getCompositeMetric(mServer, endpoint, objName, attribute);
+            }
+            else if (endpoint != null) {
+                return batcher.getAttribute(mServer, endpoint, objName, attribute);
             }
             else {
-                return connector.getMBeanServerConnection().getAttribute(objName, attribute);
+                return mServer.getAttribute(objName, attribute);
             }
         } finally {
             close(connector);
@@ -788,16 +728,5 @@ public class MxUtil {
             }
         }
     }
-
-    private static class ConnectorInstance {
-        JMXConnector connector;
-        String username;
-        String password;
-        ConnectorInstance(JMXConnector connector, String username, String password) {
-            this.connector = connector;
-            this.username = username;
-            this.password = password;
-        }
-    }
 }
 
@@ -0,0 +1,119 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_args;
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.server.session.SRN;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.lather.xcode.LatherXCoder;
+
+/**
+ * Compares the size and the server side decode throughput of a measurement
+ * report sent with a list entry per data point and with packed value lists.
+ * The report looks like a backlog the SenderThread sends: a batch of
+ * numPoints values of 1 minute metrics, half of them availability.
+ *
+ * Usage: MeasurementReportBenchmark [numPoints] [seconds]
+ */
+public class MeasurementReportBenchmark {
+    private static final int POINTS_PER_METRIC = 20;
+
+    public static void main(String[] args) throws Exception {
+        int numPoints = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        long millis = ((args.length > 1) ? Integer.parseInt(args[1]) : 5) * 1000l;
+        MeasurementReport report = newReport(numPoints);
+
+        for (int i = 0; i < 2; i++) {
+            boolean packed = (i == 1);
+            byte[] data = encode(report, packed);
+            decode(data, millis / 5);  // warm up
+            long decodes = decode(data, millis);
+            System.out.println((packed ? "packed" : "lists ") +
+                               " bytes/point=" + ((double) data.length / numPoints) +
+                               " points/s=" + (decodes * numPoints * 1000 / millis));
+        }
+    }
+
+    private static MeasurementReport newReport(int numPoints) {
+        Random rand = new Random(numPoints);
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        long start = System.currentTimeMillis();
+        int numMetrics = Math.max(1, numPoints / POINTS_PER_METRIC);
+        for (int i = 0; i < numPoints; i++) {
+            int mid = i % numMetrics;
+            // collections are a few ms late
+            long time = start + (i / numMetrics) * 60000l + rand.nextInt(20);
+            double val;
+            if (mid % 2 == 0) {
+                val = MeasurementConstants.AVAIL_UP;
+            } else if (mid % 4 == 1) {
+                val = rand.nextInt(1000);
+            } else {
+                val = rand.nextDouble() * 100;
+            }
+            con.addDataPoint(mid, mid, new MetricValue(val, time));
+        }
+        MeasurementReport rtn = new MeasurementReport();
+        rtn.setAgentToken("benchmark");
+        rtn.setClientIdList(con.constructDSNList());
+        rtn.setSRNList(new SRN[] {new SRN(new AppdefEntityID(1, 1), 1)});
+        return rtn;
+    }
+
+    private static byte[] encode(MeasurementReport report, boolean packed) throws Exception {
+        MeasurementSendReport_args args = new MeasurementSendReport_args();
+        args.setAgentToken(report.getAgentToken());
+        args.setReport(report, packed);
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+        new LatherXCoder().encode(args, new DataOutputStream(bOs));
+        return bOs.toByteArray();
+    }
+
+    private static long decode(byte[] data, long millis) throws Exception {
+        LatherXCoder coder = new LatherXCoder();
+        long end = System.currentTimeMillis() + millis;
+        long rtn = 0;
+        while (System.currentTimeMillis() < end) {
+            MeasurementSendReport_args args = (MeasurementSendReport_args)
+                coder.decode(new DataInputStream(new ByteArrayInputStream(data)),
+                             MeasurementSendReport_args.class);
+            DSNList[] cids = args.getReport().getClientIdList();
+            for (int i = 0; i < cids.length; i++) {
+                cids[i].getDsns();
+            }
+            rtn++;
+        }
+        return rtn;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.data;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.product.MetricValue;
+
+public class ValueListCodecTest extends TestCase {
+
+    public void testRoundTrip() {
+        Random rand = new Random(42);
+        long now = System.currentTimeMillis();
+        ValueList[] dsns = new ValueList[] {
+            // regular interval with some jitter, repeated values
+            newValueList(1, now, 60000, 20, 50, rand, 3),
+            // backfilled and out of order timestamps, random doubles
+            newValueList(2, now, -300000, 5000, 200, rand, 0),
+            newValueList(3, now, 1, 0, 1, rand, 0),
+            newValueList(4, now, 0, 0, 0, rand, 0),
+        };
+        assertEquals(dsns, ValueListCodec.decode(ValueListCodec.encode(dsns)));
+    }
+
+    public void testSpecialValues() {
+        MetricValue[] vals = new MetricValue[] {
+            new MetricValue(Double.NaN, 0),
+            new MetricValue(MetricValue.VALUE_FUTURE, Long.MAX_VALUE),
+            new MetricValue(Double.POSITIVE_INFINITY, Long.MIN_VALUE),
+            new MetricValue(-0.0d, -1),
+            new MetricValue(Double.MIN_VALUE, 1),
+            new MetricValue(Double.MAX_VALUE, 1),
+            new MetricValue(1, 1),
+        };
+        ValueList[] dsns = new ValueList[] {newValueList(Integer.MIN_VALUE, vals)};
+        ValueList[] decoded = ValueListCodec.decode(ValueListCodec.encode(dsns));
+        assertEquals(dsns, decoded);
+        // -0.0 == 0.0, so compare the bits
+        assertEquals(Double.doubleToRawLongBits(-0.0d),
+                     Double.doubleToRawLongBits(decoded[0].getValues()[3].getValue()));
+    }
+
+    public void testRegularValuesAreSmall() {
+        MetricValue[] vals = new MetricValue[1000];
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = new MetricValue(1, 1000000 + i * 60000l);
+        }
+        byte[] data = ValueListCodec.encode(new ValueList[] {newValueList(1, vals)});
+        // 2 bits per value after the first two
+        assertTrue(data.length < 300);
+    }
+
+    public void testCorruptData() {
+        byte[] data = ValueListCodec.encode(new ValueList[] {
+            newValueList(1, System.currentTimeMillis(), 60000, 10, 100, new Random(1), 0)});
+        byte[] truncated = new byte[data.length / 2];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        try {
+            ValueListCodec.decode(truncated);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        byte[] version = (byte[]) data.clone();
+        version[0] = 99;
+        try {
+            ValueListCodec.decode(version);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // claims more values than there are bits
+        byte[] count = (byte[]) data.clone();
+        count[9] = (byte) 0x7f;
+        try {
+            ValueListCodec.decode(count);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private ValueList newValueList(int dsnId, long start, long interval, int jitter,
+                                   int num, Random rand, int distinctValues) {
+        MetricValue[] vals = new MetricValue[num];
+        for (int i = 0; i < num; i++) {
+            long time = start + i * interval + ((jitter > 0) ? rand.nextInt(jitter) : 0);
+            double val = (distinctValues > 0) ? rand.nextInt(distinctValues)
+                                              : rand.nextDouble() * 1000;
+            vals[i] = new MetricValue(val, time);
+        }
+        return newValueList(dsnId, vals);
+    }
+
+    private ValueList newValueList(int dsnId, MetricValue[] vals) {
+        ValueList rtn = new ValueList();
+        rtn.setDsnId(dsnId);
+        rtn.setValues(vals);
+        return rtn;
+    }
+
+    private void assertEquals(ValueList[] expected, ValueList[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getDsnId(), actual[i].getDsnId());
+            MetricValue[] vals = expected[i].getValues();
+            assertEquals(vals.length, actual[i].getValues().length);
+            for (int j = 0; j < vals.length; j++) {
+                assertEquals(vals[j], actual[i].getValues()[j]);
+            }
+        }
+    }
+}
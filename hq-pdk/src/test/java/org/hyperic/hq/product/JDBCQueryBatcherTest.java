@@ -0,0 +1,207 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class JDBCQueryBatcherTest extends TestCase {
+
+    private int executions = 0;
+
+    private JDBCQueryBatcher.Executor newExecutor(final String[] labels,
+                                                  final Object[] row) {
+        return new JDBCQueryBatcher.Executor() {
+            public JDBCQueryBatcher.Row execute(String query) throws SQLException {
+                executions++;
+                return JDBCQueryBatcher.Row.read(newResultSet(labels, row));
+            }
+        };
+    }
+
+    public void testSameQueryIsExecutedOnce() throws Exception {
+        JDBCQueryBatcher batcher = new JDBCQueryBatcher(60000);
+        JDBCQueryBatcher.Executor executor =
+            newExecutor(new String[] {"Name", "Rows", "Data_length"},
+                        new Object[] {"t1", new Double(10), new Double(20)});
+        JDBCQueryBatcher.Row row = batcher.execute("db1", "SHOW TABLE STATUS", executor);
+        assertEquals(10, row.getDouble("rows"), 0);
+        row = batcher.execute("db1", "SHOW TABLE STATUS", executor);
+        assertEquals(20, row.getDouble(3), 0);
+        assertEquals(1, executions);
+        batcher.execute("db2", "SHOW TABLE STATUS", executor);
+        batcher.execute("db1", "SHOW STATUS", executor);
+        assertEquals(3, executions);
+    }
+
+    public void testQueryIsExecutedAgainAfterMaxAge() throws Exception {
+        JDBCQueryBatcher batcher = new JDBCQueryBatcher(20);
+        JDBCQueryBatcher.Executor executor =
+            newExecutor(new String[] {"Value"}, new Object[] {new Double(1)});
+        batcher.execute("db", "select 1", executor);
+        Thread.sleep(40);
+        batcher.execute("db", "select 1", executor);
+        assertEquals(2, executions);
+        batcher.setMaxAge(0);
+        batcher.execute("db", "select 1", executor);
+        assertEquals(3, executions);
+    }
+
+    public void testFailureIsShared() throws Exception {
+        JDBCQueryBatcher batcher = new JDBCQueryBatcher(60000);
+        JDBCQueryBatcher.Executor executor = new JDBCQueryBatcher.Executor() {
+            public JDBCQueryBatcher.Row execute(String query) throws SQLException {
+                executions++;
+                throw new SQLException("down", "08S01", 2003);
+            }
+        };
+        for (int i = 0; i < 3; i++) {
+            try {
+                batcher.execute("db", "select 1", executor);
+                fail();
+            } catch (SQLException e) {
+                assertEquals(2003, e.getErrorCode());
+            }
+        }
+        assertEquals(1, executions);
+    }
+
+    public void testConcurrentRequestsWaitForExecution() throws Exception {
+        final JDBCQueryBatcher batcher = new JDBCQueryBatcher(60000);
+        final JDBCQueryBatcher.Executor executor = new JDBCQueryBatcher.Executor() {
+            public JDBCQueryBatcher.Row execute(String query) throws SQLException {
+                synchronized (JDBCQueryBatcherTest.this) {
+                    executions++;
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new SQLException(e.toString());
+                }
+                return JDBCQueryBatcher.Row.read(
+                    newResultSet(new String[] {"Value"}, new Object[] {new Double(5)}));
+            }
+        };
+        final List<Object> results = new ArrayList<Object>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    Object rtn;
+                    try {
+                        rtn = new Double(batcher.execute("db", "select 5", executor).getDouble(1));
+                    } catch (SQLException e) {
+                        rtn = e;
+                    }
+                    synchronized (results) {
+                        results.add(rtn);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(1, executions);
+        assertEquals(threads.length, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(new Double(5), results.get(i));
+        }
+    }
+
+    public void testRow() throws Exception {
+        JDBCQueryBatcher.Row row = JDBCQueryBatcher.Row.read(
+            newResultSet(new String[] {"Name", "Value"}, new Object[] {"abc", new Double(2)}));
+        assertTrue(row.exists());
+        assertEquals(2, row.getDouble("VALUE"), 0);
+        try {
+            row.getDouble(1);
+            fail("not numeric");
+        } catch (SQLException e) {
+        }
+        try {
+            row.getDouble(3);
+            fail("out of range");
+        } catch (SQLException e) {
+        }
+        try {
+            row.getDouble("Missing");
+            fail("no such column");
+        } catch (SQLException e) {
+        }
+        assertFalse(JDBCQueryBatcher.Row.read(newResultSet(new String[0], null)).exists());
+        assertFalse(JDBCQueryBatcher.Row.read(null).exists());
+    }
+
+    /**
+     * @param row null for an empty result
+     */
+    private static ResultSet newResultSet(final String[] labels, final Object[] row) {
+        final ResultSetMetaData md = (ResultSetMetaData) Proxy.newProxyInstance(
+            JDBCQueryBatcherTest.class.getClassLoader(),
+            new Class[] {ResultSetMetaData.class}, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getColumnCount")) {
+                        return new Integer(labels.length);
+                    }
+                    return labels[((Integer) args[0]).intValue() - 1];
+                }
+            });
+        return (ResultSet) Proxy.newProxyInstance(
+            JDBCQueryBatcherTest.class.getClassLoader(),
+            new Class[] {ResultSet.class}, new InvocationHandler() {
+                private boolean next = (row != null);
+
+                public Object invoke(Object proxy, Method method, Object[] args)
+                    throws SQLException {
+                    String name = method.getName();
+                    if (name.equals("next")) {
+                        boolean rtn = next;
+                        next = false;
+                        return Boolean.valueOf(rtn);
+                    } else if (name.equals("getMetaData")) {
+                        return md;
+                    } else if (name.equals("getDouble")) {
+                        Object val = row[((Integer) args[0]).intValue() - 1];
+                        if (!(val instanceof Double)) {
+                            throw new SQLException("Invalid value for getDouble()");
+                        }
+                        return val;
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product.jmx;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import junit.framework.TestCase;
+
+public class MxAttributeBatcherTest extends TestCase {
+
+    private static final String ENDPOINT = "service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi";
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    // attributes left out of the getAttributes result
+    private final Set<String> omitted = new HashSet<String>();
+    // thrown by getAttributes
+    private Exception bulkFailure;
+    private final List<Set<String>> bulkCalls = new ArrayList<Set<String>>();
+    private final List<String> singleCalls = new ArrayList<String>();
+    private MBeanServerConnection server;
+    private ObjectName name;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        values.put("HeapUsed", new Long(100));
+        values.put("HeapMax", new Long(200));
+        values.put("Threads", new Integer(10));
+        name = new ObjectName("java.lang:type=Memory");
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+                if (method.getName().equals("getAttribute")) {
+                    String attribute = (String) args[1];
+                    singleCalls.add(attribute);
+                    if (!values.containsKey(attribute)) {
+                        throw new AttributeNotFoundException(attribute);
+                    }
+                    return values.get(attribute);
+                }
+                if (method.getName().equals("getAttributes")) {
+                    String[] attributes = (String[]) args[1];
+                    bulkCalls.add(new HashSet<String>(Arrays.asList(attributes)));
+                    if (bulkFailure != null) {
+                        throw bulkFailure;
+                    }
+                    AttributeList list = new AttributeList();
+                    for (int i = 0; i < attributes.length; i++) {
+                        if (values.containsKey(attributes[i]) && !omitted.contains(attributes[i])) {
+                            list.add(new Attribute(attributes[i], values.get(attributes[i])));
+                        }
+                    }
+                    return list;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+        server = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                new Class<?>[] {MBeanServerConnection.class},
+                                                                handler);
+    }
+
+    private Object get(MxAttributeBatcher batcher, String attribute) throws Exception {
+        return batcher.getAttribute(server, ENDPOINT, name, attribute);
+    }
+
+    private static Set<String> asSet(String[] names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    public void testAttributesAreFetchedTogether() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(100);
+        assertEquals(new Long(100), get(batcher, "HeapUsed"));
+        assertEquals(new Long(200), get(batcher, "HeapMax"));
+        assertEquals(new Integer(10), get(batcher, "Threads"));
+        // the first requests find out which attributes are wanted
+        assertEquals(1, bulkCalls.size());
+        assertEquals(Arrays.asList(new String[] {"HeapMax", "Threads"}), singleCalls);
+
+        Thread.sleep(150);
+        values.put("HeapUsed", new Long(150));
+        assertEquals(new Long(150), get(batcher, "HeapUsed"));
+        assertEquals(new Long(200), get(batcher, "HeapMax"));
+        assertEquals(new Integer(10), get(batcher, "Threads"));
+        assertEquals(2, bulkCalls.size());
+        assertEquals(asSet(new String[] {"HeapUsed", "HeapMax", "Threads"}), bulkCalls.get(1));
+        assertEquals(2, singleCalls.size());
+    }
+
+    public void testEndpointsAreBatchedSeparately() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(60000);
+        get(batcher, "HeapUsed");
+        batcher.getAttribute(server, "service:jmx:rmi:///jndi/rmi://host2:1099/jmxrmi",
+                             name, "HeapUsed");
+        assertEquals(2, bulkCalls.size());
+    }
+
+    public void testMissingAttributeIsFetchedByItself() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(100);
+        get(batcher, "HeapUsed");
+        get(batcher, "HeapMax");
+        Thread.sleep(150);
+        omitted.add("HeapMax");
+        singleCalls.clear();
+        assertEquals(new Long(100), get(batcher, "HeapUsed"));
+        assertEquals(new Long(200), get(batcher, "HeapMax"));
+        assertEquals(Arrays.asList(new String[] {"HeapMax"}), singleCalls);
+        // served from the fallback until the next fetch
+        assertEquals(new Long(200), get(batcher, "HeapMax"));
+        assertEquals(1, singleCalls.size());
+    }
+
+    public void testUnknownAttributeFails() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(60000);
+        get(batcher, "HeapUsed");
+        try {
+            get(batcher, "NoSuchAttribute");
+            fail("AttributeNotFoundException was not passed on");
+        } catch (AttributeNotFoundException e) {
+        }
+        assertEquals(new Long(100), get(batcher, "HeapUsed"));
+    }
+
+    public void testAttributesAreFetchedByThemselvesWhenBulkCallFails() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(60000);
+        bulkFailure = new ReflectionException(new NoSuchMethodException("getAttributes"));
+        assertEquals(new Long(100), get(batcher, "HeapUsed"));
+        assertEquals(new Long(200), get(batcher, "HeapMax"));
+        assertEquals(1, bulkCalls.size());
+        assertEquals(Arrays.asList(new String[] {"HeapUsed", "HeapMax"}), singleCalls);
+        // the values are kept until the next fetch
+        assertEquals(new Long(100), get(batcher, "HeapUsed"));
+        assertEquals(2, singleCalls.size());
+    }
+
+    public void testRuntimeFailureOfBulkCall() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(100);
+        get(batcher, "HeapUsed");
+        Thread.sleep(150);
+        bulkFailure = new UnsupportedOperationException("getAttributes");
+        values.put("HeapUsed", new Long(150));
+        assertEquals(new Long(150), get(batcher, "HeapUsed"));
+        assertEquals(2, bulkCalls.size());
+        assertEquals(Arrays.asList(new String[] {"HeapUsed"}), singleCalls);
+    }
+
+    public void testBatchingDisabled() throws Exception {
+        MxAttributeBatcher batcher = new MxAttributeBatcher(0);
+        get(batcher, "HeapUsed");
+        get(batcher, "HeapUsed");
+        assertEquals(0, bulkCalls.size());
+        assertEquals(2, singleCalls.size());
+    }
+}
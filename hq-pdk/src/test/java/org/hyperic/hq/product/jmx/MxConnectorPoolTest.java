@@ -0,0 +1,258 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product.jmx;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+public class MxConnectorPoolTest extends TestCase {
+
+    private final List<FakeConnector> created = new ArrayList<FakeConnector>();
+    private MxConnectorPool pool;
+
+    private static class FakeConnector implements JMXConnector {
+        private volatile boolean closed = false;
+        // the next call fails, as if the connection was lost
+        private volatile boolean failNext = false;
+        // the validation round trip fails
+        private volatile boolean dead = false;
+
+        public void connect() {
+        }
+
+        public void connect(Map<String, ?> env) {
+        }
+
+        public MBeanServerConnection getMBeanServerConnection() throws IOException {
+            if (failNext) {
+                failNext = false;
+                throw new IOException("connection lost");
+            }
+            InvocationHandler handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                    if (!method.getName().equals("getMBeanCount")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    if (dead) {
+                        throw new IOException("connection lost");
+                    }
+                    return new Integer(1);
+                }
+            };
+            return (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                  new Class<?>[] {MBeanServerConnection.class},
+                                                                  handler);
+        }
+
+        public MBeanServerConnection getMBeanServerConnection(Subject subject) throws IOException {
+            return getMBeanServerConnection();
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        public void addConnectionNotificationListener(NotificationListener listener,
+                                                      NotificationFilter filter,
+                                                      Object handback) {
+        }
+
+        public void removeConnectionNotificationListener(NotificationListener listener)
+            throws ListenerNotFoundException {
+        }
+
+        public void removeConnectionNotificationListener(NotificationListener l,
+                                                         NotificationFilter f,
+                                                         Object handback)
+            throws ListenerNotFoundException {
+        }
+
+        public String getConnectionId() {
+            return "fake";
+        }
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = new MxConnectorPool(new MxConnectorPool.ConnectorFactory() {
+            public JMXConnector create(Properties config) {
+                FakeConnector connector = new FakeConnector();
+                synchronized (created) {
+                    created.add(connector);
+                }
+                return connector;
+            }
+        });
+    }
+
+    private static Properties newConfig(String url) {
+        Properties config = new Properties();
+        config.setProperty(MxUtil.PROP_JMX_URL, url);
+        return config;
+    }
+
+    private int getCreated() {
+        synchronized (created) {
+            return created.size();
+        }
+    }
+
+    private FakeConnector getConnector(int i) {
+        synchronized (created) {
+            return created.get(i);
+        }
+    }
+
+    public void testClosedConnectorIsReused() throws Exception {
+        Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        pool.borrow(config).close();
+        JMXConnector connector = pool.borrow(config);
+        connector.getMBeanServerConnection();
+        connector.close();
+        assertEquals(1, getCreated());
+        assertFalse(getConnector(0).closed);
+    }
+
+    public void testBorrowBlocksAtEndpointLimit() throws Exception {
+        final Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        pool.setMaxPerEndpoint(2);
+        JMXConnector first = pool.borrow(config);
+        pool.borrow(config);
+        assertEquals(2, getCreated());
+
+        final JMXConnector[] borrowed = new JMXConnector[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    borrowed[0] = pool.borrow(config);
+                } catch (IOException e) {
+                }
+            }
+        };
+        waiter.start();
+        waiter.join(200);
+        assertTrue("borrow did not block", waiter.isAlive());
+
+        // another endpoint has slots of its own
+        pool.borrow(newConfig("service:jmx:rmi:///jndi/rmi://host2:1099/jmxrmi")).close();
+        assertEquals(3, getCreated());
+
+        first.close();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertNotNull(borrowed[0]);
+        // the released connector was handed to the waiter
+        assertEquals(3, getCreated());
+    }
+
+    public void testBorrowTimesOutAtEndpointLimit() throws Exception {
+        Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        pool.setMaxPerEndpoint(1);
+        pool.setMaxWait(50);
+        pool.borrow(config);
+        try {
+            pool.borrow(config);
+            fail("borrow did not time out");
+        } catch (IOException e) {
+        }
+        assertEquals(1, getCreated());
+    }
+
+    public void testIdleConnectorIsClosed() throws Exception {
+        Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        pool.setIdleTimeout(20);
+        pool.borrow(config).close();
+        Thread.sleep(100);
+        // the sweep runs when the next connector is borrowed
+        pool.borrow(config).close();
+        assertEquals(2, getCreated());
+        // closed by a separate thread
+        for (int i = 0; i < 100 && !getConnector(0).closed; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(getConnector(0).closed);
+        assertFalse(getConnector(1).closed);
+    }
+
+    public void testDeadIdleConnectorIsNotHandedOut() throws Exception {
+        Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        pool.setValidationInterval(0);
+        pool.borrow(config).close();
+        getConnector(0).dead = true;
+        pool.borrow(config).close();
+        assertEquals(2, getCreated());
+        assertTrue(getConnector(0).closed);
+    }
+
+    public void testBrokenConnectorIsNotReturned() throws Exception {
+        Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        pool.setMaxPerEndpoint(1);
+        pool.setMaxWait(50);
+        JMXConnector connector = pool.borrow(config);
+        getConnector(0).failNext = true;
+        try {
+            connector.getMBeanServerConnection();
+            fail("IOException was not passed on");
+        } catch (IOException e) {
+        }
+        connector.close();
+        assertTrue(getConnector(0).closed);
+
+        // the slot of the broken connector is free again
+        pool.borrow(config).close();
+        assertEquals(2, getCreated());
+        assertFalse(getConnector(1).closed);
+    }
+
+    public void testBorrowedConnectorIsClosedAfterInvalidate() throws Exception {
+        Properties config = newConfig("service:jmx:rmi:///jndi/rmi://host1:1099/jmxrmi");
+        JMXConnector borrowed = pool.borrow(config);
+        pool.borrow(config).close();
+        pool.invalidate(config);
+        assertTrue(getConnector(1).closed);
+        assertFalse(getConnector(0).closed);
+        borrowed.close();
+        assertTrue(getConnector(0).closed);
+        pool.borrow(config).close();
+        assertEquals(3, getCreated());
+    }
+}
@@ -91,12 +91,16 @@ public class AppdefStatDAO {
     
     private SessionFactory sessionFactory;
 
+    private final ResourceTreeIndex resourceTreeIndex;
+
     protected final Log log = LogFactory.getLog(AppdefStatDAO.class);
 
     @Autowired
-    public AppdefStatDAO(JdbcTemplate jdbcTemplate, SessionFactory sessionFactory) {
+    public AppdefStatDAO(JdbcTemplate jdbcTemplate, SessionFactory sessionFactory,
+                         ResourceTreeIndex resourceTreeIndex) {
         this.jdbcTemplate = jdbcTemplate;
         this.sessionFactory = sessionFactory;
+        this.resourceTreeIndex = resourceTreeIndex;
     }
     
     
@@ -111,238 +115,65 @@ public class AppdefStatDAO {
         final ResourceTreeNode aPlatformNode = new ResourceTreeNode(plat.getName(),
             getAppdefTypeLabel(APPDEF_TYPE_PLATFORM, plat.getAppdefResourceType().getName()), plat
                 .getEntityId(), ResourceTreeNode.RESOURCE);
-        String falseStr = DBUtil.getBooleanValue(false, jdbcTemplate.getDataSource()
-            .getConnection());
-        StringBuffer buf = new StringBuffer();
-        buf.append("SELECT svr_svrt_svc_svct.server_id, ")
-            .append("svr_svrt_svc_svct.server_name, ").append(
-                "       svr_svrt_svc_svct.server_type_id, ").append(
-                "svr_svrt_svc_svct.server_type_name, ").append(
-                "       svr_svrt_svc_svct.service_id, ").append("svr_svrt_svc_svct.service_name, ")
-            .append("       svr_svrt_svc_svct.service_type_id, ").append(
-                "svr_svrt_svc_svct.service_type_name ").append(
-                "FROM (SELECT app.id as application_id, ").append(
-                "appsvc.service_id as service_id ").append("      FROM EAM_APP_SERVICE appsvc ");
-        if (isOracle8()) {
-            buf.append(", ").append(TBL_APP).append(" app ").append(
-                "WHERE app.id=appsvc.application_id(+) AND EXISTS (").append(
-                getResourceTypeSQL("app.id", subject.getId(), APPLICATION_RES_TYPE,
-                    APPLICATION_OP_VIEW_APPLICATION)).append(") ) app_appsvc, ");
-        } else {
-            buf.append("RIGHT JOIN ").append(TBL_APP).append(
-                " app ON app.id=appsvc.application_id ").append("WHERE EXISTS (").append(
-                getResourceTypeSQL("app.id", subject.getId(), APPLICATION_RES_TYPE,
-                    APPLICATION_OP_VIEW_APPLICATION)).append(") ) app_appsvc RIGHT JOIN ");
-        }
-        buf.append("(SELECT svr_svrt.server_id, ").append("svr_svrt.server_name, ").append(
-            "        svr_svrt.server_type_id, ").append("svr_svrt.server_type_name, ").append(
-            "        svc_svct.service_id, ").append("svc_svct.service_name, ").append(
-            "        svc_svct.service_type_id, ").append("svc_svct.service_type_name ").append(
-            " FROM ( SELECT svc.id as service_id, ").append(
-            "               res2.name  as service_name, ").append(
-            "               svct.id   as service_type_id, ").append(
-            "               svct.name as service_type_name,").append(
-            "               svc.server_id as server_id ").append("          FROM ").append(
-            TBL_SERVICE).append("_TYPE svct, ").append(TBL_SERVICE).append(" svc ").append(
-            " JOIN " + TBL_RES).append(" res2 ON svc.resource_id = res2.id ").append(
-            "         WHERE svc.service_type_id=svct.id ").append("           AND EXISTS (")
-            .append(
-                getResourceTypeSQL("svc.id", subject.getId(), SERVICE_RES_TYPE,
-                    SERVICE_OP_VIEW_SERVICE)).append(") ) svc_svct ");
-        if (isOracle8()) {
-            buf.append(",");
-        } else {
-            buf.append("     RIGHT JOIN");
-        }
-        buf.append("       ( SELECT svr.id    as server_id, ").append(
-            "                res1.name as server_name, ").append(
-            "                svrt.id   as server_type_id,").append(
-            "                svrt.name as server_type_name ").append("         FROM ").append(
-            TBL_SERVER).append("_TYPE svrt, ").append(TBL_SERVER).append(" svr ").append(
-            " JOIN " + TBL_RES).append(" res1 ON svr.resource_id = res1.id ").append(
-            "         WHERE  svr.platform_id=").append(plat.getId())
-        // exclude virtual server types from the navMap
-            .append("                    AND svrt.fvirtual = " + falseStr).append(
-                "                    AND svrt.id=svr.server_type_id ").append(
-                "                    AND EXISTS (").append(
-                getResourceTypeSQL("svr.id", subject.getId(), SERVER_RES_TYPE,
-                    SERVER_OP_VIEW_SERVER)).append(") ) svr_svrt ");
-        if (isOracle8()) {
-            buf.append(" WHERE svr_svrt.server_id=svc_svct.server_id(+)").append(
-                "  ) svr_svrt_svc_svct ").append(
-                "WHERE svr_svrt_svc_svct.service_id=app_appsvc.service_id(+)");
-        } else {
-            buf.append("   ON svr_svrt.server_id=svc_svct.server_id ").append(
-                "  ) svr_svrt_svc_svct ").append(
-                "ON svr_svrt_svc_svct.service_id=app_appsvc.service_id ");
+        StopWatch timer = new StopWatch();
+        final List<ResourceTreeNode> servers = new ArrayList<ResourceTreeNode>();
+        for (ResourceTreeIndex.Node server : resourceTreeIndex.getChildren(plat.getEntityId(),
+            getNavMapFilter(subject))) {
+            // exclude virtual server types from the navMap
+            if (!server.isVirtual()) {
+                servers.add(new ResourceTreeNode(server.getName(), getAppdefTypeLabel(
+                    APPDEF_TYPE_SERVER, server.getTypeName()), server.getEntityId(), plat
+                    .getEntityId(), server.getTypeId()));
+            }
         }
-        buf.append(" ORDER BY svr_svrt_svc_svct.server_id, ").append(
-            "svr_svrt_svc_svct.server_type_id, ")
-            .append("          svr_svrt_svc_svct.service_id, ").append(
-                "svr_svrt_svc_svct.service_type_id ");
+        // XXX Leave out service data No current way to represent it
+        aPlatformNode.setSelected(true);
+        ResourceTreeNode[] svrNodes = servers.toArray(new ResourceTreeNode[servers.size()]);
+        ResourceTreeNode.alphaSortNodes(svrNodes, true);
+        aPlatformNode.addUpChildren(svrNodes);
         if (log.isDebugEnabled()) {
-            log.debug(buf.toString());
+            log.debug("getNavMapDataForPlatform() executed in: " + timer);
         }
-
-        ResourceTreeNode[] platformNode = this.jdbcTemplate.query(buf.toString(),
-            new ResultSetExtractor<ResourceTreeNode[]>() {
-                public ResourceTreeNode[] extractData(ResultSet rs) throws SQLException,
-                    DataAccessException {
-                    final Set<ResourceTreeNode> servers = new HashSet<ResourceTreeNode>();
-                    final Set<ResourceTreeNode> services = new HashSet<ResourceTreeNode>();
-                    while (rs.next()) {
-                        int thisSvrId = rs.getInt(1);
-                        String thisServerName = rs.getString(2);
-                        int thisServerTypeId = rs.getInt(3);
-                        String thisServerTypeName = rs.getString(4);
-                        int thisSvcId = rs.getInt(5);
-                        String thisServiceName = rs.getString(6);
-                        int thisServiceTypeId = rs.getInt(7);
-                        String thisServiceTypeName = rs.getString(8);
-
-                        if (thisServerTypeName != null) {
-                            servers.add(new ResourceTreeNode(thisServerName, getAppdefTypeLabel(
-                                APPDEF_TYPE_SERVER, thisServerTypeName), AppdefEntityID
-                                .newServerID(new Integer(thisSvrId)), plat.getEntityId(),
-                                thisServerTypeId));
-                        }
-
-                        if (thisServiceTypeName != null) {
-                            services.add(new ResourceTreeNode(thisServiceName, getAppdefTypeLabel(
-                                APPDEF_TYPE_SERVICE, thisServiceTypeName), AppdefEntityID
-                                .newServiceID(new Integer(thisSvcId)), AppdefEntityID
-                                .newServerID(new Integer(thisSvrId)), thisServiceTypeId));
-                        }
-                    }
-                    // XXX Leave out service data No current way to represent it
-                    // (ResourceTreeNode[]) serviceMap.values()
-                    // .toArray(new ResourceTreeNode[0]);
-                    aPlatformNode.setSelected(true);
-                    ResourceTreeNode[] svrNodes = servers
-                        .toArray(new ResourceTreeNode[0]);
-                    ResourceTreeNode.alphaSortNodes(svrNodes, true);
-                    aPlatformNode.addUpChildren(svrNodes);
-                    return new ResourceTreeNode[] { aPlatformNode };
-                }
-            });
-        return platformNode;
+        return new ResourceTreeNode[] { aPlatformNode };
     }
 
     public ResourceTreeNode[] getNavMapDataForServer(AuthzSubject subject, final Server server)
         throws SQLException {
-        StringBuffer buf = new StringBuffer();
-        buf.append("SELECT svc_svct_svr_plat.platform_id, ").append(
-            "svc_svct_svr_plat.platform_name, ").append(
-            "       svc_svct_svr_plat.platform_type_id, ").append(
-            "svc_svct_svr_plat.platform_type_name, ").append(
-            "       svc_svct_svr_plat.service_id, ").append("svc_svct_svr_plat.service_name, ")
-            .append("       svc_svct_svr_plat.service_type_id, ").append(
-                "svc_svct_svr_plat.service_type_name ").append(
-                "FROM (SELECT app.id as application_id, ").append(
-                "appsvc.service_id as service_id ").append("        FROM EAM_APP_SERVICE appsvc ");
-        if (isOracle()) {
-            buf.append(" , ").append(TBL_APP).append(" app ").append(
-                "WHERE app.id=appsvc.application_id(+) AND EXISTS (").append(
-                getResourceTypeSQL("app.id", subject.getId(), APPLICATION_RES_TYPE,
-                    APPLICATION_OP_VIEW_APPLICATION)).append(") ) app_appsvc, ");
-        } else {
-            buf.append("  RIGHT JOIN ").append(TBL_APP).append(
-                " app ON app.id=appsvc.application_id ").append(" WHERE EXISTS (").append(
-                getResourceTypeSQL("app.id", subject.getId(), APPLICATION_RES_TYPE,
-                    APPLICATION_OP_VIEW_APPLICATION)).append(") ) app_appsvc RIGHT JOIN ");
-        }
-        buf.append(" (SELECT svc_svct.service_id, ").append("svc_svct.service_name, ").append(
-            "         svc_svct.service_type_id, ").append("svc_svct.service_type_name, ").append(
-            "         plat.id as platform_id, ").append("res0.name as platform_name, ").append(
-            "         platt.id as platform_type_id, ").append("platt.name as platform_type_name ")
-            .append("  FROM (SELECT svc.id    as service_id, ").append(
-                "               res2.name  as service_name, ").append(
-                "               svct.id   as service_type_id,").append(
-                "               svct.name as service_type_name,").append(
-                "               svc.server_id as server_id ").append("        FROM ").append(
-                TBL_SERVICE).append("_TYPE svct, ").append(TBL_SERVICE).append(" svc ").append(
-                " JOIN " + TBL_RES).append(" res2 ON svc.resource_id = res2.id ").append(
-                "        WHERE svc.service_type_id=svct.id AND EXISTS (").append(
-                getResourceTypeSQL("svc.id", subject.getId(), SERVICE_RES_TYPE,
-                    SERVICE_OP_VIEW_SERVICE)).append(") ) svc_svct ");
-        if (isOracle()) {
-            buf.append(" ," + TBL_SERVER + " svr, ");
-        } else {
-            buf.append(" RIGHT JOIN " + TBL_SERVER + " svr ").append(
-                "ON svc_svct.server_id=svr.id, ");
-        }
-        buf.append(TBL_PLATFORM).append("_TYPE platt, ").append(TBL_PLATFORM).append(" plat JOIN ")
-            .append(TBL_RES).append(" res0 ON plat.resource_id = res0.id").append(" WHERE svr.id=")
-            .append(server.getId()).append("   AND platt.id=plat.platform_type_id ").append(
-                "   AND plat.id=svr.platform_id AND EXISTS (").append(
-                getResourceTypeSQL("plat.id", subject.getId(), PLATFORM_RES_TYPE,
-                    PLATFORM_OP_VIEW_PLATFORM)).append(") ");
-
-        if (isOracle()) {
-            buf.append(" AND svr.id=svc_svct.server_id(+) ").append("       ) svc_svct_svr_plat ")
-                .append(" WHERE svc_svct_svr_plat.service_id=app_appsvc.service_id(+)");
-        } else {
-            buf.append(" ) svc_svct_svr_plat ").append(
-                " ON svc_svct_svr_plat.service_id=app_appsvc.service_id ");
-        }
-        buf.append("order by service_type_id ");
-
         StopWatch timer = new StopWatch();
-        final Map<Integer, ResourceTreeNode> serviceMap = new HashMap<Integer, ResourceTreeNode>();
-
+        final ResourceTreeIndex.Filter filter = getNavMapFilter(subject);
         final ResourceTreeNode aServerNode = new ResourceTreeNode(server.getName(),
             getAppdefTypeLabel(server.getEntityId().getType(), server.getAppdefResourceType()
                 .getName()), server.getEntityId(), ResourceTreeNode.RESOURCE);
-
-        ResourceTreeNode[] serverNode = this.jdbcTemplate.query(buf.toString(),
-            new ResultSetExtractor<ResourceTreeNode[]>() {
-                public ResourceTreeNode[] extractData(ResultSet rs) throws SQLException,
-                    DataAccessException {
-                    int thisPlatId = 0;
-                    ResourceTreeNode aPlatformNode = null;
-                    while (rs.next()) {
-                        if (thisPlatId == 0) {
-                            thisPlatId = rs.getInt(1);
-                            String thisPlatformName = rs.getString(2);
-                            int thisPlatformTypeId = rs.getInt(3);
-                            String thisPlatformTypeName = rs.getString(4);
-                            aPlatformNode = new ResourceTreeNode(thisPlatformName,
-                                getAppdefTypeLabel(APPDEF_TYPE_PLATFORM, thisPlatformTypeName),
-                                AppdefEntityID.newPlatformID(new Integer(thisPlatId)),
-                                (AppdefEntityID) null, thisPlatformTypeId);
-                        }
-
-                        int thisSvcId = rs.getInt(5);
-                        String thisServiceName = rs.getString(6);
-                        int thisServiceTypeId = rs.getInt(7);
-                        String thisServiceTypeName = rs.getString(8);
-
-                        if (thisServiceName != null) {
-                            serviceMap.put(new Integer(thisSvcId), new ResourceTreeNode(
-                                thisServiceName, getAppdefTypeLabel(APPDEF_TYPE_SERVICE,
-                                    thisServiceTypeName), AppdefEntityID.newServiceID(new Integer(
-                                    thisSvcId)), server.getEntityId(), thisServiceTypeId));
-                        }
-                    }
-                    aServerNode.setSelected(true);
-                    ResourceTreeNode[] services = serviceMap.values().toArray(
-                        new ResourceTreeNode[0]);
-                    ResourceTreeNode.alphaSortNodes(services, true);
-                    aServerNode.addUpChildren(services);
-                    // aPlatformNode can be null if user is unauthz
-                    if (aPlatformNode != null) {
-                        aServerNode.addDownChild(aPlatformNode);
-                    }
-                    return new ResourceTreeNode[] { aServerNode };
-                }
-            });
-
+        final ResourceTreeIndex.Node serverNode = resourceTreeIndex.getNode(server.getEntityId());
+        ResourceTreeIndex.Node platform = (serverNode == null || serverNode.getParentId() == null) ?
+            null : resourceTreeIndex.getNode(serverNode.getParentId());
+        if (platform != null && !filter.isViewable(platform)) {
+            platform = null;
+        }
+        final List<ResourceTreeNode> services = new ArrayList<ResourceTreeNode>();
+        // the services are only shown along with their platform
+        if (platform != null) {
+            for (ResourceTreeIndex.Node service : resourceTreeIndex.getChildren(
+                server.getEntityId(), filter)) {
+                services.add(new ResourceTreeNode(service.getName(), getAppdefTypeLabel(
+                    APPDEF_TYPE_SERVICE, service.getTypeName()), service.getEntityId(), server
+                    .getEntityId(), service.getTypeId()));
+            }
+        }
+        aServerNode.setSelected(true);
+        ResourceTreeNode[] svcNodes = services.toArray(new ResourceTreeNode[services.size()]);
+        ResourceTreeNode.alphaSortNodes(svcNodes, true);
+        aServerNode.addUpChildren(svcNodes);
+        // platform can be null if user is unauthz
+        if (platform != null) {
+            aServerNode.addDownChild(new ResourceTreeNode(platform.getName(), getAppdefTypeLabel(
+                APPDEF_TYPE_PLATFORM, platform.getTypeName()), platform.getEntityId(),
+                (AppdefEntityID) null, platform.getTypeId()));
+        }
         if (log.isDebugEnabled()) {
             log.debug("getNavMapDataForServer() executed in: " + timer);
-            log.debug("SQL: " + buf);
         }
-
-        return serverNode;
+        return new ResourceTreeNode[] { aServerNode };
     }
 
     public ResourceTreeNode[] getNavMapDataForService(AuthzSubject subject, final Service service)
@@ -889,6 +720,16 @@ public class AppdefStatDAO {
         }
     }
 
+    /**
+     * @return the filter which restricts the platform and server navigation
+     *         maps, which are built from the {@link ResourceTreeIndex}, the
+     *         way {@link #getResourceTypeSQL} restricts the other ones.  The
+     *         index holds no system resources.
+     */
+    protected ResourceTreeIndex.Filter getNavMapFilter(AuthzSubject subject) {
+        return ResourceTreeIndex.ALL;
+    }
+
     protected String getResourceTypeSQL(String instanceId, Integer subjectId, String resType,
                                       String op) throws SQLException {
         return "SELECT RES.ID FROM EAM_RESOURCE RES, " + " EAM_RESOURCE_TYPE RT " + "WHERE " +
@@ -86,6 +86,7 @@ import org.hyperic.hq.authz.shared.PermissionException;
 import org.hyperic.hq.authz.shared.PermissionManager;
 import org.hyperic.hq.authz.shared.ResourceGroupManager;
 import org.hyperic.hq.authz.shared.ResourceManager;
+import org.hyperic.hq.autoinventory.server.session.RuntimeReportDigestCache;
 import org.hyperic.hq.common.ApplicationException;
 import org.hyperic.hq.common.NotFoundException;
 import org.hyperic.hq.common.SystemException;
@@ -200,6 +201,10 @@ public class PlatformManagerImpl implements PlatformManager {
         return Bootstrap.getBean(AIQueueManager.class);
     }
 
+    private RuntimeReportDigestCache getRuntimeReportDigestCache() {
+        return Bootstrap.getBean(RuntimeReportDigestCache.class);
+    }
+
     /**
      * Find a PlatformType by id
      * 
@@ -437,6 +442,9 @@ public class PlatformManagerImpl implements PlatformManager {
         if (agent == null) {
             return;
         }
+        // the unchanged runtime reports of the agent may cover the servers of
+        // the platform, make it send a full report again
+        getRuntimeReportDigestCache().invalidate(agent.getAgentToken());
         final Collection<Platform> platforms = agent.getPlatforms();
         
         for (final Iterator<Platform> it = platforms.iterator(); it.hasNext();) {
@@ -0,0 +1,562 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.appdef.server.session;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.authz.shared.TypeCounts;
+import org.hyperic.hq.zevents.Zevent;
+import org.hyperic.hq.zevents.ZeventEnqueuer;
+import org.hyperic.hq.zevents.ZeventListener;
+import org.hyperic.util.timer.StopWatch;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory tree of the platforms, servers and services with the columns the
+ * navigation map and the inventory summary need, so that rendering them does
+ * not join the inventory tables or load every Resource for each request.
+ *
+ * The tree is loaded on first use and kept up to date from the resource
+ * zevents, which reload the changed resources only.  Changes which don't
+ * raise an event are picked up by a full rebuild every
+ * org.hq.resource.tree.rebuildMinutes.  Permission checks are left to the
+ * {@link Filter} of the caller and are applied on the nodes.
+ */
+@Component
+public class ResourceTreeIndex implements ZeventListener<ResourceZevent> {
+    private static final String PROP_REBUILD = "org.hq.resource.tree.rebuildMinutes";
+    private static final int DEFAULT_REBUILD = 60;
+    private static final long MINUTE = 60 * 1000;
+
+    private static final String PLATFORM_SQL =
+        "SELECT p.id, r.id, r.name, r.subject_id, r.proto_id, pt.id, pt.name" +
+        " FROM EAM_PLATFORM p JOIN EAM_RESOURCE r ON p.resource_id = r.id" +
+        " JOIN EAM_PLATFORM_TYPE pt ON p.platform_type_id = pt.id" +
+        " WHERE r.resource_type_id IS NOT NULL AND r.fsystem = ?";
+    private static final String SERVER_SQL =
+        "SELECT s.id, r.id, r.name, r.subject_id, r.proto_id, st.id, st.name, s.platform_id," +
+        " st.fvirtual" +
+        " FROM EAM_SERVER s JOIN EAM_RESOURCE r ON s.resource_id = r.id" +
+        " JOIN EAM_SERVER_TYPE st ON s.server_type_id = st.id" +
+        " WHERE r.resource_type_id IS NOT NULL AND r.fsystem = ?";
+    private static final String SERVICE_SQL =
+        "SELECT s.id, r.id, r.name, r.subject_id, r.proto_id, st.id, st.name, s.server_id" +
+        " FROM EAM_SERVICE s JOIN EAM_RESOURCE r ON s.resource_id = r.id" +
+        " JOIN EAM_SERVICE_TYPE st ON s.service_type_id = st.id" +
+        " WHERE r.resource_type_id IS NOT NULL AND r.fsystem = ?";
+
+    private final Log log = LogFactory.getLog(ResourceTreeIndex.class);
+    private final JdbcTemplate jdbcTemplate;
+    private final ZeventEnqueuer zEventManager;
+    private final TaskScheduler taskScheduler;
+    private final long rebuildInterval;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // only one rebuild at a time
+    private final Object rebuildLock = new Object();
+
+    // guarded by lock, null until the tree is loaded
+    private Tree tree;
+    // guarded by lock, the resources which changed while a rebuild was loading
+    private Set<AppdefEntityID> changedDuringRebuild;
+
+    /**
+     * Decides which nodes a caller may see
+     */
+    public interface Filter {
+        boolean isViewable(Node node);
+    }
+
+    public static final Filter ALL = new Filter() {
+        public boolean isViewable(Node node) {
+            return true;
+        }
+    };
+
+    /**
+     * A platform, server or service
+     */
+    public static final class Node {
+        private final AppdefEntityID entityId;
+        private final int resourceId;
+        private final String name;
+        private final int ownerId;
+        private final int prototypeId;
+        private final int typeId;
+        private final String typeName;
+        private final AppdefEntityID parentId;
+        private final boolean virtual;
+
+        /**
+         * @param typeId the id of the platform, server or service type
+         * @param parentId the platform of a server or the server of a
+         *        service, null for a platform
+         * @param virtual true if the server type is virtual
+         */
+        public Node(AppdefEntityID entityId, int resourceId, String name, int ownerId,
+                    int prototypeId, int typeId, String typeName, AppdefEntityID parentId,
+                    boolean virtual) {
+            this.entityId = entityId;
+            this.resourceId = resourceId;
+            this.name = name;
+            this.ownerId = ownerId;
+            this.prototypeId = prototypeId;
+            this.typeId = typeId;
+            this.typeName = typeName;
+            this.parentId = parentId;
+            this.virtual = virtual;
+        }
+
+        public AppdefEntityID getEntityId() {
+            return entityId;
+        }
+
+        public int getResourceId() {
+            return resourceId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Owner changes raise no zevent, so this may be stale until the next
+         * rebuild.  Check ownership against the database where it matters.
+         */
+        public int getOwnerId() {
+            return ownerId;
+        }
+
+        public int getPrototypeId() {
+            return prototypeId;
+        }
+
+        public int getTypeId() {
+            return typeId;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public AppdefEntityID getParentId() {
+            return parentId;
+        }
+
+        public boolean isVirtual() {
+            return virtual;
+        }
+
+        public boolean equals(Object o) {
+            return (o instanceof Node) && ((Node) o).entityId.equals(entityId);
+        }
+
+        public int hashCode() {
+            return entityId.hashCode();
+        }
+
+        public String toString() {
+            return entityId + " " + name;
+        }
+    }
+
+    private static final class Tree {
+        private final Map<AppdefEntityID, Node> nodes = new HashMap<AppdefEntityID, Node>();
+        private final Map<AppdefEntityID, Set<Node>> children =
+            new HashMap<AppdefEntityID, Set<Node>>();
+
+        private void put(Node node) {
+            final Node old = nodes.put(node.entityId, node);
+            if (old != null) {
+                unlink(old);
+            }
+            if (node.parentId != null) {
+                Set<Node> siblings = children.get(node.parentId);
+                if (siblings == null) {
+                    siblings = new HashSet<Node>();
+                    children.put(node.parentId, siblings);
+                }
+                siblings.add(node);
+            }
+        }
+
+        private void remove(AppdefEntityID id) {
+            final Node old = nodes.remove(id);
+            if (old != null) {
+                unlink(old);
+            }
+        }
+
+        /**
+         * Remove the node and all of its descendants
+         */
+        private void removeTree(AppdefEntityID id) {
+            remove(id);
+            final Set<Node> nodes = children.remove(id);
+            if (nodes != null) {
+                for (final Node node : new ArrayList<Node>(nodes)) {
+                    removeTree(node.entityId);
+                }
+            }
+        }
+
+        private void unlink(Node node) {
+            if (node.parentId == null) {
+                return;
+            }
+            final Set<Node> siblings = children.get(node.parentId);
+            if (siblings != null) {
+                siblings.remove(node);
+                if (siblings.isEmpty()) {
+                    children.remove(node.parentId);
+                }
+            }
+        }
+    }
+
+    @Autowired
+    public ResourceTreeIndex(JdbcTemplate jdbcTemplate, ZeventEnqueuer zEventManager,
+                             @Value("#{scheduler}") TaskScheduler taskScheduler) {
+        this(jdbcTemplate, zEventManager, taskScheduler,
+             Integer.getInteger(PROP_REBUILD, DEFAULT_REBUILD).intValue() * MINUTE);
+    }
+
+    ResourceTreeIndex(JdbcTemplate jdbcTemplate, ZeventEnqueuer zEventManager,
+                      TaskScheduler taskScheduler, long rebuildInterval) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.zEventManager = zEventManager;
+        this.taskScheduler = taskScheduler;
+        this.rebuildInterval = rebuildInterval;
+    }
+
+    @PostConstruct
+    void initialize() {
+        final Set<Class<? extends Zevent>> events = new HashSet<Class<? extends Zevent>>();
+        events.add(ResourceCreatedZevent.class);
+        events.add(ResourceUpdatedZevent.class);
+        events.add(ResourceRefreshZevent.class);
+        events.add(ResourceDeletedZevent.class);
+        zEventManager.addBufferedListener(events, this);
+        taskScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    // a tree which was never used is not loaded
+                    if (isLoaded()) {
+                        rebuild(true);
+                    }
+                } catch (Exception e) {
+                    log.error("unable to rebuild the resource tree: " + e, e);
+                }
+            }
+        }, rebuildInterval);
+    }
+
+    /**
+     * @return the node or null if the resource does not exist or is a system
+     *         resource
+     */
+    public Node getNode(AppdefEntityID id) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            return tree.nodes.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the viewable servers of a platform or services of a server
+     */
+    public List<Node> getChildren(AppdefEntityID id, Filter filter) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            final Set<Node> nodes = tree.children.get(id);
+            if (nodes == null) {
+                return Collections.emptyList();
+            }
+            final List<Node> rtn = new ArrayList<Node>(nodes.size());
+            for (final Node node : nodes) {
+                if (filter.isViewable(node)) {
+                    rtn.add(node);
+                }
+            }
+            return rtn;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the viewable resources by appdef type and by prototype
+     *
+     * @param appdefTypes the appdef types to count, only platforms, servers
+     *        and services are indexed
+     */
+    public void countInstances(Collection<Integer> appdefTypes, Filter filter, TypeCounts counts) {
+        ensureLoaded();
+        lock.readLock().lock();
+        try {
+            for (final Node node : tree.nodes.values()) {
+                final Integer type = node.entityId.getType();
+                if (appdefTypes.contains(type) && filter.isViewable(node)) {
+                    counts.incrementAppdefTypeCount(type);
+                    counts.incrementProtoTypeCount(type, node.prototypeId);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void processEvents(List<ResourceZevent> events) {
+        final Set<AppdefEntityID> deleted = new HashSet<AppdefEntityID>();
+        final Set<AppdefEntityID> changed = new HashSet<AppdefEntityID>();
+        for (final ResourceZevent z : events) {
+            final AppdefEntityID id = z.getAppdefEntityID();
+            if (!(id.isPlatform() || id.isServer() || id.isService())) {
+                continue;
+            }
+            if (z instanceof ResourceDeletedZevent) {
+                deleted.add(id);
+            } else {
+                changed.add(id);
+            }
+        }
+        changed.removeAll(deleted);
+        if (deleted.isEmpty() && changed.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (tree == null) {
+                // the first load may have read the resources before they
+                // changed, they are reloaded once it is done
+                if (changedDuringRebuild != null) {
+                    changedDuringRebuild.addAll(deleted);
+                    changedDuringRebuild.addAll(changed);
+                }
+                return;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        update(deleted, changed);
+    }
+
+    public String toString() {
+        return "ResourceTreeIndex";
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return (tree == null) ? 0 : tree.nodes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean isLoaded() {
+        lock.readLock().lock();
+        try {
+            return tree != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Load the whole tree from the DB and replace the current one.  The
+     * resources which change while the tree is loaded are reloaded once it
+     * is in place.
+     *
+     * @param force false to rebuild only if the tree is not loaded yet
+     */
+    void rebuild(boolean force) {
+        synchronized (rebuildLock) {
+            lock.writeLock().lock();
+            try {
+                if (!force && tree != null) {
+                    return;
+                }
+                changedDuringRebuild = new HashSet<AppdefEntityID>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            final StopWatch watch = new StopWatch();
+            final Tree newTree = new Tree();
+            Set<AppdefEntityID> changed = null;
+            boolean loaded = false;
+            try {
+                for (final Node node : loadAll()) {
+                    newTree.put(node);
+                }
+                loaded = true;
+            } finally {
+                lock.writeLock().lock();
+                try {
+                    if (loaded) {
+                        tree = newTree;
+                    }
+                    changed = changedDuringRebuild;
+                    changedDuringRebuild = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            if (!changed.isEmpty()) {
+                // deleted resources are not found when they are reloaded
+                update(Collections.<AppdefEntityID>emptySet(), changed);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("loaded " + newTree.nodes.size() + " resources into the resource tree in " +
+                          watch);
+            }
+        }
+    }
+
+    private void ensureLoaded() {
+        if (!isLoaded()) {
+            rebuild(false);
+        }
+    }
+
+    /**
+     * Remove the deleted resources with their descendants and reload the
+     * changed ones
+     */
+    void update(Set<AppdefEntityID> deleted, Set<AppdefEntityID> changed) {
+        final Map<AppdefEntityID, Node> nodes = new HashMap<AppdefEntityID, Node>();
+        for (final Node node : load(changed)) {
+            nodes.put(node.entityId, node);
+        }
+        lock.writeLock().lock();
+        try {
+            for (final AppdefEntityID id : deleted) {
+                tree.removeTree(id);
+            }
+            for (final AppdefEntityID id : changed) {
+                final Node node = nodes.get(id);
+                if (node == null) {
+                    // deleted, in async delete state or turned into a system resource
+                    tree.remove(id);
+                } else {
+                    tree.put(node);
+                }
+            }
+            if (changedDuringRebuild != null) {
+                changedDuringRebuild.addAll(deleted);
+                changedDuringRebuild.addAll(changed);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return all the platforms, servers and services
+     */
+    Collection<Node> loadAll() {
+        final List<Node> rtn = new ArrayList<Node>();
+        query(PLATFORM_SQL, null, rtn);
+        query(SERVER_SQL, null, rtn);
+        query(SERVICE_SQL, null, rtn);
+        return rtn;
+    }
+
+    /**
+     * @return the resources which exist and are not system resources
+     */
+    Collection<Node> load(Collection<AppdefEntityID> ids) {
+        final List<Node> rtn = new ArrayList<Node>();
+        for (final AppdefEntityID id : ids) {
+            if (id.isPlatform()) {
+                query(PLATFORM_SQL + " AND p.id = ?", id.getId(), rtn);
+            } else if (id.isServer()) {
+                query(SERVER_SQL + " AND s.id = ?", id.getId(), rtn);
+            } else if (id.isService()) {
+                query(SERVICE_SQL + " AND s.id = ?", id.getId(), rtn);
+            }
+        }
+        return rtn;
+    }
+
+    private void query(final String sql, Integer id, final List<Node> nodes) {
+        final Object[] args = (id == null) ? new Object[] { Boolean.FALSE } :
+                                             new Object[] { Boolean.FALSE, id };
+        jdbcTemplate.query(sql, args, new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+                nodes.add(getNode(sql, rs));
+            }
+        });
+    }
+
+    private Node getNode(String sql, ResultSet rs) throws SQLException {
+        final int id = rs.getInt(1);
+        final int resourceId = rs.getInt(2);
+        final String name = rs.getString(3);
+        final int ownerId = rs.getInt(4);
+        final int prototypeId = rs.getInt(5);
+        final int typeId = rs.getInt(6);
+        final String typeName = rs.getString(7);
+        if (sql.startsWith(PLATFORM_SQL)) {
+            return new Node(AppdefEntityID.newPlatformID(id), resourceId, name, ownerId,
+                            prototypeId, typeId, typeName, null, false);
+        } else if (sql.startsWith(SERVER_SQL)) {
+            final int platformId = rs.getInt(8);
+            return new Node(AppdefEntityID.newServerID(id), resourceId, name, ownerId,
+                            prototypeId, typeId, typeName,
+                            rs.wasNull() ? null : AppdefEntityID.newPlatformID(platformId),
+                            rs.getBoolean(9));
+        }
+        final int serverId = rs.getInt(8);
+        return new Node(AppdefEntityID.newServiceID(id), resourceId, name, ownerId, prototypeId,
+                        typeId, typeName,
+                        rs.wasNull() ? null : AppdefEntityID.newServerID(serverId), false);
+    }
+}
@@ -68,6 +68,7 @@ import org.hyperic.hq.authz.shared.PermissionException;
 import org.hyperic.hq.authz.shared.PermissionManager;
 import org.hyperic.hq.authz.shared.ResourceGroupManager;
 import org.hyperic.hq.authz.shared.ResourceManager;
+import org.hyperic.hq.autoinventory.server.session.RuntimeReportDigestCache;
 import org.hyperic.hq.common.NotFoundException;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.hq.common.VetoException;
@@ -121,6 +122,7 @@ public class ServerManagerImpl implements ServerManager {
     private ResourceGroupManager resourceGroupManager;
     private ZeventEnqueuer zeventManager;
     private ResourceAuditFactory resourceAuditFactory;
+    private RuntimeReportDigestCache runtimeReportDigestCache;
 
     @Autowired
     public ServerManagerImpl(PermissionManager permissionManager, ApplicationDAO applicationDAO,
@@ -130,7 +132,8 @@ public class ServerManagerImpl implements ServerManager {
             CPropManager cpropManager, ConfigManager configManager, MeasurementManager measurementManager,
             AuditManager auditManager, AuthzSubjectManager authzSubjectManager,
             ResourceGroupManager resourceGroupManager, ZeventEnqueuer zeventManager,
-            ResourceAuditFactory resourceAuditFactory) {
+            ResourceAuditFactory resourceAuditFactory,
+            RuntimeReportDigestCache runtimeReportDigestCache) {
 
         this.permissionManager = permissionManager;
         this.applicationDAO = applicationDAO;
@@ -151,6 +154,7 @@ public class ServerManagerImpl implements ServerManager {
         this.resourceGroupManager = resourceGroupManager;
         this.zeventManager = zeventManager;
         this.resourceAuditFactory = resourceAuditFactory;
+        this.runtimeReportDigestCache = runtimeReportDigestCache;
     }
 
     /**
@@ -499,6 +503,11 @@ public class ServerManagerImpl implements ServerManager {
             Platform platform = server.getPlatform();
             if(platform != null) {
                 platform.getServersBag().remove(server);
+                // an unchanged runtime report of the agent may still list the
+                // server, make it send a full report again
+                if(platform.getAgent() != null) {
+                    runtimeReportDigestCache.invalidate(platform.getAgent().getAgentToken());
+                }
             }
 
             // Remove Server from ServerType. If not done, results in an
@@ -69,6 +69,7 @@ import org.hyperic.hq.authz.shared.PermissionException;
 import org.hyperic.hq.authz.shared.PermissionManager;
 import org.hyperic.hq.authz.shared.ResourceGroupManager;
 import org.hyperic.hq.authz.shared.ResourceManager;
+import org.hyperic.hq.autoinventory.server.session.RuntimeReportDigestCache;
 import org.hyperic.hq.common.NotFoundException;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.hq.common.VetoException;
@@ -113,6 +114,7 @@ public class ServiceManagerImpl implements ServiceManager {
     private MeasurementManager measurementManager;
     private AuthzSubjectManager authzSubjectManager;
     private ZeventEnqueuer zeventManager;
+    private RuntimeReportDigestCache runtimeReportDigestCache;
 
     @Autowired
     public ServiceManagerImpl(AppServiceDAO appServiceDAO, PermissionManager permissionManager,
@@ -122,7 +124,8 @@ public class ServiceManagerImpl implements ServiceManager {
                               ServiceTypeDAO serviceTypeDAO,
                               ResourceGroupManager resourceGroupManager, CPropManager cpropManager,
                               MeasurementManager measurementManager,
-                              AuthzSubjectManager authzSubjectManager, ZeventEnqueuer zeventManager) {
+                              AuthzSubjectManager authzSubjectManager, ZeventEnqueuer zeventManager,
+                              RuntimeReportDigestCache runtimeReportDigestCache) {
         this.appServiceDAO = appServiceDAO;
         this.permissionManager = permissionManager;
         this.serviceDAO = serviceDAO;
@@ -137,6 +140,7 @@ public class ServiceManagerImpl implements ServiceManager {
         this.measurementManager = measurementManager;
         this.authzSubjectManager = authzSubjectManager;
         this.zeventManager = zeventManager;
+        this.runtimeReportDigestCache = runtimeReportDigestCache;
     }
 
     public Service createService(AuthzSubject subject, Server server, ServiceType type,
@@ -1520,6 +1524,12 @@ public class ServiceManagerImpl implements ServiceManager {
         Server server = service.getServer();
         if (server != null) {
             server.getServices().remove(service);
+            // an unchanged runtime report of the agent may still list the
+            // service, make it send a full report again
+            final Platform platform = server.getPlatform();
+            if (platform != null && platform.getAgent() != null) {
+                runtimeReportDigestCache.invalidate(platform.getAgent().getAgentToken());
+            }
         }
 
         // Remove from ServiceType collection
@@ -235,6 +235,18 @@ public class ResourceDAO
         return getSession().createQuery(sql).setInteger(0, owner.getId().intValue()).list();
     }
 
+    @SuppressWarnings("unchecked")
+    public List<Integer> findIdsByOwner(AuthzSubject owner) {
+        String sql = "select r.id from Resource r where r.owner.id = ?";
+        return getSession().createQuery(sql).setInteger(0, owner.getId().intValue()).list();
+    }
+
+    @SuppressWarnings("unchecked")
+    public Collection<Resource> findByResourceType(ResourceType type) {
+        String sql = "from Resource where resourceType.id = ?";
+        return getSession().createQuery(sql).setInteger(0, type.getId().intValue()).list();
+    }
+
     @SuppressWarnings("unchecked")
     public Collection<Resource> findByOwnerAndType(AuthzSubject owner, ResourceType type) {
         String sql = "from Resource where owner.id = ? and resourceType.id = ?";
@@ -41,6 +41,8 @@ import java.util.TreeSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Query;
+import org.hyperic.hq.appdef.server.session.ResourceTreeIndex;
+import org.hyperic.hq.appdef.shared.AppdefEntityConstants;
 import org.hyperic.hq.appdef.shared.AppdefEntityID;
 import org.hyperic.hq.appdef.shared.AppdefUtil;
 import org.hyperic.hq.authz.server.session.AuthzSubject;
@@ -545,16 +547,43 @@ public class PermissionManagerImpl extends PermissionManager {
         if (types.isEmpty()) {
             return rtn;
         }
-        final ResourceDAO resourceDAO = getResourceDAO();
-        final Collection<Resource> resources = (subj.getId().equals(1)) ?
-            resourceDAO.findAll() : resourceDAO.findByOwner(subj, PageControl.SORT_UNSORTED);
-        final Set<Integer> typeIds = new HashSet<Integer>();
+        final boolean isAdmin = subj.getId().equals(1);
+        // platforms, servers and services are counted from the resource tree
+        // instead of loading all of their resources, the owner is the
+        // permission check.  Owners change without a zevent, so the owned
+        // resource ids are read from the database rather than from the tree.
+        final Set<Integer> appdefTypes = new HashSet<Integer>();
+        final Collection<ResourceType> otherTypes = new ArrayList<ResourceType>();
         for (final ResourceType type : types) {
-            typeIds.add(type.getId());
+            if (type.getId().equals(AuthzConstants.authzPlatform)) {
+                appdefTypes.add(AppdefEntityConstants.APPDEF_TYPE_PLATFORM);
+            } else if (type.getId().equals(AuthzConstants.authzServer)) {
+                appdefTypes.add(AppdefEntityConstants.APPDEF_TYPE_SERVER);
+            } else if (type.getId().equals(AuthzConstants.authzService)) {
+                appdefTypes.add(AppdefEntityConstants.APPDEF_TYPE_SERVICE);
+            } else {
+                otherTypes.add(type);
+            }
+        }
+        final ResourceDAO resourceDAO = getResourceDAO();
+        if (!appdefTypes.isEmpty()) {
+            final Set<Integer> owned = isAdmin ? null :
+                new HashSet<Integer>(resourceDAO.findIdsByOwner(subj));
+            Bootstrap.getBean(ResourceTreeIndex.class).countInstances(appdefTypes,
+                isAdmin ? ResourceTreeIndex.ALL : new ResourceTreeIndex.Filter() {
+                    public boolean isViewable(ResourceTreeIndex.Node node) {
+                        return owned.contains(node.getResourceId());
+                    }
+                }, rtn);
+        }
+        final Collection<Resource> resources = new ArrayList<Resource>();
+        for (final ResourceType type : otherTypes) {
+            resources.addAll(isAdmin ? resourceDAO.findByResourceType(type) :
+                                       resourceDAO.findByOwnerAndType(subj, type));
         }
         ResourceGroupManager resourceGroupManager = Bootstrap.getBean(ResourceGroupManager.class);
         for (final Resource r : resources) {
-            if (r == null || r.isInAsyncDeleteState() || r.isSystem() || !typeIds.contains(r.getResourceType().getId())) {
+            if (r == null || r.isInAsyncDeleteState() || r.isSystem()) {
                 continue;
             }
             final int protoType = r.getPrototype().getId();
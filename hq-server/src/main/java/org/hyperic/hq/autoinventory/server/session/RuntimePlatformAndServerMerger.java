@@ -42,6 +42,11 @@ public interface RuntimePlatformAndServerMerger {
     void reportAIRuntimeReport(String agentToken, CompositeRuntimeResourceReport crrr) throws AutoinventoryException,
         PermissionException, ValidationException, ApplicationException;
 
-    void schedulePlatformAndServerMerges(String agentToken, CompositeRuntimeResourceReport crrr);
+    /**
+     * @return false if the report was dropped because the digests of the
+     *         unchanged server reports did not match, in which case the agent
+     *         has to send a full report
+     */
+    boolean schedulePlatformAndServerMerges(String agentToken, CompositeRuntimeResourceReport crrr);
 
 }
@@ -44,6 +44,7 @@ import org.hyperic.hq.autoinventory.AutoinventoryException;
 import org.hyperic.hq.autoinventory.CompositeRuntimeResourceReport;
 import org.hyperic.hq.autoinventory.server.session.RuntimeReportProcessor.ServiceMergeInfo;
 import org.hyperic.hq.common.ApplicationException;
+import org.hyperic.hq.product.RuntimeResourceReport;
 import org.hyperic.hq.product.shared.ProductManager;
 import org.hyperic.hq.zevents.ZeventManager;
 import org.springframework.beans.BeansException;
@@ -52,6 +53,8 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Component
 public class RuntimePlatformAndServerMergerImpl implements ApplicationContextAware, RuntimePlatformAndServerMerger {
@@ -63,15 +66,18 @@ public class RuntimePlatformAndServerMergerImpl implements ApplicationContextAwa
     private AuthzSubjectManager authzSubjectManager;
     private ProductManager productManager;
     private ApplicationContext applicationContext;
+    private RuntimeReportDigestCache runtimeReportDigestCache;
 
     @Autowired
     public RuntimePlatformAndServerMergerImpl(AgentManager agentManager, 
                                               ServiceMerger serviceMerger, AuthzSubjectManager authzSubjectManager,
-                                              ProductManager productManager) {
+                                              ProductManager productManager,
+                                              RuntimeReportDigestCache runtimeReportDigestCache) {
         this.agentManager = agentManager;
         this.serviceMerger = serviceMerger;
         this.authzSubjectManager = authzSubjectManager;
         this.productManager = productManager;
+        this.runtimeReportDigestCache = runtimeReportDigestCache;
     }
 
     /**
@@ -85,13 +91,61 @@ public class RuntimePlatformAndServerMergerImpl implements ApplicationContextAwa
         throws ApplicationException, AutoinventoryException {
         AuthzSubject subject = getHQAdmin();
 
-        RuntimeReportProcessor rrp = applicationContext.getBean(RuntimeReportProcessor.class);
+        final RuntimeReportProcessor rrp = applicationContext.getBean(RuntimeReportProcessor.class);
 
-        rrp.processRuntimeReport(subject, agentToken, crrr);
+        Set<Integer> unchangedServerIds = runtimeReportDigestCache.getUnchangedServerIds(agentToken, crrr);
+        if (unchangedServerIds == null) {
+            log.warn("Servers merged from the unchanged runtime reports of agentToken=" + agentToken +
+                     " are unknown, servers missing from the report are marked as zombies and the" +
+                     " agent will be asked for a full report");
+            runtimeReportDigestCache.invalidate(agentToken);
+        }
+        if (crrr.isDifferential()) {
+            recordMergesAfterCommit(agentToken, rrp);
+        }
+        rrp.processRuntimeReport(subject, agentToken, crrr, unchangedServerIds);
         mergeServiceTypes(rrp.getServiceTypeMerges());
         return rrp.getServiceMerges();
     }
 
+    /**
+     * Keep track of the servers merged from each server report once they are
+     * committed, so that they are not considered missing when the reports
+     * are unchanged next time.  The digests of the agent are dropped if the
+     * merge fails.
+     */
+    private void recordMergesAfterCommit(final String agentToken, final RuntimeReportProcessor rrp) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            public void suspend() {
+            }
+
+            public void resume() {
+            }
+
+            public void flush() {
+            }
+
+            public void beforeCompletion() {
+            }
+
+            public void beforeCommit(boolean readOnly) {
+            }
+
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    runtimeReportDigestCache.invalidate(agentToken);
+                }
+            }
+
+            public void afterCommit() {
+                final Map<RuntimeResourceReport, Set<Integer>> merged = rrp.getMergedServerIds();
+                for (final Map.Entry<RuntimeResourceReport, Set<Integer>> entry : merged.entrySet()) {
+                    runtimeReportDigestCache.merged(agentToken, entry.getKey(), entry.getValue());
+                }
+            }
+        });
+    }
+
     private void mergeServiceTypes(final Set<org.hyperic.hq.product.ServiceType> serviceTypeMerges) {
         if (!serviceTypeMerges.isEmpty()) {
             Map<String, Set<org.hyperic.hq.product.ServiceType>> productTypes = new HashMap<String, Set<org.hyperic.hq.product.ServiceType>>();
@@ -125,9 +179,15 @@ public class RuntimePlatformAndServerMergerImpl implements ApplicationContextAwa
         }
     }
 
-    public void schedulePlatformAndServerMerges(String agentToken, CompositeRuntimeResourceReport crrr) {
+    public boolean schedulePlatformAndServerMerges(String agentToken, CompositeRuntimeResourceReport crrr) {
+        if (!runtimeReportDigestCache.accept(agentToken, crrr)) {
+            log.info("Runtime report digests of agentToken=" + agentToken +
+                     " do not match, asking the agent for a full report");
+            return false;
+        }
         MergePlatformAndServersZevent event = new MergePlatformAndServersZevent(agentToken, crrr);
         ZeventManager.getInstance().enqueueEventAfterCommit(event);
+        return true;
     }
 
     @Transactional
@@ -0,0 +1,141 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.autoinventory.server.session;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hyperic.hq.autoinventory.CompositeRuntimeResourceReport;
+import org.hyperic.hq.product.RuntimeResourceReport;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the digests of the runtime server reports last accepted from each
+ * agent, along with the ids of the appdef servers merged from them.  Agents
+ * which send differential reports leave out the server reports which did not
+ * change and only list their digests.  Those are checked against the digests
+ * kept here before the report is merged, on a mismatch (e.g. after an HQ
+ * server restart or a failed merge) the agent is asked for a full report.
+ */
+@Component
+public class RuntimeReportDigestCache {
+
+    private static class ReportState {
+        private final String digest;
+        // ids of the appdef servers merged from the report, null until the
+        // merge of the report committed
+        private Set<Integer> mergedServerIds;
+
+        private ReportState(String digest) {
+            this.digest = digest;
+        }
+    }
+
+    // agentToken -> reporting serverId -> ReportState
+    private final Map<String, Map<Integer, ReportState>> cache =
+        new HashMap<String, Map<Integer, ReportState>>();
+
+    /**
+     * Check the digests of the unchanged server reports and remember the
+     * digests of the changed ones.  The server reports which are no longer
+     * reported are dropped.
+     * 
+     * @return false if the digests did not match, in which case the report
+     *         must be dropped and the agent has to send a full report
+     */
+    public synchronized boolean accept(String agentToken, CompositeRuntimeResourceReport crrr) {
+        final Map<Integer, ReportState> states = cache.remove(agentToken);
+        if (!crrr.isDifferential()) {
+            return true;
+        }
+        final Map<Integer, ReportState> rtn = new HashMap<Integer, ReportState>();
+        for (final RuntimeResourceReport report : crrr.getUnchangedServerReports()) {
+            final ReportState state = (states == null) ? null : states.get(report.getServerId());
+            if (state == null || !state.digest.equals(report.getDigest())) {
+                return false;
+            }
+            rtn.put(report.getServerId(), state);
+        }
+        for (final RuntimeResourceReport report : crrr.getServerReports()) {
+            rtn.put(report.getServerId(), new ReportState(report.getDigest()));
+        }
+        cache.put(agentToken, rtn);
+        return true;
+    }
+
+    /**
+     * @return the ids of the appdef servers merged from the unchanged server
+     *         reports, null if they are not known
+     */
+    public synchronized Set<Integer> getUnchangedServerIds(String agentToken,
+                                                           CompositeRuntimeResourceReport crrr) {
+        final RuntimeResourceReport[] unchanged = crrr.getUnchangedServerReports();
+        if (unchanged.length == 0) {
+            return Collections.emptySet();
+        }
+        final Map<Integer, ReportState> states = cache.get(agentToken);
+        if (states == null) {
+            return null;
+        }
+        final Set<Integer> rtn = new HashSet<Integer>();
+        for (final RuntimeResourceReport report : unchanged) {
+            final ReportState state = states.get(report.getServerId());
+            if (state == null || !state.digest.equals(report.getDigest()) ||
+                state.mergedServerIds == null) {
+                return null;
+            }
+            rtn.addAll(state.mergedServerIds);
+        }
+        return rtn;
+    }
+
+    /**
+     * Record the appdef servers merged from the server report, once the merge
+     * committed
+     */
+    public synchronized void merged(String agentToken, RuntimeResourceReport report,
+                                    Set<Integer> serverIds) {
+        final Map<Integer, ReportState> states = cache.get(agentToken);
+        if (states == null || report.getDigest() == null) {
+            return;
+        }
+        final ReportState state = states.get(report.getServerId());
+        if (state != null && state.digest.equals(report.getDigest())) {
+            state.mergedServerIds = serverIds;
+        }
+    }
+
+    /**
+     * Forget the digests of the agent so that it is asked for a full report
+     * the next time it sends a differential one
+     */
+    public synchronized void invalidate(String agentToken) {
+        cache.remove(agentToken);
+    }
+}
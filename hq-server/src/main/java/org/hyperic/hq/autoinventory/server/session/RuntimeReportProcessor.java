@@ -115,6 +115,12 @@ public class RuntimeReportProcessor {
     private List<ServiceMergeInfo> _serviceMerges = new ArrayList<ServiceMergeInfo>();
     private Set<ServiceType> serviceTypeMerges = new HashSet<ServiceType>();
     private String _agentToken;
+    // ids of the appdef servers merged from the unchanged server reports,
+    // null if they are not known
+    private Set<Integer> _unchangedServerIds;
+    private Map<RuntimeResourceReport, Set<Integer>> _mergedServerIds =
+        new HashMap<RuntimeResourceReport, Set<Integer>>();
+    private Set<Integer> _currentMergedServerIds;
     private ServiceTypeFactory serviceTypeFactory;
     private AIAuditFactory aiAuditFactory;
     private SessionFactory sessionFactory;
@@ -143,10 +149,20 @@ public class RuntimeReportProcessor {
         this.sessionFactory = sessionFactory;
     }
 
-    public void processRuntimeReport(AuthzSubject subject, String agentToken, CompositeRuntimeResourceReport crrr)
+    /**
+     * @param unchangedServerIds the ids of the appdef servers merged from the
+     *        server reports which the agent left out of the report because
+     *        they did not change.  These are not marked as zombies.  null if
+     *        they are not known, in which case no server is marked as zombie
+     *        but the servers the report does not list are rescheduled until
+     *        the agent sends a full report.
+     */
+    public void processRuntimeReport(AuthzSubject subject, String agentToken, CompositeRuntimeResourceReport crrr,
+                                     Set<Integer> unchangedServerIds)
         throws AutoinventoryException, PermissionException, ValidationException, ApplicationException {
         _overlord = subjectManager.getOverlordPojo();
         _agentToken = agentToken;
+        _unchangedServerIds = unchangedServerIds;
 
         Agent agent = agentManager.getAgent(_agentToken);
         Audit audit = aiAuditFactory.newRuntimeImportAudit(agent);
@@ -227,11 +243,14 @@ public class RuntimeReportProcessor {
         log.info("Merging server reports into appdef (server count=" + appdefServers.length + ")");
         for (int i = 0; i < appdefServers.length; i++) {
 
+            serverReport = serverReports[i];
+            _currentMergedServerIds = new HashSet<Integer>();
+            _mergedServerIds.put(serverReport, _currentMergedServerIds);
             Server appdefServer = appdefServers[i];
             if (appdefServer == null) {
                 continue;
             }
-            serverReport = serverReports[i];
+            _currentMergedServerIds.add(appdefServer.getId());
             aiplatforms = serverReport.getAIPlatforms();
             if (aiplatforms == null) {
                 continue;
@@ -377,11 +396,17 @@ public class RuntimeReportProcessor {
         }
 
         // any servers that we haven't handled, we should mark them
-        // as AI-zombies.
+        // as AI-zombies, unless they were merged from a server report
+        // which the agent left out because it did not change.  If those
+        // are not known any of the servers may be unchanged, so none is
+        // marked, they are only rescheduled.
         List rtn = new ArrayList(appdefServers.size());
         for (Iterator it = appdefServers.iterator(); it.hasNext();) {
             Server server = (Server) it.next();
-            if (server.isWasAutodiscovered()) {
+            if (_unchangedServerIds != null && _unchangedServerIds.contains(server.getId())) {
+                continue;
+            }
+            if (_unchangedServerIds != null && server.isWasAutodiscovered()) {
                 serverManager.setAutodiscoveryZombie(server, true);
             }
             Resource r = server.getResource();
@@ -456,6 +481,7 @@ public class RuntimeReportProcessor {
                     aiserver.setAutoinventoryIdentifier(appdefServerAIID);
                 }
                 appdefServers.remove(i);
+                _currentMergedServerIds.add(server.getId());
                 break;
             }
         }
@@ -494,6 +520,7 @@ public class RuntimeReportProcessor {
                 AuthzSubject serverOwner = platform.getResource().getOwner();
                 Integer platformPK = platform.getId();
                 server = serverManager.createServer(serverOwner, platformPK, serverTypePK, foundAppdefServer);
+                _currentMergedServerIds.add(server.getId());
 
                 log.info("New server created: " + foundAppdefServer.getName() + " (id=" + server.getId() + ")");
             }
@@ -645,6 +672,13 @@ public class RuntimeReportProcessor {
         return serviceTypeMerges;
     }
 
+    /**
+     * @return the ids of the appdef servers merged from each server report
+     */
+    public Map<RuntimeResourceReport, Set<Integer>> getMergedServerIds() {
+        return _mergedServerIds;
+    }
+
     private boolean turnOffRuntimeDiscovery(AuthzSubject subject, Integer serverId) {
         AppdefEntityID aid = AppdefEntityID.newServerID(serverId);
         log.info("Disabling RuntimeDiscovery for server: " + serverId);
@@ -195,8 +195,11 @@ public interface AutoinventoryManager {
      * @param agentToken The token identifying the agent that sent the report.
      * @param crrr The CompositeRuntimeResourceReport that was generated during
      *        the runtime autoinventory scan.
+     * @return false if the digests of the unchanged server reports did not
+     *         match, in which case the report is dropped and the agent has to
+     *         send a full report.
      */
-    public void reportAIRuntimeReport(String agentToken, CompositeRuntimeResourceReport crrr)
+    public boolean reportAIRuntimeReport(String agentToken, CompositeRuntimeResourceReport crrr)
         throws AutoinventoryException, PermissionException, ValidationException,
         ApplicationException;
 
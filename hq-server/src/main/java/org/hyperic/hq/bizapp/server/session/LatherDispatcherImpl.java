@@ -70,11 +70,13 @@ import org.hyperic.hq.authz.shared.AuthzSubjectManager;
 import org.hyperic.hq.authz.shared.PermissionException;
 import org.hyperic.hq.authz.shared.PermissionManager;
 import org.hyperic.hq.autoinventory.AutoinventoryException;
+import org.hyperic.hq.autoinventory.CompositeRuntimeResourceReport;
 import org.hyperic.hq.autoinventory.ScanStateCore;
 import org.hyperic.hq.autoinventory.shared.AutoinventoryManager;
 import org.hyperic.hq.bizapp.shared.lather.AiPlatformLatherValue;
 import org.hyperic.hq.bizapp.shared.lather.AiSendReport_args;
 import org.hyperic.hq.bizapp.shared.lather.AiSendRuntimeReport_args;
+import org.hyperic.hq.bizapp.shared.lather.AiSendRuntimeReport_result;
 import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
 import org.hyperic.hq.bizapp.shared.lather.ControlGetPluginConfig_args;
 import org.hyperic.hq.bizapp.shared.lather.ControlGetPluginConfig_result;
@@ -508,6 +510,8 @@ public class LatherDispatcherImpl implements LatherDispatcher {
         }
 
         res.setTime(now());
+        res.setBackoff(reportProcessor.getReportBackoff());
+        res.setPackedReports(true);
         return res;
     }
 
@@ -532,16 +536,24 @@ public class LatherDispatcherImpl implements LatherDispatcher {
      * Called by agents to report resources detected via runtime autoinventory
      * scans, using the monitoring interfaces to a server.
      */
-    private NullLatherValue cmdAiSendRuntimeReport(AiSendRuntimeReport_args arg)
+    private LatherValue cmdAiSendRuntimeReport(AiSendRuntimeReport_args arg)
         throws LatherRemoteException {
 
+        CompositeRuntimeResourceReport report = arg.getReport();
+        boolean accepted = false;
         try {
-            autoinventoryManager.reportAIRuntimeReport(arg.getAgentToken(), arg.getReport());
+            accepted = autoinventoryManager.reportAIRuntimeReport(arg.getAgentToken(), report);
         } catch (Exception exc) {
             log.error("Runtime report error: " + exc.getMessage(), exc);
         }
 
-        return NullLatherValue.INSTANCE;
+        if (!report.isDifferential()) {
+            // older agents don't know the result
+            return NullLatherValue.INSTANCE;
+        }
+        AiSendRuntimeReport_result res = new AiSendRuntimeReport_result();
+        res.setFullSync(!accepted);
+        return res;
     }
 
     /**
@@ -25,6 +25,7 @@
 
 package org.hyperic.hq.bizapp.server.session;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -112,6 +113,7 @@ import org.hyperic.hq.measurement.shared.AvailabilityManager;
 import org.hyperic.hq.measurement.shared.DataManager;
 import org.hyperic.hq.measurement.shared.HighLowMetricValue;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
+import org.hyperic.hq.measurement.shared.MetricDataRowHandler;
 import org.hyperic.hq.measurement.shared.ProblemMetricManager;
 import org.hyperic.hq.measurement.shared.TemplateManager;
 import org.hyperic.hq.product.MetricValue;
@@ -1146,6 +1148,20 @@ public class MeasurementBossImpl implements MeasurementBoss {
         return dataManager.getHistoricalData(m, begin, end, pc);
     }
 
+    /**
+     * Streams the data of the measurements to the handler, one row per
+     * timestamp
+     * @param measurements the measurements to export, a <code>null</code>
+     *        entry exports a column without values
+     */
+    @Transactional(readOnly = true)
+    public void exportMeasurementData(int sessionId, List<Measurement> measurements, long begin,
+                                      long end, MetricDataRowHandler handler)
+        throws SessionNotFoundException, SessionTimeoutException, IOException {
+        sessionManager.getSubject(sessionId);
+        dataManager.exportHistoricalData(measurements, begin, end, handler);
+    }
+
     /**
      * Dumps data for a specific measurement template for an instance based on
      * an interval
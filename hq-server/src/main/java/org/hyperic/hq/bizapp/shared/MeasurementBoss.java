@@ -25,6 +25,7 @@
  */
 package org.hyperic.hq.bizapp.shared;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -62,6 +63,7 @@ import org.hyperic.hq.measurement.TemplateNotFoundException;
 import org.hyperic.hq.measurement.server.session.Measurement;
 import org.hyperic.hq.measurement.server.session.MeasurementTemplate;
 import org.hyperic.hq.measurement.shared.HighLowMetricValue;
+import org.hyperic.hq.measurement.shared.MetricDataRowHandler;
 import org.hyperic.hq.product.MetricValue;
 import org.hyperic.util.ConfigPropertyException;
 import org.hyperic.util.config.EncodingException;
@@ -337,6 +339,16 @@ public interface MeasurementBoss {
     public PageList<HighLowMetricValue> findMeasurementData(int sessionId, Measurement m, long begin, long end,
                                                             PageControl pc);
 
+    /**
+     * Streams the data of the measurements to the handler, one row per
+     * timestamp
+     * @param measurements the measurements to export, a <code>null</code>
+     *        entry exports a column without values
+     */
+    public void exportMeasurementData(int sessionId, List<Measurement> measurements, long begin, long end,
+                                      MetricDataRowHandler handler) throws SessionNotFoundException,
+        SessionTimeoutException, IOException;
+
     /**
      * Dumps data for a specific measurement template for an instance based on
      * an interval
@@ -39,15 +39,29 @@ import org.springframework.dao.OptimisticLockingFailureException;
 public class EscalationRunner implements Runnable {
     
     private Integer stateId;
+    private long scheduledTime;
     private EscalationRuntime escalationRuntime = Bootstrap.getBean(EscalationRuntime.class);
     private ConcurrentStatsCollector concurrentStatsCollector = Bootstrap.getBean(ConcurrentStatsCollector.class);
     private final Log log = LogFactory.getLog(EscalationRunner.class);
     
     public EscalationRunner(Integer stateId) {
+        this(stateId, 0);
+    }
+
+    /**
+     * @param scheduledTime the time the state was scheduled to run at, the
+     * delay until it actually runs is recorded as the escalation lag
+     */
+    public EscalationRunner(Integer stateId, long scheduledTime) {
         this.stateId = stateId;
+        this.scheduledTime = scheduledTime;
     }
 
     public void run() {
+        if (scheduledTime > 0) {
+            concurrentStatsCollector.addStat(Math.max(0, System.currentTimeMillis() - scheduledTime),
+                ConcurrentStatsCollector.ESCALATION_LAG);
+        }
         int maxRetries = 3;
         for (int i=0; i<maxRetries; i++) {
             try {
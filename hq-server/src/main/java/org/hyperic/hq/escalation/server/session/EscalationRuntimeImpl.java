@@ -26,17 +26,14 @@ package org.hyperic.hq.escalation.server.session;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -59,7 +56,10 @@ import org.hyperic.hq.events.server.session.ClassicEscalationAlertType;
 import org.hyperic.hq.galerts.server.session.GalertEscalationAlertType;
 import org.hyperic.hq.galerts.server.session.GalertLogDAO;
 import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionSynchronization;
@@ -78,22 +78,26 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * 
  * The workflow looks something like this:
  * 
- * /- EscalationRunner Runtime ->[ScheduleWatcher] -- EscalationRunner \_
+ * /- EscalationRunner Runtime ->[EscalationTimingWheel] -- EscalationRunner \_
  * EscalationRunner | ->EsclManager.executeState
  * 
  * 
  * The Runtime puts {@link EscalationState}s into the schedule. When the
  * schedule determines the state's time is ready to run, the task is passed off
- * into an EscalationRunner (which comes from a thread pool) and kicked off.
+ * into an EscalationRunner (which comes from a bounded thread pool) and kicked
+ * off. If the pool is saturated the state is retried on the next tick of the
+ * schedule.
  */
 @Component
-public class EscalationRuntimeImpl implements EscalationRuntime {
+public class EscalationRuntimeImpl implements EscalationRuntime,
+		EscalationTimingWheel.ExpirationListener {
 
 	private final ThreadLocal _batchUnscheduleTxnListeners = new ThreadLocal();
 
-	private final Timer _schedule = new Timer("EscalationRuntime", true);
-	private final Map _stateIdsToTasks = new HashMap();
+	private final EscalationTimingWheel _schedule;
+	// both guarded by _esclEntityIdsToStateIds
 	private final Map _esclEntityIdsToStateIds = new HashMap();
+	private final Map _stateIdsToEsclEntityIds = new HashMap();
 
 	private final Semaphore _mutex = new Semaphore(1);
 
@@ -110,49 +114,70 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 	@Autowired
 	public EscalationRuntimeImpl(EscalationStateDAO escalationStateDao,
 			AuthzSubjectManager authzSubjectManager, AlertDAO alertDAO,
-			GalertLogDAO galertLogDAO, ConcurrentStatsCollector concurrentStatsCollector) {
+			GalertLogDAO galertLogDAO, ConcurrentStatsCollector concurrentStatsCollector,
+			@Value("#{tweakProperties['hq.escalation.tickMillis'] }") Long tickMillis,
+			@Value("#{tweakProperties['hq.escalation.wheelSize'] }") Long wheelSize,
+			@Value("#{tweakProperties['hq.escalation.executorThreads'] }") Long executorThreads,
+			@Value("#{tweakProperties['hq.escalation.executorQueueSize'] }") Long executorQueueSize) {
 		this.escalationStateDao = escalationStateDao;
 		this.authzSubjectManager = authzSubjectManager;
 		this.alertDAO = alertDAO;
 		this.galertLogDAO = galertLogDAO;
 		this.concurrentStatsCollector = concurrentStatsCollector;
-		// Want threads to never die (XXX, scottmf, keeping current
-		// functionality to get rid of
-		// backport apis but don't think this is a good idea)
-		// 3 threads to service requests
-		_executor = new ThreadPoolExecutor(3, 3, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue());
+		_schedule = new EscalationTimingWheel("EscalationRuntime",
+				(tickMillis == null) ? 1000 : tickMillis.longValue(),
+				(wheelSize == null) ? 512 : wheelSize.intValue(), this);
+		// Want threads to never die, the queue is bounded so that an alert
+		// storm is throttled by the schedule rather than piling up here
+		final int threads = (executorThreads == null) ? 8 : Math.max(1, executorThreads.intValue());
+		final int queueSize = (executorQueueSize == null) ? 10000 : Math.max(1, executorQueueSize.intValue());
+		_executor = new ThreadPoolExecutor(threads, threads, Long.MAX_VALUE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue(queueSize));
 	}
 	
 	@PostConstruct
 	public void initStatsCollection() {
 		concurrentStatsCollector.register(ConcurrentStatsCollector.ESCALATION_EXECUTE_STATE_TIME);
+		concurrentStatsCollector.register(ConcurrentStatsCollector.ESCALATION_LAG);
+		concurrentStatsCollector.register(ConcurrentStatsCollector.ESCALATION_REJECTED);
+		concurrentStatsCollector.register(new StatCollector() {
+			public long getVal() throws StatUnreachableException {
+				return _schedule.size();
+			}
+			public String getId() {
+				return ConcurrentStatsCollector.ESCALATION_SCHEDULED;
+			}
+		});
+		concurrentStatsCollector.register(new StatCollector() {
+			public long getVal() throws StatUnreachableException {
+				return _executor.getQueue().size();
+			}
+			public String getId() {
+				return ConcurrentStatsCollector.ESCALATION_QUEUE_SIZE;
+			}
+		});
+		_schedule.start();
 	}
 	
 	@PreDestroy 
 	public final void destroy() { 
+	    this._schedule.stop() ;
 	    this._executor.shutdown() ;
-	    this._schedule.cancel() ;
 	}//EOM 
 
 	/**
-	 * This class is invoked when the clock daemon wakes up and decides that it
-	 * is time to look at an escalation.
+	 * Invoked by the schedule when it is time to look at an escalation.
 	 */
-	private class ScheduleWatcher extends TimerTask {
-		private final Integer _stateId;
-		private final Executor _executor;
-
-		private ScheduleWatcher(Integer stateId, Executor executor) {
-			_stateId = stateId;
-			_executor = executor;
-		}
-
-		@Override
-        public void run() {
-			try {
-				_executor.execute(new EscalationRunner(_stateId));
-			}  catch(Throwable t) {
-				log.error(t,t); 
+	public void expired(Integer stateId, long scheduledTime) {
+		try {
+			_executor.execute(new EscalationRunner(stateId, scheduledTime));
+		} catch (RejectedExecutionException e) {
+			if (_executor.isShutdown()) {
+				return;
+			}
+			concurrentStatsCollector.addStat(1, ConcurrentStatsCollector.ESCALATION_REJECTED);
+			if (_schedule.retry(stateId, scheduledTime) && log.isDebugEnabled()) {
+				log.debug("Executor is saturated, retrying state[" + stateId + "]");
 			}
 		}
 	}
@@ -269,7 +294,7 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 			EscalatingEntityIdentifier[] escalatingEntities) {
 		List stateIds = new ArrayList(escalatingEntities.length);
 
-		synchronized (_stateIdsToTasks) {
+		synchronized (_esclEntityIdsToStateIds) {
 			for (int i = 0; i < escalatingEntities.length; i++) {
 				Integer stateId = (Integer) _esclEntityIdsToStateIds
 						.get(escalatingEntities[i]);
@@ -286,33 +311,36 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 	}
 
 	private void unscheduleEscalation_(Integer stateId) {
-		synchronized (_stateIdsToTasks) {
-			doUnscheduleEscalation_(stateId);
-			_esclEntityIdsToStateIds.values().remove(stateId);
+		synchronized (_esclEntityIdsToStateIds) {
+			Object esclEntityId = _stateIdsToEsclEntityIds.remove(stateId);
+			if (esclEntityId != null) {
+				_esclEntityIdsToStateIds.remove(esclEntityId);
+			}
+			if (_schedule.cancel(stateId)) {
+				log.debug("Canceled state[" + stateId + "]");
+			} else {
+				log.debug("Canceling state[" + stateId + "] but was "
+						+ "not found");
+			}
 		}
 	}
 
 	private void unscheduleAllEscalations_(
 			EscalatingEntityIdentifier[] esclEntityIds) {
-		synchronized (_stateIdsToTasks) {
+		List<Integer> stateIds = new ArrayList<Integer>(esclEntityIds.length);
+		synchronized (_esclEntityIdsToStateIds) {
 			for (int i = 0; i < esclEntityIds.length; i++) {
 				Integer stateId = (Integer) _esclEntityIdsToStateIds
 						.remove(esclEntityIds[i]);
-				doUnscheduleEscalation_(stateId);
+				if (stateId != null) {
+					_stateIdsToEsclEntityIds.remove(stateId);
+					stateIds.add(stateId);
+				}
 			}
-		}
-	}
-
-	private void doUnscheduleEscalation_(Integer stateId) {
-		if (stateId != null) {
-			TimerTask task = (TimerTask) _stateIdsToTasks.remove(stateId);
-
-			if (task != null) {
-				task.cancel();
-				log.debug("Canceled state[" + stateId + "]");
-			} else {
-				log.debug("Canceling state[" + stateId + "] but was "
-						+ "not found");
+			int canceled = _schedule.cancelAll(stateIds);
+			if (log.isDebugEnabled()) {
+				log.debug("Canceled " + canceled + " of " + stateIds.size()
+						+ " states");
 			}
 		}
 	}
@@ -447,23 +475,20 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 					+ "transient escalation state (stateId=null).");
 		}
 
-		synchronized (_stateIdsToTasks) {
-			   ScheduleWatcher task = (ScheduleWatcher) _stateIdsToTasks.get(stateId);
-
-			if (task != null) {
-				// Previously scheduled. Unschedule
-				task.cancel();
+		synchronized (_esclEntityIdsToStateIds) {
+			// Previously scheduled states are moved to the new time
+			if (_schedule.schedule(stateId, schedTime)) {
 				log.debug("Rescheduling state[" + stateId + "]");
 			} else {
 				log.debug("Scheduling state[" + stateId + "]");
 			}
-			
-			 task = new ScheduleWatcher(stateId, _executor);
-			 _schedule.schedule(task, new Date(schedTime));
 
-			_stateIdsToTasks.put(stateId, task);
-			_esclEntityIdsToStateIds.put(new EscalatingEntityIdentifier(state),
-					stateId);
+			EscalatingEntityIdentifier esclEntityId = new EscalatingEntityIdentifier(state);
+			Object prevStateId = _esclEntityIdsToStateIds.put(esclEntityId, stateId);
+			if (prevStateId != null && !prevStateId.equals(stateId)) {
+				_stateIdsToEsclEntityIds.remove(prevStateId);
+			}
+			_stateIdsToEsclEntityIds.put(stateId, esclEntityId);
 		}
 	}
 
@@ -0,0 +1,261 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.escalation.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hashed timing wheel which holds the next action time of the escalation
+ * states.  Time is split into ticks of tickMillis, a state is hashed into the
+ * bucket of the tick it is due in, so scheduling, rescheduling and canceling
+ * a state are O(1) no matter how many escalations are pending.  A single
+ * daemon thread visits one bucket per tick and hands the due states to the
+ * {@link ExpirationListener}.  States fire at most one tick late and never
+ * early.
+ */
+class EscalationTimingWheel {
+    private final Log log = LogFactory.getLog(EscalationTimingWheel.class);
+
+    interface ExpirationListener {
+        /**
+         * Invoked from the wheel thread, must not block
+         *
+         * @param scheduledTime the time the state was scheduled to run at
+         */
+        void expired(Integer stateId, long scheduledTime);
+    }
+
+    private static class Timeout {
+        private final Integer stateId;
+        private final long scheduledTime;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Integer stateId, long scheduledTime, long deadlineTick) {
+            this.stateId = stateId;
+            this.scheduledTime = scheduledTime;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final long tickMillis;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final Map<Integer, Timeout> timeouts = new HashMap<Integer, Timeout>();
+    private final ExpirationListener listener;
+    private final Thread thread;
+    private final long startTime;
+    // the next tick to visit, guarded by lock
+    private long currentTick = 0;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    EscalationTimingWheel(String name, long tickMillis, int wheelSize,
+                          ExpirationListener listener) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.listener = listener;
+        this.startTime = System.currentTimeMillis();
+        this.thread = new Thread(name) {
+            public void run() {
+                EscalationTimingWheel.this.run();
+            }
+        };
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        shutdown = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Schedule the state, replacing the time it was previously scheduled at
+     *
+     * @return true if the state was previously scheduled
+     */
+    boolean schedule(Integer stateId, long time) {
+        synchronized (lock) {
+            final boolean rtn = remove(stateId);
+            add(new Timeout(stateId, time, getTick(time)));
+            return rtn;
+        }
+    }
+
+    /**
+     * Run the state again on the next tick unless it was rescheduled or
+     * canceled in the meantime
+     *
+     * @param scheduledTime the time the state was originally scheduled at
+     * @return false if the state was rescheduled
+     */
+    boolean retry(Integer stateId, long scheduledTime) {
+        synchronized (lock) {
+            if (timeouts.containsKey(stateId)) {
+                return false;
+            }
+            add(new Timeout(stateId, scheduledTime, currentTick));
+            return true;
+        }
+    }
+
+    /**
+     * @return false if the state was not scheduled
+     */
+    boolean cancel(Integer stateId) {
+        synchronized (lock) {
+            return remove(stateId);
+        }
+    }
+
+    /**
+     * Cancel the states while holding the lock once
+     *
+     * @return the number of states which were scheduled
+     */
+    int cancelAll(Collection<Integer> stateIds) {
+        int rtn = 0;
+        synchronized (lock) {
+            for (final Integer stateId : stateIds) {
+                if (remove(stateId)) {
+                    rtn++;
+                }
+            }
+        }
+        return rtn;
+    }
+
+    int size() {
+        synchronized (lock) {
+            return timeouts.size();
+        }
+    }
+
+    private long getTick(long time) {
+        final long delta = time - startTime;
+        final long tick = (delta <= 0) ? 0 : (delta + tickMillis - 1) / tickMillis;
+        return Math.max(tick, currentTick);
+    }
+
+    private void add(Timeout timeout) {
+        final int bucket = (int) (timeout.deadlineTick & mask);
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeouts.put(timeout.stateId, timeout);
+    }
+
+    private boolean remove(Integer stateId) {
+        final Timeout timeout = timeouts.remove(stateId);
+        if (timeout == null) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev == null) {
+            buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * Unlinks the states which are due in the current tick and moves on to
+     * the next one.  States which are hashed into the same bucket but are due
+     * in a later round of the wheel stay.
+     */
+    private List<Timeout> expireCurrentTick() {
+        final List<Timeout> rtn = new ArrayList<Timeout>();
+        synchronized (lock) {
+            Timeout timeout = buckets[(int) (currentTick & mask)];
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                if (timeout.deadlineTick <= currentTick) {
+                    timeouts.remove(timeout.stateId);
+                    unlink(timeout);
+                    rtn.add(timeout);
+                }
+                timeout = next;
+            }
+            currentTick++;
+        }
+        return rtn;
+    }
+
+    private void run() {
+        while (!shutdown) {
+            final long sleep = startTime + (currentTick * tickMillis) - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // shutdown
+                }
+                continue;
+            }
+            for (final Timeout timeout : expireCurrentTick()) {
+                try {
+                    listener.expired(timeout.stateId, timeout.scheduledTime);
+                } catch (Throwable t) {
+                    log.error(t, t);
+                }
+            }
+        }
+    }
+}
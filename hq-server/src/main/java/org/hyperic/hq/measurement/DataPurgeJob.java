@@ -406,17 +406,10 @@ public class DataPurgeJob implements Runnable {
     void purgeMeasurements(long dataInterval, long purgeAfter) {
         long min = dataCompress.getMinTimestamp(dataInterval);
         // No data
-        if (min != 0) {
-            long interval = MeasurementConstants.HOUR;
-            long endWindow = purgeAfter;
-            long startWindow = endWindow - interval;
-            // while oldest timestamp in DB is older than purgeAfter, delete
-            // batches in one hour increments
-            while (endWindow > min) {
-                dataCompress.purgeMeasurements(dataInterval, startWindow, endWindow);
-                endWindow -= interval;
-                startWindow -= interval;
-            }
+        if (min != 0 && min < purgeAfter) {
+            // whole partitions are dropped, the data which precedes the
+            // partitions is still deleted in one hour increments
+            dataCompress.purgeMeasurements(dataInterval, min, purgeAfter);
         }
     }
 
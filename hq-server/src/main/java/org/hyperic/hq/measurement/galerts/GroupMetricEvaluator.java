@@ -0,0 +1,285 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.galerts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.util.collection.IntHashMap;
+
+/**
+ * Keeps the violators of a {@link MeasurementGtrigger} up to date
+ * incrementally.  The resources are tracked by measurement id, tracking a
+ * metric value only marks the resource dirty.  An evaluation of the time
+ * window re-examines the dirty resources and the resources whose result may
+ * have changed because the window moved past one of their metric values,
+ * which are kept in a heap ordered by that window start time.  The resources
+ * which did not change are not visited, so the cost of an evaluation depends
+ * on the number of reporting resources rather than on the group size.
+ *
+ * This class is not thread safe, it is used by the trigger processing thread
+ * only.
+ */
+class GroupMetricEvaluator {
+
+    interface DeletedMeasurementCheck {
+        /**
+         * @return <code>true</code> if the measurement or its resource has
+         *         been deleted
+         */
+        boolean isDeleted(int measurementId);
+    }
+
+    private final ComparisonOperator _comparator;
+    private final Float _metricVal;
+    private final boolean _isNotReportingOffending;
+    private final DeletedMeasurementCheck _deletedCheck;
+
+    // measurement id -> ResourceMetricTracker
+    private final IntHashMap _trackers = new IntHashMap();
+    // measurement id -> ResourceMetricTracker with a violating value or
+    // not reporting while this is offending
+    private final IntHashMap _violators = new IntHashMap();
+
+    private int[] _dirty = new int[16];
+    private int _numDirty = 0;
+
+    // min heap of (revalidation time, measurement id), stale entries are
+    // skipped when they are polled
+    private long[] _heapTimes = new long[16];
+    private int[] _heapIds = new int[16];
+    private int _heapSize = 0;
+
+    private long _windowLength = -1;
+
+    GroupMetricEvaluator(ComparisonOperator comparator, Float metricVal,
+                         boolean isNotReportingOffending,
+                         DeletedMeasurementCheck deletedCheck) {
+        _comparator = comparator;
+        _metricVal = metricVal;
+        _isNotReportingOffending = isNotReportingOffending;
+        _deletedCheck = deletedCheck;
+    }
+
+    /**
+     * Set the measurements which are scheduled for collection.  Trackers are
+     * created right away for the scheduled measurements in case not reporting
+     * resources are offending, resources which are no longer scheduled stop
+     * being tracked once their metric values aged out.
+     */
+    void setScheduled(int[] measurementIds) {
+        int[] tracked = _trackers.getKeys();
+        for (int i = 0; i < tracked.length; i++) {
+            ((ResourceMetricTracker) _trackers.get(tracked[i]))._isScheduled = false;
+        }
+        for (int i = 0; i < measurementIds.length; i++) {
+            getTrackerAddIfNecessary(measurementIds[i])._isScheduled = true;
+        }
+        invalidateAll();
+    }
+
+    boolean isScheduled(int measurementId) {
+        ResourceMetricTracker tracker =
+            (ResourceMetricTracker) _trackers.get(measurementId);
+        return tracker != null && tracker._isScheduled;
+    }
+
+    /**
+     * Track the metric value, O(1) amortized
+     */
+    void track(int measurementId, MetricValue val) {
+        ResourceMetricTracker tracker = getTrackerAddIfNecessary(measurementId);
+        tracker.trackMetricValue(val);
+        markDirty(tracker);
+    }
+
+    /**
+     * Evaluate the time window.  The window start must not move back in
+     * time.
+     *
+     * @param startTime The start timestamp for the time window (inclusive).
+     * @param endTime The end timestamp for the time window (inclusive).
+     * @return The number of resources violating the trigger condition.
+     */
+    int evaluate(long startTime, long endTime) {
+        if (endTime - startTime != _windowLength) {
+            // the revalidation times assume a fixed window length
+            _windowLength = endTime - startTime;
+            invalidateAll();
+        }
+        while (_heapSize > 0 && _heapTimes[0] <= startTime) {
+            long time = _heapTimes[0];
+            int mid = _heapIds[0];
+            pollHeap();
+            ResourceMetricTracker tracker = (ResourceMetricTracker) _trackers.get(mid);
+            if (tracker != null && tracker.getRevalidateAt() == time) {
+                markDirty(tracker);
+            }
+        }
+        for (int i = 0; i < _numDirty; i++) {
+            ResourceMetricTracker tracker = (ResourceMetricTracker) _trackers.get(_dirty[i]);
+            if (tracker != null) {
+                tracker._isDirty = false;
+                reevaluate(tracker, startTime, endTime);
+            }
+        }
+        _numDirty = 0;
+        return _violators.size();
+    }
+
+    /**
+     * @return The first violating metric value in the last evaluated time
+     *         window of each violating resource, keyed by measurement id.
+     *         {@link MetricValue#NONE} for resources which did not report.
+     */
+    Map<Integer, MetricValue> getViolators() {
+        int[] mids = _violators.getKeys();
+        Map<Integer, MetricValue> rtn = new HashMap<Integer, MetricValue>(mids.length * 2);
+        for (int i = 0; i < mids.length; i++) {
+            ResourceMetricTracker tracker = (ResourceMetricTracker) _violators.get(mids[i]);
+            rtn.put(new Integer(mids[i]), tracker._violator);
+        }
+        return rtn;
+    }
+
+    int getNumberOfTrackedResources() {
+        return _trackers.size();
+    }
+
+    private void reevaluate(ResourceMetricTracker tracker, long startTime, long endTime) {
+        int mid = tracker.getMeasurementId();
+        MetricValue val = tracker.searchForViolatingMetricInWindow(startTime, endTime);
+
+        // Remove resources that are not scheduled to collect and don't
+        // have any remaining tracked metrics so we don't accidentally
+        // consider them violating the trigger conditions (if non reporting
+        // resources are considered violating).
+        if (tracker.getNumberOfTrackedMetrics() == 0 && !tracker._isScheduled) {
+            remove(mid);
+            return;
+        }
+
+        // Make sure the resource hasn't been deleted when it starts violating
+        // or it is no longer scheduled
+        if (val != null && (tracker._violator == null || !tracker._isScheduled) &&
+            _deletedCheck.isDeleted(mid)) {
+            remove(mid);
+            return;
+        }
+
+        tracker._violator = val;
+        if (val == null) {
+            _violators.remove(mid);
+        } else {
+            _violators.put(mid, tracker);
+        }
+        if (tracker.getRevalidateAt() != Long.MAX_VALUE) {
+            offerHeap(tracker.getRevalidateAt(), mid);
+        }
+    }
+
+    private ResourceMetricTracker getTrackerAddIfNecessary(int measurementId) {
+        ResourceMetricTracker tracker =
+            (ResourceMetricTracker) _trackers.get(measurementId);
+        if (tracker == null) {
+            tracker = new ResourceMetricTracker(measurementId, _comparator, _metricVal,
+                                                _isNotReportingOffending);
+            _trackers.put(measurementId, tracker);
+            markDirty(tracker);
+        }
+        return tracker;
+    }
+
+    private void remove(int measurementId) {
+        _trackers.remove(measurementId);
+        _violators.remove(measurementId);
+    }
+
+    private void invalidateAll() {
+        int[] tracked = _trackers.getKeys();
+        for (int i = 0; i < tracked.length; i++) {
+            markDirty((ResourceMetricTracker) _trackers.get(tracked[i]));
+        }
+    }
+
+    private void markDirty(ResourceMetricTracker tracker) {
+        if (tracker._isDirty) {
+            return;
+        }
+        tracker._isDirty = true;
+        if (_numDirty == _dirty.length) {
+            int[] dirty = new int[_dirty.length * 2];
+            System.arraycopy(_dirty, 0, dirty, 0, _numDirty);
+            _dirty = dirty;
+        }
+        _dirty[_numDirty++] = tracker.getMeasurementId();
+    }
+
+    private void offerHeap(long time, int mid) {
+        if (_heapSize == _heapTimes.length) {
+            long[] times = new long[_heapSize * 2];
+            int[] ids = new int[_heapSize * 2];
+            System.arraycopy(_heapTimes, 0, times, 0, _heapSize);
+            System.arraycopy(_heapIds, 0, ids, 0, _heapSize);
+            _heapTimes = times;
+            _heapIds = ids;
+        }
+        int i = _heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (_heapTimes[parent] <= time) {
+                break;
+            }
+            _heapTimes[i] = _heapTimes[parent];
+            _heapIds[i] = _heapIds[parent];
+            i = parent;
+        }
+        _heapTimes[i] = time;
+        _heapIds[i] = mid;
+    }
+
+    private void pollHeap() {
+        long time = _heapTimes[--_heapSize];
+        int mid = _heapIds[_heapSize];
+        int i = 0;
+        int half = _heapSize >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            if (child + 1 < _heapSize && _heapTimes[child + 1] < _heapTimes[child]) {
+                child++;
+            }
+            if (time <= _heapTimes[child]) {
+                break;
+            }
+            _heapTimes[i] = _heapTimes[child];
+            _heapIds[i] = _heapIds[child];
+            i = child;
+        }
+        _heapTimes[i] = time;
+        _heapIds[i] = mid;
+    }
+}
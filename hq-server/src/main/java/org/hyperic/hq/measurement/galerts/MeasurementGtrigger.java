@@ -27,7 +27,6 @@ package org.hyperic.hq.measurement.galerts;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -97,7 +96,7 @@ public class MeasurementGtrigger
     private final ComparisonOperator _comparator;
     private final Float              _metricVal;
     private final Set                _interestedEvents;
-    private final Map                _trackedResources;
+    private final GroupMetricEvaluator _evaluator;
     private final boolean            _isNotReportingEventsOffending;
     private final TreeSet            _trackedHeartBeatTimestamps;
     private       String             _triggerName;
@@ -113,9 +112,6 @@ public class MeasurementGtrigger
     private       int                _groupSize;  // The total size of our group    
     private       ResourceGroup      _resourceGroup;
     
-    // These are the resources that have the metric collection interval set
-    private final Map                _srcId2CollectionInterval;
-    
     MeasurementGtrigger(SizeComparator sizeCompare, 
                         int numResources,
                         boolean isPercent, 
@@ -131,11 +127,19 @@ public class MeasurementGtrigger
         _comparator       = comparator;
         _metricVal        = new Float(metricVal);
         _interestedEvents = new HashSet();
-        _trackedResources  = new HashMap();
         _metricName       = "Unknown";
         _groupSize        = 0;
         _isNotReportingEventsOffending = isNotReportingOffending;
-        _srcId2CollectionInterval = new HashMap();
+        _evaluator = new GroupMetricEvaluator(_comparator, _metricVal, 
+            isNotReportingOffending, new GroupMetricEvaluator.DeletedMeasurementCheck() {
+                public boolean isDeleted(int measurementId) {
+                    Measurement metric = 
+                        getDMMan().getMeasurement(new Integer(measurementId));
+                    return metric == null ||
+                        metric.getResource() == null ||
+                        metric.getResource().isInAsyncDeleteState();
+                }
+            });
         _trackedHeartBeatTimestamps = new TreeSet();
         this.minCollectionInterval = DEFAULT_MIN_COLLECTION_INTERVAL;
         _maxCollectionInterval = minCollectionInterval;
@@ -192,12 +196,15 @@ public class MeasurementGtrigger
         }
         
         // Try to fire.
-        Map srcId2ViolatingMetricValue = 
-            evaluateResourceMetricsAndReturnViolators(_trackedResources, 
-                                                      _startOfTimeWindow, 
-                                                      endOfTimeWindow);
+        if (_log.isDebugEnabled()) {
+            _log.debug("Checking for violating measurements for trigger ["+
+                       getTriggerNameWithPartitionDesc()+"] with time window; start="+
+                       _startOfTimeWindow+", end="+endOfTimeWindow);                 
+        }
+        
+        int numMatched = _evaluator.evaluate(_startOfTimeWindow, endOfTimeWindow);
         
-        tryToFire(srcId2ViolatingMetricValue, _startOfTimeWindow, endOfTimeWindow);
+        tryToFire(numMatched, _startOfTimeWindow, endOfTimeWindow);
     }
     
     /**
@@ -253,25 +260,11 @@ public class MeasurementGtrigger
         // missed a prior measurement schedule event.
         List derivedMeas = getMeasurementsCollecting();
         
-        // Find resources that are just starting to collect and create 
-        // a resource metric tracker for those resources.
-        for (Iterator iter = derivedMeas.iterator(); iter.hasNext();) {
-            Measurement meas = (Measurement) iter.next();
-            int mid = meas.getId().intValue();
-            MeasurementZeventSource srcId = new MeasurementZeventSource(mid);
-            
-            if (!_srcId2CollectionInterval.containsKey(srcId)) {
-                _log.debug("Start tracking newly scheduled measurement " +
-                           "for trigger ["+getTriggerNameWithPartitionDesc()+
-                           "]: "+srcId);
-                
-                getResourceTrackerAddIfNecessary(srcId);    
-            }
-        }
-        
-        // Now we can rebuild the collection interval map and reset the 
+        // Rebuild the scheduled measurements, resources that are just 
+        // starting to collect get a resource metric tracker, and reset the 
         // max collection interval.
-        _srcId2CollectionInterval.clear();
+        int[] mids = new int[derivedMeas.size()];
+        int i = 0;
         
         long oldInterval = _maxCollectionInterval;
         
@@ -280,13 +273,20 @@ public class MeasurementGtrigger
         for (Iterator iter = derivedMeas.iterator(); iter.hasNext();) {
             Measurement meas = (Measurement) iter.next();
             int mid = meas.getId().intValue();
-            Long interval = new Long(meas.getInterval());
-            _srcId2CollectionInterval.put(
-                    new MeasurementZeventSource(mid), interval);
+            
+            if (_log.isDebugEnabled() && !_evaluator.isScheduled(mid)) {
+                _log.debug("Start tracking newly scheduled measurement " +
+                           "for trigger ["+getTriggerNameWithPartitionDesc()+
+                           "]: "+mid);
+            }
+            
+            mids[i++] = mid;
             _maxCollectionInterval = 
                 Math.max(_maxCollectionInterval, meas.getInterval());
         }
         
+        _evaluator.setScheduled(mids);
+        
         _log.debug("Trigger ["+getTriggerNameWithPartitionDesc()+
                    "] processed measurement schedule zevent: old collection interval="+
                    oldInterval+"; new collection interval="+_maxCollectionInterval);
@@ -456,30 +456,6 @@ public class MeasurementGtrigger
         }
     }
     
-    /**
-     * Retrieve the resource metric tracker for a given resource, adding it 
-     * to the map of tracked resources if it does not already exist there.
-     * 
-     * @param sourceId The measurement source id.
-     * @return The resource tracker.
-     */
-    private ResourceMetricTracker getResourceTrackerAddIfNecessary(
-                                        MeasurementZeventSource sourceId) {
-        
-        ResourceMetricTracker tracker = 
-            (ResourceMetricTracker)_trackedResources.get(sourceId);
-        
-        if (tracker==null) {
-            tracker = new ResourceMetricTracker(_comparator, 
-                                                _metricVal, 
-                                                _isNotReportingEventsOffending);
-      
-            _trackedResources.put(sourceId, tracker);                    
-        }
-        
-        return tracker;
-    }
-        
     /**
      * Track this measurement event.
      * 
@@ -489,14 +465,12 @@ public class MeasurementGtrigger
         MeasurementZeventSource sourceId = 
             (MeasurementZeventSource)event.getSourceId();
         
-        ResourceMetricTracker tracker = getResourceTrackerAddIfNecessary(sourceId);
-        
         MeasurementZeventPayload payload = 
             (MeasurementZeventPayload)event.getPayload();
         
         MetricValue val = payload.getValue();
         
-        tracker.trackMetricValue(val);
+        _evaluator.track(sourceId.getId(), val);
         
         if (_log.isDebugEnabled()) {
             _log.debug("Tracking measurement for trigger ["+
@@ -505,76 +479,6 @@ public class MeasurementGtrigger
         }
     }
     
-    /**
-     * Evaluate the metrics within the time window and return the first found 
-     * violating metric value for each of the tracked resources.
-     * 
-     * @param trackedResources The tracked resources.
-     * @param startTime The start timestamp for the time window (inclusive).
-     * @param endTime The end timestamp for the time window (inclusive).
-     * @return The map of {@link MeasurementZeventSource}Ids to {@link MetricValue}s.
-     */
-    private Map evaluateResourceMetricsAndReturnViolators(Map trackedResources,
-                                                          long startTime,
-                                                          long endTime) {
-        
-        boolean debug = _log.isDebugEnabled();
-        
-        Map srcId2MetricValue = new HashMap();
-        
-        if (debug) {
-            _log.debug("Checking for violating measurements for trigger ["+
-                       getTriggerNameWithPartitionDesc()+"] with time window; start="+
-                       startTime+", end="+endTime);                 
-        }
-        
-        for (Iterator iter = trackedResources.entrySet().iterator(); iter.hasNext();) {      
-            Map.Entry entry = (Map.Entry) iter.next();
-            MeasurementZeventSource src = (MeasurementZeventSource)entry.getKey();
-            ResourceMetricTracker tracker = (ResourceMetricTracker)entry.getValue();
-            
-            // Remove resources that are not scheduled to collect and don't 
-            // have any remaining tracked metrics so we don't accidentally 
-            // consider them violating the trigger conditions (if non reporting 
-            // resources are considered violating).
-            if (tracker.getNumberOfTrackedMetrics()==0 && 
-                !_srcId2CollectionInterval.containsKey(src)) {
-                if (debug) {
-                    _log.debug("Stopped tracking unscheduled measurement for trigger ["+
-                               getTriggerNameWithPartitionDesc()+"]: "+src);                        
-                }
-                
-                iter.remove();
-                continue;
-            }
-
-            MetricValue val = 
-                tracker.searchForViolatingMetricInWindow(startTime, endTime);
-            
-            if (val != null) {
-                // Make sure the resource hasn't been deleted
-                Measurement metric =
-                    getDMMan().getMeasurement(new Integer(src.getId()));
-                if (metric == null ||
-                    metric.getResource() == null ||
-                    metric.getResource().isInAsyncDeleteState()) {
-                    iter.remove();
-                    continue;
-                }
-
-                srcId2MetricValue.put(src, val);
-                
-                if (debug) {
-                    _log.debug("Found violating measurement for trigger ["+
-                               getTriggerNameWithPartitionDesc()+"]: "+src+
-                               ", "+val+", timestamp="+val.getTimestamp());                 
-                }
-            }
-        } 
-        
-        return srcId2MetricValue;
-    }
-    
     /**
      * The alert fired time is the average timestamp for the current time 
      * window.
@@ -587,7 +491,7 @@ public class MeasurementGtrigger
         return (endTime+startTime)/2L;
     }    
     
-    private void tryToFire(Map srcId2MetricValue, long startTime, long endTime) { 
+    private void tryToFire(int numMatched, long startTime, long endTime) { 
         if (_groupSize == 0) {
             if (_log.isDebugEnabled()) {
                 _log.debug("Trigger ["+getTriggerNameWithPartitionDesc()+
@@ -598,20 +502,7 @@ public class MeasurementGtrigger
             return;
         }
         
-        int numMatched = 0;
-        
-        if (srcId2MetricValue.size()>0) {
-            for (Iterator i=srcId2MetricValue.values().iterator(); i.hasNext(); ) {               
-                MetricValue val = (MetricValue)i.next();
-                
-                // Offending resources always add towards the number matched
-                if (val.equals(MetricValue.NONE) || 
-                    _comparator.isTrue(new Float(val.getValue()), _metricVal)) { 
-                    numMatched++;
-                }
-            }    
-        }
-                
+        // Offending resources always add towards the number matched
         String leftHandStr, numMatchStr;
         int leftHand;
         
@@ -670,19 +561,19 @@ public class MeasurementGtrigger
         long nonReportingResourceFiredTime = getAlertFiredTime(startTime, endTime);
 
         setFired(new FireReason(sr.toString(), lr.toString(), 
-            formulateAuxLogs(srcId2MetricValue, nonReportingResourceFiredTime)));
+            formulateAuxLogs(_evaluator.getViolators(), nonReportingResourceFiredTime)));
     }
 
-    private List formulateAuxLogs(Map srcId2MetricValue, 
+    private List formulateAuxLogs(Map<Integer, MetricValue> mid2MetricValue, 
                                  long nonReportingResourceFiredTime) {
         // Assemble the aux info
         List auxLogs = new ArrayList();
         MeasurementManager dmMan = getDMMan();
         AuthzSubject overlord = 
             Bootstrap.getBean(AuthzSubjectManager.class).getOverlordPojo();
-        for (Iterator i=srcId2MetricValue.entrySet().iterator(); i.hasNext(); ) {
+        for (Iterator i=mid2MetricValue.entrySet().iterator(); i.hasNext(); ) {
             Map.Entry ent = (Map.Entry)i.next();
-            MeasurementZeventSource src = (MeasurementZeventSource)ent.getKey();
+            Integer mid = (Integer)ent.getKey();
             MetricValue val = (MetricValue)ent.getValue();
             SimpleAlertAuxLog baseLog; 
             AppdefEntityValue entVal;
@@ -695,8 +586,7 @@ public class MeasurementGtrigger
                     continue;                
             }
             
-            Measurement metric =
-                dmMan.getMeasurement(new Integer(src.getId()));
+            Measurement metric = dmMan.getMeasurement(mid);
             
             if (metric == null) {
                 // HQ-1117: The resource has already been deleted
@@ -767,24 +657,19 @@ public class MeasurementGtrigger
             
             _maxCollectionInterval = minCollectionInterval;
             
+            int[] mids = new int[derivedMeas.size()];
+            int i = 0;
+            
             for (Iterator iter = derivedMeas.iterator(); iter.hasNext();) {
                 Measurement meas = (Measurement) iter.next();
                 int mid = meas.getId().intValue();
-                Long interval = new Long(meas.getInterval());
                 
                 _maxCollectionInterval = 
                     Math.max(_maxCollectionInterval, meas.getInterval());
                 
                 MeasurementZeventSource srcId = new MeasurementZeventSource(mid);
                 _interestedEvents.add(srcId);
-                _srcId2CollectionInterval.put(srcId, interval);
-                
-                // HQ-1165: Create a resource metric tracker for this resource 
-                // right now in case we have decided that not reporting resources 
-                // are offending and a metric is never reported for that resource. 
-                // We don't want to depend on receiving at least one metric for 
-                // that resource before we can determine that it isn't reporting.
-                getResourceTrackerAddIfNecessary(srcId);
+                mids[i++] = mid;
                 
                 MeasurementScheduleZeventSource scheduleSrcId = 
                     new MeasurementScheduleZeventSource(mid);
@@ -793,6 +678,13 @@ public class MeasurementGtrigger
             
             _interestedEvents.add(HeartBeatZeventSource.getInstance());
             
+            // HQ-1165: Create a resource metric tracker for each resource 
+            // right now in case we have decided that not reporting resources 
+            // are offending and a metric is never reported for that resource. 
+            // We don't want to depend on receiving at least one metric for 
+            // that resource before we can determine that it isn't reporting.
+            _evaluator.setScheduled(mids);
+            
             if (derivedMeas.size() != _groupSize) {
                 _log.warn("Listening to different # measurement events ("+
                            derivedMeas.size()+") than resources ("+
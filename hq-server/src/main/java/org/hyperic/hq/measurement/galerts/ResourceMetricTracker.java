@@ -24,34 +24,48 @@
  */
 
 package org.hyperic.hq.measurement.galerts;
-
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.product.MetricValue;
 
 /**
- * Tracks chronologically the metrics for a given resource.
+ * Tracks chronologically the metrics for a given resource.  The timestamps
+ * and values are kept in primitive arrays, whether a value violates the
+ * trigger condition is decided once when it is tracked.
  */
 class ResourceMetricTracker {
     
     private static final Log _log = 
         LogFactory.getLog(ResourceMetricTracker.class);
     
+    private static final int INITIAL_CAPACITY = 4;
+    
+    private final int _measurementId;
+    
     private final ComparisonOperator _comparator;
     
     private final Float _violatingMetricValue;
     
     private final boolean _isNotReportingOffending;
     
-    private final LinkedList _chronOrderedValues;
+    // the tracked values are at [_head, _tail) in chronological order
+    private long[] _timestamps = new long[INITIAL_CAPACITY];
+    private double[] _values = new double[INITIAL_CAPACITY];
+    private boolean[] _violating = new boolean[INITIAL_CAPACITY];
+    private int _head = 0;
+    private int _tail = 0;
+    
+    private long _revalidateAt = Long.MAX_VALUE;
+    
+    // state of the incremental evaluation, maintained by GroupMetricEvaluator
+    boolean _isScheduled;
+    boolean _isDirty;
+    MetricValue _violator;
             
     /**
      * Creates an instance.
      *
+     * @param measurementId The id of the tracked measurement.
      * @param comparator The comparator used to check for violating the trigger 
      *                   condition.
      * @param violatingMetricValue The violating metric value.
@@ -59,13 +73,18 @@ class ResourceMetricTracker {
      *                                resources are considered offending; 
      *                                <code>false</code> otherwise.                         
      */
-    public ResourceMetricTracker(ComparisonOperator comparator,
+    public ResourceMetricTracker(int measurementId,
+                                 ComparisonOperator comparator,
                                  Float violatingMetricValue,
                                  boolean isNotReportingOffending) {
+        _measurementId = measurementId;
         _comparator = comparator;
         _violatingMetricValue = violatingMetricValue;
         _isNotReportingOffending = isNotReportingOffending;
-        _chronOrderedValues = new LinkedList();
+    }
+    
+    public int getMeasurementId() {
+        return _measurementId;
     }
     
     /**
@@ -75,14 +94,32 @@ class ResourceMetricTracker {
      */
     public void trackMetricValue(MetricValue value) {
         removeNewerTrackedMetrics(value);
-        _chronOrderedValues.add(value);
+        if (_tail == _timestamps.length) {
+            ensureCapacity();
+        }
+        _timestamps[_tail] = value.getTimestamp();
+        _values[_tail] = value.getValue();
+        _violating[_tail] = 
+            _comparator.isTrue(new Float(value.getValue()), _violatingMetricValue);
+        _tail++;
     }
     
     /**
      * @return The current number of tracked metrics.
      */
     public int getNumberOfTrackedMetrics() {
-        return _chronOrderedValues.size();
+        return _tail - _head;
+    }
+    
+    /**
+     * @return The smallest window start time for which the result of 
+     *         {@link #searchForViolatingMetricInWindow(long, long)} may differ 
+     *         from the last search, given that no metric is tracked meanwhile 
+     *         and the window length stays the same.  
+     *         <code>Long.MAX_VALUE</code> if it will not change.
+     */
+    public long getRevalidateAt() {
+        return _revalidateAt;
     }
     
     /**
@@ -98,41 +135,45 @@ class ResourceMetricTracker {
      *         is no metric value in the time window.
      */
     public MetricValue searchForViolatingMetricInWindow(long startTime, long endTime) {
-        boolean debug = _log.isDebugEnabled();
+        while (_head < _tail && _timestamps[_head] < startTime) {
+            if (_log.isDebugEnabled()) {
+                _log.debug("Aging out metrics older than the current " +
+                           "window start time: metric timestamp="+
+                           _timestamps[_head]+", start time="+startTime);                    
+            }
+            _head++;
+        }
+        
         boolean hasReportedInWindow = false;
+        long lastReportedInWindow = 0;
+        int i = _head;
         
-        for (Iterator iter = _chronOrderedValues.iterator(); iter.hasNext();) {
-            MetricValue metric = (MetricValue) iter.next();
-            
-            long metricTimestamp = metric.getTimestamp();
-            
-            if (metricTimestamp < startTime) {
-                if (debug) {
-                    _log.debug("Aging out metrics older than the current " +
-                    		   "window start time: metric timestamp="+
-                               metricTimestamp+", start time="+startTime);                    
-                }
-                
-                iter.remove();
-            } else if (metric.getTimestamp() <= endTime) {
-                hasReportedInWindow = true;
-                
-                if (_comparator.isTrue(new Float(metric.getValue()),
-                                       _violatingMetricValue)) {
-                    return metric;                    
-                }
-            } // else The metric value is in the future - evaluate later          
+        for (; i < _tail && _timestamps[i] <= endTime; i++) {
+            if (_violating[i]) {
+                // violates until the window moves past it
+                _revalidateAt = _timestamps[i] + 1;
+                return new MetricValue(_values[i], _timestamps[i]);
+            }
+            hasReportedInWindow = true;
+            lastReportedInWindow = _timestamps[i];
         }
         
-        if (_isNotReportingOffending && !hasReportedInWindow) {
-            return MetricValue.NONE;
-        } else {
+        // The remaining metric values are in the future, the first one 
+        // enters the window once the window end reaches it
+        long futureEntersWindowAt = 
+            (i < _tail) ? startTime + (_timestamps[i] - endTime) : Long.MAX_VALUE;
+        
+        if (hasReportedInWindow) {
+            _revalidateAt = Math.min(lastReportedInWindow + 1, futureEntersWindowAt);
             // no violating metrics were found in the window
             return null;
         }
+        
+        _revalidateAt = futureEntersWindowAt;
+        
+        return _isNotReportingOffending ? MetricValue.NONE : null;
     }
     
-    
     /**
      * If there are any newer (or with the same timestamp) tracked metrics than 
      * this one that just came in, remove those newer tracked metrics. This 
@@ -143,29 +184,38 @@ class ResourceMetricTracker {
      * @param value The metric value that just came in.
      */
     private void removeNewerTrackedMetrics(MetricValue value) {
-        if (_chronOrderedValues.isEmpty()) {
-            return;
-        }
-        
-        if (value.getTimestamp() <= 
-            ((MetricValue)_chronOrderedValues.getLast()).getTimestamp()) {
-            
+        if (_tail > _head && value.getTimestamp() <= _timestamps[_tail - 1]) {
             _log.debug("Removing tracked metrics newer than timestamp="+
                         value.getTimestamp());   
 
-            ListIterator iter = 
-                _chronOrderedValues.listIterator(_chronOrderedValues.size());
-
-            while (iter.hasPrevious()) {
-                MetricValue trackedValue = (MetricValue) iter.previous();
-
-                if (trackedValue.getTimestamp() >= value.getTimestamp()) {
-                    iter.remove();
-                } else {
-                    return;
-                }
+            while (_tail > _head && _timestamps[_tail - 1] >= value.getTimestamp()) {
+                _tail--;
             }
         }        
-    }    
+    }
+    
+    /**
+     * Make room at the tail, by moving the tracked metrics to the front of 
+     * the arrays or by growing the arrays if they are more than half full.
+     */
+    private void ensureCapacity() {
+        int size = _tail - _head;
+        int capacity = (size * 2 > _timestamps.length) ? 
+            _timestamps.length * 2 : _timestamps.length;
+        long[] timestamps = (capacity == _timestamps.length) ? 
+            _timestamps : new long[capacity];
+        double[] values = (capacity == _values.length) ? 
+            _values : new double[capacity];
+        boolean[] violating = (capacity == _violating.length) ? 
+            _violating : new boolean[capacity];
+        System.arraycopy(_timestamps, _head, timestamps, 0, size);
+        System.arraycopy(_values, _head, values, 0, size);
+        System.arraycopy(_violating, _head, violating, 0, size);
+        _timestamps = timestamps;
+        _values = values;
+        _violating = violating;
+        _head = 0;
+        _tail = size;
+    }
     
 }
@@ -0,0 +1,359 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+/**
+ * The MetricDataCache caches the last measurement keyed on the derived
+ * measurement id.  The purpose of this cache is to avoid needing to go to
+ * the database when looking up the last value for a metric.
+ *
+ * Measurement ids are handed out sequentially, so the values are held in
+ * pages of primitive slots indexed by the id rather than in a map of boxed
+ * MetricValues.  A slot is three longs: a sequence number, the timestamp and
+ * the bits of the value.  Writers claim a slot by moving its sequence from
+ * even to odd with a CAS, readers retry while the sequence is odd or changed
+ * under them, so there is no lock shared between measurements.  Pages are
+ * allocated on first use and never freed.  Ids beyond the indexed range go
+ * to an overflow map.
+ */
+@Repository
+public class ArrayMetricDataCache implements MetricDataCache {
+    private static final String PROP_MAX_INDEXED_ID = "org.hq.metric.cache.maxIndexedId";
+    private static final int DEFAULT_MAX_INDEXED_ID = (1 << 25) - 1;
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    // sequence, timestamp, value bits
+    private static final int SLOT = 3;
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final long PAGE_BYTES = 16 + PAGE_SIZE * SLOT * 8l;
+    // rough footprint of an overflow entry: map entry, Integer and MetricValue
+    private static final long OVERFLOW_ENTRY_BYTES = 96;
+
+    private final Log log = LogFactory.getLog(ArrayMetricDataCache.class);
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final int maxIndexedId;
+    private final AtomicReferenceArray<AtomicLongArray> pages;
+    private final ConcurrentMap<Integer, MetricValue> overflow =
+        new ConcurrentHashMap<Integer, MetricValue>();
+    private final AtomicInteger numPages = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public ArrayMetricDataCache(ConcurrentStatsCollector concurrentStatsCollector) {
+        this(concurrentStatsCollector,
+             Integer.getInteger(PROP_MAX_INDEXED_ID, DEFAULT_MAX_INDEXED_ID).intValue());
+    }
+
+    ArrayMetricDataCache(ConcurrentStatsCollector concurrentStatsCollector, int maxIndexedId) {
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.maxIndexedId = maxIndexedId;
+        this.pages = new AtomicReferenceArray<AtomicLongArray>((maxIndexedId >>> PAGE_BITS) + 1);
+    }
+
+    @PostConstruct
+    void initialize() {
+        log.info("caching the last metric value of measurement ids up to " + maxIndexedId +
+                 " in primitive arrays");
+        concurrentStatsCollector.register(new DeltaCollector(ConcurrentStatsCollector.METRIC_DATA_CACHE_HITS, hits));
+        concurrentStatsCollector.register(new DeltaCollector(ConcurrentStatsCollector.METRIC_DATA_CACHE_MISSES, misses));
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return getSize();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_CACHE_MEASUREMENTS;
+            }
+        });
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return getMemoryUsage();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_CACHE_BYTES;
+            }
+        });
+    }
+
+    public Collection<DataPoint> bulkAdd(List<DataPoint> data) {
+        final Map<Integer, DataPoint> cachedData = new HashMap<Integer, DataPoint>(data.size());
+        for (final DataPoint dp : data) {
+            if (add(dp.getMeasurementId(), dp.getTimestamp(), dp.getValue())) {
+                cachedData.put(dp.getMeasurementId(), dp);
+            }
+        }
+        return cachedData.values();
+    }
+
+    public boolean add(Integer mid, MetricValue mval) {
+        return add(mid, mval.getTimestamp(), mval.getValue());
+    }
+
+    public MetricValue get(Integer mid, long timestamp) {
+        final MetricValue rtn = read(mid, timestamp);
+        if (rtn == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return rtn;
+    }
+
+    public Map<Integer, MetricValue> getAll(List<Integer> mids, long timestamp) {
+        final Map<Integer, MetricValue> rtn = new HashMap<Integer, MetricValue>(mids.size());
+        getAll(mids, timestamp, rtn);
+        return rtn;
+    }
+
+    public Collection<Integer> getAll(Collection<Integer> mids, long timestamp,
+                                      Map<Integer, MetricValue> data) {
+        final List<Integer> rtn = new ArrayList<Integer>();
+        int found = 0;
+        for (final Integer mid : mids) {
+            if (mid == null) {
+                continue;
+            }
+            final MetricValue val = read(mid, timestamp);
+            if (val == null) {
+                rtn.add(mid);
+            } else {
+                data.put(mid, val);
+                found++;
+            }
+        }
+        misses.addAndGet(rtn.size());
+        hits.addAndGet(found);
+        return rtn;
+    }
+
+    public void remove(Integer mid) {
+        final int id = mid.intValue();
+        if (!isIndexed(id)) {
+            overflow.remove(mid);
+            return;
+        }
+        final AtomicLongArray page = pages.get(id >>> PAGE_BITS);
+        if (page == null) {
+            return;
+        }
+        final int i = (id & PAGE_MASK) * SLOT;
+        final long seq = lockSlot(page, i);
+        if (page.get(i + 1) != EMPTY) {
+            page.set(i + 1, EMPTY);
+            size.decrementAndGet();
+        }
+        page.set(i, seq + 2);
+    }
+
+    /**
+     * @return the number of cached measurements
+     */
+    int getSize() {
+        return size.get() + overflow.size();
+    }
+
+    /**
+     * @return approximate number of bytes held by the cache
+     */
+    long getMemoryUsage() {
+        return numPages.get() * PAGE_BYTES + pages.length() * 4l +
+               overflow.size() * OVERFLOW_ENTRY_BYTES;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return hits / lookups since the server started, 0 if nothing has
+     *         been looked up yet
+     */
+    double getHitRatio() {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    private boolean isIndexed(int id) {
+        return id >= 0 && id <= maxIndexedId;
+    }
+
+    /**
+     * Only adds the value if it is not older than the cached one, since the
+     * back filler may be updating the cache concurrently with the data
+     * inserter.
+     */
+    private boolean add(Integer mid, long timestamp, double value) {
+        final int id = mid.intValue();
+        if (!isIndexed(id)) {
+            return addOverflow(mid, new MetricValue(value, timestamp));
+        }
+        final AtomicLongArray page = getPageAddIfNecessary(id >>> PAGE_BITS);
+        final int i = (id & PAGE_MASK) * SLOT;
+        final long seq = lockSlot(page, i);
+        final long cached = page.get(i + 1);
+        if (cached != EMPTY && cached > timestamp) {
+            // nothing changed, readers need not retry
+            page.set(i, seq);
+            return false;
+        }
+        page.set(i + 2, Double.doubleToRawLongBits(value));
+        page.set(i + 1, timestamp);
+        if (cached == EMPTY) {
+            size.incrementAndGet();
+        }
+        page.set(i, seq + 2);
+        return true;
+    }
+
+    private boolean addOverflow(Integer mid, MetricValue mval) {
+        while (true) {
+            final MetricValue cached = overflow.get(mid);
+            if (cached == null) {
+                if (overflow.putIfAbsent(mid, mval) == null) {
+                    return true;
+                }
+            } else if (cached.getTimestamp() > mval.getTimestamp()) {
+                return false;
+            } else if (overflow.replace(mid, cached, mval)) {
+                return true;
+            }
+        }
+    }
+
+    private MetricValue read(Integer mid, long timestamp) {
+        final int id = mid.intValue();
+        if (!isIndexed(id)) {
+            final MetricValue val = overflow.get(mid);
+            return (val != null && val.getTimestamp() >= timestamp) ? new MetricValue(val) : null;
+        }
+        final AtomicLongArray page = pages.get(id >>> PAGE_BITS);
+        if (page == null) {
+            return null;
+        }
+        final int i = (id & PAGE_MASK) * SLOT;
+        while (true) {
+            final long seq = page.get(i);
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final long cached = page.get(i + 1);
+            final long bits = page.get(i + 2);
+            if (page.get(i) != seq) {
+                continue;
+            }
+            if (cached == EMPTY || cached < timestamp) {
+                return null;
+            }
+            return new MetricValue(Double.longBitsToDouble(bits), cached);
+        }
+    }
+
+    /**
+     * @return the even sequence number the slot had before it was claimed,
+     *         the slot is released by setting the sequence again
+     */
+    private static long lockSlot(AtomicLongArray page, int i) {
+        while (true) {
+            final long seq = page.get(i);
+            if ((seq & 1) == 0 && page.compareAndSet(i, seq, seq + 1)) {
+                return seq;
+            }
+            Thread.yield();
+        }
+    }
+
+    private AtomicLongArray getPageAddIfNecessary(int idx) {
+        final AtomicLongArray page = pages.get(idx);
+        if (page != null) {
+            return page;
+        }
+        final AtomicLongArray newPage = new AtomicLongArray(PAGE_SIZE * SLOT);
+        for (int i = 1; i < newPage.length(); i += SLOT) {
+            newPage.lazySet(i, EMPTY);
+        }
+        if (pages.compareAndSet(idx, null, newPage)) {
+            numPages.incrementAndGet();
+            return newPage;
+        }
+        return pages.get(idx);
+    }
+
+    /**
+     * Reports the change of a counter since the last collection
+     */
+    private static class DeltaCollector implements StatCollector {
+        private final String id;
+        private final AtomicLong counter;
+        private long last = 0;
+
+        private DeltaCollector(String id, AtomicLong counter) {
+            this.id = id;
+            this.counter = counter;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getVal() throws StatUnreachableException {
+            final long curr = counter.get();
+            final long rtn = curr - last;
+            last = curr;
+            return rtn;
+        }
+    }
+}
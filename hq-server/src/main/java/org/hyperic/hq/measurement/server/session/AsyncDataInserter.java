@@ -0,0 +1,482 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.common.DiagnosticObject;
+import org.hyperic.hq.common.DiagnosticsLogger;
+import org.hyperic.hq.measurement.shared.DataManager;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Queues the metric data of the agent reports in memory and inserts it from
+ * a few flusher threads, so that the lather request threads don't each hold
+ * a DB connection while their report is inserted.  A flusher merges the
+ * queued data of many reports into one insert, DataManager buckets it by
+ * HQ_METRIC_DATA_n table and commits it in a single transaction.  A flush
+ * starts once flushSize points are queued or the oldest queued point has
+ * waited flushLatency ms.
+ *
+ * When the queue is full a report is rejected after waiting up to
+ * offerTimeout ms, the agent keeps the data in its spool and sends it
+ * again.  Before that happens {@link #getBackoff()} tells the agents to slow
+ * down their backlog sends.
+ *
+ * The data of a report is acked to the agent once it is queued, so a flush
+ * which fails is retried a few times with a growing pause.  If it keeps
+ * failing with an exception, e.g. because of a single bad point, its points
+ * are inserted one by one and only the ones which fail are dropped.  The
+ * points which are dropped are logged, as the agent no longer has them.
+ * Queued data is lost if the server dies, which is why the inserter is off
+ * unless hq.data.inserter.async is set.
+ */
+@Component
+public class AsyncDataInserter implements DataInserter<DataPoint> {
+    private final Log log = LogFactory.getLog(AsyncDataInserter.class);
+    // fraction of the queue above which agents are asked to back off
+    private static final double BACKOFF_THRESHOLD = 0.5;
+    private static final long SHUTDOWN_TIMEOUT = 60 * 1000;
+
+    private final Object lock = new Object();
+    private final DataManager dataManager;
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final DiagnosticsLogger diagnosticsLogger;
+    private final boolean enabled;
+    private final int numFlushers;
+    private final int maxQueued;
+    private final int flushSize;
+    private final long flushLatency;
+    private final long offerTimeout;
+    private final long maxBackoff;
+    private final int maxRetries;
+    private final long retryBackoff;
+
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition notEmpty = queueLock.newCondition();
+    private final Condition notFull = queueLock.newCondition();
+    private final ArrayDeque<DataPoint> queue = new ArrayDeque<DataPoint>();
+    // time the oldest point in the queue was queued
+    private long oldestQueued;
+    private boolean shutdown = false;
+    private final List<Thread> flushers = new ArrayList<Thread>();
+
+    private final AtomicLong numFlushes = new AtomicLong();
+    private final AtomicLong numInserted = new AtomicLong();
+    private final AtomicLong numFailed = new AtomicLong();
+    private final AtomicLong numRejected = new AtomicLong();
+    private final AtomicLong totalFlushTime = new AtomicLong();
+
+    @Autowired
+    public AsyncDataInserter(DataManager dataManager,
+                             ConcurrentStatsCollector concurrentStatsCollector,
+                             DiagnosticsLogger diagnosticsLogger,
+                             @Value("#{tweakProperties['hq.data.inserter.async'] }") String async,
+                             @Value("#{tweakProperties['hq.data.inserter.flushers'] }") Long numFlushers,
+                             @Value("#{tweakProperties['hq.data.inserter.maxQueued'] }") Long maxQueued,
+                             @Value("#{tweakProperties['hq.data.inserter.flushSize'] }") Long flushSize,
+                             @Value("#{tweakProperties['hq.data.inserter.flushLatency'] }") Long flushLatency,
+                             @Value("#{tweakProperties['hq.data.inserter.offerTimeout'] }") Long offerTimeout,
+                             @Value("#{tweakProperties['hq.data.inserter.maxBackoff'] }") Long maxBackoff,
+                             @Value("#{tweakProperties['hq.data.inserter.retries'] }") Long maxRetries,
+                             @Value("#{tweakProperties['hq.data.inserter.retryBackoff'] }") Long retryBackoff) {
+        this(dataManager, concurrentStatsCollector, diagnosticsLogger, Boolean.valueOf(async),
+             getInt(numFlushers, 2), getInt(maxQueued, 500000), getInt(flushSize, 5000),
+             getLong(flushLatency, 1000), getLong(offerTimeout, 10000), getLong(maxBackoff, 30000),
+             getInt(maxRetries, 3), getLong(retryBackoff, 1000));
+    }
+
+    AsyncDataInserter(DataManager dataManager, ConcurrentStatsCollector concurrentStatsCollector,
+                      DiagnosticsLogger diagnosticsLogger, boolean enabled, int numFlushers,
+                      int maxQueued, int flushSize, long flushLatency, long offerTimeout,
+                      long maxBackoff, int maxRetries, long retryBackoff) {
+        this.dataManager = dataManager;
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.diagnosticsLogger = diagnosticsLogger;
+        this.enabled = enabled;
+        this.numFlushers = Math.max(1, numFlushers);
+        this.maxQueued = maxQueued;
+        this.flushSize = flushSize;
+        this.flushLatency = flushLatency;
+        this.offerTimeout = offerTimeout;
+        this.maxBackoff = maxBackoff;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBackoff = retryBackoff;
+    }
+
+    private static int getInt(Long val, int def) {
+        return (val == null) ? def : val.intValue();
+    }
+
+    private static long getLong(Long val, long def) {
+        return (val == null) ? def : val.longValue();
+    }
+
+    @PostConstruct
+    void initialize() {
+        if (!enabled) {
+            return;
+        }
+        concurrentStatsCollector.register(ConcurrentStatsCollector.DATA_INSERTER_FLUSH_SIZE);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.DATA_INSERTER_FLUSH_TIME);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.DATA_INSERTER_REJECTED);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return getQueueSize();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.DATA_INSERTER_QUEUE_SIZE;
+            }
+        });
+        diagnosticsLogger.addDiagnosticObject(new DiagnosticObject() {
+            public String getName() {
+                return "Async Metric Data Inserter";
+            }
+            public String getShortName() {
+                return "asyncDataInserter";
+            }
+            public String getStatus() {
+                return getDiagnostics();
+            }
+            public String getShortStatus() {
+                return getStatus();
+            }
+            public String toString() {
+                return "AsyncDataInserter";
+            }
+        });
+        start();
+    }
+
+    void start() {
+        log.info("inserting metric data asynchronously with " + numFlushers +
+                 " flushers, flushSize=" + flushSize + ", flushLatency=" + flushLatency +
+                 "ms, maxQueued=" + maxQueued);
+        for (int i = 0; i < numFlushers; i++) {
+            final Thread flusher = new Thread(new Flusher(), "AsyncDataInserter-" + i);
+            flusher.setDaemon(true);
+            flushers.add(flusher);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Stop the flushers once they have inserted all the queued data
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        queueLock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        for (final Thread flusher : flushers) {
+            flusher.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        final int left = getQueueSize();
+        if (left > 0) {
+            log.warn(left + " queued metric data points were not inserted before shutdown");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void insertData(List<DataPoint> metricData) throws InterruptedException, DataInserterException {
+        insertData(metricData, false);
+    }
+
+    /**
+     * Queue the data.  Priority data goes to the front of the queue.
+     *
+     * @throws DataInserterException if the queue does not have room for the
+     * data within offerTimeout ms
+     */
+    public void insertData(List<DataPoint> metricData, boolean isPriority)
+        throws InterruptedException, DataInserterException {
+        if (metricData.isEmpty()) {
+            return;
+        }
+        final int size = metricData.size();
+        queueLock.lock();
+        try {
+            if (shutdown) {
+                throw new DataInserterException("metric data inserter is shut down");
+            }
+            long wait = TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+            // a list bigger than the queue is let in when the queue is empty
+            while (!queue.isEmpty() && queue.size() + size > maxQueued) {
+                if (shutdown || wait <= 0) {
+                    numRejected.addAndGet(size);
+                    concurrentStatsCollector.addStat(size, ConcurrentStatsCollector.DATA_INSERTER_REJECTED);
+                    throw new DataInserterException("metric data insert queue is full with " +
+                                                    queue.size() + " points, rejected " + size +
+                                                    " points");
+                }
+                wait = notFull.awaitNanos(wait);
+            }
+            final boolean wasEmpty = queue.isEmpty();
+            if (wasEmpty) {
+                oldestQueued = System.currentTimeMillis();
+            }
+            if (isPriority) {
+                for (final ListIterator<DataPoint> it = metricData.listIterator(size); it.hasPrevious();) {
+                    queue.addFirst(it.previous());
+                }
+            } else {
+                queue.addAll(metricData);
+            }
+            // an idle flusher has to start timing the flush latency
+            if (wasEmpty || queue.size() >= flushSize) {
+                notEmpty.signal();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    public void insertDataFromServer(List<DataPoint> metricData)
+        throws InterruptedException, DataInserterException {
+        insertData(metricData, false);
+    }
+
+    public Object getLock() {
+        return lock;
+    }
+
+    public int getQueueSize() {
+        queueLock.lock();
+        try {
+            return queue.size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * @return ms the agents should wait between sends of their backlogged
+     * data, grows from 0 to maxBackoff while the queue fills up from
+     * half to full
+     */
+    public long getBackoff() {
+        final double fill = getQueueSize() / (double) maxQueued;
+        if (fill <= BACKOFF_THRESHOLD) {
+            return 0;
+        }
+        final double over = (fill - BACKOFF_THRESHOLD) / (1 - BACKOFF_THRESHOLD);
+        return (long) (maxBackoff * Math.min(1, over));
+    }
+
+    long getNumInserted() {
+        return numInserted.get();
+    }
+
+    long getNumFlushes() {
+        return numFlushes.get();
+    }
+
+    long getNumRejected() {
+        return numRejected.get();
+    }
+
+    long getNumFailed() {
+        return numFailed.get();
+    }
+
+    private String getDiagnostics() {
+        final long flushes = numFlushes.get();
+        final long inserted = numInserted.get();
+        return "Async Metric Data Inserter\n" +
+               "    Queued:          " + getQueueSize() + " / " + maxQueued + "\n" +
+               "    Backoff:         " + getBackoff() + " ms\n" +
+               "    Flushes:         " + flushes + "\n" +
+               "    Inserted:        " + inserted + "\n" +
+               "    Avg Flush Size:  " + ((flushes == 0) ? 0 : inserted / flushes) + "\n" +
+               "    Avg Flush Time:  " + ((flushes == 0) ? 0 : totalFlushTime.get() / flushes) + " ms\n" +
+               "    Failed:          " + numFailed.get() + "\n" +
+               "    Rejected:        " + numRejected.get();
+    }
+
+    /**
+     * @return the next batch to insert or null once the inserter is shut
+     * down and the queue is empty
+     */
+    private List<DataPoint> take() throws InterruptedException {
+        queueLock.lock();
+        try {
+            while (!shutdown) {
+                final int size = queue.size();
+                final long waited = System.currentTimeMillis() - oldestQueued;
+                if (size >= flushSize || (size > 0 && waited >= flushLatency)) {
+                    break;
+                }
+                if (size == 0) {
+                    notEmpty.await();
+                } else {
+                    notEmpty.await(flushLatency - waited, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (queue.isEmpty()) {
+                return null;
+            }
+            final int num = Math.min(flushSize, queue.size());
+            final List<DataPoint> batch = new ArrayList<DataPoint>(num);
+            for (int i = 0; i < num; i++) {
+                batch.add(queue.pollFirst());
+            }
+            // the rest has waited at most since now
+            oldestQueued = System.currentTimeMillis();
+            notFull.signalAll();
+            if (queue.size() >= flushSize) {
+                notEmpty.signal();
+            }
+            return batch;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private void flush(List<DataPoint> batch) {
+        final long start = System.currentTimeMillis();
+        final int failed = insert(batch);
+        final long time = System.currentTimeMillis() - start;
+        numFlushes.incrementAndGet();
+        totalFlushTime.addAndGet(time);
+        concurrentStatsCollector.addStat(batch.size(), ConcurrentStatsCollector.DATA_INSERTER_FLUSH_SIZE);
+        concurrentStatsCollector.addStat(time, ConcurrentStatsCollector.DATA_INSERTER_FLUSH_TIME);
+        numInserted.addAndGet(batch.size() - failed);
+        if (failed > 0) {
+            numFailed.addAndGet(failed);
+            log.warn("Failed to insert " + failed + " of " + batch.size() + " metric data points");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("inserted " + (batch.size() - failed) + " metric data points in " + time + " ms");
+        }
+    }
+
+    /**
+     * Insert the batch, retrying it up to maxRetries times.  If it still
+     * fails with an exception the points are inserted one by one.
+     *
+     * @return the number of points which were not inserted
+     */
+    private int insert(List<DataPoint> batch) {
+        RuntimeException error = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                final long wait = retryBackoff << (attempt - 1);
+                log.warn("Inserting " + batch.size() + " metric data points failed, retrying in " +
+                         wait + " ms");
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return drop(batch, "the flusher was interrupted");
+                }
+            }
+            try {
+                if (dataManager.addData(batch)) {
+                    return 0;
+                }
+                error = null;
+            } catch (RuntimeException e) {
+                log.error("Error inserting " + batch.size() + " metric data points: " + e, e);
+                error = e;
+            }
+        }
+        if (error == null || batch.size() == 1) {
+            // the DB is not reachable, there is no point in going on
+            return drop(batch, "the insert failed " + (maxRetries + 1) + " times");
+        }
+        log.warn("Inserting " + batch.size() + " metric data points one by one");
+        int failed = 0;
+        for (final DataPoint point : batch) {
+            try {
+                if (!dataManager.addData(Collections.singletonList(point))) {
+                    log.warn("Dropping metric data point " + point);
+                    failed++;
+                }
+            } catch (RuntimeException e) {
+                log.warn("Dropping metric data point " + point + ": " + e);
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return the number of points dropped
+     */
+    private int drop(List<DataPoint> points, String reason) {
+        log.error("Dropping " + points.size() + " metric data points, " + reason);
+        for (final DataPoint point : points) {
+            log.warn("Dropping metric data point " + point);
+        }
+        return points.size();
+    }
+
+    private class Flusher implements Runnable {
+        public void run() {
+            while (true) {
+                final List<DataPoint> batch;
+                try {
+                    batch = take();
+                } catch (InterruptedException e) {
+                    log.warn("metric data flusher interrupted, " + getQueueSize() +
+                             " points are still queued");
+                    return;
+                }
+                if (batch == null) {
+                    return;
+                }
+                flush(batch);
+            }
+        }
+    }
+}
@@ -25,262 +25,338 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.springframework.stereotype.Repository;
 
 /**
- * Dynamic EhCache that is allowed to grow over time as needed.
+ * Concurrent map of the last availability DataPoint of each Measurement and
+ * of the start of its open RLE interval, the HQ_AVAIL_DATA_RLE row which
+ * ends at AvailabilityDataRLE.getLastTimestamp().
  * AvailabilityCache should only be used in AvailabilityManager.addData()
- * OR Backfiller operations.  In big environments it will be very contentious
- * and due to its nature may not have the data being sought at any given time.
- * Use AvailabilityManager.getLastAvail().
+ * OR Backfiller operations.  Due to its nature it may not have the data being
+ * sought at any given time.  Use AvailabilityManager.getLastAvail().
+ *
+ * Reads never lock.  Writes lock only the stripe of the measurement id.  A
+ * cache transaction records the prior values of each id it writes and holds
+ * the stripes of those ids until it is committed or rolled back, so that
+ * no other thread may change an id whose value may yet be rolled back.
+ *
+ * The measurement ids are partitioned into SHARDS shards, each made up of
+ * whole stripes.  AvailabilityManager.addData() processes the points of each
+ * shard while holding the shard lock, so reports of different agents are
+ * applied concurrently.  A transaction must only write ids of the shard whose
+ * lock is held, which keeps the stripes of concurrent transactions disjoint.
+ * addData() holds lockShared() while it goes through the shards of a report.
+ * lockAllShards() waits for those reports and keeps any availability from
+ * being applied by other threads until unlockAllShards(), as the backfiller
+ * requires.  Since it never has to wait for a report which was applied to
+ * part of the shards only, a report whose transaction holds DB row locks
+ * can't be blocked by a backfill which waits for those rows.
  */
 @Repository
 public class AvailabilityCache {
 
-	// Default configuration
-	static final String CACHENAME          = "AvailabilityCache";
-	static final int    CACHESIZE          = 20000;
-	static final int    CACHESIZEINCREMENT = 1000;
-
-	private final Object _cacheLock = new Object();
-	private final Map _tranCacheState = new HashMap();
-	private Thread _tranThread;
-	private boolean _inTran = false;
-
-	// The internal EhCache
-	private Cache _cache;
-	// Cache.getSize() is expensive so we keep out own cache size count.
-	private int _cacheMaxSize;
-	private int _cacheSize;
-
-	private final Log _log = LogFactory.getLog(AvailabilityCache.class);
-
-
-
-	public AvailabilityCache() {
-		CacheManager cm = CacheManager.getInstance();
-		// Allow configuration of this cache throgh ehcache.xml
-		_cache = cm.getCache(CACHENAME);
-
-		if (_cache == null) {
-			if (_log.isDebugEnabled()) {
-                _log.debug("No default cache specified in ehcache.xml, using default size of " + CACHESIZE + ".");
-			}
-			_cache = new Cache(CACHENAME, CACHESIZE, false, true, 0, 0);
-			cm.addCache(_cache);
-		}
-
-		_cacheSize = 0;
-		_cacheMaxSize = _cache.getCacheConfiguration().getMaxElementsInMemory();
-	}
-
-
-
-	private void captureCacheState(Integer metricId) {
-		synchronized (_tranCacheState) {
-			if (!_inTran || !Thread.currentThread().equals(_tranThread)) {
-				return;
-			}
-			if (_tranCacheState.containsKey(metricId)) {
-				return;
-			}
-			DataPoint pt;
-			pt = (DataPoint)get(metricId);
-			// doesn't matter if point is null
-			_tranCacheState.put(metricId, pt);
-		}
-	}
-
-	public void rollbackTran() {
-		synchronized (_tranCacheState) {
-			if (!_inTran || !Thread.currentThread().equals(_tranThread)) {
-				return;
-			}
-			_inTran = false;
-			// scottmf, when I use an iterator here, under certain circumstances
-			// ConcurrentModificationException is thrown.  It is very hard
-			// to reproduce and not straight forward
-			Integer[] keys = (Integer[])_tranCacheState.keySet().toArray(new Integer[0]);
-			for (int i=0; i<keys.length; i++) {
-				DataPoint pt = (DataPoint)_tranCacheState.get(keys[i]);
-				if (pt == null) {
-					remove(keys[i]);
-				} else {
-					put(keys[i], pt);
-				}
-			}
-			_tranThread = null;
-			_tranCacheState.clear();
-			_tranCacheState.notifyAll();
-		}
-	}
-
-	public void commitTran() {
-		synchronized (_tranCacheState) {
-			if (!_inTran || !Thread.currentThread().equals(_tranThread)) {
-				return;
-			}
-			_inTran = false;
-			_tranThread = null;
-			_tranCacheState.clear();
-			_tranCacheState.notifyAll();
-		}
-	}
-
-	/**
-	 * @return true if a new cache transaction was started, false if the
-	 * currentThread was already participating in the current transaction
-	 */
-	public boolean beginTran() {
-		synchronized (_tranCacheState) {
-			if (_inTran && Thread.currentThread().equals(_tranThread)) {
-				return false;
-			}
-			while (_inTran) {
-				try {
-					_tranCacheState.wait();
-				} catch (InterruptedException e) {
-				}
-			}
-			_inTran = true;
-			_tranThread = Thread.currentThread();
-			_tranCacheState.clear();
-			return true;
-		}
-	}
-
-	/**
-	 * Get a DataPoint from the cache based on Measurement id
-	 * @param id The Measurement id in question.
-	 * @return The DataPoint or the defaultState if the Measurement id is not
-	 * located in the cache. 
-	 */
-	public DataPoint get(Integer id, DataPoint defaultState) {
-		synchronized (_cacheLock) {
-			Element e = _cache.get(id);
-
-			if (e == null) {
-				_cache.put(new Element(id, defaultState));
-				return defaultState;
-			}
-
-			return (DataPoint)e.getObjectValue();
-		}
-	}
-
-	/**
-	 * Remove id from cache
-	 * @param id The Measurement id in question.
-	 */
-	public boolean remove(Integer id) {
-		synchronized (_cacheLock) {
-			return _cache.remove(id);
-		}
-	}
-
-	/**
-	 * Get a DataPoint from the cache based on the Measurement id.
-	 * @param id The Measurement id in question.
-	 * @return The DataPoint or null if it does not exist in the cache.
-	 */
-	public DataPoint get(Integer id) {
-		synchronized (_cacheLock) {
-			Element e = _cache.get(id);
-
-			if (e != null) {
-				return (DataPoint)e.getObjectValue();
-			}
-
-			return null;
-		}
-	}
-
-	/**
-	 * Put an item into the cache.
-	 * @param id The Measurement id representing the availability data point.
-	 * @param state The DataPoint to store for the given id.
-	 */
-	public void put(Integer id, DataPoint state) {
-		synchronized (_cacheLock) {
-			boolean newTran = false;
-			try {
-				newTran = beginTran();
-				captureCacheState(id);
-				if (!_cache.isKeyInCache(id)) {
-					if (isFull()) {
-						incrementCacheSize();
-					}
-					_cache.put(new Element(id, state));
-					_cacheSize++;
-				} else {
-					// Update only, don't increment counter.
-					_cache.put(new Element(id, state));
-				}
-			} finally {
-				if (newTran) {
-					commitTran();
-				}
-			}
-		}
-	}
-
-	/**
-	 * Get the total cache size
-	 * @return The total cache size, as determined by EhCache.
-	 */
-	int getSize() {
-		synchronized(_cacheLock) {
-			return _cache.getSize();
-		}
-	}
-
-	/**
-	 * Remove all elements from the AvailabilityCache.
-	 */
-	void clear() {
-		synchronized (_cacheLock) {
-			boolean newTran = false;
-			try {
-				newTran = beginTran();
-				_cache.removeAll();
-				_cacheSize = 0;
-			} finally {
-				if (newTran) {
-					commitTran();
-				}
-			}
-		}
-	}
-
-	private boolean isFull() {
-		synchronized (_cacheLock) {
-			return _cacheSize == _cacheMaxSize;
-		}
-	}
-
-	private void incrementCacheSize() {
-        if (_log.isDebugEnabled()) {
-            _log.debug("Asked to increment the " + CACHENAME + " cache.");
+    // Default configuration
+    static final String CACHENAME = "AvailabilityCache";
+    static final int    CACHESIZE = 20000;
+    // a transaction holds the stripes of all the ids it writes, so there are
+    // many more stripes than concurrent writers
+    static final int    STRIPES   = 1024;
+    // must divide STRIPES
+    static final int    SHARDS    = 16;
+
+    private static class Tran {
+        private final Map<Integer, DataPoint> cacheState = new HashMap<Integer, DataPoint>();
+        private final Map<Integer, DataPoint> openState = new HashMap<Integer, DataPoint>();
+        private final boolean[] stripes = new boolean[STRIPES];
+        private final List<Integer> stripeList = new ArrayList<Integer>();
+    }
+
+    private final ConcurrentMap<Integer, DataPoint> _cache =
+        new ConcurrentHashMap<Integer, DataPoint>(CACHESIZE, 0.75f, 64);
+    // measurement id -> DataPoint(id, availVal, startime) of the open RLE
+    private final ConcurrentMap<Integer, DataPoint> _openAvails =
+        new ConcurrentHashMap<Integer, DataPoint>(CACHESIZE, 0.75f, 64);
+    private final ReentrantLock[] _stripes = new ReentrantLock[STRIPES];
+    private final ReentrantLock[] _shards = new ReentrantLock[SHARDS];
+    // read locked by shard locks and transactions, write locked by
+    // lockAllShards() and clear()
+    private final ReentrantReadWriteLock _allShards = new ReentrantReadWriteLock();
+    private final ThreadLocal<Tran> _tran = new ThreadLocal<Tran>();
+
+    public AvailabilityCache() {
+        for (int i = 0; i < STRIPES; i++) {
+            _stripes[i] = new ReentrantLock();
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            _shards[i] = new ReentrantLock();
+        }
+    }
+
+    private static int getStripe(Integer id) {
+        int h = id.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * @return the shard of the measurement id, 0 <= shard < SHARDS
+     */
+    static int getShard(Integer id) {
+        return getStripe(id) % SHARDS;
+    }
+
+    /**
+     * Keeps lockAllShards() from returning until unlockShared() is called.
+     * Reentrant.
+     */
+    void lockShared() {
+        _allShards.readLock().lock();
+    }
+
+    void unlockShared() {
+        _allShards.readLock().unlock();
+    }
+
+    /**
+     * Locks the shard so that no other thread applies availability of its
+     * measurements until unlockShard() is called.  The caller must hold
+     * lockShared().  Reentrant.
+     */
+    void lockShard(int shard) {
+        _shards[shard].lock();
+    }
+
+    void unlockShard(int shard) {
+        _shards[shard].unlock();
+    }
+
+    /**
+     * Waits for the threads which hold lockShared() or are in a transaction
+     * and keeps all others from taking it until unlockAllShards() is called.
+     * The calling thread may still lock shards.  Reentrant.
+     */
+    public void lockAllShards() {
+        _allShards.writeLock().lock();
+    }
+
+    public void unlockAllShards() {
+        _allShards.writeLock().unlock();
+    }
+
+    /**
+     * Locks the stripe of the id.  Within a transaction the stripe stays
+     * locked until the transaction ends, otherwise the caller must call
+     * unlockStripe() when done.
+     * @return true if the caller must unlock the stripe
+     */
+    private boolean lockStripe(Integer id) {
+        final int stripe = getStripe(id);
+        final Tran tran = _tran.get();
+        if (tran != null) {
+            if (!tran.stripes[stripe]) {
+                _stripes[stripe].lock();
+                tran.stripes[stripe] = true;
+                tran.stripeList.add(stripe);
+            }
+            return false;
+        }
+        _stripes[stripe].lock();
+        return true;
+    }
+
+    private void unlockStripe(Integer id) {
+        _stripes[getStripe(id)].unlock();
+    }
+
+    private void captureState(Integer metricId) {
+        final Tran tran = _tran.get();
+        if (tran == null || tran.cacheState.containsKey(metricId)) {
+            return;
+        }
+        // doesn't matter if the points are null
+        tran.cacheState.put(metricId, _cache.get(metricId));
+        tran.openState.put(metricId, _openAvails.get(metricId));
+    }
+
+    private void endTran(Tran tran) {
+        for (final Integer stripe : tran.stripeList) {
+            _stripes[stripe].unlock();
+        }
+        _tran.remove();
+        _allShards.readLock().unlock();
+    }
+
+    private static void restore(Map<Integer, DataPoint> map, Map<Integer, DataPoint> state) {
+        for (final Map.Entry<Integer, DataPoint> entry : state.entrySet()) {
+            if (entry.getValue() == null) {
+                map.remove(entry.getKey());
+            } else {
+                map.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public void rollbackTran() {
+        final Tran tran = _tran.get();
+        if (tran == null) {
+            return;
+        }
+        // the stripes of all the captured ids are still held
+        restore(_cache, tran.cacheState);
+        restore(_openAvails, tran.openState);
+        endTran(tran);
+    }
+
+    public void commitTran() {
+        final Tran tran = _tran.get();
+        if (tran == null) {
+            return;
+        }
+        endTran(tran);
+    }
+
+    /**
+     * Transactions of different threads may run at the same time as long
+     * as they write ids of different shards, see lockShard().
+     * @return true if a new cache transaction was started, false if the
+     * currentThread was already participating in a transaction
+     */
+    public boolean beginTran() {
+        if (_tran.get() != null) {
+            return false;
+        }
+        _allShards.readLock().lock();
+        _tran.set(new Tran());
+        return true;
+    }
+
+    /**
+     * Get a DataPoint from the cache based on Measurement id
+     * @param id The Measurement id in question.
+     * @return The DataPoint or the defaultState if the Measurement id is not
+     * located in the cache. 
+     */
+    public DataPoint get(Integer id, DataPoint defaultState) {
+        final DataPoint rtn = _cache.get(id);
+        if (rtn != null) {
+            return rtn;
+        }
+        final DataPoint prev = _cache.putIfAbsent(id, defaultState);
+        return (prev == null) ? defaultState : prev;
+    }
+
+    /**
+     * Remove id from cache along with its open RLE interval
+     * @param id The Measurement id in question.
+     */
+    public boolean remove(Integer id) {
+        final boolean unlock = lockStripe(id);
+        try {
+            captureState(id);
+            _openAvails.remove(id);
+            return _cache.remove(id) != null;
+        } finally {
+            if (unlock) {
+                unlockStripe(id);
+            }
+        }
+    }
+
+    /**
+     * Get a DataPoint from the cache based on the Measurement id.
+     * @param id The Measurement id in question.
+     * @return The DataPoint or null if it does not exist in the cache.
+     */
+    public DataPoint get(Integer id) {
+        return _cache.get(id);
+    }
+
+    /**
+     * Put an item into the cache.
+     * @param id The Measurement id representing the availability data point.
+     * @param state The DataPoint to store for the given id.
+     */
+    public void put(Integer id, DataPoint state) {
+        final boolean unlock = lockStripe(id);
+        try {
+            captureState(id);
+            _cache.put(id, state);
+        } finally {
+            if (unlock) {
+                unlockStripe(id);
+            }
+        }
+    }
+
+    /**
+     * @return DataPoint(id, availVal, startime) of the open RLE interval of
+     * the Measurement or null if it is not known
+     */
+    DataPoint getOpenAvail(Integer id) {
+        return _openAvails.get(id);
+    }
+
+    /**
+     * Record the open RLE interval of the Measurement as it was written to
+     * the DB, null if the Measurement has none.
+     */
+    void putOpenAvail(Integer id, DataPoint start) {
+        final boolean unlock = lockStripe(id);
+        try {
+            captureState(id);
+            if (start == null) {
+                _openAvails.remove(id);
+            } else {
+                _openAvails.put(id, start);
+            }
+        } finally {
+            if (unlock) {
+                unlockStripe(id);
+            }
+        }
+    }
+
+    /**
+     * Get the total cache size
+     * @return The number of measurements in the cache.
+     */
+    int getSize() {
+        return _cache.size();
+    }
+
+    /**
+     * Remove all elements from the AvailabilityCache.
+     */
+    void clear() {
+        // waits for all other transactions to end so that they can't be
+        // rolled back over the cleared cache
+        if (_tran.get() != null) {
+            throw new IllegalStateException("can't clear the cache within a transaction");
         }
-        int curMax = -1;
-		int newMax = -1;
-		synchronized (_cacheLock) {
-			curMax = _cache.getCacheConfiguration().getMaxElementsInMemory();
-			newMax = curMax  + CACHESIZEINCREMENT;
-			_cache.getCacheConfiguration().setMaxElementsInMemory(newMax);
-			_cacheMaxSize = newMax;
-		}
-        if (_log.isDebugEnabled()) {
-            _log.debug("Increased cache size from " + curMax + " to " + newMax);
+        lockAllShards();
+        try {
+            for (int i = 0; i < STRIPES; i++) {
+                _stripes[i].lock();
+            }
+            try {
+                _cache.clear();
+                _openAvails.clear();
+            } finally {
+                for (int i = 0; i < STRIPES; i++) {
+                    _stripes[i].unlock();
+                }
+            }
+        } finally {
+            unlockAllShards();
         }
-	}
+    }
 }
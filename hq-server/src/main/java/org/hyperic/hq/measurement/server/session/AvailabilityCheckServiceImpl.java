@@ -120,11 +120,14 @@ public class AvailabilityCheckServiceImpl implements AvailabilityCheckService {
                 // associated AVAIL_UP value from the agent.
                 // The code must be extremely efficient or else it will have
                 // a big impact on the performance of availability insertion.
-                synchronized (availabilityCache) {
+                availabilityCache.lockAllShards();
+                try {
                     log.info("starting availability check");
                     if (debug) watch.markTimeBegin("getBackfillPlatformPoints");
                     backfillPoints = backfillPointsService.getBackfillPlatformPoints(current);
                     if (debug) watch.markTimeEnd("getBackfillPlatformPoints");
+                } finally {
+                    availabilityCache.unlockAllShards();
                 }
                 if (backfillPoints.size() > 0 && debug) {
                     log.debug("backfillPlatformAvailability: got " + backfillPoints.size() +
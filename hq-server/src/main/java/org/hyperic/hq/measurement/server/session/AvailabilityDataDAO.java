@@ -25,11 +25,13 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.sql.PreparedStatement;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -79,6 +81,15 @@ public class AvailabilityDataDAO
                                              + "- greatest(rle.availabilityDataId.startime,:startime)";
     private static final String TOTAL_UPTIME = "(" + TOTAL_TIME + ") * rle.availVal";
 
+    static final Comparator<AvailabilityDataRLE> STARTIME_COMPARATOR =
+        new Comparator<AvailabilityDataRLE>() {
+            public int compare(AvailabilityDataRLE lhs, AvailabilityDataRLE rhs) {
+                final long lhsStart = lhs.getStartime();
+                final long rhsStart = rhs.getStartime();
+                return (lhsStart < rhsStart) ? -1 : ((lhsStart == rhsStart) ? 0 : 1);
+            }
+        };
+
     private final DBUtil dbUtil;
 
     @Autowired
@@ -295,6 +306,158 @@ public class AvailabilityDataDAO
         return rtn;
     }
 
+    /**
+     * Reads the RLE rows with plain JDBC, the rows are not attached to the
+     * session and are written back with {@link #updateAvails}.
+     * 
+     * @return {@link Map} of {@link Measurement}.getId() to a {@link TreeSet}
+     *         of the {@link AvailabilityDataRLE}s which end at or after the
+     *         given time sorted by {@link AvailabilityDataRLE}.getStartime().
+     *         Every measurement id is in the map.
+     */
+    Map<Integer, TreeSet<AvailabilityDataRLE>> getAvailMap(Collection<Integer> mids, long after)
+        throws SQLException {
+        final Map<Integer, TreeSet<AvailabilityDataRLE>> rtn =
+            new HashMap<Integer, TreeSet<AvailabilityDataRLE>>(mids.size() * 2);
+        for (final Integer mid : mids) {
+            rtn.put(mid, new TreeSet<AvailabilityDataRLE>(STARTIME_COMPARATOR));
+        }
+        final String sql = "SELECT measurement_id, startime, endtime, availval FROM HQ_AVAIL_DATA_RLE" +
+                           " WHERE endtime >= " + after + " AND measurement_id in ";
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = dbUtil.getConnection();
+            stmt = conn.createStatement();
+            for (final String in : getInLists(mids)) {
+                rs = stmt.executeQuery(sql + in);
+                while (rs.next()) {
+                    final Integer mid = new Integer(rs.getInt(1));
+                    final Measurement meas = (Measurement) getSession().load(Measurement.class, mid);
+                    rtn.get(mid).add(
+                        new AvailabilityDataRLE(meas, rs.getLong(2), rs.getLong(3), rs.getDouble(4)));
+                }
+                DBUtil.closeResultSet(logCtx, rs);
+                rs = null;
+            }
+        } finally {
+            DBUtil.closeJDBCObjects(logCtx, conn, stmt, rs);
+        }
+        return rtn;
+    }
+
+    /**
+     * @return DataPoint(measurement id, availVal, startime) of the open RLE
+     *         row of each of the measurements which has one
+     */
+    Map<Integer, DataPoint> findOpenAvails(Collection<Integer> mids) throws SQLException {
+        final Map<Integer, DataPoint> rtn = new HashMap<Integer, DataPoint>(mids.size() * 2);
+        final String sql = "SELECT measurement_id, startime, availval FROM HQ_AVAIL_DATA_RLE" +
+                           " WHERE endtime = " + MAX_TIMESTAMP + " AND measurement_id in ";
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = dbUtil.getConnection();
+            stmt = conn.createStatement();
+            for (final String in : getInLists(mids)) {
+                rs = stmt.executeQuery(sql + in);
+                while (rs.next()) {
+                    final int mid = rs.getInt(1);
+                    rtn.put(new Integer(mid), new DataPoint(mid, rs.getDouble(3), rs.getLong(2)));
+                }
+                DBUtil.closeResultSet(logCtx, rs);
+                rs = null;
+            }
+        } finally {
+            DBUtil.closeJDBCObjects(logCtx, conn, stmt, rs);
+        }
+        return rtn;
+    }
+
+    private List<String> getInLists(Collection<Integer> mids) {
+        final List<String> rtn = new ArrayList<String>();
+        final StringBuilder buf = new StringBuilder();
+        int size = 0;
+        for (final Integer mid : mids) {
+            buf.append((size == 0) ? "(" : ",").append(mid);
+            if (++size == BATCH_SIZE) {
+                rtn.add(buf.append(')').toString());
+                buf.setLength(0);
+                size = 0;
+            }
+        }
+        if (size > 0) {
+            rtn.add(buf.append(')').toString());
+        }
+        return rtn;
+    }
+
+    /**
+     * Writes the changes to the RLE rows with one JDBC batch per statement,
+     * deletes first so that a row may be replaced by one with the same key.
+     * 
+     * @throws SQLException also if one of the rows to update does not exist
+     */
+    void updateAvails(AvailabilityRLEChanges changes) throws SQLException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = dbUtil.getConnection();
+            if (!changes.getDeletes().isEmpty()) {
+                stmt = conn.prepareStatement(
+                    "DELETE FROM HQ_AVAIL_DATA_RLE WHERE measurement_id = ? AND startime = ?");
+                for (final AvailabilityDataRLE rle : changes.getDeletes()) {
+                    stmt.setInt(1, rle.getMeasurement().getId().intValue());
+                    stmt.setLong(2, rle.getStartime());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                DBUtil.closeStatement(logCtx, stmt);
+                stmt = null;
+            }
+            if (!changes.getUpdates().isEmpty()) {
+                stmt = conn.prepareStatement("UPDATE HQ_AVAIL_DATA_RLE SET endtime = ?, availval = ?" +
+                                             " WHERE measurement_id = ? AND startime = ?");
+                for (final AvailabilityDataRLE rle : changes.getUpdates()) {
+                    stmt.setLong(1, rle.getEndtime());
+                    stmt.setDouble(2, rle.getAvailVal());
+                    stmt.setInt(3, rle.getMeasurement().getId().intValue());
+                    stmt.setLong(4, rle.getStartime());
+                    stmt.addBatch();
+                }
+                final int[] rows = stmt.executeBatch();
+                for (int i = 0; i < rows.length; i++) {
+                    if (rows[i] == 0) {
+                        // the row was changed behind the back of the cache
+                        throw new SQLException("RLE row " + changes.getUpdates().get(i) + " does not exist");
+                    }
+                }
+                DBUtil.closeStatement(logCtx, stmt);
+                stmt = null;
+            }
+            if (!changes.getInserts().isEmpty()) {
+                stmt = conn.prepareStatement("INSERT INTO HQ_AVAIL_DATA_RLE" +
+                                             " (measurement_id, startime, endtime, availval)" +
+                                             " VALUES (?, ?, ?, ?)");
+                for (final AvailabilityDataRLE rle : changes.getInserts()) {
+                    stmt.setInt(1, rle.getMeasurement().getId().intValue());
+                    stmt.setLong(2, rle.getStartime());
+                    stmt.setLong(3, rle.getEndtime());
+                    stmt.setDouble(4, rle.getAvailVal());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        } finally {
+            DBUtil.closeJDBCObjects(logCtx, conn, stmt, null);
+        }
+    }
+
     /**
      * @return List of AvailabilityDataRLE objs
      */
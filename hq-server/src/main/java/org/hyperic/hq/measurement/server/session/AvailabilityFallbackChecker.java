@@ -123,8 +123,11 @@ public class AvailabilityFallbackChecker {
         List<DataPoint> res = addStatusOfPlatformsDescendants(resPlatforms);
         if (debug) log.debug("checkAvailability: updating " + res.size() + " platforms & descendants.");
         if (!res.isEmpty()) {
-            synchronized (availabilityCache) {
+            availabilityCache.lockAllShards();
+            try {
                 availabilityManager.addData(res, true, true);
+            } finally {
+                availabilityCache.unlockAllShards();
             }
         }
     }
@@ -160,12 +163,15 @@ public class AvailabilityFallbackChecker {
         if (debug) log.debug("marking " + resPlatforms.size() + " platforms down, resourceIds=" + resPlatforms);
         List<DataPoint> datapoints = getAllHierarchyMeasurementData(resPlatforms);
         // HHQ-5726 - only one thread can access availabilityManager.addData() at once
-        synchronized (availabilityCache) {
+        availabilityCache.lockAllShards();
+        try {
             for (int i=0; i<datapoints.size(); i+=MAX_UPDATES_PER_BATCH) {
                 int max = Math.min(i + MAX_UPDATES_PER_BATCH, datapoints.size());
                 List<DataPoint> sublist = datapoints.subList(i, max);
                 availabilityManager.addData(sublist, true, true);
             }
+        } finally {
+            availabilityCache.unlockAllShards();
         }
     }
     
@@ -247,10 +253,8 @@ public class AvailabilityFallbackChecker {
         Measurement vmParentMeasurement = resourceEdgeVirtualRelations.get(0);
         long endTimeStamp = getEndWindow(getCurTimestamp(), vmParentMeasurement);
         final DataPoint defaultParentDataPoint = new DataPoint(vmParentMeasurement.getId().intValue(), MeasurementConstants.AVAIL_NULL, endTimeStamp);
-        DataPoint lastParentDataPoint = null;
-        synchronized (availabilityCache) {
-            lastParentDataPoint = availabilityCache.get(vmParentMeasurement.getId(), defaultParentDataPoint);
-        }
+        DataPoint lastParentDataPoint =
+            availabilityCache.get(vmParentMeasurement.getId(), defaultParentDataPoint);
         if (lastParentDataPoint == null) {
             return null;            
         }
@@ -44,6 +44,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -95,6 +96,8 @@ import org.quartz.SchedulerException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * The AvailabityManagerImpl class is a stateless session bean that can be used
@@ -119,6 +122,10 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     private static final int IND_TOTAL_TIME = IND_UP_TIME + 1;
     private static final long MAX_AVAIL_TIMESTAMP = AvailabilityDataRLE.getLastTimestamp();
     private static final String ALL_EVENTS_INTERESTING_PROP = "org.hq.triggers.all.events.interesting";
+    // one in this many measurements of each report is checked against the DB, see
+    // checkAvailabilityState()
+    private static final String DB_CHECK_SAMPLE_PROP = "org.hq.avail.dbCheckSample";
+    private static final int DEFAULT_DB_CHECK_SAMPLE = 10;
     private static final int DEFAULT_INTERVAL = 60;
 
     private static final String AVAIL_MANAGER_METRICS_INSERTED = ConcurrentStatsCollector.AVAIL_MANAGER_METRICS_INSERTED;
@@ -144,6 +151,8 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     private AvailabilityCache availabilityCache;
     private ConcurrentStatsCollector concurrentStatsCollector;
     private AgentDAO agentDAO;
+    // picks the measurements checked against the DB, used under the shard locks
+    private final Random dbCheckRandom = new Random();
     
     @Autowired
     public AvailabilityManagerImpl(AuthzSubjectManager authzSubjectManager, ResourceManager resourceManager,
@@ -917,35 +926,29 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         }
         Collection<DataPoint> pointsToUpdate = this.fallbackCheckQue.beforeDataUpdate(availDataPoints, addedByServer);
         List<DataPoint> availPoints =  new ArrayList<DataPoint>(pointsToUpdate);
-        
-        List<DataPoint> updateList = new ArrayList<DataPoint>(availPoints.size());
-        List<DataPoint> outOfOrderAvail = new ArrayList<DataPoint>(availPoints.size());
-        Map<DataPoint, AvailabilityDataRLE> createMap = new HashMap<DataPoint, AvailabilityDataRLE>();
-        Map<DataPoint, AvailabilityDataRLE> removeMap = new HashMap<DataPoint, AvailabilityDataRLE>();
-        Map<Integer, StringBuilder> state = null;
-        Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails = Collections.emptyMap();
         if (log.isDebugEnabled()) {
             log.debug(availDataPoints);
         }
-        synchronized (availabilityCache) {
-            try {
-                availabilityCache.beginTran();
-                updateCache(availPoints, updateList, outOfOrderAvail);
-                currAvails = createCurrAvails(outOfOrderAvail, updateList); // get current DB Availability state for the measurements.
-                state = captureCurrAvailState(currAvails); // this method is called for logging.
-                updateStates(updateList, currAvails, createMap, removeMap);
-                updateOutOfOrderState(outOfOrderAvail, currAvails, createMap, removeMap);
-                flushCreateAndRemoves(createMap, removeMap);
-                checkAvailabilityState(availPoints);
-                logErrorInfo(state, availPoints, currAvails);
-                availabilityCache.commitTran();
-            } catch (Throwable e) {
-                logErrorInfo(state, availPoints, currAvails);
-                log.error(e.getMessage(), e);
-                availabilityCache.rollbackTran();
-                throw new SystemException(e);
+        // only one shard is locked at a time, the other shards are free to
+        // apply the reports of other agents meanwhile.  The shards are
+        // locked in order, so reports can't deadlock on each other's DB rows.
+        final List<List<DataPoint>> shards = getShards(availPoints);
+        availabilityCache.lockShared();
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                final List<DataPoint> points = shards.get(shard);
+                if (points.isEmpty()) {
+                    continue;
+                }
+                availabilityCache.lockShard(shard);
+                try {
+                    addShardData(points);
+                } finally {
+                    availabilityCache.unlockShard(shard);
+                }
             }
-
+        } finally {
+            availabilityCache.unlockShared();
         }
 
         concurrentStatsCollector.addStat(availPoints.size(), AVAIL_MANAGER_METRICS_INSERTED);
@@ -955,59 +958,157 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         }
     }
 
-	private void flushCreateAndRemoves(Map<DataPoint, AvailabilityDataRLE> createMap,
-                                       Map<DataPoint, AvailabilityDataRLE> removeMap) {
+    private List<List<DataPoint>> getShards(List<DataPoint> availPoints) {
+        final List<List<DataPoint>> rtn = new ArrayList<List<DataPoint>>(AvailabilityCache.SHARDS);
+        for (int i = 0; i < AvailabilityCache.SHARDS; i++) {
+            rtn.add(new ArrayList<DataPoint>());
+        }
+        for (final DataPoint pt : availPoints) {
+            rtn.get(AvailabilityCache.getShard(pt.getMeasurementId())).add(pt);
+        }
+        return rtn;
+    }
+
+    /**
+     * Applies the points of the measurements of one shard, the caller holds
+     * the shard lock.
+     */
+    private void addShardData(List<DataPoint> availPoints) {
+        List<DataPoint> updateList = new ArrayList<DataPoint>(availPoints.size());
+        List<DataPoint> outOfOrderAvail = new ArrayList<DataPoint>(availPoints.size());
+        Map<DataPoint, AvailabilityDataRLE> createMap = new HashMap<DataPoint, AvailabilityDataRLE>();
+        Map<DataPoint, AvailabilityDataRLE> removeMap = new HashMap<DataPoint, AvailabilityDataRLE>();
+        AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+        Map<Integer, StringBuilder> state = null;
+        Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails = Collections.emptyMap();
+        try {
+            availabilityCache.beginTran();
+            loadOpenAvails(availPoints);
+            updateCache(availPoints, updateList, outOfOrderAvail);
+            currAvails = createCurrAvails(outOfOrderAvail, updateList, changes); // get current DB Availability state for the measurements.
+            state = captureCurrAvailState(currAvails); // this method is called for logging.
+            updateStates(updateList, currAvails, createMap, removeMap);
+            updateOutOfOrderState(outOfOrderAvail, currAvails, createMap, removeMap);
+            flushCreateAndRemoves(currAvails, changes, createMap);
+            checkAvailabilityState(availPoints);
+            logErrorInfo(state, availPoints, currAvails);
+            availabilityCache.commitTran();
+        } catch (Throwable e) {
+            logErrorInfo(state, availPoints, currAvails);
+            log.error(e.getMessage(), e);
+            availabilityCache.rollbackTran();
+            throw new SystemException(e);
+        }
+    }
+
+    /**
+     * Reads the open RLE interval of the measurements which aren't in the
+     * availabilityCache yet, e.g. after a restart.  From then on the cache
+     * keeps them up to date as the changes are written.
+     */
+    private void loadOpenAvails(List<DataPoint> availPoints) throws SQLException {
+        final Set<Integer> mids = new HashSet<Integer>();
+        for (final DataPoint pt : availPoints) {
+            if (availabilityCache.getOpenAvail(pt.getMeasurementId()) == null) {
+                mids.add(pt.getMeasurementId());
+            }
+        }
+        if (mids.isEmpty()) {
+            return;
+        }
+        for (final DataPoint start : availabilityDataDAO.findOpenAvails(mids).values()) {
+            availabilityCache.putOpenAvail(start.getMeasurementId(), start);
+        }
+    }
+
+    /**
+     * Writes the changes to the RLE rows, as found by comparing the merged
+     * currAvails to the rows which were read, with plain JDBC and records the
+     * new open RLE intervals in the availabilityCache.
+     */
+    private void flushCreateAndRemoves(Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails,
+                                       AvailabilityRLEChanges changes,
+                                       Map<DataPoint, AvailabilityDataRLE> createMap) throws SQLException {
         final StopWatch watch = new StopWatch();
         final boolean debug = log.isDebugEnabled();
-
-        if (debug)
-            watch.markTimeBegin("remove");
-        for (Map.Entry<DataPoint, AvailabilityDataRLE> entry : removeMap.entrySet()) {
-            AvailabilityDataRLE rle = (AvailabilityDataRLE) entry.getValue();
-            // if we call remove() on an object which is already in the session
-            // hibernate will throw NonUniqueObjectExceptions
-            AvailabilityDataRLE tmp = availabilityDataDAO.get(rle.getAvailabilityDataId());
-            if (tmp != null) {
-                availabilityDataDAO.remove(tmp);
+        for (Map.Entry<Integer, TreeSet<AvailabilityDataRLE>> entry : currAvails.entrySet()) {
+            final Integer mid = entry.getKey();
+            final TreeSet<AvailabilityDataRLE> rles = entry.getValue();
+            changes.merged(mid, rles);
+            final AvailabilityDataRLE last = rles.isEmpty() ? null : rles.last();
+            if (last == null || last.getEndtime() != MAX_AVAIL_TIMESTAMP) {
+                availabilityCache.putOpenAvail(mid, null);
             } else {
-                availabilityDataDAO.remove(rle);
+                availabilityCache.putOpenAvail(mid, new DataPoint(mid.intValue(), last.getAvailVal(),
+                    last.getStartime()));
             }
         }
-        if (debug) {
-            watch.markTimeEnd("remove");
-            watch.markTimeBegin("flush");
-        }
-        // addData() could be overwriting RLE data points (i.e. from 0.0 to 1.0)
-        // with the same ID. If this is the scenario, then we must run
-        // flush() in order to ensure that these old objects are not in the
-        // session when the equivalent create() on the same ID is run,
-        // thus avoiding NonUniqueObjectExceptions
-        availabilityDataDAO.getSession().flush();
-        if (debug) {
-            watch.markTimeEnd("flush");
-            watch.markTimeBegin("create");
+        if (!changes.isEmpty()) {
+            forgetOnRollback(currAvails.keySet());
+            if (debug) {
+                watch.markTimeBegin("updateAvails");
+            }
+            availabilityDataDAO.updateAvails(changes);
+            if (debug) {
+                watch.markTimeEnd("updateAvails");
+            }
         }
         List<MeasurementZevent> events = new ArrayList<MeasurementZevent>(createMap.entrySet().size());
         for (Map.Entry<DataPoint, AvailabilityDataRLE> entry : createMap.entrySet()) {
             DataPoint dp = entry.getKey();
             AvailabilityDataRLE rle = (AvailabilityDataRLE) entry.getValue();
-            AvailabilityDataId id = new AvailabilityDataId();
-            Measurement m = rle.getMeasurement();
-            id.setMeasurement(m);
-            id.setStartime(rle.getStartime());
-            
-            availabilityDataDAO.create(rle.getMeasurement(), rle.getStartime(), rle.getEndtime(), rle.getAvailVal());
-            log.debug("added: Availability "+rle.getAvailVal() + " starttime " + rle.getStartime() + " endtime " + rle.getEndtime());
-            events.add(new MeasurementZevent(m.getId().intValue(), dp.getMetricValue()));
+            if (debug) {
+                log.debug("added: Availability " + rle.getAvailVal() + " starttime " + rle.getStartime() +
+                          " endtime " + rle.getEndtime());
+            }
+            events.add(new MeasurementZevent(rle.getMeasurement().getId().intValue(), dp.getMetricValue()));
         }
         ZeventManager.getInstance().enqueueEventsAfterCommit(events);
         if (debug) {
-            watch.markTimeEnd("create");
-            log.debug("AvailabilityInserter flushCreateAndRemoves: " + watch + ", points {remove=" + removeMap.size()
-                    + ", create=" + createMap.size() + "}");
+            log.debug("AvailabilityInserter flushCreateAndRemoves: " + watch + ", rows " + changes);
         }
     }
 
+    /**
+     * The shard lock is released before the surrounding transaction ends, if
+     * it rolls back the availabilityCache must no longer claim the state of
+     * the measurements, they are read from the DB again with the next point.
+     */
+    private void forgetOnRollback(Collection<Integer> mids) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        final List<Integer> forget = new ArrayList<Integer>(mids);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            public void suspend() {
+            }
+
+            public void resume() {
+            }
+
+            public void flush() {
+            }
+
+            public void beforeCommit(boolean readOnly) {
+            }
+
+            public void beforeCompletion() {
+            }
+
+            public void afterCommit() {
+            }
+
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    return;
+                }
+                for (final Integer mid : forget) {
+                    availabilityCache.remove(mid);
+                }
+            }
+        });
+    }
+
     private void logErrorInfo(final Map<Integer, StringBuilder> oldState, final List<DataPoint> availPoints,
             Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails) {
         if (!traceLog.isDebugEnabled()) {
@@ -1024,37 +1125,59 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         }
     }
 
-    @SuppressWarnings("unchecked")
     /**
      * get AvailabilityDataRLEs for the given DataPoints' Measurement IDs, with endData within the last 7 days.
      * If several AvailabilityDataRLEs exist for the same Measurement, they are listed in ascending order.
+     * A measurement whose points all come after the start of its open RLE interval only needs that
+     * interval, which is known from the availabilityCache, the others are read from the DB.
      * @param outOfOrderAvail
      * @param updateList
+     * @param changes - records the AvailabilityDataRLEs as they are in the DB
      * @return
      */
     private Map<Integer, TreeSet<AvailabilityDataRLE>> createCurrAvails(final List<DataPoint> outOfOrderAvail,
-            final List<DataPoint> updateList) {
-        Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails = null;
+            final List<DataPoint> updateList, final AvailabilityRLEChanges changes) throws SQLException {
+        if (outOfOrderAvail.size() == 0 && updateList.size() == 0) {
+            return Collections.emptyMap();
+        }
         final StopWatch watch = new StopWatch();
-        try {
-            if (outOfOrderAvail.size() == 0 && updateList.size() == 0) {
-                currAvails = Collections.EMPTY_MAP;
+        final long now = TimingVoodoo.roundDownTime(System.currentTimeMillis(), 60000);
+        final HashSet<Integer> mids = getMidsWithinAllowedDataWindow(updateList, now);
+        final HashSet<Integer> history = getMidsWithinAllowedDataWindow(outOfOrderAvail, now);
+        for (final DataPoint pt : updateList) {
+            final DataPoint open = availabilityCache.getOpenAvail(pt.getMeasurementId());
+            if (open == null || pt.getTimestamp() <= open.getTimestamp()) {
+                history.add(pt.getMeasurementId());
             }
-            long now = TimingVoodoo.roundDownTime(System.currentTimeMillis(), 60000);
-            HashSet<Integer> mids = getMidsWithinAllowedDataWindow(updateList, now);
-            mids.addAll(getMidsWithinAllowedDataWindow(outOfOrderAvail, now));
-            if (mids.size() <= 0) {
-                currAvails = Collections.EMPTY_MAP;
-
+        }
+        final Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails =
+            new HashMap<Integer, TreeSet<AvailabilityDataRLE>>((mids.size() + history.size()) * 2);
+        for (final Integer mid : mids) {
+            if (history.contains(mid)) {
+                continue;
             }
-            Integer[] mIds = (Integer[]) mids.toArray(new Integer[0]);
-            currAvails = availabilityDataDAO.getHistoricalAvailMap(mIds, now - MAX_DATA_BACKLOG_TIME, false);
-            return currAvails;
-        } finally {
-            if (log.isDebugEnabled()) {
-                log.debug("AvailabilityInserter setCurrAvails: " + watch + ", size=" + currAvails.size());
+            final Measurement meas = getMeasurement(mid);
+            if (meas == null) {
+                history.add(mid);
+                continue;
             }
+            final DataPoint open = availabilityCache.getOpenAvail(mid);
+            final TreeSet<AvailabilityDataRLE> rles =
+                new TreeSet<AvailabilityDataRLE>(AvailabilityDataDAO.STARTIME_COMPARATOR);
+            rles.add(new AvailabilityDataRLE(meas, open.getTimestamp(), open.getValue()));
+            currAvails.put(mid, rles);
+        }
+        if (!history.isEmpty()) {
+            currAvails.putAll(availabilityDataDAO.getAvailMap(history, now - MAX_DATA_BACKLOG_TIME));
         }
+        for (final Map.Entry<Integer, TreeSet<AvailabilityDataRLE>> entry : currAvails.entrySet()) {
+            changes.read(entry.getKey(), entry.getValue());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("AvailabilityInserter setCurrAvails: " + watch + ", size=" + currAvails.size() +
+                      ", read=" + history.size());
+        }
+        return currAvails;
     }
 
     /**
@@ -1593,14 +1716,29 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         // If we don't clear the cache the resource which this availability
         // metric belongs to will appear to be 'down' while it is not,
         // clearing the cache causes the metric to be updated in the database to the correct value.
-        final List<Integer> includes = new ArrayList<Integer>(availPoints.size());
+        final Set<Integer> includes = new HashSet<Integer>(availPoints.size() * 2);
         for (final DataPoint point : availPoints) {
             includes.add(point.getMeasurementId());
         }
-        // Find all of the availPoints in the database and check if the same datapoint 
-        // is not in sync with the cache
-        final List<AvailabilityDataRLE> avails = availabilityDataDAO.findLastAvail(includes);
+        // Check the availPoints against their open RLE intervals as they were
+        // written to the database, and a sample of them against the database
+        // itself, as that is where the cache and the open intervals drift apart.
+        // Reading all of them back would double the DB load of every report.
         final List<Integer> mids = new ArrayList<Integer>();
+        final List<Integer> sample = new ArrayList<Integer>();
+        final int sampleSize = Math.max(1, Integer.getInteger(DB_CHECK_SAMPLE_PROP,
+                                                              DEFAULT_DB_CHECK_SAMPLE).intValue());
+        for (final Integer mid : includes) {
+            final DataPoint open = availabilityCache.getOpenAvail(mid);
+            final DataPoint stateInCache = availabilityCache.get(mid);
+            if (null != open && null != stateInCache && (stateInCache.getValue() != open.getValue())) {
+                availabilityCache.remove(mid);
+                mids.add(mid);
+            } else if (dbCheckRandom.nextInt(sampleSize) == 0) {
+                sample.add(mid);
+            }
+        }
+        final List<AvailabilityDataRLE> avails = availabilityDataDAO.findLastAvail(sample);
         for (final AvailabilityDataRLE data : avails) {
             final Integer mid = data.getMeasurement().getId();
             final DataPoint stateInCache = availabilityCache.get(mid);
@@ -1749,14 +1887,12 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     }
 
     private Integer isAvailDataRLEValid(Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails) {
-
-        synchronized (availabilityCache) {
-            for (Map.Entry<Integer, TreeSet<AvailabilityDataRLE>> entry : currAvails.entrySet()) {
-                Integer mId = entry.getKey();
-                Collection<AvailabilityDataRLE> rles = entry.getValue();
-                if (!isAvailDataRLEValid(mId, availabilityCache.get(mId), rles)) {
-                    return mId;
-                }
+        // the caller holds the shard lock of the measurements
+        for (Map.Entry<Integer, TreeSet<AvailabilityDataRLE>> entry : currAvails.entrySet()) {
+            Integer mId = entry.getKey();
+            Collection<AvailabilityDataRLE> rles = entry.getValue();
+            if (!isAvailDataRLEValid(mId, availabilityCache.get(mId), rles)) {
+                return mId;
             }
         }
         return null;
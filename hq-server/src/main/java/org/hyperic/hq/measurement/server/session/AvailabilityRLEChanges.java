@@ -0,0 +1,105 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes to the HQ_AVAIL_DATA_RLE rows of availability measurements.
+ * The rows are recorded as they were read, before the availability data
+ * points are merged into them, and compared to the rows after the merge.
+ * Every change is a delete, update or insert keyed by measurement id and
+ * startime, so no entity needs to be loaded or flushed to write them and all
+ * the changes of a report go out in one JDBC batch per statement.
+ */
+class AvailabilityRLEChanges {
+
+    // measurement id -> startime -> copy of the row as it was read
+    private final Map<Integer, Map<Long, AvailabilityDataRLE>> _read =
+        new HashMap<Integer, Map<Long, AvailabilityDataRLE>>();
+    private final List<AvailabilityDataRLE> _deletes = new ArrayList<AvailabilityDataRLE>();
+    private final List<AvailabilityDataRLE> _updates = new ArrayList<AvailabilityDataRLE>();
+    private final List<AvailabilityDataRLE> _inserts = new ArrayList<AvailabilityDataRLE>();
+
+    /**
+     * Record the rows of the measurement as they are in the DB.  The rows
+     * are copied since the merge changes them in place.
+     */
+    void read(Integer mid, Collection<AvailabilityDataRLE> rles) {
+        final Map<Long, AvailabilityDataRLE> rows = new HashMap<Long, AvailabilityDataRLE>(rles.size() * 2);
+        for (final AvailabilityDataRLE rle : rles) {
+            rows.put(rle.getStartime(), new AvailabilityDataRLE(rle.getMeasurement(), rle.getStartime(),
+                rle.getEndtime(), rle.getAvailVal()));
+        }
+        _read.put(mid, rows);
+    }
+
+    /**
+     * Compare the merged rows of the measurement to the rows which were read.
+     * Rows which were read but aren't merged any more are deleted, rows with
+     * a startime which was not read are inserted and the others are updated
+     * if their endtime or value changed.
+     */
+    void merged(Integer mid, Collection<AvailabilityDataRLE> rles) {
+        final Map<Long, AvailabilityDataRLE> rows = _read.remove(mid);
+        for (final AvailabilityDataRLE rle : rles) {
+            final AvailabilityDataRLE row = (rows == null) ? null : rows.remove(rle.getStartime());
+            if (row == null) {
+                _inserts.add(rle);
+            } else if (row.getEndtime() != rle.getEndtime() || row.getAvailVal() != rle.getAvailVal()) {
+                _updates.add(rle);
+            }
+        }
+        if (rows != null) {
+            _deletes.addAll(rows.values());
+        }
+    }
+
+    List<AvailabilityDataRLE> getDeletes() {
+        return _deletes;
+    }
+
+    List<AvailabilityDataRLE> getUpdates() {
+        return _updates;
+    }
+
+    List<AvailabilityDataRLE> getInserts() {
+        return _inserts;
+    }
+
+    boolean isEmpty() {
+        return _deletes.isEmpty() && _updates.isEmpty() && _inserts.isEmpty();
+    }
+
+    public String toString() {
+        return "{delete=" + _deletes.size() + ", update=" + _updates.size() + ", insert=" +
+               _inserts.size() + "}";
+    }
+}
@@ -188,7 +188,8 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
         final String nowTimestamp = TimeUtil.toString(now);
         final Map<Integer, ResourceDataPoint> rtn = new HashMap<Integer, ResourceDataPoint>(platformResources.size());
         final LatherDispatcher latherDispatcher = Bootstrap.getBean(LatherDispatcher.class);
-        synchronized (availabilityCache) {
+        availabilityCache.lockAllShards();
+        try {
             for (final Measurement meas : platformResources) {
                 final long interval = meas.getInterval();
                 /** 
@@ -251,6 +252,8 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
                     rtn.put(resource.getId(), new ResourceDataPoint(resource, point));
                 }
             }
+        } finally {
+            availabilityCache.unlockAllShards();
         }
         if (!rtn.isEmpty()) {
             permissionManager.getHierarchicalAlertingManager().performSecondaryAvailabilityCheck(rtn);
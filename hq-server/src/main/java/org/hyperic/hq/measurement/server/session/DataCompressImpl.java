@@ -25,20 +25,56 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.hq.measurement.TimingVoodoo;
 import org.hyperic.hq.measurement.shared.DataCompress;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
 import org.hyperic.util.TimeUtil;
 import org.hyperic.util.timer.StopWatch;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
  * The DataCompressImpl handles all compression and purging of measurement data
  * in the HQ system.
+ *
+ * Each compression interval is rolled up in slices by measurement id range,
+ * data.compress.threads slices at a time.  When rolling up raw data only the
+ * metric data tables which hold the interval are read.  Each slice is
+ * committed on its own and slices which have already been rolled up are
+ * skipped, so the rollup tables themselves are the checkpoint.  The first
+ * compression after a restart revisits the last interval so that an
+ * interrupted interval is completed rather than left partial.  Likewise the
+ * next compression starts over at the first interval with a failed slice,
+ * up to data.compress.retries times, after which the slice is left out.
+ *
+ * The rollup tables are partitioned by time, see {@link RollupTabManager},
+ * so that purging them drops whole partitions rather than deleting rows.
  */
 @Service
 @Transactional
@@ -51,13 +87,53 @@ public class DataCompressImpl implements DataCompress {
     private static final String TAB_DATA_6H = MeasurementConstants.TAB_DATA_6H;
     private static final String TAB_DATA_1D = MeasurementConstants.TAB_DATA_1D;
 
+    private static final int COMPRESS_THREADS = Integer.parseInt(System.getProperty(
+        "data.compress.threads", "2"));
+    private static final int COMPRESS_SLICES = Integer.parseInt(System.getProperty(
+        "data.compress.slices", "8"));
+    private static final int COMPRESS_RETRIES = Integer.parseInt(System.getProperty(
+        "data.compress.retries", "3"));
+
     private DataCompressionDAO dataCompressionDAO;
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private ExecutorService executor;
+    // intervals which have been revisited since startup, see getCompressionStartTime()
+    private final Set<Long> resumedIntervals = Collections.synchronizedSet(new HashSet<Long>());
+    // toInterval -> begin of an interval with failed slices -> number of
+    // compressions they failed in, see getCompressionStartTime()
+    private final Map<Long, SortedMap<Long, Integer>> failedIntervals =
+        new HashMap<Long, SortedMap<Long, Integer>>();
 
     @Autowired
-    public DataCompressImpl(DataCompressionDAO dataCompressionDAO) {
+    public DataCompressImpl(DataCompressionDAO dataCompressionDAO,
+                            ConcurrentStatsCollector concurrentStatsCollector) {
         this.dataCompressionDAO = dataCompressionDAO;
+        this.concurrentStatsCollector = concurrentStatsCollector;
     }
 
+    @PostConstruct
+    public void initialize() {
+        concurrentStatsCollector.register(ConcurrentStatsCollector.METRIC_DATA_COMPRESS_SLICE_TIME);
+        executor = Executors.newFixedThreadPool(Math.max(1, COMPRESS_THREADS), new ThreadFactory() {
+            private final AtomicLong i = new AtomicLong(0);
+            public Thread newThread(Runnable r) {
+                Thread rtn = new Thread(r, "DataCompress" + i.getAndIncrement());
+                rtn.setDaemon(true);
+                return rtn;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Each DDL statement stands on its own, a failed one must not abort the
+     * ones that follow.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void createMetricDataViews() {
         dataCompressionDAO.createMetricDataViews();
     }
@@ -70,18 +146,135 @@ public class DataCompressImpl implements DataCompress {
                  " seconds)");
     }
 
+    /**
+     * The slices are committed independently on the compression threads, so
+     * there is no point in holding the caller's transaction open meanwhile.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void compressData(long toInterval, long now, long startWindow, long endWindow) {
+        final int failed;
         if (toInterval == MeasurementConstants.HOUR) {
-            dataCompressionDAO.compactData(dataCompressionDAO.getMeasurementUnionStatement(now),
+            failed = compactData(dataCompressionDAO.getMeasurementUnionStatement(startWindow, endWindow),
                 TAB_DATA_1H, startWindow, endWindow);
         } else if (toInterval == MeasurementConstants.SIX_HOUR) {
-            dataCompressionDAO.compactData(TAB_DATA_1H, TAB_DATA_6H, startWindow, endWindow);
+            failed = compactData(dataCompressionDAO.getRollupUnionStatement(TAB_DATA_1H, startWindow, endWindow),
+                TAB_DATA_6H, startWindow, endWindow);
         } else if (toInterval == MeasurementConstants.DAY) {
-            dataCompressionDAO.compactData(TAB_DATA_6H, TAB_DATA_1D, startWindow, endWindow);
+            failed = compactData(dataCompressionDAO.getRollupUnionStatement(TAB_DATA_6H, startWindow, endWindow),
+                TAB_DATA_1D, startWindow, endWindow);
         } else {
             throw new UnsupportedOperationException(
                 "Cannot compress data for intervals other than 1 hour, 6 hours, or 1 day");
         }
+        synchronized (failedIntervals) {
+            SortedMap<Long, Integer> failures = failedIntervals.get(toInterval);
+            if (failed == 0) {
+                if (failures != null) {
+                    failures.remove(startWindow);
+                }
+                return;
+            }
+            if (failures == null) {
+                failures = new TreeMap<Long, Integer>();
+                failedIntervals.put(toInterval, failures);
+            }
+            final Integer attempts = failures.get(startWindow);
+            failures.put(startWindow, (attempts == null) ? 1 : attempts + 1);
+        }
+    }
+
+    /**
+     * @return the number of slices which failed, 0 if the compression was
+     * interrupted
+     */
+    private int compactData(final String fromTable, final String toTable, final long begin,
+                            final long end) {
+        final StopWatch watch = new StopWatch();
+        final List<long[]> slices = getSlices();
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>(slices.size());
+        for (final long[] slice : slices) {
+            futures.add(executor.submit(new Callable<Long>() {
+                public Long call() {
+                    return compactSlice(fromTable, toTable, begin, end, slice[0], slice[1]);
+                }
+            }));
+        }
+        int skipped = 0, failed = 0;
+        long slowest = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                final long time = futures.get(i).get().longValue();
+                if (time < 0) {
+                    skipped++;
+                } else {
+                    slowest = Math.max(slowest, time);
+                }
+            } catch (ExecutionException e) {
+                failed++;
+                final long[] slice = slices.get(i);
+                log.warn("Error compressing " + toTable + " at " + TimeUtil.toString(begin) +
+                         " for measurement ids [" + slice[0] + ", " + slice[1] + "): " +
+                         e.getCause(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (final Future<Long> future : futures) {
+                    future.cancel(true);
+                }
+                log.warn("Interrupted while compressing " + toTable + " at " + TimeUtil.toString(begin));
+                return 0;
+            }
+        }
+        log.info("Compressed " + toTable + " at " + TimeUtil.toString(begin) + " in " +
+                 watch.getElapsed() + " ms (slices=" + slices.size() + ", skipped=" + skipped +
+                 ", failed=" + failed + ", slowest=" + slowest + " ms)");
+        return failed;
+    }
+
+    /**
+     * @return the time taken in millis or -1 if the slice had already been
+     * compacted
+     */
+    private long compactSlice(String fromTable, String toTable, long begin, long end,
+                              long minId, long maxId) {
+        if (dataCompressionDAO.hasCompactedData(toTable, begin, minId, maxId)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Skipping " + toTable + " at " + TimeUtil.toString(begin) +
+                          " for measurement ids [" + minId + ", " + maxId + "), already compressed");
+            }
+            return -1;
+        }
+        final long start = System.currentTimeMillis();
+        dataCompressionDAO.compactData(fromTable, toTable, begin, end, minId, maxId);
+        final long time = System.currentTimeMillis() - start;
+        concurrentStatsCollector.addStat(time, ConcurrentStatsCollector.METRIC_DATA_COMPRESS_SLICE_TIME);
+        if (log.isDebugEnabled()) {
+            log.debug("Compressed " + toTable + " at " + TimeUtil.toString(begin) +
+                      " for measurement ids [" + minId + ", " + maxId + ") in " + time + " ms");
+        }
+        return time;
+    }
+
+    /**
+     * Split the measurement ids into COMPRESS_SLICES ranges of [min, max).
+     * The first and last ranges are open ended so that data of measurements
+     * which no longer exist is still compressed.
+     */
+    private List<long[]> getSlices() {
+        final long[] range = dataCompressionDAO.getMeasurementIdRange();
+        final int num = Math.max(1, COMPRESS_SLICES);
+        final long width = ((range[1] - range[0]) / num) + 1;
+        final List<long[]> rtn = new ArrayList<long[]>(num);
+        long min = Integer.MIN_VALUE;
+        for (int i = 1; i < num; i++) {
+            final long max = range[0] + (i * width);
+            if (max > range[1]) {
+                break;
+            }
+            rtn.add(new long[] { min, max });
+            min = max;
+        }
+        rtn.add(new long[] { min, Integer.MAX_VALUE + 1l });
+        return rtn;
     }
 
     public long getMinTimestamp(long dataInterval) {
@@ -118,12 +311,45 @@ public class DataCompressImpl implements DataCompress {
             if (start == 0) {
                 return 0;
             }
+        } else if (resumedIntervals.add(toInterval)) {
+            // First compression since startup, the last interval may have been
+            // interrupted part way through so revisit it.  The slices which
+            // were completed are skipped.
         } else {
             // Start at next interval
             start = start + toInterval;
         }
         // Rounding only necessary since if we are starting from scratch.
-        return TimingVoodoo.roundDownTime(start, toInterval);
+        start = TimingVoodoo.roundDownTime(start, toInterval);
+        // Start over at the first interval with failed slices, the slices
+        // which were completed are skipped.
+        final Long failed = getFirstFailedInterval(toInterval);
+        return (failed != null && failed.longValue() < start) ? failed.longValue() : start;
+    }
+
+    /**
+     * @return the begin of the first interval with failed slices which have
+     * been retried fewer than COMPRESS_RETRIES times, null if there is none
+     */
+    private Long getFirstFailedInterval(long toInterval) {
+        synchronized (failedIntervals) {
+            final SortedMap<Long, Integer> failures = failedIntervals.get(toInterval);
+            if (failures == null) {
+                return null;
+            }
+            for (final Iterator<Map.Entry<Long, Integer>> it = failures.entrySet().iterator();
+                 it.hasNext();) {
+                final Map.Entry<Long, Integer> entry = it.next();
+                if (entry.getValue().intValue() <= COMPRESS_RETRIES) {
+                    return entry.getKey();
+                }
+                log.error("Giving up compressing " + getTableName(toInterval) + " at " +
+                          TimeUtil.toString(entry.getKey().longValue()) + " after " +
+                          entry.getValue() + " failed attempts");
+                it.remove();
+            }
+            return null;
+        }
     }
 
     public long getMetricProblemMinTimestamp() {
@@ -134,11 +360,16 @@ public class DataCompressImpl implements DataCompress {
         dataCompressionDAO.purgeMeasurements(MeasurementConstants.TAB_PROB, startWindow, endWindow);
     }
 
+    /**
+     * The partitions are dropped one DDL statement at a time, there is no
+     * point in holding the caller's transaction open meanwhile.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void purgeMeasurements(long dataInterval, long startWindow, long endWindow) {
         String tableName = getTableName(dataInterval);
         log.info("Purging data older than " + TimeUtil.toString(endWindow) + " in " + tableName);
         StopWatch watch = new StopWatch();
-        dataCompressionDAO.purgeMeasurements(tableName, startWindow, endWindow);
+        dataCompressionDAO.purgeRollupData(tableName, startWindow, endWindow);
         log.info("Done (" + ((watch.getElapsed()) / 1000) + " seconds)");
     }
 
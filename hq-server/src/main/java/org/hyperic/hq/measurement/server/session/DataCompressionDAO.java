@@ -30,6 +30,10 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,6 +49,7 @@ import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.StatementCallback;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -58,6 +63,9 @@ public class DataCompressionDAO {
     private final Log log = LogFactory.getLog(DataCompressionDAO.class);
     private static final String MEAS_VIEW = MeasTabManagerUtil.MEAS_VIEW;
     private static final String TAB_DATA = MeasurementConstants.TAB_DATA;
+    private final RollupTabManager rollupTabManager = RollupTabManager.getInstance();
+    // serializes the creation and removal of rollup partitions and views
+    private final Object partitionLock = new Object();
 
     @Autowired
     public DataCompressionDAO(JdbcTemplate jdbcTemplate, SessionFactory sessionFactory) {
@@ -105,6 +113,177 @@ public class DataCompressionDAO {
         } catch (SQLException e) {
             log.debug("Error Creating Metric Data Views", e);
         }
+        for (final String rollupTable : RollupTabManager.getRollupTables()) {
+            try {
+                initRollupPartitions(rollupTable);
+            } catch (DataAccessException e) {
+                log.error("Error partitioning " + rollupTable + ", its data will not be " +
+                          "purged by partition: " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Turns the rollup table into a view over its partitions the first time
+     * around, the existing table becomes the _COMPAT table of the rollup.
+     * After that only the partitions are looked up.
+     */
+    private void initRollupPartitions(final String rollupTable) {
+        final HQDialect dialect = getDialect();
+        final String compatTable = RollupTabManager.getCompatTable(rollupTable);
+        final List<String> tables = jdbcTemplate.execute(new StatementCallback<List<String>>() {
+            public List<String> doInStatement(Statement stmt) throws SQLException {
+                if (!dialect.viewExists(stmt, rollupTable)) {
+                    final boolean hasCompat = dialect.tableExists(stmt, compatTable);
+                    if (dialect.tableExists(stmt, rollupTable) && !hasCompat) {
+                        log.info("Partitioning " + rollupTable + ", the existing data is kept in " +
+                                 compatTable);
+                        stmt.execute("ALTER TABLE " + rollupTable + " RENAME TO " + compatTable);
+                    } else if (!hasCompat) {
+                        log.error("Neither " + rollupTable + " nor " + compatTable + " exist");
+                        return null;
+                    } else if (dialect.tableExists(stmt, rollupTable)) {
+                        log.error("Both " + rollupTable + " and " + compatTable + " exist, not " +
+                                  "partitioning " + rollupTable);
+                        return null;
+                    }
+                }
+                return dialect.getTableNames(stmt, rollupTable + "_");
+            }
+        });
+        if (tables == null) {
+            return;
+        }
+        synchronized (partitionLock) {
+            rollupTabManager.setPartitions(rollupTable, tables);
+            if (rollupTabManager.getViewTables(rollupTable).size() == 1) {
+                // the data of the _COMPAT table has to precede the partitions
+                final long max = getMaxTimestamp(compatTable);
+                if (max != 0) {
+                    createRollupPartition(rollupTable,
+                        RollupTabManager.getPartitionIndex(rollupTable, max) + 1);
+                }
+            }
+            replaceRollupView(rollupTable);
+        }
+        log.info(rollupTable + " is partitioned into " +
+                 rollupTabManager.getViewTables(rollupTable));
+    }
+
+    /**
+     * @return the table which the data of the rollup table at timestamp is
+     *         inserted into, the partition is created if it does not exist
+     */
+    public String getRollupPartition(String rollupTable, long timestamp) {
+        final String rtn = rollupTabManager.getTable(rollupTable, timestamp);
+        if (rtn != null) {
+            return rtn;
+        }
+        synchronized (partitionLock) {
+            final String table = rollupTabManager.getTable(rollupTable, timestamp);
+            if (table != null) {
+                return table;
+            }
+            final long index = rollupTabManager.getInsertPartition(rollupTable, timestamp);
+            createRollupPartition(rollupTable, index);
+            replaceRollupView(rollupTable);
+            return RollupTabManager.getPartitionTable(rollupTable, index);
+        }
+    }
+
+    private void createRollupPartition(final String rollupTable, long index) {
+        final HQDialect dialect = getDialect();
+        final String table = RollupTabManager.getPartitionTable(rollupTable, index);
+        final String compatTable = RollupTabManager.getCompatTable(rollupTable);
+        // e.g. MEAS_DATA_1H_7595_MID_IDX, stays within the 30 characters of oracle
+        final String midIndex = "MEAS_DATA" +
+            rollupTable.substring(MeasurementConstants.TAB_DATA.length()) + "_" + index + "_MID_IDX";
+        log.info("Creating partition " + table + " of " + rollupTable);
+        jdbcTemplate.execute(new StatementCallback<Object>() {
+            public Object doInStatement(Statement stmt) throws SQLException {
+                if (!dialect.tableExists(stmt, table)) {
+                    stmt.execute("CREATE TABLE " + table + " AS SELECT * FROM " + compatTable +
+                                 " WHERE 1=0");
+                    stmt.execute("ALTER TABLE " + table +
+                                 " ADD PRIMARY KEY (timestamp, measurement_id)");
+                    stmt.execute("CREATE INDEX " + midIndex + " ON " + table + " (measurement_id)");
+                }
+                return null;
+            }
+        });
+        rollupTabManager.addPartition(rollupTable, index);
+    }
+
+    private void replaceRollupView(String rollupTable) {
+        final StringBuilder sql = new StringBuilder("CREATE OR REPLACE VIEW ")
+            .append(rollupTable).append(" AS ");
+        final List<String> tables = rollupTabManager.getViewTables(rollupTable);
+        for (int i = 0; i < tables.size(); i++) {
+            if (i > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT * FROM ").append(tables.get(i));
+        }
+        jdbcTemplate.execute(sql.toString());
+    }
+
+    /**
+     * Purge the data of the rollup table older than endWindow.  The
+     * partitions which only hold older data are taken out of the view and
+     * truncated right away, they keep their name and are dropped on the next
+     * purge so that no running query still refers to them.  An empty marker
+     * table is created for each of them, which keeps them out of the view if
+     * the server restarts before they are dropped, it is dropped after the
+     * partition.  The partition which holds endWindow is left alone, so the
+     * data is kept for up to one partition length longer than configured.
+     * The data which was rolled up before the rollup table was partitioned is
+     * deleted one hour at a time.
+     */
+    public void purgeRollupData(String rollupTable, long startWindow, long endWindow) {
+        if (!rollupTabManager.isPartitioned(rollupTable)) {
+            purgeMeasurementsByHour(rollupTable, startWindow, endWindow);
+            return;
+        }
+        synchronized (partitionLock) {
+            // a marker is only dropped once its partition is gone, otherwise
+            // the partition would rejoin the view after a restart
+            final Set<String> keep = new HashSet<String>();
+            for (final String table : rollupTabManager.takeRetiredPartitions(rollupTable)) {
+                if (keep.contains(table)) {
+                    continue;
+                }
+                try {
+                    log.info("Dropping partition " + table + " of " + rollupTable);
+                    jdbcTemplate.execute("DROP TABLE " + table);
+                } catch (DataAccessException e) {
+                    log.error("Error dropping " + table + ": " + e, e);
+                    keep.add(RollupTabManager.getRetiredMarker(table));
+                }
+            }
+            final List<String> expired = rollupTabManager.retirePartitions(rollupTable, endWindow);
+            if (!expired.isEmpty()) {
+                replaceRollupView(rollupTable);
+            }
+            for (final String table : expired) {
+                log.info("Truncating partition " + table + " of " + rollupTable);
+                jdbcTemplate.execute("CREATE TABLE " + RollupTabManager.getRetiredMarker(table) +
+                                     " (retired INTEGER)");
+                jdbcTemplate.execute("truncate table " + table);
+            }
+        }
+        final String compatTable = RollupTabManager.getCompatTable(rollupTable);
+        final long min = getMinTimestamp(compatTable);
+        if (min != 0 && min <= endWindow) {
+            purgeMeasurementsByHour(compatTable, Math.max(min, startWindow), endWindow);
+        }
+    }
+
+    private void purgeMeasurementsByHour(String tableName, long startWindow, long endWindow) {
+        long end = endWindow;
+        while (end > startWindow) {
+            purgeMeasurements(tableName, end - MeasurementConstants.HOUR, end);
+            end -= MeasurementConstants.HOUR;
+        }
     }
 
     public void truncateMeasurementData(long truncateBefore) {
@@ -161,48 +340,117 @@ public class DataCompressionDAO {
      * Get the oldest timestamp in the database.
      */
     public long getMinTimestamp(String dataTable) {
+        if (rollupTabManager.isPartitioned(dataTable)) {
+            for (final String table : rollupTabManager.getViewTables(dataTable)) {
+                final long rtn = getMinTimestamp(table);
+                if (rtn != 0) {
+                    return rtn;
+                }
+            }
+            return 0;
+        }
         return jdbcTemplate.queryForLong("SELECT MIN(timestamp) FROM " + dataTable);
     }
 
+    /**
+     * Roll up the data of the measurements with ids in [minId, maxId) from
+     * fromTable into toTable.  The insert is committed on its own so each
+     * slice of a compression interval is either fully compacted or not at
+     * all.
+     */
     public void compactData(final String fromTable, final String toTable, final long begin,
-                            final long end) {
-        log.info("Compressing from: " + fromTable + " to " + toTable);
-        try {
-            jdbcTemplate.update(new PreparedStatementCreator() {
-
-                public PreparedStatement createPreparedStatement(Connection con)
-                    throws SQLException {
-                    String minMax;
-                    if (fromTable.endsWith(TAB_DATA)) {
-                        minMax = "AVG(value), MIN(value), MAX(value) ";
-                    } else {
-                        minMax = "AVG(value), MIN(minvalue), MAX(maxvalue) ";
+                            final long end, final long minId, final long maxId) {
+        if (log.isDebugEnabled()) {
+            log.debug("Compressing from: " + fromTable + " to " + toTable + " for measurement ids [" +
+                      minId + ", " + maxId + ")");
+        }
+        // the rolled up data all has timestamp begin, so it goes into a single partition
+        final String insertTable = getRollupPartition(toTable, begin);
+        jdbcTemplate.update(new PreparedStatementCreator() {
+
+            public PreparedStatement createPreparedStatement(Connection con)
+                throws SQLException {
+                String minMax;
+                if (fromTable.endsWith(TAB_DATA)) {
+                    minMax = "AVG(value), MIN(value), MAX(value) ";
+                } else {
+                    minMax = "AVG(value), MIN(minvalue), MAX(maxvalue) ";
+                }
+
+                PreparedStatement insStmt = con
+                    .prepareStatement("INSERT INTO " +
+                                      insertTable +
+                                      " (measurement_id, timestamp, value, minvalue, maxvalue)" +
+                                      " (SELECT measurement_id, ? AS timestamp, " + minMax +
+                                      "FROM " + fromTable +
+                                      " WHERE timestamp >= ? AND timestamp < ? " +
+                                      "AND measurement_id >= ? AND measurement_id < ? " +
+                                      "GROUP BY measurement_id)");
+                insStmt.setLong(1, begin);
+                insStmt.setLong(2, begin);
+                insStmt.setLong(3, end);
+                insStmt.setLong(4, minId);
+                insStmt.setLong(5, maxId);
+                return insStmt;
+            }
+        });
+    }
+
+    /**
+     * @return true if toTable already holds rolled up data at timestamp
+     * begin for any of the measurements with ids in [minId, maxId)
+     */
+    public boolean hasCompactedData(String toTable, long begin, long minId, long maxId) {
+        final String table = rollupTabManager.getTable(toTable, begin);
+        if (table == null) {
+            // the partition has not been created yet
+            return false;
+        }
+        final Long rtn = jdbcTemplate.query(
+            "SELECT MIN(measurement_id) FROM " + table +
+            " WHERE timestamp = ? AND measurement_id >= ? AND measurement_id < ?",
+            new Object[] { begin, minId, maxId }, new ResultSetExtractor<Long>() {
+                public Long extractData(ResultSet rs) throws SQLException, DataAccessException {
+                    if (rs.next()) {
+                        final long id = rs.getLong(1);
+                        return rs.wasNull() ? null : id;
                     }
+                    return null;
+                }
+            });
+        return rtn != null;
+    }
 
-                    PreparedStatement insStmt = con
-                        .prepareStatement("INSERT INTO " +
-                                          toTable +
-                                          " (measurement_id, timestamp, value, minvalue, maxvalue)" +
-                                          " (SELECT measurement_id, ? AS timestamp, " + minMax +
-                                          "FROM " + fromTable +
-                                          " WHERE timestamp >= ? AND timestamp < ? " +
-                                          "GROUP BY measurement_id)");
-                    insStmt.setLong(1, begin);
-                    insStmt.setLong(2, begin);
-                    insStmt.setLong(3, end);
-                    return insStmt;
+    /**
+     * @return the min and max measurement ids
+     */
+    public long[] getMeasurementIdRange() {
+        return jdbcTemplate.query("SELECT MIN(id), MAX(id) FROM " + MeasurementConstants.TAB_MEAS,
+            new ResultSetExtractor<long[]>() {
+                public long[] extractData(ResultSet rs) throws SQLException, DataAccessException {
+                    if (rs.next()) {
+                        return new long[] { rs.getLong(1), rs.getLong(2) };
+                    }
+                    return new long[] { 0, 0 };
                 }
             });
-        } catch (DataAccessException e) {
-            // Just log the error and continue
-            log.debug("SQL exception when inserting data " + " at " + TimeUtil.toString(begin), e);
-        }
     }
 
     /**
      * Get the most recent measurement.
      */
     public long getMaxTimestamp(String dataTable) {
+        if (rollupTabManager.isPartitioned(dataTable)) {
+            final List<String> tables = rollupTabManager.getViewTables(dataTable);
+            Collections.reverse(tables);
+            for (final String table : tables) {
+                final long rtn = getMaxTimestamp(table);
+                if (rtn != 0) {
+                    return rtn;
+                }
+            }
+            return 0;
+        }
         Connection connection;
         try {
             connection = jdbcTemplate.getDataSource().getConnection();
@@ -239,4 +487,25 @@ public class DataCompressionDAO {
             (begin - MeasurementConstants.HOUR), begin,
             (HQDialect) ((SessionFactoryImplementor) sessionFactory).getDialect());
     }
+
+    /**
+     * @return the UNION statement over only the raw metric data tables which
+     * hold data in [begin, end)
+     */
+    public String getMeasurementUnionStatement(long begin, long end) {
+        return MeasurementUnionStatementBuilder.getUnionStatement(begin, end - 1,
+            new Integer[0], (HQDialect) ((SessionFactoryImplementor) sessionFactory).getDialect());
+    }
+
+    /**
+     * @return the UNION statement over only the partitions of the rollup
+     * table which hold data in [begin, end)
+     */
+    public String getRollupUnionStatement(String rollupTable, long begin, long end) {
+        return rollupTabManager.getUnionStatement(rollupTable, begin, end - 1);
+    }
+
+    private HQDialect getDialect() {
+        return (HQDialect) ((SessionFactoryImplementor) sessionFactory).getDialect();
+    }
 }
@@ -25,6 +25,7 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.BatchUpdateException;
 import java.sql.Connection;
@@ -49,6 +50,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -77,6 +79,7 @@ import org.hyperic.hq.measurement.shared.MeasRange;
 import org.hyperic.hq.measurement.shared.MeasRangeObj;
 import org.hyperic.hq.measurement.shared.MeasTabManagerUtil;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
+import org.hyperic.hq.measurement.shared.MetricDataRowHandler;
 import org.hyperic.hq.measurement.shared.TopNManager;
 import org.hyperic.hq.plugin.system.TopReport;
 import org.hyperic.hq.product.MetricValue;
@@ -142,6 +145,11 @@ public class DataManagerImpl implements DataManager {
     private static final int IND_MAX = MeasurementConstants.IND_MAX;
     private static final int IND_CFG_COUNT = MeasurementConstants.IND_CFG_COUNT;
 
+    // Max number of sub-queries of one historical data request which may run at once
+    private static final int MAX_QUERIES_PER_REQUEST = 4;
+    // rows per round trip of the cursor of a metric data export
+    private static final int EXPORT_FETCH_SIZE = 1000;
+
     private final DBUtil dbUtil;
 
     // Pager class name
@@ -164,6 +172,8 @@ public class DataManagerImpl implements DataManager {
     private final ConcurrentStatsCollector concurrentStatsCollector;
     private final int transactionTimeout;
     private final TopNManager topNManager;
+    private final MetricDataQueryExecutor metricDataQueryExecutor;
+    private final RecentMetricDataStore recentMetricDataStore;
 
     
     @Autowired
@@ -175,7 +185,9 @@ public class DataManagerImpl implements DataManager {
                            MessagePublisher messagePublisher, RegisteredTriggers registeredTriggers,
                            ConcurrentStatsCollector concurrentStatsCollector,
                            HibernateTransactionManager transactionManager,
-                           TopNManager topNManager) {
+                           TopNManager topNManager,
+                           MetricDataQueryExecutor metricDataQueryExecutor,
+                           RecentMetricDataStore recentMetricDataStore) {
         this.dbUtil = dbUtil;
         this.measurementDAO = measurementDAO;
         this.measurementManager = measurementManager;
@@ -188,12 +200,16 @@ public class DataManagerImpl implements DataManager {
         this.concurrentStatsCollector = concurrentStatsCollector;
         this.transactionTimeout = transactionManager.getDefaultTimeout();
         this.topNManager = topNManager;
+        this.metricDataQueryExecutor = metricDataQueryExecutor;
+        this.recentMetricDataStore = recentMetricDataStore;
     }
 
     @PostConstruct
     public void initStatsCollector() {
     	concurrentStatsCollector.register(DATA_MANAGER_INSERT_TIME);
     	concurrentStatsCollector.register(DATA_MANAGER_RETRIES_TIME);
+    	concurrentStatsCollector.register(ConcurrentStatsCollector.RECENT_METRIC_DATA_HITS);
+    	concurrentStatsCollector.register(ConcurrentStatsCollector.RECENT_METRIC_DATA_MISSES);
     }
 
     private double getValue(ResultSet rs) throws SQLException {
@@ -378,6 +394,7 @@ public class DataManagerImpl implements DataManager {
                     }
                     
                     concurrentStatsCollector.addStat(end - start, DATA_MANAGER_INSERT_TIME);
+                    recentMetricDataStore.add(data);
                     sendMetricEvents(data);
                 } else {
                     if (debug) {
@@ -390,6 +407,7 @@ public class DataManagerImpl implements DataManager {
                     final long end = System.currentTimeMillis();
                     
                     concurrentStatsCollector.addStat(end - start, DATA_MANAGER_INSERT_TIME);
+                    recentMetricDataStore.add(processed);
                     sendMetricEvents(processed);
                     if (debug) {
                         log.debug("Data Insertion process took " + (end - start) + " ms");
@@ -512,7 +530,7 @@ public class DataManagerImpl implements DataManager {
 
             try {
                 conn.setAutoCommit(true);
-                addDataWithCommits(data, overwrite, conn);
+                recentMetricDataStore.add(addDataWithCommits(data, overwrite, conn));
             } finally {
                 conn.setAutoCommit(autocommit);
             }
@@ -570,6 +588,7 @@ public class DataManagerImpl implements DataManager {
                 log.debug("Sending " + left.size() + " data points to update");
             }
 
+            recentMetricDataStore.overwrite(left);
             left = updateData(conn, left);
 
             if (left.isEmpty()) {
@@ -1300,21 +1319,21 @@ public class DataManagerImpl implements DataManager {
             throw new TimeframeSizeException("The requested time frame is of size " + tf + " milliseconds, which is smaller than the hourly aggregated time interval of the measurement " + (tmp!=null?tmp.getName():""));
         }
         if ((HOUR_IN_MILLI>=maxInterval) && (begin>=(now-DataManagerImpl.this.purge1h))) {
-            return MeasurementConstants.TAB_DATA_1H;
+            return getRollupStatement(TAB_DATA_1H, begin, end);
         }
         if (tf<SIX_HOURS_IN_MILLI) { 
             MeasurementTemplate tmp = msmt.getTemplate();
             throw new TimeframeSizeException("The requested time frame is of size " + tf + " milliseconds, which is smaller than the 6-hourly aggregated time interval of the measurement " + (tmp!=null?tmp.getName():""));
         }
         if ((SIX_HOURS_IN_MILLI>=maxInterval) && (begin>=(now-DataManagerImpl.this.purge6h))) {
-            return MeasurementConstants.TAB_DATA_6H;
+            return getRollupStatement(TAB_DATA_6H, begin, end);
         }
         if (tf<DAY_IN_MILLI) { 
             MeasurementTemplate tmp = msmt.getTemplate();
             throw new TimeframeSizeException("The requested time frame is of size " + tf + " milliseconds, which is smaller than the daily aggregated time interval of the measurement " + (tmp!=null?tmp.getName():""));
         }
         // return daily aggregated data even if the time frame is beyond the purge time or contains more than 400 DTPs
-        return MeasurementConstants.TAB_DATA_1D;
+        return getRollupStatement(TAB_DATA_1D, begin, end);
     }
     
     public String getDataTable(long begin, long end, int measId) {
@@ -1360,11 +1379,11 @@ public class DataManagerImpl implements DataManager {
         if (usesMetricUnion(begin, end, useAggressiveRollup)) {
             return MeasTabManagerUtil.getMetricTables(begin, end);
         } else if ((now - this.purge1h) < begin) {
-            return new String[] { TAB_DATA_1H };
+            return RollupTabManager.getInstance().getTables(TAB_DATA_1H, begin, end);
         } else if ((now - this.purge6h) < begin) {
-            return new String[] { TAB_DATA_6H };
+            return RollupTabManager.getInstance().getTables(TAB_DATA_6H, begin, end);
         } else {
-            return new String[] { TAB_DATA_1D };
+            return RollupTabManager.getInstance().getTables(TAB_DATA_1D, begin, end);
         }
     }
 
@@ -1387,14 +1406,23 @@ public class DataManagerImpl implements DataManager {
             return MeasurementUnionStatementBuilder.getUnionStatement(begin, end, measIds,
                 measurementDAO.getHQDialect());
         } else if ((now - this.purge1h) < begin) {
-            return TAB_DATA_1H;
+            return getRollupStatement(TAB_DATA_1H, begin, end);
         } else if ((now - this.purge6h) < begin) {
-            return TAB_DATA_6H;
+            return getRollupStatement(TAB_DATA_6H, begin, end);
         } else {
-            return TAB_DATA_1D;
+            return getRollupStatement(TAB_DATA_1D, begin, end);
         }
     }
 
+    /**
+     * @return the UNION statement over only the partitions of the rollup
+     *         table which hold data in [begin, end], aliased to the name of
+     *         the rollup table
+     */
+    private String getRollupStatement(String rollupTable, long begin, long end) {
+        return RollupTabManager.getInstance().getUnionStatement(rollupTable, begin, end);
+    }
+
 
     @Transactional(readOnly = true)
     public List<HighLowMetricValue> getHistoricalData(Measurement m, long begin, long end,
@@ -1517,6 +1545,85 @@ public class DataManagerImpl implements DataManager {
         }
     }
 
+    /**
+     * Stream the historical data of the measurements to the handler, merged
+     * into one row per timestamp.  The data of all the non availability
+     * measurements is read with a single query through a forward only cursor,
+     * so the export does not hold more than one fetch of rows in memory.
+     * 
+     * @param measurements the distinct measurements to export, a
+     *        <code>null</code> entry exports a column without values
+     * @return the number of rows handed to the handler
+     */
+    @Transactional(readOnly = true)
+    public int exportHistoricalData(List<Measurement> measurements, long begin, long end,
+                                    MetricDataRowHandler handler) throws IOException {
+        checkTimeArguments(begin, end);
+        begin = TimingVoodoo.roundDownTime(begin, MINUTE);
+        end = TimingVoodoo.roundDownTime(end, MINUTE);
+        final List<MetricDataRowMerger.Source> sources = new ArrayList<MetricDataRowMerger.Source>();
+        final Map<Integer, Integer> columns = new HashMap<Integer, Integer>();
+        for (int i = 0; i < measurements.size(); i++) {
+            final Measurement m = measurements.get(i);
+            if (m == null) {
+                continue;
+            } else if (m.getTemplate().isAvailability()) {
+                // availability is stored run length encoded, its data points
+                // are bounded by the number of state changes
+                sources.add(new MetricDataRowMerger.ListSource(
+                    availabilityManager.getHistoricalAvailData(m, begin, end, PageControl.PAGE_ALL,
+                        false), i));
+            } else {
+                columns.put(m.getId(), i);
+            }
+        }
+        if (columns.isEmpty()) {
+            return exportRows(sources, measurements.size(), handler);
+        }
+        final HQDialect dialect = measurementDAO.getHQDialect();
+        final List<Integer> mids = new ArrayList<Integer>(columns.keySet());
+        final int maxExprs = (dialect.getMaxExpressions() == -1) ?
+            Integer.MAX_VALUE : dialect.getMaxExpressions();
+        final StringBuilder sql = new StringBuilder()
+            .append("SELECT timestamp, measurement_id, value FROM ")
+            .append(getDataTable(begin, end, mids.toArray(new Integer[mids.size()])))
+            .append(" WHERE timestamp BETWEEN ").append(begin).append(" AND ").append(end)
+            .append(" AND (");
+        for (int i = 0; i < mids.size(); i += maxExprs) {
+            final int last = Math.min(i + maxExprs, mids.size());
+            sql.append((i == 0) ? "" : " OR")
+               .append(MeasTabManagerUtil.getMeasInStmt(mids.subList(i, last), false));
+        }
+        sql.append(") ORDER BY timestamp");
+        Connection conn = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = dbUtil.getConnection();
+            stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(dialect.getStreamingFetchSize(EXPORT_FETCH_SIZE));
+            if (log.isDebugEnabled()) {
+                log.debug(sql);
+            }
+            rs = stmt.executeQuery(sql.toString());
+            sources.add(new MetricDataRowMerger.ResultSetSource(rs, columns));
+            return exportRows(sources, measurements.size(), handler);
+        } catch (SQLException e) {
+            throw new SystemException("Can't export historical data", e);
+        } finally {
+            DBUtil.closeJDBCObjects(LOG_CTX, conn, stmt, rs);
+        }
+    }
+
+    private int exportRows(List<MetricDataRowMerger.Source> sources, int numColumns,
+                           MetricDataRowHandler handler) throws IOException {
+        try {
+            return MetricDataRowMerger.merge(sources, numColumns, handler);
+        } catch (SQLException e) {
+            throw new SystemException("Can't export historical data", e);
+        }
+    }
+
     private List<HighLowMetricValue> getNonAvailabilityMetricData(final Measurement m, long begin, long end, int maxDTPs) throws TimeframeSizeException, TimeframeBoundriesException {
         checkTimeArguments(begin, end);
         begin = TimingVoodoo.roundDownTime(begin, MINUTE);
@@ -1534,7 +1641,7 @@ public class DataManagerImpl implements DataManager {
             try {
                 final StringBuilder sqlBuf = new StringBuilder()
                 .append("SELECT ")
-                .append((table.equals(TAB_DATA_1H) || table.equals(TAB_DATA_6H) || table.equals(TAB_DATA_1D))?
+                .append(!isRawDataTable(table)?
                         ("maxvalue as peak, minvalue as low, "):"")
                 .append("value, timestamp FROM ")
                 .append(table).append(" WHERE timestamp BETWEEN ")
@@ -1610,14 +1717,13 @@ public class DataManagerImpl implements DataManager {
             .append(" WHERE timestamp BETWEEN ").append(begin).append(" AND ").append(end).append(
                 " AND measurement_id=").append(m.getId()).toString();
         final String[] tables = getDataTables(begin, end, false);
-        if (tables.length == 1) {
-            if (tables[0].equals(TAB_DATA_1H)) {
-                publishedInterval.set(HOUR);
-            } else if (tables[0].equals(TAB_DATA_6H)) {
-                publishedInterval.set(HOUR * 6);
-            } else if (tables[0].equals(TAB_DATA_1D)) {
-                publishedInterval.set(HOUR * 24);
-            }
+        final String rollup = RollupTabManager.getRollupTable(tables[0]);
+        if (TAB_DATA_1H.equals(rollup)) {
+            publishedInterval.set(HOUR);
+        } else if (TAB_DATA_6H.equals(rollup)) {
+            publishedInterval.set(HOUR * 6);
+        } else if (TAB_DATA_1D.equals(rollup)) {
+            publishedInterval.set(HOUR * 24);
         }
         final StringBuilder sqlBuf = new StringBuilder(128 * tables.length);
         for (int i = 0; i < tables.length; i++) {
@@ -1955,12 +2061,13 @@ public class DataManagerImpl implements DataManager {
             .append(" GROUP BY timestamp")
             .toString();
         final String[] tables = getDataTables(begin, end, false);
-        if ((publishedInterval != null) && (tables.length == 1)) {
-            if (tables[0].equals(TAB_DATA_1H)) {
+        if (publishedInterval != null) {
+            final String rollup = RollupTabManager.getRollupTable(tables[0]);
+            if (TAB_DATA_1H.equals(rollup)) {
                 publishedInterval.set(HOUR);
-            } else if (tables[0].equals(TAB_DATA_6H)) {
+            } else if (TAB_DATA_6H.equals(rollup)) {
                 publishedInterval.set(HOUR * 6);
-            } else if (tables[0].equals(TAB_DATA_1D)) {
+            } else if (TAB_DATA_1D.equals(rollup)) {
                 publishedInterval.set(HOUR * 24);
             }
         }
@@ -1984,13 +2091,28 @@ public class DataManagerImpl implements DataManager {
                 "ERROR: no data tables represent range " + TimeUtil.toString(start) +
                 " - " + TimeUtil.toString(finish));
         }
-        final MeasRange[] ranges = (tables.length > 1) ?
-            MeasTabManagerUtil.getMetricRanges(start, finish) :
-            new MeasRange[] {new MeasRange(tables[0], start, finish)};
+        if (isRawDataTable(tables[0])) {
+            final AggMetricValue[] rtn = getRecentAggValueSets(mids, start, finish, windowSize);
+            if (rtn != null) {
+                return rtn;
+            }
+        }
+        final String rollup = RollupTabManager.getRollupTable(tables[0]);
+        final MeasRange[] ranges;
+        if (rollup != null) {
+            final List<MeasRange> rollupRanges =
+                RollupTabManager.getInstance().getRanges(rollup, start, finish);
+            ranges = rollupRanges.isEmpty() ?
+                new MeasRange[] {new MeasRange(rollup, start, finish)} :
+                rollupRanges.toArray(new MeasRange[rollupRanges.size()]);
+        } else if (tables.length > 1) {
+            ranges = MeasTabManagerUtil.getMetricRanges(start, finish);
+        } else {
+            ranges = new MeasRange[] {new MeasRange(tables[0], start, finish)};
+        }
         final String threadName = Thread.currentThread().getName();
-        final List<Thread> threads = new ArrayList<Thread>(ranges.length);
-        final Collection<AggMetricValue[]> data = new ArrayList<AggMetricValue[]>(ranges.length);
-        final int maxThreads = 4;
+        final List<Callable<AggMetricValue[]>> queries =
+            new ArrayList<Callable<AggMetricValue[]>>(ranges.length);
         // The result encapsulates the timeframe start -> finish.  The results are gathered
         // via sub-queries.  Each sub-query is from begin -> end
         // start                                                                    finish
@@ -2001,35 +2123,74 @@ public class DataManagerImpl implements DataManager {
             final long max = range.getMaxTimestamp();
             final long begin = (min < start) ? start : min;
             final long end = (max > finish) ? finish : max;
-            waitForThreads(threads, maxThreads);
-            // XXX may want to add a thread pool or a static Executor here so that these
-            // queries don't overwhelm the DB
-            Thread thread = getNewDataWorkerThread(mids, start, finish, begin, end, windowSize,
-                                                   returnNulls, publishedInterval, threadName,
-                                                   data);
-            thread.start();
-            threads.add(thread);
-        }
-        waitForThreads(threads);
+            queries.add(getDataQuery(mids, start, finish, begin, end, windowSize, returnNulls,
+                                     publishedInterval, threadName));
+        }
+        // the executor bounds the number of these queries running against the DB across
+        // all requests, MAX_QUERIES_PER_REQUEST keeps one large request from taking over
+        // the pool
+        final Collection<AggMetricValue[]> data = metricDataQueryExecutor.invokeAll(
+            queries, MAX_QUERIES_PER_REQUEST, getQueryDeadline());
         return mergeThreadData(start, finish, windowSize, data);
     }
     
+    private boolean isRawDataTable(String table) {
+        return RollupTabManager.getRollupTable(table) == null;
+    }
+
+    /**
+     * @return the aggregated values from the {@link RecentMetricDataStore} or
+     * null if the range can't be answered from it
+     */
+    private AggMetricValue[] getRecentAggValueSets(Integer[] mids, long start, long finish,
+                                                   long windowSize) {
+        if (!recentMetricDataStore.covers(start)) {
+            return null;
+        }
+        final int buckets = (int) ((finish - start) / windowSize);
+        final long[] timestamps = new long[buckets];
+        final double[] sums = new double[buckets];
+        final double[] mins = new double[buckets];
+        final double[] maxs = new double[buckets];
+        final int[] counts = new int[buckets];
+        if (!recentMetricDataStore.aggregate(mids, start, finish, windowSize, timestamps, sums,
+                                             mins, maxs, counts)) {
+            concurrentStatsCollector.addStat(1, ConcurrentStatsCollector.RECENT_METRIC_DATA_MISSES);
+            return null;
+        }
+        concurrentStatsCollector.addStat(1, ConcurrentStatsCollector.RECENT_METRIC_DATA_HITS);
+        final AggMetricValue[] rtn = new AggMetricValue[buckets];
+        for (int i = 0; i < buckets; i++) {
+            if (counts[i] > 0) {
+                rtn[i] = new AggMetricValue(timestamps[i], sums[i], maxs[i], mins[i], counts[i]);
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * @return max number of millis to wait for all the sub-queries of a historical
+     * data request, the transaction timeout if one is configured
+     */
+    private long getQueryDeadline() {
+        return (transactionTimeout > 0) ? transactionTimeout * 1000l : 5 * MINUTE;
+    }
+
     /**
      * @param begin - the begin time of the sub window
      * @param end - the end time of the sub window
      * @param start - the start time of the user specified window
      * @param finish - the finish time of the user specified window
      */
-    private Thread getNewDataWorkerThread(final Integer[] mids, final long start,
-                                          final long finish, final long begin, final long end,
-                                          final long windowSize, final boolean returnNulls,
-                                          final AtomicLong publishedInterval,
-                                          final String threadName,
-                                          final Collection<AggMetricValue[]> data) {
+    private Callable<AggMetricValue[]> getDataQuery(final Integer[] mids, final long start,
+                                                    final long finish, final long begin,
+                                                    final long end, final long windowSize,
+                                                    final boolean returnNulls,
+                                                    final AtomicLong publishedInterval,
+                                                    final String threadName) {
         final boolean debug = log.isDebugEnabled();
-        final Thread thread = new Thread() {
-            @Override
-            public void run() {
+        return new Callable<AggMetricValue[]>() {
+            public AggMetricValue[] call() {
                 final StopWatch watch = new StopWatch();
                 if (debug) {
                     watch.markTimeBegin("data gatherer begin=" + TimeUtil.toString(begin) + 
@@ -2043,12 +2204,9 @@ public class DataManagerImpl implements DataManager {
                                       ", end=" + TimeUtil.toString(end));
                     log.debug(watch);
                 }
-                synchronized (data) {
-                    data.add(array);
-                }
+                return array;
             }
         };
-        return thread;
     }
 
     private AggMetricValue[] getHistDataSet(Integer[] mids, long start, long finish,
@@ -2075,6 +2233,10 @@ public class DataManagerImpl implements DataManager {
             final int maxValCol = rs.findColumn("maxvalue");
             final int timestampCol = rs.findColumn("timestamp");
             while (rs.next()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // cancelled by the MetricDataQueryExecutor, the result will be discarded
+                    break;
+                }
                 final double sum = rs.getDouble(sumValCol);
                 final double min = rs.getDouble(minValCol);
                 final double max = rs.getDouble(maxValCol);
@@ -2119,41 +2281,6 @@ public class DataManagerImpl implements DataManager {
         return rtn;
     }
 
-    private void waitForThreads(List<Thread> threads) {
-        for (final Thread thread : threads) {
-            while (thread.isAlive()) {
-                try {
-                    thread.join();
-                } catch (InterruptedException e) {
-                    log.debug(e, e);
-                }
-            }
-        }
-    }
-
-    private void waitForThreads(List<Thread> threads, int maxThreads) {
-        if (threads.isEmpty() || (threads.size() < maxThreads)) {
-            return;
-        }
-        int i=0;
-        while (threads.size() >= maxThreads) {
-            i = ((i >= threads.size()) || (i < 0)) ? 0 : i;
-            final Thread thread = threads.get(i);
-            try {
-                if (thread.isAlive()) {
-                    thread.join(100);
-                }
-                if (!thread.isAlive()) {
-                    threads.remove(i);
-                } else {
-                    i++;
-                }
-            } catch (InterruptedException e) {
-                log.debug(e,e);
-            }
-        }
-    }
-
     private void merge(PageList<HighLowMetricValue> master, PageList<HighLowMetricValue> toMerge) {
         if (master.size() == 0) {
             master.addAll(toMerge);
@@ -2365,19 +2492,7 @@ public class DataManagerImpl implements DataManager {
     public Collection<Integer> getCachedDataPoints(Collection<Integer> mids,
                                                    Map<Integer, MetricValue> data,
                                                    long timestamp) {
-        ArrayList<Integer> nodata = new ArrayList<Integer>();
-        for (Integer mid : mids) {
-            if (mid == null) {
-                continue;
-            }
-            final MetricValue mval = metricDataCache.get(mid, timestamp);
-            if (mval != null) {
-                data.put(mid, mval);
-            } else {
-                nodata.add(mid);
-            }
-        }
-        return nodata;
+        return metricDataCache.getAll(mids, timestamp, data);
     }
 
     private void setDataPoints(Map<Integer, MetricValue> data, long timestamp, Collection<Integer> measIds,
@@ -40,10 +40,13 @@ public class MeasurementInserterHolder implements ApplicationContextAware {
     private DataInserter<DataPoint> availDataInserter;
     private DataInserter<DataPoint> dataInserter;
     private DataInserter<TopNData> topNInserter;
+    private final AsyncDataInserter asyncDataInserter;
 
     @Autowired
-    public MeasurementInserterHolder(SynchronousAvailDataInserter synchronousAvailDataInserter) {
+    public MeasurementInserterHolder(SynchronousAvailDataInserter synchronousAvailDataInserter,
+                                     AsyncDataInserter asyncDataInserter) {
         this.availDataInserter = synchronousAvailDataInserter;
+        this.asyncDataInserter = asyncDataInserter;
     }
 
     public void setAvailDataInserter(DataInserter<DataPoint> d) {
@@ -60,11 +63,25 @@ public class MeasurementInserterHolder implements ApplicationContextAware {
 
     DataInserter<DataPoint> getDataInserter() {
         if (dataInserter == null) {
+            if (asyncDataInserter.isEnabled()) {
+                return asyncDataInserter;
+            }
             return ctx.getBean(SynchronousDataInserter.class);
         }
         return dataInserter;
     }
 
+    /**
+     * @return ms the agents should wait between sends of their backlogged
+     * metric data, 0 if the data inserter keeps up
+     */
+    public long getDataInserterBackoff() {
+        if (dataInserter == null && asyncDataInserter.isEnabled()) {
+            return asyncDataInserter.getBackoff();
+        }
+        return 0;
+    }
+
     public void setTopNInserter(DataInserter<TopNData> topNInserter) {
         this.topNInserter = topNInserter;
     }
@@ -0,0 +1,440 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.appdef.server.session.ResourceDeletedZevent;
+import org.hyperic.hq.appdef.server.session.ResourceRefreshZevent;
+import org.hyperic.hq.appdef.server.session.ResourceUpdatedZevent;
+import org.hyperic.hq.appdef.server.session.ResourceZevent;
+import org.hyperic.hq.appdef.shared.AppdefEntityConstants;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.zevents.Zevent;
+import org.hyperic.hq.zevents.ZeventEnqueuer;
+import org.hyperic.hq.zevents.ZeventListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory index of the Measurement metadata which the ReportProcessor needs
+ * to route the data of a measurement report, so that a report can be
+ * processed without loading the Measurement, Resource and Agent of every
+ * metric from the session.
+ *
+ * The metadata is held in primitive arrays keyed by an open addressing hash
+ * of the measurement id.  Entries are invalidated by the measurement
+ * schedule and resource change zevents and, for changes which don't raise
+ * an event, expire after org.hq.report.metadata.ttlMinutes.
+ */
+@Component
+public class MeasurementMetadataIndex implements ZeventListener<Zevent> {
+    private static final String PROP_TTL = "org.hq.report.metadata.ttlMinutes";
+    private static final int DEFAULT_TTL = 10;
+    private static final long MINUTE = 60 * 1000;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final byte ENABLED = 1;
+    private static final byte AVAILABILITY = 2;
+    private static final byte ASYNC_DELETED = 4;
+
+    private final Log log = LogFactory.getLog(MeasurementMetadataIndex.class);
+    private final ZeventEnqueuer zEventManager;
+    private final TaskScheduler taskScheduler;
+    private final long ttl;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // incremented on every invalidation, see put()
+    private final AtomicLong generation = new AtomicLong();
+
+    // guarded by lock
+    private int[] mids;
+    private int[] resourceIds;
+    private int[] agentIds;
+    private int[] entityIds;
+    private int[] serverIds;
+    private int[] platformIds;
+    private byte[] entityTypes;
+    private byte[] flags;
+    private long[] intervals;
+    private long[] expires;
+    private int size;
+    // size plus the deleted slots
+    private int used;
+
+    @Autowired
+    public MeasurementMetadataIndex(ZeventEnqueuer zEventManager,
+                                    @Value("#{scheduler}") TaskScheduler taskScheduler) {
+        this(zEventManager, taskScheduler, Integer.getInteger(PROP_TTL, DEFAULT_TTL).intValue() * MINUTE);
+    }
+
+    MeasurementMetadataIndex(ZeventEnqueuer zEventManager, TaskScheduler taskScheduler, long ttl) {
+        this.zEventManager = zEventManager;
+        this.taskScheduler = taskScheduler;
+        this.ttl = ttl;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    @PostConstruct
+    void initialize() {
+        final Set<Class<? extends Zevent>> events = new HashSet<Class<? extends Zevent>>();
+        events.add(MeasurementScheduleZevent.class);
+        events.add(AgentScheduleSyncZevent.class);
+        events.add(ResourceUpdatedZevent.class);
+        events.add(ResourceRefreshZevent.class);
+        events.add(ResourceDeletedZevent.class);
+        zEventManager.addBufferedListener(events, this);
+        taskScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                purge(System.currentTimeMillis());
+            }
+        }, ttl);
+    }
+
+    /**
+     * The metadata of one measurement.
+     */
+    public static final class Metadata {
+        private final int measurementId;
+        private final int resourceId;
+        private final int agentId;
+        private final int entityType;
+        private final int entityId;
+        private final int serverId;
+        private final int platformId;
+        private final long interval;
+        private final byte flags;
+
+        /**
+         * @param agentId id of the agent which collects the measurement, 0 if
+         *        the resource or one of its parents is deleted or has no agent
+         * @param serverId server id of a service, the id of the server itself,
+         *        0 for a platform
+         * @param platformId id of the platform of the resource
+         */
+        public Metadata(int measurementId, int resourceId, int agentId, AppdefEntityID entity,
+                        int serverId, int platformId, long interval, boolean enabled,
+                        boolean availability, boolean asyncDeleted) {
+            this(measurementId, resourceId, agentId, entity.getType(), entity.getID(), serverId,
+                 platformId, interval, (byte) ((enabled ? ENABLED : 0) |
+                                               (availability ? AVAILABILITY : 0) |
+                                               (asyncDeleted ? ASYNC_DELETED : 0)));
+        }
+
+        private Metadata(int measurementId, int resourceId, int agentId, int entityType,
+                         int entityId, int serverId, int platformId, long interval, byte flags) {
+            this.measurementId = measurementId;
+            this.resourceId = resourceId;
+            this.agentId = agentId;
+            this.entityType = entityType;
+            this.entityId = entityId;
+            this.serverId = serverId;
+            this.platformId = platformId;
+            this.interval = interval;
+            this.flags = flags;
+        }
+
+        public int getMeasurementId() {
+            return measurementId;
+        }
+
+        public int getResourceId() {
+            return resourceId;
+        }
+
+        public int getAgentId() {
+            return agentId;
+        }
+
+        public AppdefEntityID getEntityId() {
+            return new AppdefEntityID(entityType, entityId);
+        }
+
+        public long getInterval() {
+            return interval;
+        }
+
+        public boolean isEnabled() {
+            return (flags & ENABLED) != 0;
+        }
+
+        public boolean isAvailability() {
+            return (flags & AVAILABILITY) != 0;
+        }
+
+        public boolean isAsyncDeleted() {
+            return (flags & ASYNC_DELETED) != 0;
+        }
+    }
+
+    /**
+     * @return the current generation of the index which must be passed to
+     * {@link #put(Metadata, long)} when the metadata is loaded
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return the metadata of the measurement or null if it is not in the
+     * index
+     */
+    public Metadata get(int mid) {
+        lock.readLock().lock();
+        try {
+            final int i = find(mid);
+            if (i < 0 || expires[i] < System.currentTimeMillis()) {
+                return null;
+            }
+            return new Metadata(mid, resourceIds[i], agentIds[i], entityTypes[i], entityIds[i],
+                                serverIds[i], platformIds[i], intervals[i], flags[i]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add the metadata loaded from the DB.  If an invalidation happened
+     * since the generation was obtained the metadata may be stale and is
+     * not added.
+     */
+    public void put(Metadata m, long gen) {
+        lock.writeLock().lock();
+        try {
+            if (gen != generation.get()) {
+                return;
+            }
+            if (used + 1 > (mids.length >> 1)) {
+                // grow only if the live entries need it, else just drop the deleted slots
+                rehash(((size + 1) > (mids.length >> 2)) ? mids.length << 1 : mids.length);
+            }
+            int i = find(m.measurementId);
+            if (i < 0) {
+                i = -(i + 1);
+                if (mids[i] == EMPTY) {
+                    used++;
+                }
+                size++;
+            }
+            set(i, m.measurementId, m.resourceId, m.agentId, (byte) m.entityType, m.entityId,
+                m.serverId, m.platformId, m.interval, m.flags, System.currentTimeMillis() + ttl);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(Collection<Integer> measurementIds) {
+        if (measurementIds.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            generation.incrementAndGet();
+            for (final Integer mid : measurementIds) {
+                final int i = find(mid.intValue());
+                if (i >= 0) {
+                    delete(i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the measurements of the entities and all of their descendants
+     */
+    public void invalidate(Collection<AppdefEntityID> aeids) {
+        final Set<Integer> platforms = new HashSet<Integer>();
+        final Set<Integer> servers = new HashSet<Integer>();
+        final Set<Integer> services = new HashSet<Integer>();
+        for (final AppdefEntityID aeid : aeids) {
+            if (aeid.isPlatform()) {
+                platforms.add(aeid.getId());
+            } else if (aeid.isServer()) {
+                servers.add(aeid.getId());
+            } else if (aeid.isService()) {
+                services.add(aeid.getId());
+            }
+        }
+        if (platforms.isEmpty() && servers.isEmpty() && services.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            generation.incrementAndGet();
+            for (int i = 0; i < mids.length; i++) {
+                if (mids[i] <= EMPTY) {
+                    continue;
+                }
+                if (platforms.contains(platformIds[i]) || servers.contains(serverIds[i]) ||
+                    (entityTypes[i] == AppdefEntityConstants.APPDEF_TYPE_SERVICE &&
+                     services.contains(entityIds[i]))) {
+                    delete(i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all the expired entries
+     */
+    void purge(long now) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < mids.length; i++) {
+                if (mids[i] > EMPTY && expires[i] < now) {
+                    delete(i);
+                }
+            }
+            if (used > size) {
+                rehash(mids.length);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("measurement metadata index holds " + size() + " measurements");
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void processEvents(List<Zevent> events) {
+        final Collection<Integer> measurementIds = new HashSet<Integer>();
+        final Collection<AppdefEntityID> aeids = new HashSet<AppdefEntityID>();
+        for (final Zevent z : events) {
+            if (z instanceof MeasurementScheduleZevent) {
+                final MeasurementScheduleZevent.MeasurementScheduleZeventSource source =
+                    (MeasurementScheduleZevent.MeasurementScheduleZeventSource) z.getSourceId();
+                measurementIds.add(source.getId());
+            } else if (z instanceof AgentScheduleSyncZevent) {
+                aeids.addAll(((AgentScheduleSyncZevent) z).getEntityIds());
+            } else if (z instanceof ResourceZevent) {
+                aeids.add(((ResourceZevent) z).getAppdefEntityID());
+            }
+        }
+        remove(measurementIds);
+        invalidate(aeids);
+    }
+
+    /**
+     * @return the slot of the mid or -(slot + 1) of the slot where it can be
+     * inserted if it is not in the index
+     */
+    private int find(int mid) {
+        final int mask = mids.length - 1;
+        int insert = -1;
+        for (int i = hash(mid) & mask;; i = (i + 1) & mask) {
+            final int m = mids[i];
+            if (m == mid) {
+                return i;
+            } else if (m == EMPTY) {
+                return -(((insert < 0) ? i : insert) + 1);
+            } else if (m == DELETED && insert < 0) {
+                insert = i;
+            }
+        }
+    }
+
+    private static int hash(int mid) {
+        final int h = mid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void delete(int i) {
+        mids[i] = DELETED;
+        size--;
+    }
+
+    private void set(int i, int mid, int resourceId, int agentId, byte entityType, int entityId,
+                     int serverId, int platformId, long interval, byte flag, long expire) {
+        mids[i] = mid;
+        resourceIds[i] = resourceId;
+        agentIds[i] = agentId;
+        entityTypes[i] = entityType;
+        entityIds[i] = entityId;
+        serverIds[i] = serverId;
+        platformIds[i] = platformId;
+        intervals[i] = interval;
+        flags[i] = flag;
+        expires[i] = expire;
+    }
+
+    private void allocate(int capacity) {
+        mids = new int[capacity];
+        resourceIds = new int[capacity];
+        agentIds = new int[capacity];
+        entityIds = new int[capacity];
+        serverIds = new int[capacity];
+        platformIds = new int[capacity];
+        entityTypes = new byte[capacity];
+        flags = new byte[capacity];
+        intervals = new long[capacity];
+        expires = new long[capacity];
+        size = 0;
+        used = 0;
+    }
+
+    private void rehash(int capacity) {
+        final int[] oMids = mids, oResourceIds = resourceIds, oAgentIds = agentIds,
+            oEntityIds = entityIds, oServerIds = serverIds, oPlatformIds = platformIds;
+        final byte[] oEntityTypes = entityTypes, oFlags = flags;
+        final long[] oIntervals = intervals, oExpires = expires;
+        allocate(capacity);
+        for (int j = 0; j < oMids.length; j++) {
+            if (oMids[j] <= EMPTY) {
+                continue;
+            }
+            final int i = -(find(oMids[j]) + 1);
+            set(i, oMids[j], oResourceIds[j], oAgentIds[j], oEntityTypes[j], oEntityIds[j],
+                oServerIds[j], oPlatformIds[j], oIntervals[j], oFlags[j], oExpires[j]);
+            size++;
+            used++;
+        }
+    }
+}
@@ -67,9 +67,6 @@ public interface MetricDataCache {
      * the MetricValue to be added to ensure it's not an older data point than
      * what is already cached.
      * 
-     * Each invocation of this method is synchronized internally, so consider 
-     * using the {@link #bulkAdd(List) bulk add} for batch updates to the cache.
-     *
      * @param mid The measurement id.
      * @param mval The MetricValue to store.
      * @return true if the MetricValue was added to the cache, false otherwise.
@@ -88,4 +85,17 @@ public interface MetricDataCache {
      */
     Map<Integer,MetricValue> getAll(List<Integer> mids, long timestamp);
 
+    /**
+     * Get {@link MetricValue}s from the cache within the specified time range, from timestamp
+     * to currentTimeMillis, into the data {@link Map}.
+     *
+     * @param mids measurement ids, null placeholders are skipped.
+     * @param timestamp the start of the time range (inclusive) in millis.
+     * @param data {@link Map} of measurement ids to the cached {@link MetricValue}s.
+     * @return the measurement ids which are not cached or whose value is out of the
+     * specified window.
+     */
+    Collection<Integer> getAll(Collection<Integer> mids, long timestamp,
+                               Map<Integer,MetricValue> data);
+
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.common.SystemException;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shared pool used to fan out the sub-queries of a historical metric data
+ * request.  The number of workers bounds the number of metric data queries
+ * which may run against the DB at once across all requests, no matter how
+ * many users are looking at charts.  Each request may additionally limit
+ * its own parallelism, is given a deadline, and has its outstanding
+ * sub-queries cancelled as soon as one of them fails.
+ */
+@Component
+public class MetricDataQueryExecutor {
+    private static final String PROP_THREADS = "org.hq.metric.query.threads";
+    private static final String PROP_QUEUE_CAPACITY = "org.hq.metric.query.queue.capacity";
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private final Log log = LogFactory.getLog(MetricDataQueryExecutor.class);
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private ThreadPoolExecutor executor;
+
+    @Autowired
+    public MetricDataQueryExecutor(ConcurrentStatsCollector concurrentStatsCollector) {
+        this.concurrentStatsCollector = concurrentStatsCollector;
+    }
+
+    private int getNumThreads() {
+        Integer threads = Integer.getInteger(PROP_THREADS);
+        if (threads != null && threads.intValue() > 0) {
+            return threads.intValue();
+        }
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.min(Math.max(cpus * 2, 4), 16);
+    }
+
+    @PostConstruct
+    void initialize() {
+        final int threads = getNumThreads();
+        final int capacity = Integer.getInteger(PROP_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY).intValue();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+                private final AtomicLong i = new AtomicLong(0);
+                public Thread newThread(Runnable r) {
+                    Thread rtn = new Thread(r, "MetricDataQuery" + i.getAndIncrement());
+                    rtn.setDaemon(true);
+                    return rtn;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        log.info("starting MetricDataQueryExecutor with " + threads + " threads");
+        concurrentStatsCollector.register(ConcurrentStatsCollector.METRIC_DATA_QUERY_WAIT_TIME);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.METRIC_DATA_QUERY_TIME);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.METRIC_DATA_QUERY_FAILURES);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return getQueueSize();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_QUERY_QUEUE_SIZE;
+            }
+        });
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return getActiveCount();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_QUERY_ACTIVE_COUNT;
+            }
+        });
+    }
+
+    /**
+     * Runs the queries on the shared pool and waits for all of them to
+     * complete.  If any query fails, or they do not all complete before the
+     * timeout, the remaining queries are cancelled and a
+     * {@link SystemException} is thrown.
+     *
+     * @param queries the queries to run
+     * @param maxParallel max number of the queries which may run at once
+     * @param timeout max number of millis to wait for all queries
+     * @return the results of the queries in the order they completed
+     */
+    public <T> List<T> invokeAll(Collection<Callable<T>> queries, int maxParallel, long timeout) {
+        final List<T> rtn = new ArrayList<T>(queries.size());
+        final List<Future<T>> futures = new ArrayList<Future<T>>(queries.size());
+        final CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        final long deadline = now() + timeout;
+        final Iterator<Callable<T>> it = queries.iterator();
+        boolean success = false;
+        int outstanding = 0;
+        try {
+            while (it.hasNext() || outstanding > 0) {
+                while (it.hasNext() && outstanding < maxParallel) {
+                    futures.add(completionService.submit(new TimedQuery<T>(it.next())));
+                    outstanding++;
+                }
+                final long wait = deadline - now();
+                final Future<T> future = (wait > 0) ?
+                    completionService.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (future == null) {
+                    throw new SystemException("metric data queries did not complete within " +
+                                              timeout + " ms, queueSize=" + executor.getQueue().size());
+                }
+                outstanding--;
+                rtn.add(future.get());
+            }
+            success = true;
+        } catch (RejectedExecutionException e) {
+            throw new SystemException("too many metric data queries are pending, queueSize=" +
+                                      executor.getQueue().size(), e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SystemException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(e);
+        } finally {
+            if (!success) {
+                concurrentStatsCollector.addStat(1, ConcurrentStatsCollector.METRIC_DATA_QUERY_FAILURES);
+                for (final Future<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return rtn;
+    }
+
+    int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    private long now() {
+        return System.currentTimeMillis();
+    }
+
+    private class TimedQuery<T> implements Callable<T> {
+        private final Callable<T> query;
+        private final long queued = now();
+        private TimedQuery(Callable<T> query) {
+            this.query = query;
+        }
+        public T call() throws Exception {
+            final long start = now();
+            concurrentStatsCollector.addStat(start - queued, ConcurrentStatsCollector.METRIC_DATA_QUERY_WAIT_TIME);
+            try {
+                return query.call();
+            } finally {
+                concurrentStatsCollector.addStat(now() - start, ConcurrentStatsCollector.METRIC_DATA_QUERY_TIME);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.hyperic.hq.measurement.shared.MetricDataRowHandler;
+import org.hyperic.hq.product.MetricValue;
+
+/**
+ * Merges sources of metric values which are each ordered by timestamp into
+ * rows of one value per column, so that an export of many measurements
+ * never holds more than the current row of each source.
+ */
+class MetricDataRowMerger {
+
+    /**
+     * Metric values of one or more columns ordered by timestamp
+     */
+    static abstract class Source implements Comparable<Source> {
+        private long timestamp;
+        private int column;
+        private double value;
+
+        /**
+         * Move to the next value
+         *
+         * @return false if the source is exhausted
+         */
+        abstract boolean next() throws SQLException;
+
+        final void set(long timestamp, int column, double value) {
+            this.timestamp = timestamp;
+            this.column = column;
+            this.value = value;
+        }
+
+        public int compareTo(Source source) {
+            return (timestamp < source.timestamp) ? -1 : ((timestamp == source.timestamp) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Reads the timestamp, measurement_id and value columns of a result set
+     */
+    static class ResultSetSource extends Source {
+        private final ResultSet rs;
+        private final Map<Integer, Integer> columns;
+
+        /**
+         * @param columns the column of each measurement id in the result set
+         */
+        ResultSetSource(ResultSet rs, Map<Integer, Integer> columns) {
+            this.rs = rs;
+            this.columns = columns;
+        }
+
+        boolean next() throws SQLException {
+            while (rs.next()) {
+                final Integer column = columns.get(rs.getInt(2));
+                if (column != null) {
+                    set(rs.getLong(1), column, rs.getDouble(3));
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class ListSource extends Source {
+        private final Iterator<? extends MetricValue> it;
+        private final int column;
+
+        ListSource(List<? extends MetricValue> values, int column) {
+            this.it = values.iterator();
+            this.column = column;
+        }
+
+        boolean next() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            final MetricValue val = it.next();
+            set(val.getTimestamp(), column, val.getValue());
+            return true;
+        }
+    }
+
+    private MetricDataRowMerger() {
+    }
+
+    /**
+     * Hand the rows of the sources to the handler.  Values of the same column
+     * with the same timestamp overwrite each other.
+     *
+     * @return the number of rows
+     */
+    static int merge(List<? extends Source> sources, int numColumns,
+                     MetricDataRowHandler handler) throws SQLException, IOException {
+        final PriorityQueue<Source> queue = new PriorityQueue<Source>(Math.max(1, sources.size()));
+        for (final Source source : sources) {
+            if (source.next()) {
+                queue.add(source);
+            }
+        }
+        final double[] row = new double[numColumns];
+        int rows = 0;
+        while (!queue.isEmpty()) {
+            final long timestamp = queue.peek().timestamp;
+            Arrays.fill(row, Double.NaN);
+            while (!queue.isEmpty() && queue.peek().timestamp == timestamp) {
+                final Source source = queue.poll();
+                // drain the values of the source at this timestamp without
+                // going through the queue
+                do {
+                    row[source.column] = source.value;
+                } while (source.next() && source.timestamp == timestamp);
+                if (source.timestamp != timestamp) {
+                    queue.add(source);
+                }
+            }
+            handler.handleRow(timestamp, row);
+            rows++;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+/**
+ * An in-memory rollup tier of the metric data inserted over the last few
+ * hours, so that charts of recent data can be aggregated without unioning
+ * the HQ_METRIC_DATA_n tables.  The store is fed with the same DataPoints
+ * which DataManagerImpl commits to the raw tables.  Each measurement has a
+ * fixed ring of time buckets holding the min, max, sum and count of its
+ * values, a bucket is overwritten once the window moves past it.  The
+ * memory used is bounded by maxMeasurements * (window / bucketSize + 1)
+ * buckets.
+ *
+ * Only data inserted since the server started is held, so a range which
+ * begins before then, or before the retention window, can not be answered
+ * and must go to the DB.  The same goes for a range whose windows don't line
+ * up with the buckets, as a bucket can't be split between two windows.
+ *
+ * A bucket which receives a timestamp it has already seen, or one older than
+ * its newest, is treated as overwritten.  Either the same value was inserted
+ * twice or it replaced the one in the DB, so the aggregates no longer match
+ * the raw tables.
+ */
+@Component
+public class RecentMetricDataStore {
+    private static final String PROP_HOURS = "org.hq.metric.recent.hours";
+    private static final String PROP_BUCKET_MINUTES = "org.hq.metric.recent.bucketMinutes";
+    private static final String PROP_MAX_MEASUREMENTS = "org.hq.metric.recent.maxMeasurements";
+    // an hour more than the longest chart range, 1 - 4 hours, served from the store
+    private static final int DEFAULT_HOURS = 5;
+    // the interval of a 60 point chart of 1 hour
+    private static final int DEFAULT_BUCKET_MINUTES = 1;
+    private static final int DEFAULT_MAX_MEASUREMENTS = 10000;
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long PURGE_INTERVAL = MINUTE;
+    // the bucket number, newest timestamp, sum, min, max and count of a bucket
+    private static final int BYTES_PER_BUCKET = 8 + 8 + 8 + 8 + 8 + 4;
+    // count of a bucket holding a value which has been overwritten in the DB,
+    // it can't be answered from the store until it is recycled
+    private static final int OVERWRITTEN = -1;
+
+    private final Log log = LogFactory.getLog(RecentMetricDataStore.class);
+    private final ConcurrentMap<Integer, Series> series = new ConcurrentHashMap<Integer, Series>();
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final TaskScheduler taskScheduler;
+    private final long window;
+    private final long bucketSize;
+    private final int numBuckets;
+    private final int maxMeasurements;
+    // data inserted before this time is not held in the store
+    private final long coverageStart;
+    // false once a measurement has been turned away because the store is full,
+    // from then on a measurement without data can't be told apart from one which
+    // is not held
+    private volatile boolean complete = true;
+
+    @Autowired
+    public RecentMetricDataStore(ConcurrentStatsCollector concurrentStatsCollector,
+                                 @Value("#{scheduler}") TaskScheduler taskScheduler) {
+        this(concurrentStatsCollector, taskScheduler,
+             Integer.getInteger(PROP_HOURS, DEFAULT_HOURS).intValue() * HOUR,
+             Integer.getInteger(PROP_BUCKET_MINUTES, DEFAULT_BUCKET_MINUTES).intValue() * MINUTE,
+             Integer.getInteger(PROP_MAX_MEASUREMENTS, DEFAULT_MAX_MEASUREMENTS).intValue(),
+             System.currentTimeMillis());
+    }
+
+    RecentMetricDataStore(ConcurrentStatsCollector concurrentStatsCollector,
+                          TaskScheduler taskScheduler, long window, long bucketSize,
+                          int maxMeasurements, long coverageStart) {
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.taskScheduler = taskScheduler;
+        this.window = window;
+        this.bucketSize = Math.max(1, bucketSize);
+        // one more for the bucket the window starts in
+        this.numBuckets = (int) (window / this.bucketSize) + 1;
+        this.maxMeasurements = maxMeasurements;
+        this.coverageStart = coverageStart;
+    }
+
+    @PostConstruct
+    void initialize() {
+        if (!isEnabled()) {
+            log.info("recent metric data store is disabled");
+            return;
+        }
+        log.info("holding the last " + (window / HOUR) + " hours of metric data in " +
+                 (bucketSize / MINUTE) + " minute buckets for up to " + maxMeasurements +
+                 " measurements in memory, using up to " + (getMaxBytes() / (1024 * 1024)) +
+                 " MB");
+        taskScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                purge(now() - window);
+            }
+        }, PURGE_INTERVAL);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return series.size();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.RECENT_METRIC_DATA_MEASUREMENTS;
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return window > 0;
+    }
+
+    /**
+     * Add data points which have been inserted into the raw metric data
+     * tables.
+     */
+    public void add(Collection<DataPoint> data) {
+        if (!isEnabled()) {
+            return;
+        }
+        final long horizon = now() - window;
+        for (final DataPoint pt : data) {
+            final long timestamp = pt.getTimestamp();
+            final double value = pt.getValue();
+            // the DB can't hold these, so they were never inserted
+            if (timestamp < horizon || Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+            final Series s = getSeries(pt.getMeasurementId());
+            if (s != null) {
+                s.add(getBucket(timestamp), timestamp, value, getBucket(horizon));
+            }
+        }
+    }
+
+    /**
+     * Mark the buckets of data points which are about to overwrite values in
+     * the raw metric data tables.  The old values can't be taken out of the
+     * aggregates, so ranges including these buckets go to the DB until the
+     * window moves past them.
+     */
+    public void overwrite(Collection<DataPoint> data) {
+        if (!isEnabled()) {
+            return;
+        }
+        final long horizon = now() - window;
+        for (final DataPoint pt : data) {
+            final long timestamp = pt.getTimestamp();
+            if (timestamp < horizon) {
+                continue;
+            }
+            final Series s = getSeries(pt.getMeasurementId());
+            if (s != null) {
+                s.overwrite(getBucket(timestamp), getBucket(horizon));
+            }
+        }
+    }
+
+    /**
+     * @return the series of the measurement, null if the store is full
+     */
+    private Series getSeries(Integer mid) {
+        while (true) {
+            Series s = series.get(mid);
+            if (s == null) {
+                if (series.size() >= maxMeasurements) {
+                    if (complete) {
+                        log.warn("recent metric data store is full with " + maxMeasurements +
+                                 " measurements, charts will be served from the DB. " +
+                                 "Consider increasing " + PROP_MAX_MEASUREMENTS);
+                        complete = false;
+                    }
+                    return null;
+                }
+                s = new Series(numBuckets);
+                final Series prev = series.putIfAbsent(mid, s);
+                s = (prev == null) ? s : prev;
+            }
+            // the series may have been purged concurrently, retry with a new one
+            if (!s.isRemoved()) {
+                return s;
+            }
+            series.remove(mid, s);
+        }
+    }
+
+    /**
+     * @return true if data in the range beginning at begin can be answered
+     * from the store
+     */
+    public boolean covers(long begin) {
+        return isEnabled() && begin >= coverageStart && begin >= (now() - window);
+    }
+
+    /**
+     * Aggregates the data of all the measurements into windowSize buckets
+     * from start to finish, the same way the raw metric data queries of
+     * DataManagerImpl do.  Window i holds the data in [start + i * windowSize,
+     * start + (i + 1) * windowSize).  The arrays must be at least
+     * (finish - start) / windowSize long, an empty window has a count of 0.
+     *
+     * @return false if the store does not hold all the data in the range,
+     * or if start, finish and windowSize don't line up with the buckets, in
+     * which case the arrays are left in an undefined state
+     */
+    public boolean aggregate(Integer[] mids, long start, long finish, long windowSize,
+                             long[] timestamps, double[] sums, double[] mins, double[] maxs,
+                             int[] counts) {
+        if (!covers(start) || !isAligned(start, finish, windowSize)) {
+            return false;
+        }
+        final int windows = (int) ((finish - start) / windowSize);
+        final long first = getBucket(start);
+        // finish is excluded, the same as the DB windows
+        final long last = getBucket(finish) - 1;
+        for (final Integer mid : mids) {
+            final Series s = series.get(mid);
+            if (s == null) {
+                if (!complete) {
+                    return false;
+                }
+                continue;
+            }
+            if (!s.aggregate(first, last, bucketSize, start, windowSize, windows, timestamps,
+                             sums, mins, maxs, counts)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if every window of the range is made of whole buckets
+     */
+    boolean isAligned(long start, long finish, long windowSize) {
+        return windowSize >= bucketSize && (windowSize % bucketSize) == 0 &&
+               (start % bucketSize) == 0 && ((finish - start) % windowSize) == 0;
+    }
+
+    int getNumMeasurements() {
+        return series.size();
+    }
+
+    int getNumBuckets() {
+        return numBuckets;
+    }
+
+    /**
+     * @return the upper bound of the memory held by the buckets of the store
+     */
+    long getMaxBytes() {
+        return (long) maxMeasurements * numBuckets * BYTES_PER_BUCKET;
+    }
+
+    /**
+     * @return the number of buckets allocated for the measurement, 0 if it
+     * is not held
+     */
+    int getCapacity(Integer mid) {
+        final Series s = series.get(mid);
+        return (s == null) ? 0 : s.sums.length;
+    }
+
+    /**
+     * Drop the measurements which have no data newer than horizon
+     */
+    void purge(long horizon) {
+        final long oldest = getBucket(horizon);
+        final Iterator<Series> it = series.values().iterator();
+        while (it.hasNext()) {
+            final Series s = it.next();
+            if (s.purge(oldest)) {
+                it.remove();
+            }
+        }
+    }
+
+    private long getBucket(long timestamp) {
+        return timestamp / bucketSize;
+    }
+
+    private long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * The buckets of one measurement, a ring indexed by bucket number modulo
+     * its length.  A slot which holds an older bucket number than the one
+     * being written is recycled.
+     */
+    private static class Series {
+        private final long[] buckets;
+        // the newest timestamp added to each bucket
+        private final long[] timestamps;
+        private final double[] sums;
+        private final double[] mins;
+        private final double[] maxs;
+        private final int[] counts;
+        // the newest bucket number written
+        private long newest = -1;
+        private boolean removed = false;
+
+        private Series(int numBuckets) {
+            buckets = new long[numBuckets];
+            timestamps = new long[numBuckets];
+            sums = new double[numBuckets];
+            mins = new double[numBuckets];
+            maxs = new double[numBuckets];
+            counts = new int[numBuckets];
+            for (int i = 0; i < numBuckets; i++) {
+                buckets[i] = -1;
+            }
+        }
+
+        private synchronized boolean isRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return the slot of the bucket, -1 if the bucket is older than the
+         * ring holds
+         */
+        private int getSlot(long bucket, long oldest) {
+            if (bucket < oldest || bucket <= newest - buckets.length) {
+                return -1;
+            }
+            final int slot = (int) (bucket % buckets.length);
+            if (buckets[slot] != bucket) {
+                buckets[slot] = bucket;
+                timestamps[slot] = -1;
+                counts[slot] = 0;
+            }
+            newest = Math.max(newest, bucket);
+            return slot;
+        }
+
+        private synchronized void add(long bucket, long timestamp, double value, long oldest) {
+            final int slot = getSlot(bucket, oldest);
+            if (slot < 0 || counts[slot] == OVERWRITTEN) {
+                return;
+            }
+            // a duplicate or an update of a value already counted, it can't be
+            // told from a late value without keeping every timestamp
+            if (timestamp <= timestamps[slot]) {
+                counts[slot] = OVERWRITTEN;
+                return;
+            }
+            timestamps[slot] = timestamp;
+            if (counts[slot] == 0) {
+                sums[slot] = value;
+                mins[slot] = value;
+                maxs[slot] = value;
+            } else {
+                sums[slot] += value;
+                mins[slot] = (value < mins[slot]) ? value : mins[slot];
+                maxs[slot] = (value > maxs[slot]) ? value : maxs[slot];
+            }
+            counts[slot]++;
+        }
+
+        private synchronized void overwrite(long bucket, long oldest) {
+            final int slot = getSlot(bucket, oldest);
+            if (slot >= 0) {
+                counts[slot] = OVERWRITTEN;
+            }
+        }
+
+        /**
+         * @return true if the series has no bucket newer than oldest and has
+         * been marked removed
+         */
+        private synchronized boolean purge(long oldest) {
+            if (newest < oldest) {
+                removed = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if one of the buckets can't be answered from the store
+         */
+        private synchronized boolean aggregate(long first, long last, long bucketSize,
+                                               long start, long windowSize, int windows,
+                                               long[] timestamps, double[] sums,
+                                               double[] mins, double[] maxs, int[] counts) {
+            for (long bucket = Math.max(first, newest - buckets.length + 1); bucket <= last;
+                 bucket++) {
+                final int slot = (int) (bucket % buckets.length);
+                if (this.buckets[slot] != bucket || this.counts[slot] == 0) {
+                    continue;
+                }
+                if (this.counts[slot] == OVERWRITTEN) {
+                    return false;
+                }
+                final long timestamp = bucket * bucketSize;
+                final int window = (int) ((timestamp - start) / windowSize);
+                if (window < 0 || window >= windows) {
+                    continue;
+                }
+                final double sum = this.sums[slot];
+                final double min = this.mins[slot];
+                final double max = this.maxs[slot];
+                if (counts[window] == 0) {
+                    timestamps[window] = timestamp;
+                    sums[window] = sum;
+                    mins[window] = min;
+                    maxs[window] = max;
+                } else {
+                    sums[window] += sum;
+                    mins[window] = (min < mins[window]) ? min : mins[window];
+                    maxs[window] = (max > maxs[window]) ? max : maxs[window];
+                }
+                counts[window] += this.counts[slot];
+            }
+            return true;
+        }
+    }
+}
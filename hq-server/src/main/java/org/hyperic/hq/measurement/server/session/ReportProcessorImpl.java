@@ -104,6 +104,8 @@ public class ReportProcessorImpl implements ReportProcessor {
 
     private final AgentScheduleSynchronizer agentScheduleSynchronizer;
 
+    private final MeasurementMetadataIndex measurementMetadataIndex;
+
     @Autowired
     public ReportProcessorImpl(MeasurementManager measurementManager,
                                PlatformManager platformManager, ServerManager serverManager,
@@ -112,7 +114,7 @@ public class ReportProcessorImpl implements ReportProcessor {
                                MeasurementInserterHolder measurementInserterManager,
                                AgentManager agentManager, ZeventEnqueuer zEventManager,
             AgentScheduleSynchronizer agentScheduleSynchronizer, TopNManager topNManager,
-            ResourceManager resourceManager) {
+            ResourceManager resourceManager, MeasurementMetadataIndex measurementMetadataIndex) {
         this.measurementManager = measurementManager;
         this.platformManager = platformManager;
         this.serverManager = serverManager;
@@ -125,6 +127,7 @@ public class ReportProcessorImpl implements ReportProcessor {
         this.agentScheduleSynchronizer = agentScheduleSynchronizer;
         this.topNManager = topNManager;
         this.resourceManager = resourceManager;
+        this.measurementMetadataIndex = measurementMetadataIndex;
     }
     
     @PostConstruct
@@ -136,38 +139,28 @@ public class ReportProcessorImpl implements ReportProcessor {
         return System.currentTimeMillis();
     }
 
-    private void addPoint(List<DataPoint> points, List<DataPoint> priorityPts, Measurement m,
-                          MetricValue[] vals) {
+    private void addPoint(List<DataPoint> points, List<DataPoint> priorityPts,
+                          MeasurementMetadataIndex.Metadata m, MetricValue[] vals) {
         final boolean debug = log.isDebugEnabled();
-        final StopWatch watch = new StopWatch();
         for (MetricValue val : vals) {
             final long now = TimingVoodoo.roundDownTime(now(), MINUTE);
             try {
                 // this is just to check if the metricvalue is valid
                 // will throw a NumberFormatException if there is a problem
                 new BigDecimal(val.getValue());
-                DataPoint dataPoint = new DataPoint(m.getId(), val);
+                DataPoint dataPoint = new DataPoint(m.getMeasurementId(), val);
                 if ((priorityPts != null) && isPriority(now, dataPoint.getTimestamp())) {
                     priorityPts.add(dataPoint);
                 } else {
                     points.add(dataPoint);
                 }
-                if (debug) {
-                    watch.markTimeBegin("getTemplate");
-                }             
-                if (debug && m.getTemplate().isAvailability()) {
+                if (debug && m.isAvailability()) {
                     log.debug("availability -> " + dataPoint);
                 }
-                if (debug) {
-                    watch.markTimeEnd("getTemplate");
-                }
             } catch (NumberFormatException e) {
-                log.warn("Unable to insert: " + e.getMessage() + ", metric id=" + m);
+                log.warn("Unable to insert: " + e.getMessage() + ", metric id=" + m.getMeasurementId());
             }
         }
-        if (debug) {
-            log.debug(watch);
-        }
     }
 
     private final boolean isPriority(long timestamp, long metricTimestamp) {
@@ -177,20 +170,15 @@ public class ReportProcessorImpl implements ReportProcessor {
         return false;
     }
 
-    protected final void addData(List<DataPoint> points, List<DataPoint> priorityPts, Measurement m, MetricValue[] dpts) {
+    protected final void addData(List<DataPoint> points, List<DataPoint> priorityPts,
+                                 MeasurementMetadataIndex.Metadata m, MetricValue[] dpts) {
         final boolean debug = log.isDebugEnabled();
         StopWatch watch = new StopWatch();
-        if (debug) {
-            watch.markTimeBegin("getInterval");
-        }
         long interval = m.getInterval();
-        if (debug) {
-            watch.markTimeEnd("getInterval");
-        }
 
         // Safeguard against an anomaly
         if (interval <= 0) {
-            log.warn("Measurement had bogus interval[" + interval + "]: " + m);
+            log.warn("Measurement had bogus interval[" + interval + "]: id=" + m.getMeasurementId());
             interval = 60 * 1000;
         }
 
@@ -272,16 +260,16 @@ public class ReportProcessorImpl implements ReportProcessor {
          * checks in.
          */
         boolean setPlatformAvail = true;
-        final Map<Integer, Boolean> alreadyChecked = new HashMap<Integer, Boolean>();
-        final Map<Integer, Measurement> measMap = new HashMap<Integer, Measurement>();
+        final int agentId = agent.getId().intValue();
+        final long generation = measurementMetadataIndex.getGeneration();
         for (final DSNList dsnList : dsnLists) {
-            final Integer mid = new Integer(dsnList.getClientId());
+            final int mid = dsnList.getClientId();
             if (debug) {
-                watch.markTimeBegin("getMeasurement");
+                watch.markTimeBegin("getMetadata");
             }
-            final Measurement m = getMeasurement(mid, measMap);
+            final MeasurementMetadataIndex.Metadata m = getMetadata(mid, generation);
             if (debug) {
-                watch.markTimeEnd("getMeasurement");
+                watch.markTimeEnd("getMetadata");
             }
 
             // Can't do much if we can't look up the derived measurement
@@ -294,50 +282,47 @@ public class ReportProcessorImpl implements ReportProcessor {
                 continue;
             }
             // Need to check if resource was asynchronously deleted (type == null)
-            final Resource res = m.getResource();
-            if ((res == null) || res.isInAsyncDeleteState()) {
+            if (m.isAsyncDeleted()) {
                 if (debug) {
-                    log.debug("dropping metricId=" + m.getId() + " since resource is in async delete state");
+                    log.debug("dropping metricId=" + mid + " since resource is in async delete state");
                 }
                 continue;
             }
-            if ((platformRes == null) || platformRes.getId().equals(res.getId())) {
+            if ((platformRes == null) || platformRes.getId().intValue() == m.getResourceId()) {
                 setPlatformAvail = false;
             }
-            
-            if (debug) {
-                watch.markTimeBegin("resMatchesAgent");
-            }
-            // TODO reosurceMatchesAgent() and the call to getAgent() can be
-            // consolidated, the agent match can be checked by getting the agent
-            // for the instanceID from the resource
-            Boolean match = alreadyChecked.get(res.getId());
-            if (match == null) {
-                match = resourceMatchesAgent(res, agent);
-                alreadyChecked.put(res.getId(), match);
-            }
-            if (!match) {
-                String ipAddr = agent.getAddress();
-                String portString = agent.getPort().toString();
+            if (m.getAgentId() != agentId) {
                 if (debug) {
-                    log.debug("measurement (id=" + m.getId() + ", name=" +
-                              m.getTemplate().getName() + ") was sent to the " +
+                    log.debug("measurement (id=" + mid + ") was sent to the " +
                               "HQ server from agent (agentToken=" + agentToken + ", name=" +
-                              ipAddr + ", port=" + portString + ")" +
-                              " but resource (id=" + res.getId() + ", name=" +
-                              res.getName() + ") is not associated " +
+                              agent.getAddress() + ", port=" + agent.getPort() + ")" +
+                              " but resource (id=" + m.getResourceId() + ", entity=" +
+                              m.getEntityId() + ") is not associated " +
                               " with that agent.  Dropping measurement.");
-                    watch.markTimeEnd("resMatchesAgent");
                 }
-                toUnschedule.add(AppdefUtil.newAppdefEntityId(res));
+                toUnschedule.add(m.getEntityId());
                 continue;
             }
+            
+            final boolean isAvail = m.isAvailability();
+            // packed value lists are decoded here, once the measurement is
+            // known to be kept
             if (debug) {
-                watch.markTimeEnd("resMatchesAgent");
+                watch.markTimeBegin("decode");
+            }
+            ValueList[] valLists = null;
+            try {
+                valLists = dsnList.getDsns();
+            } catch (IllegalArgumentException e) {
+                log.warn("dropping values of metricId=" + mid + " from agentToken=" +
+                         agentToken + ", unable to decode them: " + e.getMessage());
+            }
+            if (debug) {
+                watch.markTimeEnd("decode");
+            }
+            if (valLists == null) {
+                continue;
             }
-            
-            final boolean isAvail = m.getTemplate().isAvailability();
-            final ValueList[] valLists = dsnList.getDsns();
             if (debug) {
                 watch.markTimeBegin("addData");
             }
@@ -431,91 +416,82 @@ public class ReportProcessorImpl implements ReportProcessor {
         if (debug) { watch.markTimeEnd("insertTopNToDB"); }
     }
 
-    protected Measurement getMeasurement(Integer mid, Map<Integer, Measurement> measMap) {
-        Measurement measurement = measMap.get(mid);
-        if (measurement == null) {
-            measurement = measurementManager.getMeasurement(mid);
-            measMap.put(mid, measurement);
+    /**
+     * @return the metadata of the measurement from the index, loading it into
+     * the index on a miss, or null if the measurement does not exist
+     */
+    protected MeasurementMetadataIndex.Metadata getMetadata(int mid, long generation) {
+        MeasurementMetadataIndex.Metadata rtn = measurementMetadataIndex.get(mid);
+        if (rtn != null) {
+            return rtn;
         }
-        return measurement;
+        final Measurement m = measurementManager.getMeasurement(mid);
+        if (m == null) {
+            return null;
+        }
+        rtn = loadMetadata(m);
+        if (rtn != null) {
+            measurementMetadataIndex.put(rtn, generation);
+        }
+        return rtn;
     }
 
-    /**
-     * checks if the agentToken matches resource's agentToken
-     */
-    protected boolean resourceMatchesAgent(Resource resource, Agent agent) {
-        if ((resource == null) || resource.isInAsyncDeleteState()) {
-            return false;
+    private MeasurementMetadataIndex.Metadata loadMetadata(Measurement m) {
+        final Resource resource = m.getResource();
+        if (resource == null) {
+            return null;
+        }
+        final AppdefEntityID aeid = AppdefUtil.newAppdefEntityId(resource);
+        final boolean enabled = m.isEnabled();
+        final boolean avail = m.getTemplate().isAvailability();
+        if (resource.isInAsyncDeleteState()) {
+            return new MeasurementMetadataIndex.Metadata(m.getId(), resource.getId(), 0, aeid, 0, 0,
+                m.getInterval(), enabled, avail, true);
         }
+        Agent agent = null;
+        int serverId = 0;
+        int platformId = 0;
         final Integer resType = resource.getResourceType().getId();
-        final Integer aeid = resource.getInstanceId();
+        final Integer instanceId = resource.getInstanceId();
         try {
+            Platform p = null;
             if (resType.equals(AuthzConstants.authzPlatform)) {
-                Platform p = platformManager.findPlatformById(aeid);
-                Resource r = p.getResource();
-                if ((r == null) || r.isInAsyncDeleteState()) {
-                    return false;
-                }
-                Agent a = p.getAgent();
-                if (a == null) {
-                    return false;
-                }
-                return a.getId().equals(agent.getId());
+                p = platformManager.findPlatformById(instanceId);
             } else if (resType.equals(AuthzConstants.authzServer)) {
-                Server server = serverManager.findServerById(aeid);
-                Resource r = server.getResource();
-                if ((r == null) || r.isInAsyncDeleteState()) {
-                    return false;
-                }
-                Platform p = server.getPlatform();
-                if (p == null) {
-                    return false;
-                }
-                r = p.getResource();
-                if ((r == null) || r.isInAsyncDeleteState()) {
-                    return false;
-                }
-                Agent a = p.getAgent();
-                if (a == null) {
-                    return false;
-                }
-                return a.getId().equals(agent.getId());
+                final Server server = serverManager.findServerById(instanceId);
+                serverId = server.getId();
+                p = isDeleted(server.getResource()) ? null : server.getPlatform();
             } else if (resType.equals(AuthzConstants.authzService)) {
-               Service service =serviceManager.findServiceById(aeid);
-               Resource r = service.getResource();
-               if ((r == null) || r.isInAsyncDeleteState()) {
-                   return false;
-               }
-               Server server = service.getServer();
-               if (server == null) {
-                   return false;
-               }
-               r = server.getResource();
-               if ((r == null) || r.isInAsyncDeleteState()) {
-                   return false;
-               }
-               Platform p = server.getPlatform();
-               if (p == null) {
-                   return false;
-               }
-               r = p.getResource();
-               if ((r == null) || r.isInAsyncDeleteState()) {
-                   return false;
-               }
-               Agent a = p.getAgent();
-               if (a == null) {
-                   return false;
-               }
-               return a.getId().equals(agent.getId());
+                final Service service = serviceManager.findServiceById(instanceId);
+                final Server server = isDeleted(service.getResource()) ? null : service.getServer();
+                if (server != null) {
+                    serverId = server.getId();
+                    p = isDeleted(server.getResource()) ? null : server.getPlatform();
+                }
+            }
+            if (p != null) {
+                platformId = p.getId();
+                agent = isDeleted(p.getResource()) ? null : p.getAgent();
             }
         } catch (PlatformNotFoundException e) {
-            log.warn("Platform not found Id=" + aeid);
+            log.warn("Platform not found Id=" + instanceId);
         } catch (ServerNotFoundException e) {
-            log.warn("Server not found Id=" + aeid);
+            log.warn("Server not found Id=" + instanceId);
         } catch (ServiceNotFoundException e) {
-            log.warn("Service not found Id=" + aeid);
+            log.warn("Service not found Id=" + instanceId);
         }
-        return false;
+        // a resource which can't be tied to an agent never matches the agent of a report
+        final int agentId = (agent == null) ? 0 : agent.getId();
+        return new MeasurementMetadataIndex.Metadata(m.getId(), resource.getId(), agentId, aeid,
+            serverId, platformId, m.getInterval(), enabled, avail, false);
+    }
+
+    public long getReportBackoff() {
+        return measurementInserterManager.getDataInserterBackoff();
+    }
+
+    private boolean isDeleted(Resource r) {
+        return (r == null) || r.isInAsyncDeleteState();
     }
 
     /**
@@ -0,0 +1,363 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.MeasRange;
+import org.hyperic.hq.measurement.shared.MeasTabManagerUtil;
+
+/**
+ * Keeps track of the partitions of the rollup tables.  Each of
+ * EAM_MEASUREMENT_DATA_1H, _6H and _1D is a view over the partition tables
+ * of that rollup, which each hold a fixed period counted from
+ * {@link MeasTabManagerUtil#getBaseTime()}, and its _COMPAT table, which
+ * holds the data rolled up before the rollup was partitioned.  The data of
+ * the _COMPAT table always precedes the oldest partition, so purging a rollup
+ * comes down to dropping whole partitions.
+ *
+ * The tables are created and dropped by {@link DataCompressionDAO}, this
+ * class only does the book keeping.  Until a rollup has been partitioned
+ * its view name is handed out, which is always correct.
+ */
+public class RollupTabManager {
+
+    public static final String COMPAT_SUFFIX = "_COMPAT";
+    // appended to the name of a partition for the empty table which marks it
+    // as retired, e.g. EAM_MEASUREMENT_DATA_1H_7595R, which stays within the
+    // 30 characters of oracle
+    public static final String RETIRED_SUFFIX = "R";
+
+    private static final String TAB_DATA_1H = MeasurementConstants.TAB_DATA_1H;
+    private static final String TAB_DATA_6H = MeasurementConstants.TAB_DATA_6H;
+    private static final String TAB_DATA_1D = MeasurementConstants.TAB_DATA_1D;
+    private static final String[] ROLLUP_TABLES = { TAB_DATA_1H, TAB_DATA_6H, TAB_DATA_1D };
+    private static final long WEEK = MeasurementConstants.DAY * 7;
+
+    private static final RollupTabManager _onlyInst = new RollupTabManager();
+
+    // rollup table -> partition index -> partition table, only holds the
+    // rollups which have been partitioned
+    private final Map<String, SortedMap<Long, String>> _partitions =
+        new HashMap<String, SortedMap<Long, String>>();
+    // rollup table -> retired partitions which are to be dropped, each one
+    // followed by its marker
+    private final Map<String, List<String>> _retired = new HashMap<String, List<String>>();
+
+    RollupTabManager() {
+    }
+
+    public static RollupTabManager getInstance() {
+        return _onlyInst;
+    }
+
+    /**
+     * @return the rollup tables, TAB_DATA_1H, TAB_DATA_6H and TAB_DATA_1D
+     */
+    public static String[] getRollupTables() {
+        return ROLLUP_TABLES.clone();
+    }
+
+    /**
+     * The 1 hour rollup is partitioned by day, the 6 hour rollup by week and
+     * the 1 day rollup by four weeks, so that each partition holds about the
+     * same number of rows and the views stay small with the default purge
+     * settings.
+     */
+    public static long getPartitionLength(String rollupTable) {
+        if (TAB_DATA_1H.equals(rollupTable)) {
+            return MeasurementConstants.DAY;
+        } else if (TAB_DATA_6H.equals(rollupTable)) {
+            return WEEK;
+        } else if (TAB_DATA_1D.equals(rollupTable)) {
+            return WEEK * 4;
+        }
+        throw new IllegalArgumentException(rollupTable + " is not a rollup table");
+    }
+
+    public static long getPartitionIndex(String rollupTable, long timestamp) {
+        final long delta = timestamp - MeasTabManagerUtil.getBaseTime();
+        return (delta <= 0) ? 0 : delta / getPartitionLength(rollupTable);
+    }
+
+    public static long getPartitionStartTime(String rollupTable, long index) {
+        return MeasTabManagerUtil.getBaseTime() + (index * getPartitionLength(rollupTable));
+    }
+
+    public static long getPartitionEndTime(String rollupTable, long index) {
+        return getPartitionStartTime(rollupTable, index + 1) - 1;
+    }
+
+    public static String getPartitionTable(String rollupTable, long index) {
+        return rollupTable + "_" + index;
+    }
+
+    public static String getCompatTable(String rollupTable) {
+        return rollupTable + COMPAT_SUFFIX;
+    }
+
+    /**
+     * @return the name of the table which marks the partition as retired
+     */
+    public static String getRetiredMarker(String partitionTable) {
+        return partitionTable + RETIRED_SUFFIX;
+    }
+
+    /**
+     * @return the index of the partition or -1 if table is not a partition
+     *         of rollupTable
+     */
+    public static long getPartitionIndex(String rollupTable, String table) {
+        final String prefix = rollupTable + "_";
+        if (!table.toUpperCase().startsWith(prefix)) {
+            return -1;
+        }
+        final String index = table.substring(prefix.length());
+        for (int i = 0; i < index.length(); i++) {
+            if (!Character.isDigit(index.charAt(i))) {
+                return -1;
+            }
+        }
+        return (index.length() == 0) ? -1 : Long.parseLong(index);
+    }
+
+    /**
+     * @param table a table, partition or statement returned by this class
+     * @return the rollup table which table is or belongs to, null if it is
+     *         not a rollup
+     */
+    public static String getRollupTable(String table) {
+        for (final String rollup : ROLLUP_TABLES) {
+            if (table.equals(rollup) || table.endsWith(") " + rollup) ||
+                table.equals(getCompatTable(rollup)) || getPartitionIndex(rollup, table) >= 0) {
+                return rollup;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark the rollup as partitioned
+     *
+     * @param tables the existing partition tables of the rollup and their
+     *        retired markers, other tables are ignored.  The partitions which
+     *        have a marker, and the markers themselves, are not part of the
+     *        rollup, they are handed out by the next
+     *        {@link #takeRetiredPartitions(String)}.
+     */
+    public synchronized void setPartitions(String rollupTable, Collection<String> tables) {
+        final SortedMap<Long, String> partitions = new TreeMap<Long, String>();
+        final SortedSet<Long> markers = new TreeSet<Long>();
+        for (final String table : tables) {
+            final long index = getPartitionIndex(rollupTable, table);
+            if (index >= 0) {
+                partitions.put(index, getPartitionTable(rollupTable, index));
+            } else if (table.toUpperCase().endsWith(RETIRED_SUFFIX)) {
+                final long retiredIndex = getPartitionIndex(rollupTable,
+                    table.substring(0, table.length() - RETIRED_SUFFIX.length()));
+                if (retiredIndex >= 0) {
+                    markers.add(retiredIndex);
+                }
+            }
+        }
+        final List<String> retired = new ArrayList<String>();
+        for (final Long index : markers) {
+            final String table = partitions.remove(index);
+            if (table != null) {
+                retired.add(table);
+            }
+            retired.add(getRetiredMarker(getPartitionTable(rollupTable, index)));
+        }
+        _partitions.put(rollupTable, partitions);
+        _retired.put(rollupTable, retired);
+    }
+
+    public synchronized boolean isPartitioned(String rollupTable) {
+        return _partitions.containsKey(rollupTable);
+    }
+
+    public synchronized void addPartition(String rollupTable, long index) {
+        getPartitions(rollupTable).put(index, getPartitionTable(rollupTable, index));
+    }
+
+    /**
+     * @return the tables which make up the view of the rollup, the _COMPAT
+     *         table first
+     */
+    public synchronized List<String> getViewTables(String rollupTable) {
+        final SortedMap<Long, String> partitions = getPartitions(rollupTable);
+        final List<String> rtn = new ArrayList<String>(partitions.size() + 1);
+        rtn.add(getCompatTable(rollupTable));
+        rtn.addAll(partitions.values());
+        return rtn;
+    }
+
+    /**
+     * @return the index of the partition which rolled up data at timestamp
+     *         goes into or -1 if it goes into the _COMPAT table because it
+     *         precedes the oldest partition
+     */
+    public synchronized long getInsertPartition(String rollupTable, long timestamp) {
+        final SortedMap<Long, String> partitions = getPartitions(rollupTable);
+        final long index = getPartitionIndex(rollupTable, timestamp);
+        if (!partitions.isEmpty() && index < partitions.firstKey()) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * @return the table which holds the rolled up data at timestamp, null if
+     *         its partition does not exist
+     */
+    public synchronized String getTable(String rollupTable, long timestamp) {
+        if (!isPartitioned(rollupTable)) {
+            return rollupTable;
+        }
+        final long index = getInsertPartition(rollupTable, timestamp);
+        return (index < 0) ? getCompatTable(rollupTable) : getPartitions(rollupTable).get(index);
+    }
+
+    /**
+     * @return the ranges of the tables of the rollup which overlap the time
+     *         range [begin, end], the ranges of the partitions are clipped
+     *         to the time range
+     */
+    public synchronized List<MeasRange> getRanges(String rollupTable, long begin, long end) {
+        final List<MeasRange> rtn = new ArrayList<MeasRange>();
+        if (!isPartitioned(rollupTable)) {
+            rtn.add(new MeasRange(rollupTable, begin, end));
+            return rtn;
+        }
+        final SortedMap<Long, String> partitions = getPartitions(rollupTable);
+        final long compatEnd = partitions.isEmpty() ?
+            Long.MAX_VALUE : getPartitionStartTime(rollupTable, partitions.firstKey()) - 1;
+        if (begin <= compatEnd) {
+            rtn.add(new MeasRange(getCompatTable(rollupTable), begin, Math.min(end, compatEnd)));
+        }
+        final SortedMap<Long, String> overlapping =
+            partitions.subMap(getPartitionIndex(rollupTable, begin),
+                              getPartitionIndex(rollupTable, end) + 1);
+        for (final Map.Entry<Long, String> entry : overlapping.entrySet()) {
+            final long min = getPartitionStartTime(rollupTable, entry.getKey());
+            final long max = getPartitionEndTime(rollupTable, entry.getKey());
+            rtn.add(new MeasRange(entry.getValue(), Math.max(begin, min), Math.min(end, max)));
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the tables of the rollup which hold data in [begin, end], the
+     *         rollup view itself if it is not partitioned or none of them do
+     */
+    public String[] getTables(String rollupTable, long begin, long end) {
+        final List<MeasRange> ranges = getRanges(rollupTable, begin, end);
+        if (ranges.isEmpty()) {
+            return new String[] { rollupTable };
+        }
+        final String[] rtn = new String[ranges.size()];
+        for (int i = 0; i < rtn.length; i++) {
+            rtn[i] = ranges.get(i).getTable();
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the UNION statement over the tables of the rollup which hold
+     *         data in [begin, end], aliased to the name of the rollup, or the
+     *         rollup view itself if it is not partitioned
+     */
+    public String getUnionStatement(String rollupTable, long begin, long end) {
+        final List<MeasRange> ranges = getRanges(rollupTable, begin, end);
+        if (ranges.isEmpty() || ranges.get(0).getTable().equals(rollupTable)) {
+            return rollupTable;
+        }
+        final StringBuilder sql = new StringBuilder("(");
+        for (final MeasRange range : ranges) {
+            if (sql.length() > 1) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT * FROM ").append(range.getTable())
+               .append(" WHERE timestamp between ").append(range.getMinTimestamp())
+               .append(" and ").append(range.getMaxTimestamp());
+        }
+        return sql.append(") ").append(rollupTable).toString();
+    }
+
+    /**
+     * Take the partitions which only hold data older than the timestamp out of
+     * the rollup.  The caller creates their {@link #getRetiredMarker(String)}
+     * tables, which keep them out of the rollup after a restart.  They are
+     * handed out along with their markers by
+     * {@link #takeRetiredPartitions(String)} on the next call, by which time
+     * the queries that may have picked them before have completed.
+     *
+     * @return the partitions which were taken out
+     */
+    public synchronized List<String> retirePartitions(String rollupTable, long before) {
+        final SortedMap<Long, String> expired =
+            getPartitions(rollupTable).headMap(getPartitionIndex(rollupTable, before + 1));
+        final List<String> rtn = new ArrayList<String>(expired.values());
+        expired.clear();
+        List<String> retired = _retired.get(rollupTable);
+        if (retired == null) {
+            retired = new ArrayList<String>();
+            _retired.put(rollupTable, retired);
+        }
+        for (final String table : rtn) {
+            retired.add(table);
+            retired.add(getRetiredMarker(table));
+        }
+        return rtn;
+    }
+
+    /**
+     * @return the partitions which were retired before this call, each one
+     *         followed by its marker.  A marker may come without its
+     *         partition, if the partition was dropped before a restart.
+     */
+    public synchronized List<String> takeRetiredPartitions(String rollupTable) {
+        final List<String> rtn = _retired.remove(rollupTable);
+        return (rtn == null) ? new ArrayList<String>(0) : rtn;
+    }
+
+    private SortedMap<Long, String> getPartitions(String rollupTable) {
+        final SortedMap<Long, String> rtn = _partitions.get(rollupTable);
+        if (rtn == null) {
+            throw new IllegalStateException(rollupTable + " is not partitioned");
+        }
+        return rtn;
+    }
+}
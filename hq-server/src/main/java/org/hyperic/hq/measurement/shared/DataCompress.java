@@ -68,7 +68,9 @@ public interface DataCompress {
 
     /**
      * Delete data from a dataInterval table with timestamp between startWindow
-     * and endWindow
+     * and endWindow.  The table is purged by partition, so data in the
+     * partition which holds endWindow is kept until the whole partition is
+     * older than endWindow.
      * @param dataInterval The metric interval table to purge measurements from (one of
      *        MeasurementConstants.HOUR, MeasurementConstants.SIX_HOUR, or
      *        MeasurementConstants.DAY)
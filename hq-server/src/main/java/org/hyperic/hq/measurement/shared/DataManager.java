@@ -25,6 +25,7 @@
  */
 package org.hyperic.hq.measurement.shared;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Collection;
@@ -179,6 +180,18 @@ public interface DataManager {
      */
     public Map<Integer, MetricValue> getLastDataPoints(List<Integer> measurements, long timestamp);
 
+    /**
+     * Stream the historical data of the measurements to the handler, merged
+     * into one row per timestamp in ascending order.
+     * @param measurements the distinct measurements to export, a
+     *        <code>null</code> entry exports a column without values
+     * @param begin The start of the time range
+     * @param end The end of the time range
+     * @return the number of rows handed to the handler
+     */
+    public int exportHistoricalData(List<Measurement> measurements, long begin, long end,
+                                    MetricDataRowHandler handler) throws IOException;
+
     /**
      * Get data points from cache only
      */
@@ -0,0 +1,46 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.shared;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a metric data export one at a time, in ascending
+ * timestamp order.
+ *
+ * @see DataManager#exportHistoricalData(java.util.List, long, long, MetricDataRowHandler)
+ */
+public interface MetricDataRowHandler {
+
+    /**
+     * @param timestamp the timestamp of the row
+     * @param values the values of the exported measurements at this
+     *        timestamp, in the order of the measurements, {@link Double#NaN}
+     *        if a measurement has no value.  The array is reused for the
+     *        next row.
+     */
+    void handleRow(long timestamp, double[] values) throws IOException;
+}
@@ -42,4 +42,10 @@ public interface ReportProcessor {
     public void handleMeasurementReport(MeasurementReport report) throws DataInserterException;
 
     public void handleTopNReport(List<TopReport> reports, String agentToken) throws DataInserterException;
+
+    /**
+     * @return ms the agents should wait between sends of their backlogged
+     * metric data, 0 if the server keeps up with the reports
+     */
+    public long getReportBackoff();
 }
@@ -51,6 +51,7 @@ public class ConcurrentStatsCollector extends AbstractStatsCollector {
                                DATA_MANAGER_RETRIES_TIME = "DATA_MANAGER_RETRIES_TIME",
     						   JMS_TOPIC_PUBLISH_TIME = "JMS_TOPIC_PUBLISH_TIME", 
     						   METRIC_DATA_COMPRESS_TIME = "METRIC_DATA_COMPRESS_TIME",
+                               METRIC_DATA_COMPRESS_SLICE_TIME = "METRIC_DATA_COMPRESS_SLICE_TIME",
     						   DB_ANALYZE_TIME = "DB_ANALYZE_TIME", 
     						   PURGE_EVENT_LOGS_TIME = "PURGE_EVENT_LOGS_TIME",
     						   PURGE_MEASUREMENTS_TIME = "PURGE_MEASUREMENTS_TIME", 
@@ -95,7 +96,30 @@ public class ConcurrentStatsCollector extends AbstractStatsCollector {
                                NOTIFICATION_TOTAL_QUEUE_SIZE = "NOTIFICATION_TOTAL_QUEUE_SIZE",
                                CMD_TOPN_SEND_REPORT = "LATHER_" + CommandInfo.CMD_TOPN_SEND_REPORT.toUpperCase(),
                                DYNAMIC_GROUP_PROCESS_EVENTS_TIME = "DYNAMIC_GROUP_PROCESS_EVENTS_TIME",
-                               POLICY_MANAGER_PROCESS_EVENTS_TIME = "POLICY_MANAGER_PROCESS_EVENTS_TIME";
+                               POLICY_MANAGER_PROCESS_EVENTS_TIME = "POLICY_MANAGER_PROCESS_EVENTS_TIME",
+                               METRIC_DATA_QUERY_TIME = "METRIC_DATA_QUERY_TIME",
+                               METRIC_DATA_QUERY_WAIT_TIME = "METRIC_DATA_QUERY_WAIT_TIME",
+                               METRIC_DATA_QUERY_FAILURES = "METRIC_DATA_QUERY_FAILURES",
+                               METRIC_DATA_QUERY_QUEUE_SIZE = "METRIC_DATA_QUERY_QUEUE_SIZE",
+                               METRIC_DATA_QUERY_ACTIVE_COUNT = "METRIC_DATA_QUERY_ACTIVE_COUNT",
+                               RECENT_METRIC_DATA_HITS = "RECENT_METRIC_DATA_HITS",
+                               RECENT_METRIC_DATA_MISSES = "RECENT_METRIC_DATA_MISSES",
+                               RECENT_METRIC_DATA_MEASUREMENTS = "RECENT_METRIC_DATA_MEASUREMENTS",
+                               METRIC_DATA_CACHE_HITS = "METRIC_DATA_CACHE_HITS",
+                               METRIC_DATA_CACHE_MISSES = "METRIC_DATA_CACHE_MISSES",
+                               METRIC_DATA_CACHE_MEASUREMENTS = "METRIC_DATA_CACHE_MEASUREMENTS",
+                               METRIC_DATA_CACHE_BYTES = "METRIC_DATA_CACHE_BYTES",
+                               ZEVENT_LISTENER_QUEUE_SIZE = "ZEVENT_LISTENER_QUEUE_SIZE",
+                               ZEVENT_LISTENER_LAG = "ZEVENT_LISTENER_LAG",
+                               ZEVENT_LISTENER_DROPPED = "ZEVENT_LISTENER_DROPPED",
+                               DATA_INSERTER_QUEUE_SIZE = "DATA_INSERTER_QUEUE_SIZE",
+                               DATA_INSERTER_FLUSH_SIZE = "DATA_INSERTER_FLUSH_SIZE",
+                               DATA_INSERTER_FLUSH_TIME = "DATA_INSERTER_FLUSH_TIME",
+                               DATA_INSERTER_REJECTED = "DATA_INSERTER_REJECTED",
+                               ESCALATION_LAG = "ESCALATION_LAG",
+                               ESCALATION_SCHEDULED = "ESCALATION_SCHEDULED",
+                               ESCALATION_QUEUE_SIZE = "ESCALATION_QUEUE_SIZE",
+                               ESCALATION_REJECTED = "ESCALATION_REJECTED";
     private TaskScheduler taskScheduler;
 
     @Override
@@ -0,0 +1,201 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use Hyperic
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of Hyperic.
+ *
+ * Hyperic is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.zevents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.thread.ThreadGroupFactory;
+import org.hyperic.util.thread.ThreadWatchdog;
+import org.hyperic.util.thread.ThreadWatchdog.InterruptToken;
+
+/**
+ * Dispatches the events of one listener on its own threads when the
+ * {@link ZeventManager} runs in partitioned mode, so that a slow listener
+ * only holds up its own events.  Each thread drains its own bounded queue
+ * and the events of a {@link ZeventSourceId} always go to the same queue,
+ * so the listener sees the events of each source in the order they were
+ * enqueued.
+ */
+class ListenerDispatcher {
+    private static final Log _log = LogFactory.getLog(ListenerDispatcher.class);
+    private static final int DROP_WARN_INTERVAL = 1000;
+
+    private final TimingListenerWrapper<Zevent> _listener;
+    private final List<BlockingQueue<Zevent>> _queues;
+    private final List<Thread> _workers;
+    private final int _batchSize;
+    private final long _listenerTimeout;
+    private final boolean _block;
+    private final ThreadWatchdog _threadWatchdog;
+    private final ConcurrentStatsCollector _concurrentStatsCollector;
+    private final AtomicLong _numDropped = new AtomicLong();
+    private volatile boolean _shutdown = false;
+
+    /**
+     * @param listenerTimeout seconds a batch may take before the worker is
+     *        interrupted, also the max time to wait for room in a full queue
+     *        if block is true
+     * @param block if false events are dropped right away when the queue of
+     *        the listener is full
+     */
+    ListenerDispatcher(TimingListenerWrapper<Zevent> listener, ThreadGroup group,
+                       int numThreads, int queueSize, int batchSize, long listenerTimeout,
+                       boolean block, ThreadWatchdog threadWatchdog,
+                       ConcurrentStatsCollector concurrentStatsCollector) {
+        _listener = listener;
+        _batchSize = batchSize;
+        _listenerTimeout = listenerTimeout;
+        _block = block;
+        _threadWatchdog = threadWatchdog;
+        _concurrentStatsCollector = concurrentStatsCollector;
+        _queues = new ArrayList<BlockingQueue<Zevent>>(numThreads);
+        _workers = new ArrayList<Thread>(numThreads);
+        ThreadGroupFactory fact = new ThreadGroupFactory(group, "ZeventDispatcher-" + listener + "-");
+        fact.createDaemonThreads(true);
+        for (int i = 0; i < numThreads; i++) {
+            BlockingQueue<Zevent> queue = new LinkedBlockingQueue<Zevent>(queueSize);
+            _queues.add(queue);
+            _workers.add(fact.newThread(new Worker(queue)));
+        }
+        for (Thread worker : _workers) {
+            worker.start();
+        }
+    }
+
+    private BlockingQueue<Zevent> getQueue(Zevent e) {
+        ZeventSourceId id = e.getSourceId();
+        if (id == null || _queues.size() == 1) {
+            return _queues.get(0);
+        }
+        return _queues.get((id.hashCode() & Integer.MAX_VALUE) % _queues.size());
+    }
+
+    /**
+     * Enqueue the events for the listener.  If a queue is full the events are
+     * dropped, with the block policy only after waiting up to the listener
+     * timeout once for the batch.
+     */
+    void enqueue(List<Zevent> events) throws InterruptedException {
+        boolean wait = _block;
+        for (Zevent e : events) {
+            BlockingQueue<Zevent> queue = getQueue(e);
+            boolean added;
+            if (wait) {
+                added = queue.offer(e, _listenerTimeout, TimeUnit.SECONDS);
+                // don't hold up the other listeners by waiting for every event
+                wait = added;
+            } else {
+                added = queue.offer(e);
+            }
+            if (!added) {
+                dropped(e);
+            }
+        }
+    }
+
+    private void dropped(Zevent e) {
+        long num = _numDropped.incrementAndGet();
+        _concurrentStatsCollector.addStat(1, ConcurrentStatsCollector.ZEVENT_LISTENER_DROPPED);
+        if (num == 1 || (num % DROP_WARN_INTERVAL) == 0) {
+            _log.warn("Event queue of listener [" + _listener + "] is full, dropped " + num +
+                      " events so far, last dropped " + e);
+        }
+    }
+
+    int getQueueSize() {
+        int rtn = 0;
+        for (BlockingQueue<Zevent> queue : _queues) {
+            rtn += queue.size();
+        }
+        return rtn;
+    }
+
+    long getNumDropped() {
+        return _numDropped.get();
+    }
+
+    TimingListenerWrapper<Zevent> getListener() {
+        return _listener;
+    }
+
+    /**
+     * Stop the workers, events which are still queued are discarded.
+     */
+    void shutdown() {
+        _shutdown = true;
+        for (Thread worker : _workers) {
+            worker.interrupt();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final BlockingQueue<Zevent> _queue;
+
+        private Worker(BlockingQueue<Zevent> queue) {
+            _queue = queue;
+        }
+
+        public void run() {
+            while (!_shutdown) {
+                List<Zevent> batch = new ArrayList<Zevent>(_batchSize);
+                try {
+                    batch.add(_queue.take());
+                } catch (InterruptedException e) {
+                    // may also be a late interrupt of the watchdog
+                    continue;
+                }
+                _queue.drainTo(batch, _batchSize - 1);
+                long lag = System.currentTimeMillis() - batch.get(0).getQueueEntryTime();
+                _listener.recordLag(lag);
+                _concurrentStatsCollector.addStat(lag, ConcurrentStatsCollector.ZEVENT_LISTENER_LAG);
+                InterruptToken t = null;
+                try {
+                    t = _threadWatchdog.interruptMeIn(_listenerTimeout, TimeUnit.SECONDS,
+                        "Processing listener events");
+                    _listener.processEvents(Collections.unmodifiableList(batch));
+                } catch (RuntimeException e) {
+                    _log.warn("Exception while invoking listener [" + _listener + "]", e);
+                } catch (Throwable e) {
+                    // keep the worker, the listener has no other thread
+                    _log.error("Error while invoking listener [" + _listener + "]", e);
+                } finally {
+                    if (t != null) {
+                        _threadWatchdog.cancelInterrupt(t);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -36,6 +36,9 @@ public class TimingListenerWrapper<T extends Zevent>  implements ZeventListener<
     private long           _maxTime   = 0;
     private long           _totTime   = 0;
     private long           _numEvents = 0;
+    private long           _maxLag    = 0;
+    private long           _totLag    = 0;
+    private long           _numBatches = 0;
 
     public TimingListenerWrapper(ZeventListener target) {
         _target = target;
@@ -49,29 +52,54 @@ public class TimingListenerWrapper<T extends Zevent>  implements ZeventListener<
             log.debug("UncategorizedSQLException caught.", ex);
         } finally {
             time = System.currentTimeMillis() - start;
-            if (time > _maxTime) {
-                _maxTime = time;
+            synchronized (this) {
+                if (time > _maxTime) {
+                    _maxTime = time;
+                }
+                _totTime   += time;
+                _numEvents += events.size();
             }
-            _totTime   += time;
-            _numEvents += events.size();
         }
     }
 
-    public long getMaxTime() {
+    /**
+     * Record the time the oldest event of a batch waited before it was
+     * passed to the listener.
+     */
+    public synchronized void recordLag(long lag) {
+        if (lag > _maxLag) {
+            _maxLag = lag;
+        }
+        _totLag += lag;
+        _numBatches++;
+    }
+
+    public synchronized long getMaxTime() {
         return _maxTime;
     }
 
-    public double getAverageTime() {
+    public synchronized double getAverageTime() {
         if (_numEvents == 0) {
             return Double.NaN;
         }
         return (double)_totTime / (double)_numEvents;
     }
 
-    public long getNumEvents() {
+    public synchronized long getNumEvents() {
         return _numEvents;
     }
 
+    public synchronized long getMaxLag() {
+        return _maxLag;
+    }
+
+    public synchronized double getAverageLag() {
+        if (_numBatches == 0) {
+            return Double.NaN;
+        }
+        return (double)_totLag / (double)_numBatches;
+    }
+
     @Override
     public boolean equals(Object obj) {
         return _target.equals(obj);
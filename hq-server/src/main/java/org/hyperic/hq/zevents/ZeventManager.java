@@ -29,6 +29,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -70,12 +72,20 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * 
  * This manager provides no transactional guarantees, so the caller must
  * rollback additions of listeners if the transaction fails.
+ * 
+ * In the default single dispatch mode the ZeventProcessor thread invokes every
+ * listener in turn.  In partitioned mode (hq.zevent.dispatchMode) it only
+ * hands the events to a {@link ListenerDispatcher} per listener.
  */
 @Component
 public class ZeventManager implements ZeventEnqueuer {
     private static final Log _log = LogFactory.getLog(ZeventManager.class);
     private static final long DEFAULT_TIMEOUT = 1;  
     private static final Object INIT_LOCK = new Object();
+    private static final String DISPATCH_PARTITIONED = "partitioned";
+    private static final String OVERFLOW_DROP = "drop";
+    // millis to wait for the queues to drain on shutdown
+    private static final long SHUTDOWN_TIMEOUT = 5000;
 
     // The thread group that the {@link EventQueueProcessor} comes from
     private final LoggingThreadGroup _threadGroup;
@@ -100,6 +110,13 @@ public class ZeventManager implements ZeventEnqueuer {
     private WeakHashMap<Queue<?>, TimingListenerWrapper<Zevent>> _registeredBuffers =
         new WeakHashMap<Queue<?>, TimingListenerWrapper<Zevent>>();
 
+    /*
+     * Map of the registered {@link TimingListenerWrapper}s onto their
+     * dispatchers, only used in partitioned mode.  Guarded by _listenerLock.
+     */
+    private final Map<TimingListenerWrapper<Zevent>, ListenerDispatcher> _dispatchers =
+        new IdentityHashMap<TimingListenerWrapper<Zevent>, ListenerDispatcher>();
+
     // For diagnostics and warnings
     private long _lastWarnTime;
     private final long _listenerTimeout;
@@ -114,6 +131,10 @@ public class ZeventManager implements ZeventEnqueuer {
     private final long maxQueue;
     private final long batchSize;
     private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final boolean partitioned;
+    private final int listenerThreads;
+    private final int listenerQueueSize;
+    private final boolean blockOnOverflow;
     
     @Autowired
     public ZeventManager(DiagnosticsLogger diagnosticsLogger, ThreadWatchdog threadWatchdog,
@@ -122,7 +143,11 @@ public class ZeventManager implements ZeventEnqueuer {
                          @Value("#{tweakProperties['hq.zevent.batchSize'] }") Long batchSize,
                          @Value("#{tweakProperties['hq.zevent.warnInterval'] }") Long warnInterval,  
                          @Value("#{tweakProperties['hq.zevent.warnSize'] }") Long warnSize,
-                         @Value("#{tweakProperties['hq.zevent.listenerTimeout'] }") Long listenerTimeout) {
+                         @Value("#{tweakProperties['hq.zevent.listenerTimeout'] }") Long listenerTimeout,
+                         @Value("#{tweakProperties['hq.zevent.dispatchMode'] }") String dispatchMode,
+                         @Value("#{tweakProperties['hq.zevent.listenerThreads'] }") Long listenerThreads,
+                         @Value("#{tweakProperties['hq.zevent.listenerQueueSize'] }") Long listenerQueueSize,
+                         @Value("#{tweakProperties['hq.zevent.listenerOverflow'] }") String listenerOverflow) {
         this._threadGroup = new LoggingThreadGroup("ZEventProcessor");
         this._threadGroup.setDaemon(true);
         this.diagnosticsLogger = diagnosticsLogger;
@@ -133,7 +158,14 @@ public class ZeventManager implements ZeventEnqueuer {
         this._warnInterval = warnInterval;
         this._warnSize = warnSize;
         this._listenerTimeout = listenerTimeout;
-        
+        this.partitioned = DISPATCH_PARTITIONED.equalsIgnoreCase(trim(dispatchMode));
+        this.listenerThreads = (listenerThreads == null) ? 1 : Math.max(1, listenerThreads.intValue());
+        this.listenerQueueSize = (listenerQueueSize == null) ? 10000 : listenerQueueSize.intValue();
+        this.blockOnOverflow = !OVERFLOW_DROP.equalsIgnoreCase(trim(listenerOverflow));
+    }
+
+    private static String trim(String s) {
+        return (s == null) ? null : s.trim();
     }
 
     @PostConstruct
@@ -180,20 +212,59 @@ public class ZeventManager implements ZeventEnqueuer {
                 return ConcurrentStatsCollector.ZEVENT_REGISTERED_BUFFER_SIZE;
             }
         });
+        if (partitioned) {
+            _log.info("Dispatching zevents to each listener on " + listenerThreads +
+                      " thread(s) with a queue of " + listenerQueueSize + " events, " +
+                      (blockOnOverflow ? "blocking" : "dropping") + " on overflow");
+            concurrentStatsCollector.register(ConcurrentStatsCollector.ZEVENT_LISTENER_LAG);
+            concurrentStatsCollector.register(ConcurrentStatsCollector.ZEVENT_LISTENER_DROPPED);
+            concurrentStatsCollector.register(new StatCollector() {
+                public long getVal() throws StatUnreachableException {
+                    return getTotalListenerQueueSize();
+                }
+                public String getId() {
+                    return ConcurrentStatsCollector.ZEVENT_LISTENER_QUEUE_SIZE;
+                }
+            });
+        }
     }
 
     public long getQueueSize() {
         return _eventQueue.size();
     }
 
+    /**
+     * Waits up to SHUTDOWN_TIMEOUT millis for each of the event queue, the
+     * queue processor and the listener queues to drain, events which are
+     * still queued after that are discarded.
+     */
     @PreDestroy
     public void shutdown() throws InterruptedException {
-        while (!_eventQueue.isEmpty()) {
-            System.out.println("Waiting for empty queue: " + _eventQueue.size());
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        long size;
+        while ((size = _eventQueue.size()) > 0 && System.currentTimeMillis() < deadline) {
+            _log.info("Waiting for empty queue: " + size);
             Thread.sleep(1000);
         }
+        if (size > 0) {
+            _log.warn("Discarding " + size + " events left in the queue");
+        }
         _processorThread.interrupt();
-        _processorThread.join(5000);
+        _processorThread.join(SHUTDOWN_TIMEOUT);
+        deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        while ((size = getTotalListenerQueueSize()) > 0 && System.currentTimeMillis() < deadline) {
+            _log.info("Waiting for empty listener queues: " + size);
+            Thread.sleep(1000);
+        }
+        if (size > 0) {
+            _log.warn("Discarding " + size + " events left in the listener queues");
+        }
+        synchronized (_listenerLock) {
+            for (ListenerDispatcher dispatcher : _dispatchers.values()) {
+                dispatcher.shutdown();
+            }
+            _dispatchers.clear();
+        }
         
         _threadGroup.interrupt() ;
         diagnosticsLogger = null ;
@@ -327,7 +398,9 @@ public class ZeventManager implements ZeventEnqueuer {
         assertClassIsZevent(eventClass);
 
         synchronized (_listenerLock) {
-            return _listeners.remove(eventClass) != null;
+            boolean rtn = _listeners.remove(eventClass) != null;
+            pruneDispatchers();
+            return rtn;
         }
     }
 
@@ -360,7 +433,9 @@ public class ZeventManager implements ZeventEnqueuer {
      */
     public boolean removeGlobalListener(ZeventListener<? extends Zevent> listener) {
         synchronized (_listenerLock) {
-            return _globalListeners.remove(listener);
+            boolean rtn = _globalListeners.remove(listener);
+            pruneDispatchers();
+            return rtn;
         }
     }
 
@@ -438,7 +513,9 @@ public class ZeventManager implements ZeventEnqueuer {
         assertClassIsZevent(eventClass);
         synchronized (_listenerLock) {
             List<TimingListenerWrapper<Zevent>> listeners = getEventTypeListeners(eventClass);
-            return listeners.remove(listener);
+            boolean rtn = listeners.remove(listener);
+            pruneDispatchers();
+            return rtn;
         }
     }
 
@@ -539,7 +616,7 @@ public class ZeventManager implements ZeventEnqueuer {
      * please only use it in test suites.
      */
     public void waitUntilNoEvents() throws InterruptedException {
-        while (_eventQueue.size() != 0)
+        while (_eventQueue.size() != 0 || getTotalListenerQueueSize() != 0)
             Thread.sleep(100);
     }
 
@@ -602,6 +679,11 @@ public class ZeventManager implements ZeventEnqueuer {
             }
         }
 
+        if (partitioned) {
+            dispatchToListenerQueues(listenerBatches);
+            return;
+        }
+
         long timeout = getListenerTimeout();
         for (Entry<ZeventListener<Zevent>, List<Zevent>> ent : listenerBatches.entrySet()) {
             ZeventListener<Zevent> listener = ent.getKey();
@@ -624,6 +706,74 @@ public class ZeventManager implements ZeventEnqueuer {
         }
     }
 
+    /**
+     * Hands each batch to the dispatcher of its listener.  This only blocks
+     * when a listener queue is full and the overflow policy is to block.
+     */
+    private void dispatchToListenerQueues(Map<ZeventListener<Zevent>, List<Zevent>> listenerBatches) {
+        for (Entry<ZeventListener<Zevent>, List<Zevent>> ent : listenerBatches.entrySet()) {
+            ListenerDispatcher dispatcher = getDispatcher((TimingListenerWrapper<Zevent>) ent.getKey());
+            try {
+                dispatcher.enqueue(ent.getValue());
+            } catch (InterruptedException e) {
+                _log.warn("Interrupted while dispatching events to listener [" + ent.getKey() + "]");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private ListenerDispatcher getDispatcher(TimingListenerWrapper<Zevent> listener) {
+        synchronized (_listenerLock) {
+            ListenerDispatcher rtn = _dispatchers.get(listener);
+            if (rtn == null) {
+                rtn = new ListenerDispatcher(listener, _threadGroup, listenerThreads,
+                    listenerQueueSize, (int) batchSize, getListenerTimeout(), blockOnOverflow,
+                    threadWatchdog, concurrentStatsCollector);
+                _dispatchers.put(listener, rtn);
+            }
+            return rtn;
+        }
+    }
+
+    /**
+     * Shut down the dispatchers of listeners which are no longer registered.
+     * Must be called with the _listenerLock held.
+     */
+    private void pruneDispatchers() {
+        if (_dispatchers.isEmpty()) {
+            return;
+        }
+        Map<TimingListenerWrapper<Zevent>, Boolean> registered =
+            new IdentityHashMap<TimingListenerWrapper<Zevent>, Boolean>();
+        for (TimingListenerWrapper<Zevent> l : _globalListeners) {
+            registered.put(l, Boolean.TRUE);
+        }
+        for (List<TimingListenerWrapper<Zevent>> listeners : _listeners.values()) {
+            for (TimingListenerWrapper<Zevent> l : listeners) {
+                registered.put(l, Boolean.TRUE);
+            }
+        }
+        for (Iterator<Entry<TimingListenerWrapper<Zevent>, ListenerDispatcher>> it =
+                 _dispatchers.entrySet().iterator(); it.hasNext();) {
+            Entry<TimingListenerWrapper<Zevent>, ListenerDispatcher> ent = it.next();
+            if (!registered.containsKey(ent.getKey())) {
+                ent.getValue().shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    private long getTotalListenerQueueSize() {
+        synchronized (_listenerLock) {
+            long rtn = 0;
+            for (ListenerDispatcher dispatcher : _dispatchers.values()) {
+                rtn += dispatcher.getQueueSize();
+            }
+            return rtn;
+        }
+    }
+
     private String getDiagnostics() {
         synchronized (INIT_LOCK) {
             StringBuffer res = new StringBuffer();
@@ -662,6 +812,22 @@ public class ZeventManager implements ZeventEnqueuer {
                 }
             }
 
+            if (partitioned) {
+                PrintfFormat fmt = new PrintfFormat("    %-30s size=%-7d dropped=%-7d " +
+                                                    "maxLag=%-7d avgLag=%-5.2f\n");
+                res.append("\nZevent Listener Queues:\n");
+                synchronized (_listenerLock) {
+                    for (ListenerDispatcher dispatcher : _dispatchers.values()) {
+                        TimingListenerWrapper<Zevent> l = dispatcher.getListener();
+                        res.append(fmt.sprintf(new Object[] { l.toString(),
+                                                             new Integer(dispatcher.getQueueSize()),
+                                                             new Long(dispatcher.getNumDropped()),
+                                                             new Long(l.getMaxLag()),
+                                                             new Double(l.getAverageLag()), }));
+                    }
+                }
+            }
+
             synchronized (_registeredBuffers) {
                 PrintfFormat fmt = new PrintfFormat("    %-30s size=%d\n");
                 res.append("\nZevent Registered Buffers:\n");
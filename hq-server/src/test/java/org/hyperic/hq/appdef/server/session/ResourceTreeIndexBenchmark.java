@@ -0,0 +1,134 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.appdef.server.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityConstants;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.authz.shared.TypeCounts;
+
+/**
+ * Measures the latency of the lookups behind the platform and server
+ * navigation maps and of the inventory summary counts on an inventory of
+ * 10k, 50k and 100k resources, along with the time to load the tree.  Every
+ * platform has 4 servers with 5 services each and the resources are spread
+ * over 10 owners.
+ *
+ * Usage: ResourceTreeIndexBenchmark [seconds per inventory size]
+ */
+public class ResourceTreeIndexBenchmark {
+    private static final int[] SIZES = {10000, 50000, 100000};
+    private static final int SERVERS = 4;
+    private static final int SERVICES = 5;
+    private static final int OWNERS = 10;
+
+    public static void main(String[] args) {
+        final long millis = ((args.length > 0) ? Integer.parseInt(args[0]) : 5) * 1000l;
+        for (int size : SIZES) {
+            run(size, millis);
+        }
+    }
+
+    private static void run(int size, long millis) {
+        final int platforms = size / (1 + SERVERS + SERVERS * SERVICES);
+        final List<ResourceTreeIndex.Node> nodes = new ArrayList<ResourceTreeIndex.Node>(size);
+        int serverId = 0;
+        int serviceId = 0;
+        for (int p = 0; p < platforms; p++) {
+            final AppdefEntityID platform = AppdefEntityID.newPlatformID(p);
+            nodes.add(new ResourceTreeIndex.Node(platform, nodes.size(), "platform" + p, p % OWNERS,
+                                                 1, 1, "Linux", null, false));
+            for (int s = 0; s < SERVERS; s++) {
+                final AppdefEntityID server = AppdefEntityID.newServerID(serverId++);
+                nodes.add(new ResourceTreeIndex.Node(server, nodes.size(), "server" + serverId,
+                                                     p % OWNERS, 2 + s, 2 + s, "Tomcat", platform,
+                                                     s == 0));
+                for (int v = 0; v < SERVICES; v++) {
+                    nodes.add(new ResourceTreeIndex.Node(AppdefEntityID.newServiceID(serviceId++),
+                                                         nodes.size(), "service" + serviceId,
+                                                         p % OWNERS, 10 + v, 10 + v, "Servlet",
+                                                         server, false));
+                }
+            }
+        }
+        final ResourceTreeIndex index = new ResourceTreeIndex(null, null, null, 0) {
+            Collection<ResourceTreeIndex.Node> loadAll() {
+                return nodes;
+            }
+
+            Collection<ResourceTreeIndex.Node> load(Collection<AppdefEntityID> ids) {
+                return Collections.emptyList();
+            }
+        };
+        long start = System.nanoTime();
+        index.rebuild(true);
+        final long loadMillis = (System.nanoTime() - start) / 1000000;
+
+        final ResourceTreeIndex.Filter owned = new ResourceTreeIndex.Filter() {
+            public boolean isViewable(ResourceTreeIndex.Node node) {
+                return node.getOwnerId() == 0;
+            }
+        };
+        final Random rand = new Random(size);
+        // platform and server navigation maps
+        long navMaps = 0;
+        long end = System.currentTimeMillis() + millis / 2;
+        start = System.nanoTime();
+        while (System.currentTimeMillis() < end) {
+            final int p = rand.nextInt(platforms);
+            index.getChildren(AppdefEntityID.newPlatformID(p), ResourceTreeIndex.ALL);
+            final AppdefEntityID server = AppdefEntityID.newServerID(p * SERVERS);
+            final ResourceTreeIndex.Node node = index.getNode(server);
+            index.getNode(node.getParentId());
+            index.getChildren(server, ResourceTreeIndex.ALL);
+            navMaps += 2;
+        }
+        final long navMapNanos = (System.nanoTime() - start) / navMaps;
+
+        // inventory summaries of a user
+        final Collection<Integer> types = Arrays.asList(AppdefEntityConstants.APPDEF_TYPE_PLATFORM,
+                                                        AppdefEntityConstants.APPDEF_TYPE_SERVER,
+                                                        AppdefEntityConstants.APPDEF_TYPE_SERVICE);
+        long summaries = 0;
+        end = System.currentTimeMillis() + millis / 2;
+        start = System.nanoTime();
+        while (System.currentTimeMillis() < end) {
+            index.countInstances(types, owned, new TypeCounts());
+            summaries++;
+        }
+        final long summaryNanos = (System.nanoTime() - start) / summaries;
+
+        System.out.println("resources=" + index.size() + " load ms=" + loadMillis +
+                           " navmap us=" + (navMapNanos / 1000.0) +
+                           " summary ms=" + (summaryNanos / 1000000.0));
+    }
+}
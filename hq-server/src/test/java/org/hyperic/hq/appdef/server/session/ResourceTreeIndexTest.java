@@ -0,0 +1,226 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.appdef.server.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityConstants;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.authz.shared.TypeCounts;
+
+public class ResourceTreeIndexTest extends TestCase {
+
+    private static final AppdefEntityID PLATFORM = AppdefEntityID.newPlatformID(1);
+    private static final AppdefEntityID SERVER = AppdefEntityID.newServerID(10);
+    private static final AppdefEntityID VIRTUAL = AppdefEntityID.newServerID(11);
+    private static final AppdefEntityID SERVICE = AppdefEntityID.newServiceID(100);
+
+    // the resources in the DB
+    private final Map<AppdefEntityID, ResourceTreeIndex.Node> db =
+        new ConcurrentHashMap<AppdefEntityID, ResourceTreeIndex.Node>();
+    private int loads = 0;
+    // run by the load of the whole tree, after it read the DB
+    private Runnable duringLoad;
+
+    private final ResourceTreeIndex index = new ResourceTreeIndex(null, null, null, 0) {
+        Collection<ResourceTreeIndex.Node> loadAll() {
+            loads++;
+            final List<ResourceTreeIndex.Node> rtn = new ArrayList<ResourceTreeIndex.Node>(db.values());
+            if (duringLoad != null) {
+                duringLoad.run();
+            }
+            return rtn;
+        }
+
+        Collection<ResourceTreeIndex.Node> load(Collection<AppdefEntityID> ids) {
+            final List<ResourceTreeIndex.Node> rtn = new ArrayList<ResourceTreeIndex.Node>();
+            for (final AppdefEntityID id : ids) {
+                if (db.containsKey(id)) {
+                    rtn.add(db.get(id));
+                }
+            }
+            return rtn;
+        }
+    };
+
+    private static ResourceTreeIndex.Node node(AppdefEntityID id, String name, int owner,
+                                               AppdefEntityID parent, boolean virtual) {
+        return new ResourceTreeIndex.Node(id, id.getID() + 1000, name, owner, id.getType() * 10,
+                                          id.getType(), "type" + id.getType(), parent, virtual);
+    }
+
+    private void add(ResourceTreeIndex.Node node) {
+        db.put(node.getEntityId(), node);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        add(node(PLATFORM, "platform", 1, null, false));
+        add(node(SERVER, "server", 2, PLATFORM, false));
+        add(node(VIRTUAL, "virtual", 1, PLATFORM, true));
+        add(node(SERVICE, "service", 2, SERVER, false));
+    }
+
+    private static Set<AppdefEntityID> ids(List<ResourceTreeIndex.Node> nodes) {
+        final Set<AppdefEntityID> rtn = new HashSet<AppdefEntityID>();
+        for (final ResourceTreeIndex.Node node : nodes) {
+            rtn.add(node.getEntityId());
+        }
+        return rtn;
+    }
+
+    private static Set<AppdefEntityID> set(AppdefEntityID... ids) {
+        return new HashSet<AppdefEntityID>(Arrays.asList(ids));
+    }
+
+    public void testLoadedOnFirstUse() {
+        assertFalse(index.isLoaded());
+        assertEquals(set(SERVER, VIRTUAL), ids(index.getChildren(PLATFORM, ResourceTreeIndex.ALL)));
+        assertEquals(set(SERVICE), ids(index.getChildren(SERVER, ResourceTreeIndex.ALL)));
+        assertEquals("platform", index.getNode(PLATFORM).getName());
+        assertEquals(PLATFORM, index.getNode(SERVER).getParentId());
+        assertTrue(index.getNode(VIRTUAL).isVirtual());
+        assertEquals(1, loads);
+        assertEquals(4, index.size());
+    }
+
+    public void testFilter() {
+        ResourceTreeIndex.Filter owner2 = new ResourceTreeIndex.Filter() {
+            public boolean isViewable(ResourceTreeIndex.Node node) {
+                return node.getOwnerId() == 2;
+            }
+        };
+        assertEquals(set(SERVER), ids(index.getChildren(PLATFORM, owner2)));
+    }
+
+    public void testChangesAreReloaded() {
+        index.getNode(PLATFORM);
+        final AppdefEntityID newServer = AppdefEntityID.newServerID(12);
+        add(node(newServer, "new", 1, PLATFORM, false));
+        add(node(SERVER, "renamed", 2, PLATFORM, false));
+        index.update(Collections.<AppdefEntityID>emptySet(), set(newServer, SERVER));
+        assertEquals(set(SERVER, VIRTUAL, newServer),
+                     ids(index.getChildren(PLATFORM, ResourceTreeIndex.ALL)));
+        assertEquals("renamed", index.getNode(SERVER).getName());
+        // the children of a reloaded node stay
+        assertEquals(set(SERVICE), ids(index.getChildren(SERVER, ResourceTreeIndex.ALL)));
+
+        // the service moves to the new server
+        add(node(SERVICE, "service", 2, newServer, false));
+        index.update(Collections.<AppdefEntityID>emptySet(), set(SERVICE));
+        assertTrue(index.getChildren(SERVER, ResourceTreeIndex.ALL).isEmpty());
+        assertEquals(set(SERVICE), ids(index.getChildren(newServer, ResourceTreeIndex.ALL)));
+        assertEquals(1, loads);
+    }
+
+    public void testDeleteRemovesDescendants() {
+        index.getNode(PLATFORM);
+        db.clear();
+        index.update(set(PLATFORM), Collections.<AppdefEntityID>emptySet());
+        assertNull(index.getNode(SERVER));
+        assertNull(index.getNode(SERVICE));
+        assertEquals(0, index.size());
+    }
+
+    public void testResourceNotFoundOnReloadIsRemoved() {
+        index.getNode(PLATFORM);
+        db.remove(SERVICE);
+        index.update(Collections.<AppdefEntityID>emptySet(), set(SERVICE));
+        assertNull(index.getNode(SERVICE));
+        assertTrue(index.getChildren(SERVER, ResourceTreeIndex.ALL).isEmpty());
+    }
+
+    public void testRebuild() {
+        index.getNode(PLATFORM);
+        db.remove(VIRTUAL);
+        index.rebuild(false);
+        assertNotNull(index.getNode(VIRTUAL));
+        index.rebuild(true);
+        assertNull(index.getNode(VIRTUAL));
+        assertEquals(2, loads);
+    }
+
+    public void testEventsDuringFirstLoadAreApplied() {
+        final AppdefEntityID newServer = AppdefEntityID.newServerID(12);
+        duringLoad = new Runnable() {
+            public void run() {
+                add(node(newServer, "new", 1, PLATFORM, false));
+                db.remove(VIRTUAL);
+                index.processEvents(events(newServer, VIRTUAL));
+            }
+        };
+        assertEquals(set(SERVER, newServer), ids(index.getChildren(PLATFORM, ResourceTreeIndex.ALL)));
+        assertNull(index.getNode(VIRTUAL));
+        assertEquals(1, loads);
+    }
+
+    public void testEventsBeforeFirstUseAreIgnored() {
+        db.remove(VIRTUAL);
+        index.processEvents(events(VIRTUAL));
+        assertFalse(index.isLoaded());
+        assertNull(index.getNode(VIRTUAL));
+    }
+
+    public void testEventsAfterLoadAreApplied() {
+        index.getNode(PLATFORM);
+        add(node(SERVER, "renamed", 2, PLATFORM, false));
+        index.processEvents(events(SERVER));
+        assertEquals("renamed", index.getNode(SERVER).getName());
+    }
+
+    private static List<ResourceZevent> events(AppdefEntityID... ids) {
+        final List<ResourceZevent> rtn = new ArrayList<ResourceZevent>();
+        for (final AppdefEntityID id : ids) {
+            rtn.add(new ResourceZevent(Integer.valueOf(1), id) {
+            });
+        }
+        return rtn;
+    }
+
+    public void testCountInstances() {
+        TypeCounts counts = new TypeCounts();
+        index.countInstances(Arrays.asList(AppdefEntityConstants.APPDEF_TYPE_SERVER,
+                                           AppdefEntityConstants.APPDEF_TYPE_SERVICE),
+                             ResourceTreeIndex.ALL, counts);
+        assertNull(counts.getAppdefTypeCounts().get(AppdefEntityConstants.APPDEF_TYPE_PLATFORM));
+        assertEquals(2, counts.getAppdefTypeCounts().get(AppdefEntityConstants.APPDEF_TYPE_SERVER)
+            .get().intValue());
+        assertEquals(1, counts.getAppdefTypeCounts().get(AppdefEntityConstants.APPDEF_TYPE_SERVICE)
+            .get().intValue());
+        assertEquals(2, counts.getProtoTypeCounts(AppdefEntityConstants.APPDEF_TYPE_SERVER)
+            .get(AppdefEntityConstants.APPDEF_TYPE_SERVER * 10).get().intValue());
+    }
+}
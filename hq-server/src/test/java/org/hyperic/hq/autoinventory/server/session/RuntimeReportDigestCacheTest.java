@@ -0,0 +1,134 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.autoinventory.server.session;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.autoinventory.CompositeRuntimeResourceReport;
+import org.hyperic.hq.product.RuntimeResourceReport;
+
+public class RuntimeReportDigestCacheTest extends TestCase {
+
+    private static final String AGENT = "agentToken";
+
+    private final RuntimeReportDigestCache cache = new RuntimeReportDigestCache();
+
+    private RuntimeResourceReport report(int serverId, String digest) {
+        RuntimeResourceReport rtn = new RuntimeResourceReport(serverId);
+        rtn.setDigest(digest);
+        return rtn;
+    }
+
+    private Set<Integer> ids(Integer... ids) {
+        Set<Integer> rtn = new HashSet<Integer>();
+        Collections.addAll(rtn, ids);
+        return rtn;
+    }
+
+    /**
+     * Accept and merge a full report of servers 1 and 2
+     */
+    private void acceptFullReport() {
+        CompositeRuntimeResourceReport full = new CompositeRuntimeResourceReport();
+        RuntimeResourceReport r1 = report(1, "a");
+        RuntimeResourceReport r2 = report(2, "b");
+        full.addServerReport(r1);
+        full.addServerReport(r2);
+        assertTrue(cache.accept(AGENT, full));
+        assertTrue(cache.getUnchangedServerIds(AGENT, full).isEmpty());
+        cache.merged(AGENT, r1, ids(1, 10, 11));
+        cache.merged(AGENT, r2, ids(2, 20));
+    }
+
+    public void testUnchangedServersAreKnown() {
+        acceptFullReport();
+        CompositeRuntimeResourceReport diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(1, "a");
+        diff.addServerReport(report(2, "c"));
+        assertTrue(cache.accept(AGENT, diff));
+        assertEquals(ids(1, 10, 11), cache.getUnchangedServerIds(AGENT, diff));
+
+        // the changed report is unchanged in the next report
+        CompositeRuntimeResourceReport next = new CompositeRuntimeResourceReport();
+        next.addUnchangedServerReport(1, "a");
+        next.addUnchangedServerReport(2, "c");
+        assertTrue(cache.accept(AGENT, next));
+        // not merged yet
+        assertNull(cache.getUnchangedServerIds(AGENT, next));
+    }
+
+    public void testDigestMismatchAsksForFullReport() {
+        acceptFullReport();
+        CompositeRuntimeResourceReport diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(1, "x");
+        assertFalse(cache.accept(AGENT, diff));
+
+        // the digests are gone until the agent sends a full report
+        diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(2, "b");
+        assertFalse(cache.accept(AGENT, diff));
+    }
+
+    public void testUnknownAgentAsksForFullReport() {
+        CompositeRuntimeResourceReport diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(1, "a");
+        assertFalse(cache.accept(AGENT, diff));
+    }
+
+    public void testDroppedServerReportIsForgotten() {
+        acceptFullReport();
+        CompositeRuntimeResourceReport diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(1, "a");
+        assertTrue(cache.accept(AGENT, diff));
+        diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(2, "b");
+        assertFalse(cache.accept(AGENT, diff));
+    }
+
+    public void testFullReportWithoutDigestsClearsAgent() {
+        acceptFullReport();
+        CompositeRuntimeResourceReport old = new CompositeRuntimeResourceReport();
+        old.addServerReport(new RuntimeResourceReport(1));
+        assertFalse(old.isDifferential());
+        assertTrue(cache.accept(AGENT, old));
+        CompositeRuntimeResourceReport diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(1, "a");
+        assertFalse(cache.accept(AGENT, diff));
+    }
+
+    public void testInvalidate() {
+        acceptFullReport();
+        CompositeRuntimeResourceReport diff = new CompositeRuntimeResourceReport();
+        diff.addUnchangedServerReport(1, "a");
+        cache.invalidate(AGENT);
+        assertNull(cache.getUnchangedServerIds(AGENT, diff));
+        assertFalse(cache.accept(AGENT, diff));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.escalation.server.session;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+public class EscalationTimingWheelTest extends TestCase {
+
+    private final Map<Integer, Long> fired = new ConcurrentHashMap<Integer, Long>();
+    private final Map<Integer, Long> scheduled = new ConcurrentHashMap<Integer, Long>();
+    private EscalationTimingWheel wheel;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // a small wheel so that states wrap around it several times
+        wheel = new EscalationTimingWheel("test", 10, 4,
+            new EscalationTimingWheel.ExpirationListener() {
+                public void expired(Integer stateId, long scheduledTime) {
+                    fired.put(stateId, System.currentTimeMillis());
+                    scheduled.put(stateId, scheduledTime);
+                }
+            });
+        wheel.start();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        wheel.stop();
+    }
+
+    public void testStatesFireInTimeButNeverEarly() throws Exception {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            wheel.schedule(i, now + i * 15);
+        }
+        assertEquals(20, wheel.size());
+        waitForFired(20);
+        for (int i = 0; i < 20; i++) {
+            final long time = now + i * 15;
+            assertTrue(fired.get(i) >= time);
+            assertEquals(time, scheduled.get(i).longValue());
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    public void testPastStateFiresOnNextTick() throws Exception {
+        wheel.schedule(1, System.currentTimeMillis() - 60000);
+        waitForFired(1);
+    }
+
+    public void testCancel() throws Exception {
+        final long now = System.currentTimeMillis();
+        assertFalse(wheel.schedule(1, now + 100));
+        wheel.schedule(2, now + 100);
+        assertTrue(wheel.cancel(1));
+        assertFalse(wheel.cancel(1));
+        waitForFired(1);
+        Thread.sleep(50);
+        assertFalse(fired.containsKey(1));
+        assertTrue(fired.containsKey(2));
+    }
+
+    public void testCancelAll() throws Exception {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            wheel.schedule(i, now + 100);
+        }
+        assertEquals(8, wheel.cancelAll(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 100)));
+        waitForFired(2);
+        Thread.sleep(50);
+        assertEquals(2, fired.size());
+    }
+
+    public void testReschedule() throws Exception {
+        final long now = System.currentTimeMillis();
+        wheel.schedule(1, now + 50);
+        assertTrue(wheel.schedule(1, now + 200));
+        assertEquals(1, wheel.size());
+        waitForFired(1);
+        assertTrue(fired.get(1) >= now + 200);
+    }
+
+    public void testRetryKeepsScheduledTime() throws Exception {
+        final long now = System.currentTimeMillis();
+        wheel.schedule(1, now + 100000);
+        assertFalse(wheel.retry(1, now));
+        wheel.cancel(1);
+        assertTrue(wheel.retry(1, now));
+        waitForFired(1);
+        assertEquals(now, scheduled.get(1).longValue());
+    }
+
+    private void waitForFired(int num) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (fired.size() < num && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(num, fired.size());
+    }
+}
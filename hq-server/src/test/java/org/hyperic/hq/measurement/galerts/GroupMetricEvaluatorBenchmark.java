@@ -0,0 +1,84 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.galerts;
+
+import java.util.Random;
+
+import org.hyperic.hq.product.MetricValue;
+
+/**
+ * Feeds measurement events of a group through the evaluator of a group alert
+ * the way the trigger does: every resource reports once per collection
+ * interval and the time window is evaluated on every heart beat.
+ *
+ * Usage: GroupMetricEvaluatorBenchmark [seconds per group size]
+ */
+public class GroupMetricEvaluatorBenchmark {
+    private static final long INTERVAL = 5 * 60 * 1000;
+    private static final long HEART_BEAT = 30 * 1000;
+    private static final int[] GROUP_SIZES = {100, 1000, 10000};
+
+    public static void main(String[] args) {
+        final long millis = ((args.length > 0) ? Integer.parseInt(args[0]) : 5) * 1000l;
+        for (int size : GROUP_SIZES) {
+            run(size, millis / 5);  // warm up
+            final long events = run(size, millis);
+            System.out.println("group size=" + size + " events/s=" + (events * 1000 / millis));
+        }
+    }
+
+    private static long run(int size, long millis) {
+        final GroupMetricEvaluator evaluator = new GroupMetricEvaluator(ComparisonOperator.GT,
+            new Float(90), true, new GroupMetricEvaluator.DeletedMeasurementCheck() {
+                public boolean isDeleted(int measurementId) {
+                    return false;
+                }
+            });
+        final int[] mids = new int[size];
+        for (int i = 0; i < size; i++) {
+            mids[i] = i;
+        }
+        evaluator.setScheduled(mids);
+        final Random rand = new Random(size);
+        // resources report spread evenly over the collection interval
+        final long eventsPerHeartBeat = Math.max(1, size * HEART_BEAT / INTERVAL);
+        final long end = System.currentTimeMillis() + millis;
+        long events = 0;
+        long now = 0;
+        int next = 0;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < eventsPerHeartBeat; i++) {
+                evaluator.track(next, new MetricValue(rand.nextInt(100), now));
+                next = (next + 1) % size;
+                events++;
+            }
+            now += HEART_BEAT;
+            final long start = Math.max(0, now - INTERVAL);
+            evaluator.evaluate(start, start + 2 * INTERVAL);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.galerts;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.product.MetricValue;
+
+public class GroupMetricEvaluatorTest extends TestCase {
+
+    private static final long WINDOW = 1000;
+
+    private final Set<Integer> deleted = new HashSet<Integer>();
+
+    private GroupMetricEvaluator newEvaluator(boolean isNotReportingOffending) {
+        return new GroupMetricEvaluator(ComparisonOperator.GT, new Float(10),
+            isNotReportingOffending, new GroupMetricEvaluator.DeletedMeasurementCheck() {
+                public boolean isDeleted(int measurementId) {
+                    return deleted.contains(measurementId);
+                }
+            });
+    }
+
+    public void testViolatorAgesOut() {
+        GroupMetricEvaluator evaluator = newEvaluator(false);
+        evaluator.setScheduled(new int[] {1, 2});
+        evaluator.track(1, new MetricValue(20, 100));
+        evaluator.track(2, new MetricValue(5, 100));
+        assertEquals(1, evaluator.evaluate(0, WINDOW));
+        assertEquals(new MetricValue(20, 100), evaluator.getViolators().get(1));
+        assertEquals(1, evaluator.evaluate(100, 100 + WINDOW));
+        // no event, the window moved past the violating value
+        assertEquals(0, evaluator.evaluate(101, 101 + WINDOW));
+        assertTrue(evaluator.getViolators().isEmpty());
+    }
+
+    public void testNotReportingIsOffending() {
+        GroupMetricEvaluator evaluator = newEvaluator(true);
+        evaluator.setScheduled(new int[] {1, 2, 3});
+        assertEquals(3, evaluator.evaluate(0, WINDOW));
+        assertEquals(MetricValue.NONE, evaluator.getViolators().get(3));
+        evaluator.track(1, new MetricValue(5, 500));
+        evaluator.track(2, new MetricValue(5, 600));
+        assertEquals(1, evaluator.evaluate(0, WINDOW));
+        // 1 stops reporting
+        assertEquals(2, evaluator.evaluate(550, 550 + WINDOW));
+        assertEquals(3, evaluator.evaluate(650, 650 + WINDOW));
+    }
+
+    public void testFutureValueEntersWindow() {
+        GroupMetricEvaluator evaluator = newEvaluator(false);
+        evaluator.setScheduled(new int[] {1});
+        evaluator.track(1, new MetricValue(20, 5000));
+        assertEquals(0, evaluator.evaluate(0, WINDOW));
+        assertEquals(0, evaluator.evaluate(3999, 3999 + WINDOW));
+        assertEquals(1, evaluator.evaluate(4000, 4000 + WINDOW));
+    }
+
+    public void testBackfilledValuesAreReplaced() {
+        GroupMetricEvaluator evaluator = newEvaluator(false);
+        evaluator.setScheduled(new int[] {1});
+        evaluator.track(1, new MetricValue(20, 100));
+        evaluator.track(1, new MetricValue(20, 200));
+        assertEquals(1, evaluator.evaluate(0, WINDOW));
+        // the agent reports the real value for the backfilled ones
+        evaluator.track(1, new MetricValue(5, 100));
+        assertEquals(0, evaluator.evaluate(0, WINDOW));
+    }
+
+    public void testUnscheduledResourceStopsBeingTracked() {
+        GroupMetricEvaluator evaluator = newEvaluator(true);
+        evaluator.setScheduled(new int[] {1, 2});
+        evaluator.track(1, new MetricValue(5, 100));
+        assertEquals(1, evaluator.evaluate(0, WINDOW));
+        evaluator.setScheduled(new int[] {2});
+        assertEquals(2, evaluator.getNumberOfTrackedResources());
+        assertEquals(1, evaluator.evaluate(0, WINDOW));
+        assertEquals(1, evaluator.evaluate(200, 200 + WINDOW));
+        assertEquals(1, evaluator.getNumberOfTrackedResources());
+    }
+
+    public void testDeletedViolatorIsRemoved() {
+        GroupMetricEvaluator evaluator = newEvaluator(false);
+        evaluator.setScheduled(new int[] {1, 2});
+        deleted.add(2);
+        evaluator.track(1, new MetricValue(20, 100));
+        evaluator.track(2, new MetricValue(20, 100));
+        assertEquals(1, evaluator.evaluate(0, WINDOW));
+        assertEquals(1, evaluator.getNumberOfTrackedResources());
+    }
+
+    /**
+     * Compares the evaluator to a full scan of all the resources on every
+     * evaluation, as the trigger used to do.
+     */
+    public void testMatchesFullScan() {
+        for (int run = 0; run < 20; run++) {
+            boolean isNotReportingOffending = (run % 2) == 0;
+            Random rand = new Random(run);
+            int numResources = 50;
+            GroupMetricEvaluator evaluator = newEvaluator(isNotReportingOffending);
+            List<List<MetricValue>> values = new ArrayList<List<MetricValue>>();
+            int[] mids = new int[numResources];
+            for (int i = 0; i < numResources; i++) {
+                values.add(new ArrayList<MetricValue>());
+                mids[i] = i;
+            }
+            evaluator.setScheduled(mids);
+            long start = 0;
+            long window = WINDOW;
+            for (int step = 0; step < 500; step++) {
+                for (int n = rand.nextInt(20); n > 0; n--) {
+                    int mid = rand.nextInt(numResources);
+                    // mostly recent values, sometimes backfilled or future ones
+                    long time = start + rand.nextInt((int) window * 3) - window / 2;
+                    if (time < start) {
+                        continue;
+                    }
+                    MetricValue val = new MetricValue(rand.nextInt(15), time);
+                    for (Iterator<MetricValue> it = values.get(mid).iterator(); it.hasNext();) {
+                        if (it.next().getTimestamp() >= time) {
+                            it.remove();
+                        }
+                    }
+                    values.get(mid).add(val);
+                    evaluator.track(mid, val);
+                }
+                start += rand.nextInt(200);
+                if (rand.nextInt(50) == 0) {
+                    window += 100;
+                }
+                int expected = 0;
+                for (List<MetricValue> vals : values) {
+                    boolean reported = false;
+                    boolean violating = false;
+                    for (MetricValue val : vals) {
+                        if (val.getTimestamp() >= start && val.getTimestamp() <= start + window) {
+                            reported = true;
+                            violating |= val.getValue() > 10;
+                        }
+                    }
+                    if (violating || (!reported && isNotReportingOffending)) {
+                        expected++;
+                    }
+                }
+                assertEquals("run " + run + " step " + step, expected,
+                             evaluator.evaluate(start, start + window));
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.product.MetricValue;
+
+public class ArrayMetricDataCacheTest extends TestCase {
+
+    private static final int MAX_INDEXED_ID = 10000;
+
+    private ArrayMetricDataCache cache;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = new ArrayMetricDataCache(null, MAX_INDEXED_ID);
+    }
+
+    public void testOlderValueIsNotAdded() {
+        assertTrue(cache.add(1, new MetricValue(5, 200)));
+        assertFalse(cache.add(1, new MetricValue(3, 100)));
+        assertEquals(new MetricValue(5, 200), cache.get(1, 0));
+        assertTrue(cache.add(1, new MetricValue(7, 200)));
+        assertEquals(new MetricValue(7, 200), cache.get(1, 0));
+    }
+
+    public void testStaleValueIsNotReturned() {
+        cache.add(1, new MetricValue(5, 200));
+        assertNotNull(cache.get(1, 200));
+        assertNull(cache.get(1, 201));
+        assertNull(cache.get(2, 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testRemove() {
+        cache.add(1, new MetricValue(5, 200));
+        cache.add(MAX_INDEXED_ID + 1, new MetricValue(5, 200));
+        assertEquals(2, cache.getSize());
+        cache.remove(1);
+        cache.remove(MAX_INDEXED_ID + 1);
+        cache.remove(2);
+        assertNull(cache.get(1, 0));
+        assertNull(cache.get(MAX_INDEXED_ID + 1, 0));
+        assertEquals(0, cache.getSize());
+        // an older value may be added again after the removal
+        assertTrue(cache.add(1, new MetricValue(5, 100)));
+    }
+
+    public void testOverflow() {
+        final int mid = MAX_INDEXED_ID + 1;
+        assertTrue(cache.add(mid, new MetricValue(5, 200)));
+        assertFalse(cache.add(mid, new MetricValue(3, 100)));
+        assertTrue(cache.add(-1, new MetricValue(1, 100)));
+        assertEquals(new MetricValue(5, 200), cache.get(mid, 0));
+        assertEquals(new MetricValue(1, 100), cache.get(-1, 0));
+        assertEquals(2, cache.getSize());
+    }
+
+    public void testBulkAddReturnsTheAddedPoints() {
+        cache.add(1, new MetricValue(5, 200));
+        final List<DataPoint> data = Arrays.asList(new DataPoint(1, 1, 100),
+            new DataPoint(2, 2, 100), new DataPoint(2, 3, 200));
+        final Collection<DataPoint> added = cache.bulkAdd(data);
+        assertEquals(1, added.size());
+        assertEquals(new DataPoint(2, 3, 200), added.iterator().next());
+        assertEquals(new MetricValue(3, 200), cache.get(2, 0));
+        assertEquals(new MetricValue(5, 200), cache.get(1, 0));
+    }
+
+    public void testGetAll() {
+        cache.add(1, new MetricValue(1, 100));
+        cache.add(2, new MetricValue(2, 200));
+        cache.add(MAX_INDEXED_ID + 1, new MetricValue(3, 300));
+        final Map<Integer, MetricValue> data = new HashMap<Integer, MetricValue>();
+        final Collection<Integer> nodata = cache.getAll(
+            Arrays.asList(1, 2, null, 3, MAX_INDEXED_ID + 1), 150, data);
+        assertEquals(Arrays.asList(1, 3), new ArrayList<Integer>(nodata));
+        assertEquals(2, data.size());
+        assertEquals(new MetricValue(2, 200), data.get(2));
+        assertEquals(new MetricValue(3, 300), data.get(MAX_INDEXED_ID + 1));
+        assertEquals(0.5, cache.getHitRatio(), 0);
+    }
+
+    public void testCachedValueCanNotBeChangedByCaller() {
+        cache.add(1, new MetricValue(1, 100));
+        cache.get(1, 0).setValue(2);
+        assertEquals(new MetricValue(1, 100), cache.get(1, 0));
+    }
+
+    public void testMemoryUsageGrowsByPage() {
+        final long empty = cache.getMemoryUsage();
+        cache.add(1, new MetricValue(1, 100));
+        final long onePage = cache.getMemoryUsage();
+        assertTrue(onePage > empty);
+        cache.add(2, new MetricValue(1, 100));
+        assertEquals(onePage, cache.getMemoryUsage());
+        cache.add(MAX_INDEXED_ID, new MetricValue(1, 100));
+        assertEquals(2 * onePage - empty, cache.getMemoryUsage());
+    }
+
+    public void testConcurrentWritersKeepTheNewestValue() throws Exception {
+        final int numThreads = 4;
+        final int numValues = 20000;
+        final List<MetricValue> torn = Collections.synchronizedList(new ArrayList<MetricValue>());
+        final Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = offset; i < numValues; i += numThreads) {
+                        // value and timestamp always agree, a torn read would not
+                        final MetricValue val = cache.get(i % 10, 0);
+                        if (val != null && val.getValue() != val.getTimestamp()) {
+                            torn.add(val);
+                        }
+                        cache.add(i % 10, new MetricValue(i, i));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < numThreads; t++) {
+            threads[t].join();
+        }
+        assertTrue(torn.toString(), torn.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new MetricValue(numValues - 10 + i, numValues - 10 + i), cache.get(i, 0));
+        }
+    }
+}
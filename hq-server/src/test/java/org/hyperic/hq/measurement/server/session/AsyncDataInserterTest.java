@@ -0,0 +1,218 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.shared.DataManager;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+public class AsyncDataInserterTest extends TestCase {
+
+    private final List<List<DataPoint>> flushes =
+        Collections.synchronizedList(new ArrayList<List<DataPoint>>());
+    private CountDownLatch release;
+    private final AtomicInteger addDataCalls = new AtomicInteger();
+    // the number of addData calls which fail before they start to succeed
+    private volatile int failuresLeft = 0;
+    // a batch with this point fails
+    private volatile int badMid = -1;
+    // addData returns false
+    private volatile boolean unreachable = false;
+    private AsyncDataInserter inserter;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        release = new CountDownLatch(0);
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        release.countDown();
+        if (inserter != null) {
+            inserter.shutdown();
+        }
+    }
+
+    public void testReportsAreMergedIntoOneFlush() throws Exception {
+        inserter = newInserter(10000, 300, 60000);
+        for (int report = 0; report < 3; report++) {
+            inserter.insertData(newPoints(report * 100, 100));
+        }
+        waitForInserted(300);
+        assertEquals(1, flushes.size());
+        assertEquals(300, flushes.get(0).size());
+    }
+
+    public void testFlushAfterLatency() throws Exception {
+        inserter = newInserter(10000, 1000, 50);
+        inserter.insertData(newPoints(0, 10));
+        waitForInserted(10);
+        assertEquals(1, flushes.size());
+    }
+
+    public void testPriorityDataIsInsertedFirst() throws Exception {
+        inserter = newInserter(10000, 20, 60000);
+        inserter.insertData(newPoints(0, 10));
+        inserter.insertData(newPoints(100, 10), true);
+        waitForInserted(20);
+        final List<DataPoint> flush = flushes.get(0);
+        assertEquals(100, flush.get(0).getMeasurementId().intValue());
+        assertEquals(109, flush.get(9).getMeasurementId().intValue());
+        assertEquals(0, flush.get(10).getMeasurementId().intValue());
+    }
+
+    public void testFullQueueRejectsAndAsksToBackOff() throws Exception {
+        release = new CountDownLatch(1);
+        inserter = newInserter(100, 10, 60000);
+        // the flusher takes the first batch and blocks in the DB
+        inserter.insertData(newPoints(0, 10));
+        waitForQueueSize(0);
+        inserter.insertData(newPoints(0, 60));
+        assertTrue(inserter.getBackoff() > 0);
+        inserter.insertData(newPoints(0, 40));
+        assertEquals(1000, inserter.getBackoff());
+        try {
+            inserter.insertData(newPoints(0, 1));
+            fail("queue should be full");
+        } catch (DataInserterException e) {
+            // expected
+        }
+        assertEquals(1, inserter.getNumRejected());
+        release.countDown();
+        waitForInserted(110);
+        assertEquals(0, inserter.getBackoff());
+    }
+
+    public void testShutdownInsertsQueuedData() throws Exception {
+        inserter = newInserter(10000, 1000, 60000);
+        inserter.insertData(newPoints(0, 10));
+        inserter.shutdown();
+        assertEquals(10, inserter.getNumInserted());
+        inserter = null;
+    }
+
+    public void testFailedFlushIsRetried() throws Exception {
+        failuresLeft = 2;
+        inserter = newInserter(10000, 10, 60000);
+        inserter.insertData(newPoints(0, 10));
+        waitForInserted(10);
+        assertEquals(3, addDataCalls.get());
+        assertEquals(1, flushes.size());
+        assertEquals(0, inserter.getNumFailed());
+    }
+
+    public void testOnlyFailingPointsAreDropped() throws Exception {
+        badMid = 3;
+        inserter = newInserter(10000, 10, 60000);
+        inserter.insertData(newPoints(0, 10));
+        waitForInserted(9);
+        assertEquals(1, inserter.getNumFailed());
+        // 3 attempts of the batch and 10 single points
+        assertEquals(13, addDataCalls.get());
+        assertEquals(9, flushes.size());
+    }
+
+    public void testBatchIsDroppedWhenDBIsUnreachable() throws Exception {
+        unreachable = true;
+        inserter = newInserter(10000, 10, 60000);
+        inserter.insertData(newPoints(0, 10));
+        inserter.shutdown();
+        assertEquals(10, inserter.getNumFailed());
+        assertEquals(0, inserter.getNumInserted());
+        assertEquals(3, addDataCalls.get());
+        inserter = null;
+    }
+
+    private AsyncDataInserter newInserter(int maxQueued, int flushSize, long flushLatency) {
+        final DataManager dataManager = (DataManager) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {DataManager.class},
+            new InvocationHandler() {
+                @SuppressWarnings("unchecked")
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (!method.getName().equals("addData")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    release.await();
+                    addDataCalls.incrementAndGet();
+                    final List<DataPoint> data = (List<DataPoint>) args[0];
+                    if (unreachable) {
+                        return Boolean.FALSE;
+                    }
+                    if (failuresLeft > 0) {
+                        failuresLeft--;
+                        throw new IllegalStateException("insert failed");
+                    }
+                    for (final DataPoint point : data) {
+                        if (point.getMeasurementId().intValue() == badMid) {
+                            throw new NumberFormatException("bad value");
+                        }
+                    }
+                    flushes.add(new ArrayList<DataPoint>(data));
+                    return Boolean.TRUE;
+                }
+            });
+        final AsyncDataInserter rtn = new AsyncDataInserter(dataManager,
+            new ConcurrentStatsCollector(null, null), null, true, 1, maxQueued, flushSize,
+            flushLatency, 10, 1000, 2, 10);
+        rtn.start();
+        return rtn;
+    }
+
+    private List<DataPoint> newPoints(int firstMid, int num) {
+        final List<DataPoint> rtn = new ArrayList<DataPoint>(num);
+        for (int i = 0; i < num; i++) {
+            rtn.add(new DataPoint(firstMid + i, 1.0, System.currentTimeMillis()));
+        }
+        return rtn;
+    }
+
+    private void waitForInserted(int num) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (inserter.getNumInserted() < num && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(num, inserter.getNumInserted());
+    }
+
+    private void waitForQueueSize(int num) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (inserter.getQueueSize() != num && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(num, inserter.getQueueSize());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the AvailabilityCache the way the server does with many agents:
+ * reader threads look up the last availability of random measurements, as
+ * the availability checks and UI summaries do, while one thread applies
+ * availability reports in cache transactions and writer threads put points
+ * outside of a transaction, as the backfiller does.
+ *
+ * Usage: AvailabilityCacheBenchmark [threads] [seconds] [measurements]
+ */
+public class AvailabilityCacheBenchmark {
+    private static final int REPORT_SIZE = 100;
+
+    public static void main(String[] args) throws Exception {
+        final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        final long millis = ((args.length > 1) ? Integer.parseInt(args[1]) : 10) * 1000l;
+        final int num = (args.length > 2) ? Integer.parseInt(args[2]) : 200000;
+        final AvailabilityCache cache = new AvailabilityCache();
+        for (int i = 0; i < num; i++) {
+            cache.put(new Integer(i), new DataPoint(i, 1.0, 0));
+        }
+        System.out.println("Benchmarking " + threads + " threads for " + (millis / 1000) +
+                           " seconds against " + num + " measurements");
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong reports = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int type = t % 4;
+            final Random rand = new Random(t);
+            new Thread() {
+                public void run() {
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) {
+                        for (int i = 0; i < REPORT_SIZE; i++) {
+                            final Integer id = new Integer(rand.nextInt(num));
+                            final DataPoint pt = new DataPoint(id, rand.nextInt(2), n);
+                            if (type == 0) {
+                                if (i == 0) {
+                                    cache.beginTran();
+                                }
+                                cache.put(id, pt);
+                            } else if (type == 1) {
+                                cache.put(id, pt);
+                            } else {
+                                cache.get(id, pt);
+                            }
+                        }
+                        if (type == 0) {
+                            if ((n % 10) == 0) {
+                                cache.rollbackTran();
+                            } else {
+                                cache.commitTran();
+                            }
+                        }
+                        n++;
+                    }
+                    if (type == 0) {
+                        reports.addAndGet(n);
+                    } else if (type == 1) {
+                        writes.addAndGet(n * REPORT_SIZE);
+                    } else {
+                        reads.addAndGet(n * REPORT_SIZE);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        final long secs = millis / 1000;
+        System.out.println("reads/s=" + (reads.get() / secs) + " writes/s=" + (writes.get() / secs) +
+                           " reports/s=" + (reports.get() / secs) + " (" + REPORT_SIZE +
+                           " points per report)");
+    }
+}
@@ -122,6 +122,107 @@ public class AvailabilityCacheTest extends TestCase {
         assertTrue(cache.get(new Integer(id)) == null);
     }
 
+    /**
+     * Writers of other threads must wait for the transaction of the ids they
+     * write so that a rollback can't undo their updates.
+     */
+    public void testRollbackDoesNotUndoOtherThreads() throws Exception {
+        final int id = 0;
+        cache.put(new Integer(id), new DataPoint(id, 0.0, 0));
+        cache.beginTran();
+        cache.put(new Integer(id), new DataPoint(id, 1.0, 1));
+        Thread thread = new Thread() {
+            public void run() {
+                // not written by the transaction, so doesn't wait
+                cache.put(new Integer(id + 1), new DataPoint(id + 1, 3.0, 3));
+                cache.put(new Integer(id), new DataPoint(id, 2.0, 2));
+            }
+        };
+        thread.start();
+        thread.join(200);
+        // still waiting for the transaction
+        assertTrue(thread.isAlive());
+        assertEquals(3, cache.get(new Integer(id + 1)).getTimestamp());
+        assertEquals(1, cache.get(new Integer(id)).getTimestamp());
+        cache.rollbackTran();
+
+        thread.join(5000);
+        if (thread.isAlive()) {
+            thread.interrupt();
+            fail("writer did not complete after the rollback");
+        }
+        assertEquals(2, cache.get(new Integer(id)).getTimestamp());
+    }
+
+    public void testRollbackRestoresOpenAvail() throws Exception {
+        final Integer id = new Integer(0);
+        cache.putOpenAvail(id, new DataPoint(0, 1.0, 100));
+        cache.beginTran();
+        cache.putOpenAvail(id, new DataPoint(0, 0.0, 200));
+        cache.remove(id);
+        assertNull(cache.getOpenAvail(id));
+        cache.rollbackTran();
+        assertEquals(100, cache.getOpenAvail(id).getTimestamp());
+    }
+
+    /**
+     * Transactions which write ids of different shards don't wait for each
+     * other.
+     */
+    public void testTransactionsOfDifferentShards() throws Exception {
+        final int id = 0;
+        int other = 1;
+        while (AvailabilityCache.getShard(new Integer(other)) == AvailabilityCache.getShard(new Integer(id))) {
+            other++;
+        }
+        final int otherId = other;
+        cache.beginTran();
+        cache.put(new Integer(id), new DataPoint(id, 1.0, 1));
+        Thread thread = new Thread() {
+            public void run() {
+                cache.beginTran();
+                cache.put(new Integer(otherId), new DataPoint(otherId, 1.0, 1));
+                cache.commitTran();
+            }
+        };
+        thread.start();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        cache.commitTran();
+        assertEquals(1, cache.get(new Integer(otherId)).getTimestamp());
+    }
+
+    public void testLockAllShardsWaitsForShared() throws Exception {
+        cache.lockShared();
+        final boolean[] locked = new boolean[1];
+        Thread thread = new Thread() {
+            public void run() {
+                cache.lockAllShards();
+                locked[0] = true;
+                cache.unlockAllShards();
+            }
+        };
+        thread.start();
+        thread.join(200);
+        assertTrue(thread.isAlive());
+        cache.unlockShared();
+        thread.join(5000);
+        assertTrue(locked[0]);
+        // the thread which locked all shards may still apply availability
+        cache.lockAllShards();
+        try {
+            cache.lockShared();
+            cache.lockShard(0);
+            cache.beginTran();
+            cache.put(new Integer(0), new DataPoint(0, 1.0, 1));
+            cache.commitTran();
+            cache.unlockShard(0);
+            cache.unlockShared();
+        } finally {
+            cache.unlockAllShards();
+        }
+    }
+
     /**
      * Test a full load of the cache.
      * @throws Exception If any error occurs within the test.
@@ -0,0 +1,96 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AvailabilityRLEChangesTest extends TestCase {
+
+    private static final long MAX = AvailabilityDataRLE.getLastTimestamp();
+    private final Measurement meas = new Measurement();
+
+    public void setUp() throws Exception {
+        super.setUp();
+        meas.setId(new Integer(1));
+    }
+
+    private List<AvailabilityDataRLE> rles(long[][] rows) {
+        final List<AvailabilityDataRLE> rtn = new ArrayList<AvailabilityDataRLE>();
+        for (int i = 0; i < rows.length; i++) {
+            rtn.add(new AvailabilityDataRLE(meas, rows[i][0], rows[i][1], rows[i][2]));
+        }
+        return rtn;
+    }
+
+    public void testStateChangeUpdatesOpenRowAndInsertsNewOne() {
+        final AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+        final List<AvailabilityDataRLE> read = rles(new long[][] {{100, MAX, 1}});
+        changes.read(meas.getId(), read);
+        // the merge changes the rows in place
+        read.get(0).setEndtime(200);
+        read.add(new AvailabilityDataRLE(meas, 200, MAX, 0));
+        changes.merged(meas.getId(), read);
+        assertEquals(0, changes.getDeletes().size());
+        assertEquals(1, changes.getUpdates().size());
+        assertEquals(200, changes.getUpdates().get(0).getEndtime());
+        assertEquals(1, changes.getInserts().size());
+        assertEquals(200, changes.getInserts().get(0).getStartime());
+    }
+
+    public void testRemovedRowIsDeleted() {
+        final AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+        changes.read(meas.getId(), rles(new long[][] {{100, 200, 1}, {200, 300, 0}, {300, MAX, 1}}));
+        changes.merged(meas.getId(), rles(new long[][] {{100, MAX, 1}}));
+        assertEquals(2, changes.getDeletes().size());
+        assertEquals(1, changes.getUpdates().size());
+        assertEquals(0, changes.getInserts().size());
+    }
+
+    public void testRecreatedRowIsUpdated() {
+        final AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+        changes.read(meas.getId(), rles(new long[][] {{100, MAX, 0}}));
+        changes.merged(meas.getId(), rles(new long[][] {{100, MAX, 1}}));
+        assertEquals(0, changes.getDeletes().size());
+        assertEquals(1, changes.getUpdates().size());
+        assertEquals(0, changes.getInserts().size());
+    }
+
+    public void testUnchangedRowsAreNotWritten() {
+        final AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+        changes.read(meas.getId(), rles(new long[][] {{100, 200, 1}, {200, MAX, 0}}));
+        changes.merged(meas.getId(), rles(new long[][] {{100, 200, 1}, {200, MAX, 0}}));
+        assertTrue(changes.isEmpty());
+    }
+
+    public void testRowsOfMeasurementWhichWasNotReadAreInserted() {
+        final AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+        changes.merged(meas.getId(), rles(new long[][] {{100, MAX, 1}}));
+        assertEquals(1, changes.getInserts().size());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies availability reports of many agents concurrently the way
+ * AvailabilityManagerImpl.addData does: the points of a report are split by
+ * shard, the open RLE interval of each measurement is taken from the cache
+ * and the RLE changes are collected for one batched write per shard, which
+ * is simulated by sleeping for the given latency.  The sharded pipeline is
+ * compared to holding one global lock for the whole report, as addData used
+ * to with synchronized (availabilityCache).
+ *
+ * Usage: AvailabilityShardBenchmark [agents] [seconds] [write latency ms]
+ */
+public class AvailabilityShardBenchmark {
+    private static final int MEASUREMENTS_PER_AGENT = 2000;
+    private static final int REPORT_SIZE = 200;
+    private static final long MAX = AvailabilityDataRLE.getLastTimestamp();
+    private static final Comparator<AvailabilityDataRLE> STARTIME_COMPARATOR =
+        new Comparator<AvailabilityDataRLE>() {
+            public int compare(AvailabilityDataRLE lhs, AvailabilityDataRLE rhs) {
+                return (lhs.getStartime() < rhs.getStartime()) ? -1
+                    : (lhs.getStartime() == rhs.getStartime()) ? 0 : 1;
+            }
+        };
+
+    public static void main(String[] args) throws Exception {
+        final int agents = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        final long millis = ((args.length > 1) ? Integer.parseInt(args[1]) : 10) * 1000l;
+        final long latency = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+        System.out.println("Benchmarking " + agents + " agents for " + (millis / 1000) +
+                           " seconds with " + latency + "ms per batched write");
+        for (final boolean sharded : new boolean[] {false, true}) {
+            final long points = run(agents, millis, latency, sharded);
+            System.out.println((sharded ? "sharded" : "global lock") + " points/s=" +
+                               (points * 1000 / millis));
+        }
+    }
+
+    private static long run(int agents, long millis, final long latency, final boolean sharded)
+        throws InterruptedException {
+        final AvailabilityCache cache = new AvailabilityCache();
+        final AtomicLong points = new AtomicLong();
+        final long end = System.currentTimeMillis() + millis;
+        final CountDownLatch done = new CountDownLatch(agents);
+        for (int a = 0; a < agents; a++) {
+            final int first = a * MEASUREMENTS_PER_AGENT;
+            final Random rand = new Random(a);
+            new Thread() {
+                public void run() {
+                    long now = 0;
+                    long n = 0;
+                    while (System.currentTimeMillis() < end) {
+                        final List<DataPoint> report = new ArrayList<DataPoint>(REPORT_SIZE);
+                        for (int i = 0; i < REPORT_SIZE; i++) {
+                            final int mid = first + rand.nextInt(MEASUREMENTS_PER_AGENT);
+                            // mostly unchanged states, as reported by healthy resources
+                            final double val = (rand.nextInt(20) == 0) ? 0 : 1;
+                            report.add(new DataPoint(mid, val, now + i));
+                        }
+                        now += REPORT_SIZE;
+                        try {
+                            addData(cache, report, latency, sharded);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        n += REPORT_SIZE;
+                    }
+                    points.addAndGet(n);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return points.get();
+    }
+
+    private static void addData(AvailabilityCache cache, List<DataPoint> report, long latency,
+                                boolean sharded) throws InterruptedException {
+        if (!sharded) {
+            cache.lockAllShards();
+            try {
+                addShardData(cache, report, latency);
+            } finally {
+                cache.unlockAllShards();
+            }
+            return;
+        }
+        final List<List<DataPoint>> shards = new ArrayList<List<DataPoint>>(AvailabilityCache.SHARDS);
+        for (int i = 0; i < AvailabilityCache.SHARDS; i++) {
+            shards.add(new ArrayList<DataPoint>());
+        }
+        for (final DataPoint pt : report) {
+            shards.get(AvailabilityCache.getShard(pt.getMeasurementId())).add(pt);
+        }
+        cache.lockShared();
+        try {
+            for (int i = 0; i < AvailabilityCache.SHARDS; i++) {
+                if (shards.get(i).isEmpty()) {
+                    continue;
+                }
+                cache.lockShard(i);
+                try {
+                    addShardData(cache, shards.get(i), latency);
+                } finally {
+                    cache.unlockShard(i);
+                }
+            }
+        } finally {
+            cache.unlockShared();
+        }
+    }
+
+    private static void addShardData(AvailabilityCache cache, List<DataPoint> points, long latency)
+        throws InterruptedException {
+        cache.beginTran();
+        try {
+            final AvailabilityRLEChanges changes = new AvailabilityRLEChanges();
+            for (final DataPoint pt : points) {
+                final Integer mid = pt.getMeasurementId();
+                final Measurement meas = new Measurement();
+                meas.setId(mid);
+                final TreeSet<AvailabilityDataRLE> rles =
+                    new TreeSet<AvailabilityDataRLE>(STARTIME_COMPARATOR);
+                final DataPoint open = cache.getOpenAvail(mid);
+                if (open != null) {
+                    rles.add(new AvailabilityDataRLE(meas, open.getTimestamp(), MAX, open.getValue()));
+                }
+                changes.read(mid, rles);
+                if (open == null) {
+                    rles.add(new AvailabilityDataRLE(meas, pt.getTimestamp(), MAX, pt.getValue()));
+                } else if (open.getValue() != pt.getValue()) {
+                    rles.first().setEndtime(pt.getTimestamp());
+                    rles.add(new AvailabilityDataRLE(meas, pt.getTimestamp(), MAX, pt.getValue()));
+                }
+                changes.merged(mid, rles);
+                final AvailabilityDataRLE last = rles.last();
+                cache.putOpenAvail(mid, new DataPoint(mid, last.getAvailVal(), last.getStartime()));
+                cache.put(mid, pt);
+            }
+            if (!changes.isEmpty()) {
+                // one round trip per statement batch
+                Thread.sleep(latency);
+            }
+            cache.commitTran();
+        } catch (InterruptedException e) {
+            cache.rollbackTran();
+            throw e;
+        }
+    }
+}
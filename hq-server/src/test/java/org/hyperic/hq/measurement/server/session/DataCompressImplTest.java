@@ -0,0 +1,257 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+public class DataCompressImplTest extends TestCase {
+
+    private static final long HOUR = MeasurementConstants.HOUR;
+    private static final long SIX_HOUR = MeasurementConstants.SIX_HOUR;
+    private static final long NOW = 100 * HOUR;
+
+    private StubDataCompressionDAO dao;
+    private DataCompressImpl dataCompress;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        dao = new StubDataCompressionDAO();
+        dataCompress = new DataCompressImpl(dao, new ConcurrentStatsCollector(null, null));
+        dataCompress.initialize();
+    }
+
+    public void tearDown() throws Exception {
+        dataCompress.shutdown();
+        super.tearDown();
+    }
+
+    public void testSlicesCoverAllMeasurementIds() {
+        dao.range = new long[] { 1, 80 };
+        dataCompress.compressData(HOUR, NOW, 10 * HOUR, 11 * HOUR);
+        final List<long[]> slices = dao.getCompacted();
+        assertEquals(8, slices.size());
+        assertEquals(Integer.MIN_VALUE, slices.get(0)[0]);
+        for (int i = 1; i < slices.size(); i++) {
+            assertEquals(1 + (i * 10), slices.get(i)[0]);
+            assertEquals(slices.get(i)[0], slices.get(i - 1)[1]);
+        }
+        assertEquals(Integer.MAX_VALUE + 1l, slices.get(7)[1]);
+    }
+
+    public void testFewerSlicesThanMeasurementIds() {
+        dao.range = new long[] { 5, 7 };
+        dataCompress.compressData(HOUR, NOW, 10 * HOUR, 11 * HOUR);
+        final List<long[]> slices = dao.getCompacted();
+        assertEquals(3, slices.size());
+        assertSlice(Integer.MIN_VALUE, 6, slices.get(0));
+        assertSlice(6, 7, slices.get(1));
+        assertSlice(7, Integer.MAX_VALUE + 1l, slices.get(2));
+    }
+
+    public void testSingleMeasurementId() {
+        dao.range = new long[] { 5, 5 };
+        dataCompress.compressData(SIX_HOUR, NOW, 0, SIX_HOUR);
+        final List<long[]> slices = dao.getCompacted();
+        assertEquals(1, slices.size());
+        assertSlice(Integer.MIN_VALUE, Integer.MAX_VALUE + 1l, slices.get(0));
+        assertEquals("rollup:" + MeasurementConstants.TAB_DATA_1H, dao.fromTable);
+    }
+
+    public void testCompactedSlicesAreSkipped() {
+        dao.range = new long[] { 1, 80 };
+        dao.compacted.add(key(10 * HOUR, 11));
+        dao.compacted.add(key(10 * HOUR, 51));
+        dataCompress.compressData(HOUR, NOW, 10 * HOUR, 11 * HOUR);
+        final List<long[]> slices = dao.getCompacted();
+        assertEquals(6, slices.size());
+        for (final long[] slice : slices) {
+            assertTrue(slice[0] != 11 && slice[0] != 51);
+        }
+        // once the interval is done nothing is compacted again
+        dao.compactedSlices.clear();
+        dataCompress.compressData(HOUR, NOW, 10 * HOUR, 11 * HOUR);
+        assertTrue(dao.getCompacted().isEmpty());
+    }
+
+    public void testLastIntervalIsRevisitedAfterStartup() {
+        dao.maxTimestamp = 12 * HOUR;
+        assertEquals(12 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        assertEquals(13 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        // each interval is revisited on its own
+        assertEquals(12 * HOUR, dataCompress.getCompressionStartTime(SIX_HOUR, NOW));
+        assertEquals(18 * HOUR, dataCompress.getCompressionStartTime(SIX_HOUR, NOW));
+    }
+
+    public void testFirstCompressionStartsAtTheOldestData() {
+        dao.minTimestamp = 10 * HOUR + 5;
+        assertEquals(10 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        dao.minTimestamp = 0;
+        assertEquals(0, dataCompress.getCompressionStartTime(HOUR, NOW));
+    }
+
+    public void testFailedSliceIsRetriedOnTheNextRun() {
+        dao.range = new long[] { 1, 80 };
+        dao.maxTimestamp = 10 * HOUR;
+        assertEquals(10 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        dao.failing.add(key(11 * HOUR, 21));
+        dataCompress.compressData(HOUR, NOW, 11 * HOUR, 12 * HOUR);
+        assertEquals(7, dao.getCompacted().size());
+        // the later intervals succeed
+        dataCompress.compressData(HOUR, NOW, 12 * HOUR, 13 * HOUR);
+        dao.maxTimestamp = 12 * HOUR;
+        assertEquals(11 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+
+        // only the failed slice is compacted by the retry
+        dao.failing.clear();
+        dao.compactedSlices.clear();
+        dataCompress.compressData(HOUR, NOW, 11 * HOUR, 12 * HOUR);
+        final List<long[]> slices = dao.getCompacted();
+        assertEquals(1, slices.size());
+        assertSlice(21, 31, slices.get(0));
+        assertEquals(13 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+    }
+
+    public void testFailedSliceIsGivenUpAfterRetries() {
+        dao.range = new long[] { 1, 80 };
+        dao.maxTimestamp = 12 * HOUR;
+        assertEquals(12 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        dao.failing.add(key(11 * HOUR, 21));
+        dataCompress.compressData(HOUR, NOW, 11 * HOUR, 12 * HOUR);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(11 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+            dataCompress.compressData(HOUR, NOW, 11 * HOUR, 12 * HOUR);
+        }
+        assertEquals(13 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        assertEquals(13 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+    }
+
+    public void testFirstFailedIntervalIsRetriedFirst() {
+        dao.range = new long[] { 1, 80 };
+        dao.maxTimestamp = 20 * HOUR;
+        assertEquals(20 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        dao.failing.add(key(15 * HOUR, Integer.MIN_VALUE));
+        dao.failing.add(key(13 * HOUR, 71));
+        dataCompress.compressData(HOUR, NOW, 13 * HOUR, 14 * HOUR);
+        dataCompress.compressData(HOUR, NOW, 15 * HOUR, 16 * HOUR);
+        assertEquals(13 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+        dao.failing.remove(key(13 * HOUR, 71));
+        dataCompress.compressData(HOUR, NOW, 13 * HOUR, 14 * HOUR);
+        assertEquals(15 * HOUR, dataCompress.getCompressionStartTime(HOUR, NOW));
+    }
+
+    private static String key(long begin, long minId) {
+        return begin + ":" + minId;
+    }
+
+    private static void assertSlice(long min, long max, long[] slice) {
+        assertEquals(min, slice[0]);
+        assertEquals(max, slice[1]);
+    }
+
+    /**
+     * Keeps track of the compacted slices in memory, slices are identified by
+     * their interval and minimum measurement id.
+     */
+    private static class StubDataCompressionDAO extends DataCompressionDAO {
+        long[] range = { 1, 80 };
+        long minTimestamp;
+        long maxTimestamp;
+        volatile String fromTable;
+        final Set<String> compacted = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+        final List<long[]> compactedSlices = Collections.synchronizedList(new ArrayList<long[]>());
+
+        StubDataCompressionDAO() {
+            super(null, null);
+        }
+
+        List<long[]> getCompacted() {
+            final List<long[]> rtn = new ArrayList<long[]>(compactedSlices);
+            Collections.sort(rtn, new Comparator<long[]>() {
+                public int compare(long[] o1, long[] o2) {
+                    return (o1[0] < o2[0]) ? -1 : ((o1[0] == o2[0]) ? 0 : 1);
+                }
+            });
+            return rtn;
+        }
+
+        @Override
+        public long[] getMeasurementIdRange() {
+            return range;
+        }
+
+        @Override
+        public boolean hasCompactedData(String toTable, long begin, long minId, long maxId) {
+            return compacted.contains(key(begin, minId));
+        }
+
+        @Override
+        public void compactData(String fromTable, String toTable, long begin, long end,
+                                long minId, long maxId) {
+            if (failing.contains(key(begin, minId))) {
+                throw new IllegalStateException("compact failed");
+            }
+            this.fromTable = fromTable;
+            compacted.add(key(begin, minId));
+            compactedSlices.add(new long[] { minId, maxId });
+        }
+
+        @Override
+        public long getMaxTimestamp(String dataTable) {
+            return maxTimestamp;
+        }
+
+        @Override
+        public long getMinTimestamp(String dataTable) {
+            return minTimestamp;
+        }
+
+        @Override
+        public String getMeasurementUnionStatement(long begin) {
+            return "union";
+        }
+
+        @Override
+        public String getMeasurementUnionStatement(long begin, long end) {
+            return "union";
+        }
+
+        @Override
+        public String getRollupUnionStatement(String rollupTable, long begin, long end) {
+            return "rollup:" + rollupTable;
+        }
+    }
+}
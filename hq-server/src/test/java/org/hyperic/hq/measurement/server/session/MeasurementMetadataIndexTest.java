@@ -0,0 +1,96 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+
+public class MeasurementMetadataIndexTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private MeasurementMetadataIndex index;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        index = new MeasurementMetadataIndex(null, null, 10 * MINUTE);
+    }
+
+    public void testPutAndGet() throws Exception {
+        index.put(newService(1, 10, 100), index.getGeneration());
+        MeasurementMetadataIndex.Metadata m = index.get(1);
+        assertNotNull(m);
+        assertEquals(1, m.getMeasurementId());
+        assertEquals(10, m.getResourceId());
+        assertEquals(5, m.getAgentId());
+        assertEquals(AppdefEntityID.newServiceID(100), m.getEntityId());
+        assertEquals(MINUTE, m.getInterval());
+        assertTrue(m.isEnabled());
+        assertFalse(m.isAvailability());
+        assertFalse(m.isAsyncDeleted());
+        assertNull(index.get(2));
+    }
+
+    public void testStaleLoadIsNotAdded() throws Exception {
+        final long gen = index.getGeneration();
+        index.remove(Collections.singletonList(1));
+        index.put(newService(1, 10, 100), gen);
+        assertNull(index.get(1));
+    }
+
+    public void testInvalidatePlatformRemovesDescendants() throws Exception {
+        index.put(newService(1, 10, 100), index.getGeneration());
+        index.put(new MeasurementMetadataIndex.Metadata(2, 11, 6, AppdefEntityID.newServiceID(101),
+            21, 31, MINUTE, true, false, false), index.getGeneration());
+        index.invalidate(Collections.singletonList(AppdefEntityID.newPlatformID(30)));
+        assertNull(index.get(1));
+        assertNotNull(index.get(2));
+        index.invalidate(Collections.singletonList(AppdefEntityID.newServiceID(101)));
+        assertNull(index.get(2));
+        assertEquals(0, index.size());
+    }
+
+    public void testGrowAndPurge() throws Exception {
+        for (int i = 1; i <= 10000; i++) {
+            index.put(newService(i, i, i), index.getGeneration());
+        }
+        assertEquals(10000, index.size());
+        for (int i = 1; i <= 10000; i++) {
+            assertEquals(i, index.get(i).getResourceId());
+        }
+        index.purge(System.currentTimeMillis() + 11 * MINUTE);
+        assertEquals(0, index.size());
+        assertNull(index.get(1));
+    }
+
+    private MeasurementMetadataIndex.Metadata newService(int mid, int resourceId, int serviceId) {
+        return new MeasurementMetadataIndex.Metadata(mid, resourceId, 5,
+            AppdefEntityID.newServiceID(serviceId), 20, 30, MINUTE, true, false, false);
+    }
+}
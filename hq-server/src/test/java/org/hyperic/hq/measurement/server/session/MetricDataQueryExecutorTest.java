@@ -0,0 +1,195 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.common.SystemException;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+public class MetricDataQueryExecutorTest extends TestCase {
+
+    private static final String PROP_THREADS = "org.hq.metric.query.threads";
+    private static final String PROP_QUEUE_CAPACITY = "org.hq.metric.query.queue.capacity";
+
+    private MetricDataQueryExecutor executor;
+    // counted down by the blocking queries once they run
+    private final CountDownLatch started = new CountDownLatch(1);
+    // counted down by each query which is interrupted by a cancel
+    private CountDownLatch interrupted;
+
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        System.clearProperty(PROP_THREADS);
+        System.clearProperty(PROP_QUEUE_CAPACITY);
+        super.tearDown();
+    }
+
+    private void start(int threads, int queueCapacity) {
+        System.setProperty(PROP_THREADS, String.valueOf(threads));
+        System.setProperty(PROP_QUEUE_CAPACITY, String.valueOf(queueCapacity));
+        executor = new MetricDataQueryExecutor(new ConcurrentStatsCollector(null, null));
+        executor.initialize();
+    }
+
+    public void testResultsOfAllQueries() throws Exception {
+        start(2, 10);
+        final List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 5; i++) {
+            queries.add(value(i));
+        }
+        final List<Integer> rtn = executor.invokeAll(queries, 2, 10000);
+        Collections.sort(rtn);
+        assertEquals(5, rtn.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(new Integer(i), rtn.get(i));
+        }
+    }
+
+    public void testFailedQueryCancelsTheOthers() throws Exception {
+        interrupted = new CountDownLatch(1);
+        final List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        queries.add(blocking());
+        queries.add(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                // fail while the other query is running
+                started.await();
+                throw new IllegalStateException("query failed");
+            }
+        });
+        start(2, 1);
+        try {
+            executor.invokeAll(queries, 2, 10000);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("query failed", e.getMessage());
+        }
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testQueryWhichMissesTheDeadlineIsCancelled() throws Exception {
+        interrupted = new CountDownLatch(1);
+        final List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        queries.add(blocking());
+        start(1, 1);
+        final long start = System.currentTimeMillis();
+        try {
+            executor.invokeAll(queries, 1, 500);
+            fail("Expected SystemException");
+        } catch (SystemException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("did not complete within 500 ms") >= 0);
+        }
+        assertTrue(System.currentTimeMillis() - start >= 500);
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        // the pool is free for the next request
+        assertEquals(Collections.singletonList(new Integer(1)),
+                     executor.invokeAll(Collections.singletonList(value(1)), 1, 10000));
+    }
+
+    public void testQueryIsRejectedWhenTheQueueIsFull() throws Exception {
+        interrupted = new CountDownLatch(1);
+        start(1, 1);
+        // another request takes the only thread until its deadline
+        final Thread other = new Thread() {
+            public void run() {
+                try {
+                    executor.invokeAll(Collections.singletonList(blocking()), 1, 500);
+                } catch (SystemException e) {
+                    // expected outcome
+                }
+            }
+        };
+        other.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the first query takes the only slot in the queue, the second one
+        // is rejected
+        final AtomicInteger ran = new AtomicInteger();
+        final List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        queries.add(counted(ran));
+        queries.add(counted(ran));
+        try {
+            executor.invokeAll(queries, 2, 10000);
+            fail("Expected SystemException");
+        } catch (SystemException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("too many metric data queries") >= 0);
+        }
+        other.join(10000);
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        // the queued query was cancelled along with the request, the thread
+        // skips it once it is free
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((executor.getQueueSize() > 0 || executor.getActiveCount() > 0) &&
+               System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getQueueSize());
+        assertEquals(0, ran.get());
+    }
+
+    private Callable<Integer> counted(final AtomicInteger ran) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                return new Integer(ran.incrementAndGet());
+            }
+        };
+    }
+
+    private Callable<Integer> value(final int i) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                return new Integer(i);
+            }
+        };
+    }
+
+    /**
+     * @return a query which runs until it is interrupted
+     */
+    private Callable<Integer> blocking() {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(60 * 1000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return new Integer(-1);
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.shared.MetricDataRowHandler;
+import org.hyperic.hq.product.MetricValue;
+
+public class MetricDataRowMergerTest extends TestCase {
+
+    private final List<String> rows = new ArrayList<String>();
+
+    private final MetricDataRowHandler handler = new MetricDataRowHandler() {
+        public void handleRow(long timestamp, double[] values) {
+            rows.add(timestamp + "=" + Arrays.toString(values));
+        }
+    };
+
+    private static MetricDataRowMerger.Source source(int column, long... timestamps) {
+        List<MetricValue> values = new ArrayList<MetricValue>();
+        for (long timestamp : timestamps) {
+            values.add(new MetricValue(timestamp * 10 + column, timestamp));
+        }
+        return new MetricDataRowMerger.ListSource(values, column);
+    }
+
+    public void testMergeByTimestamp() throws Exception {
+        assertEquals(4, MetricDataRowMerger.merge(
+            Arrays.asList(source(0, 1, 3), source(2, 2, 3, 4), source(1)), 3, handler));
+        assertEquals(Arrays.asList("1=[10.0, NaN, NaN]",
+                                   "2=[NaN, NaN, 22.0]",
+                                   "3=[30.0, NaN, 32.0]",
+                                   "4=[NaN, NaN, 42.0]"), rows);
+    }
+
+    public void testSourceWithSeveralColumns() throws Exception {
+        final long[][] values = {{1, 0}, {1, 1}, {2, 1}, {5, 0}};
+        MetricDataRowMerger.Source multi = new MetricDataRowMerger.Source() {
+            int i = 0;
+
+            boolean next() {
+                if (i == values.length) {
+                    return false;
+                }
+                set(values[i][0], (int) values[i][1], i);
+                i++;
+                return true;
+            }
+        };
+        assertEquals(3, MetricDataRowMerger.merge(Arrays.asList(multi, source(2, 2, 5)), 3,
+            handler));
+        assertEquals(Arrays.asList("1=[0.0, 1.0, NaN]",
+                                   "2=[NaN, 2.0, 22.0]",
+                                   "5=[3.0, NaN, 52.0]"), rows);
+    }
+
+    public void testNoSources() throws Exception {
+        assertEquals(0, MetricDataRowMerger.merge(new ArrayList<MetricDataRowMerger.Source>(), 2,
+            handler));
+        assertTrue(rows.isEmpty());
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RecentMetricDataStoreTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long BUCKET = 5 * MINUTE;
+
+    private long now;
+    private long start;
+    private RecentMetricDataStore store;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        now = (System.currentTimeMillis() / (10 * MINUTE)) * 10 * MINUTE;
+        start = now - 2 * HOUR;
+        store = new RecentMetricDataStore(null, null, 8 * HOUR, BUCKET, 1000, start - HOUR);
+    }
+
+    public void testAggregatesBucketsLikeTheRawDataQuery() throws Exception {
+        List<DataPoint> pts = new ArrayList<DataPoint>();
+        // the buckets are inserted out of order, e.g. by a backlogged agent
+        for (long b = now; b >= start; b -= BUCKET) {
+            for (long t = b; t < b + BUCKET && t <= now; t += MINUTE) {
+                pts.add(new DataPoint(1, t % 7, t));
+                pts.add(new DataPoint(2, 100 + (t % 5), t));
+            }
+        }
+        store.add(pts);
+
+        // the windows line up with the buckets, so the answer is exact
+        long windowSize = 10 * MINUTE;
+        int windows = (int) ((now - start) / windowSize);
+        long[] timestamps = new long[windows];
+        double[] sums = new double[windows];
+        double[] mins = new double[windows];
+        double[] maxs = new double[windows];
+        int[] counts = new int[windows];
+        assertTrue(store.aggregate(new Integer[] {1, 2, 3}, start, now, windowSize,
+                                   timestamps, sums, mins, maxs, counts));
+
+        double[] expSums = new double[windows];
+        double[] expMins = new double[windows];
+        double[] expMaxs = new double[windows];
+        int[] expCounts = new int[windows];
+        for (DataPoint pt : pts) {
+            int window = (int) (windows - ((now - pt.getTimestamp()) / (float) windowSize));
+            if (window < 0 || window >= windows) {
+                continue;
+            }
+            double val = pt.getValue();
+            expMins[window] = (expCounts[window] == 0) ? val : Math.min(expMins[window], val);
+            expMaxs[window] = (expCounts[window] == 0) ? val : Math.max(expMaxs[window], val);
+            expSums[window] += val;
+            expCounts[window]++;
+        }
+        for (int i = 0; i < windows; i++) {
+            assertEquals(start + i * windowSize, timestamps[i]);
+            assertEquals(expCounts[i], counts[i]);
+            assertEquals(expSums[i], sums[i], 0.0001);
+            assertEquals(expMins[i], mins[i], 0.0001);
+            assertEquals(expMaxs[i], maxs[i], 0.0001);
+        }
+    }
+
+    public void testIntervalShorterThanBucketGoesToDB() throws Exception {
+        store.add(Collections.singletonList(new DataPoint(1, 1.0, start)));
+        int windows = (int) ((now - start) / MINUTE);
+        assertFalse(store.aggregate(new Integer[] {1}, start, now, MINUTE, new long[windows],
+                                    new double[windows], new double[windows],
+                                    new double[windows], new int[windows]));
+    }
+
+    public void testUnalignedRangeGoesToDB() throws Exception {
+        store.add(Collections.singletonList(new DataPoint(1, 1.0, start)));
+        // start is not on a bucket boundary
+        assertFalse(store.aggregate(new Integer[] {1}, start + MINUTE, now + MINUTE, HOUR,
+                                    new long[2], new double[2], new double[2], new double[2],
+                                    new int[2]));
+        // the window is not made of whole buckets
+        int windows = (int) ((now - start) / (7 * MINUTE));
+        assertFalse(store.aggregate(new Integer[] {1}, start, start + windows * 7 * MINUTE,
+                                    7 * MINUTE, new long[windows], new double[windows],
+                                    new double[windows], new double[windows], new int[windows]));
+        // the range is not a whole number of windows
+        assertFalse(store.aggregate(new Integer[] {1}, start, now + BUCKET, HOUR,
+                                    new long[2], new double[2], new double[2], new double[2],
+                                    new int[2]));
+        assertTrue(store.aggregate(new Integer[] {1}, start, now, HOUR,
+                                   new long[2], new double[2], new double[2], new double[2],
+                                   new int[2]));
+    }
+
+    public void testDuplicateInBatchGoesToDB() throws Exception {
+        List<DataPoint> pts = new ArrayList<DataPoint>();
+        pts.add(new DataPoint(1, 1.0, start));
+        pts.add(new DataPoint(1, 1.0, start));
+        pts.add(new DataPoint(1, 2.0, start + BUCKET));
+        store.add(pts);
+        assertFalse(store.aggregate(new Integer[] {1}, start, start + HOUR, HOUR,
+                                    new long[1], new double[1], new double[1], new double[1],
+                                    new int[1]));
+        double[] sums = new double[1];
+        int[] counts = new int[1];
+        assertTrue(store.aggregate(new Integer[] {1}, start + BUCKET, start + BUCKET + HOUR, HOUR,
+                                   new long[1], sums, new double[1], new double[1], counts));
+        assertEquals(1, counts[0]);
+        assertEquals(2.0, sums[0], 0);
+    }
+
+    public void testUpsertedValueGoesToDB() throws Exception {
+        store.add(Collections.singletonList(new DataPoint(1, 1.0, start)));
+        store.add(Collections.singletonList(new DataPoint(1, 1.5, start + MINUTE)));
+        // the insert of an earlier timestamp of the bucket replaced a row in the
+        // DB, e.g. through ON DUPLICATE KEY UPDATE
+        store.add(Collections.singletonList(new DataPoint(1, 3.0, start)));
+        assertFalse(store.aggregate(new Integer[] {1}, start, start + HOUR, HOUR,
+                                    new long[1], new double[1], new double[1], new double[1],
+                                    new int[1]));
+    }
+
+    public void testOverwrittenBucketGoesToDB() throws Exception {
+        store.add(Collections.singletonList(new DataPoint(1, 1.0, start)));
+        store.add(Collections.singletonList(new DataPoint(1, 2.0, start + BUCKET)));
+        // the old value can't be taken out of the bucket
+        store.overwrite(Collections.singletonList(new DataPoint(1, 5.0, start)));
+        store.add(Collections.singletonList(new DataPoint(1, 5.0, start)));
+        assertFalse(store.aggregate(new Integer[] {1}, start, start + HOUR, HOUR,
+                                    new long[1], new double[1], new double[1], new double[1],
+                                    new int[1]));
+        double[] sums = new double[1];
+        int[] counts = new int[1];
+        assertTrue(store.aggregate(new Integer[] {1}, start + BUCKET, start + BUCKET + HOUR, HOUR,
+                                   new long[1], sums, new double[1], new double[1], counts));
+        assertEquals(1, counts[0]);
+        assertEquals(2.0, sums[0], 0);
+    }
+
+    public void testRangeBeforeCoverageGoesToDB() throws Exception {
+        assertFalse(store.covers(start - 2 * HOUR));
+        assertFalse(store.covers(now - 9 * HOUR));
+        assertTrue(store.covers(start));
+    }
+
+    public void testPurgeDropsOldData() throws Exception {
+        store.add(Collections.singletonList(new DataPoint(1, 1.0, start)));
+        store.add(Collections.singletonList(new DataPoint(2, 1.0, now)));
+        store.purge(start + BUCKET);
+        assertEquals(1, store.getNumMeasurements());
+        store.purge(now + BUCKET);
+        assertEquals(0, store.getNumMeasurements());
+        // the purged series is recreated on the next insert
+        store.add(Collections.singletonList(new DataPoint(2, 1.0, now)));
+        assertEquals(1, store.getNumMeasurements());
+    }
+
+    public void testMemoryIsBounded() throws Exception {
+        store = new RecentMetricDataStore(null, null, HOUR, BUCKET, 10, start - HOUR);
+        assertEquals(13, store.getNumBuckets());
+        assertEquals(10L * 13 * 44, store.getMaxBytes());
+        // a point every 10 seconds for 20 measurements, running far enough
+        // ahead to go around the ring several times
+        List<DataPoint> pts = new ArrayList<DataPoint>();
+        for (long t = now - HOUR; t < now + 4 * HOUR; t += 10 * 1000) {
+            for (int mid = 0; mid < 20; mid++) {
+                pts.add(new DataPoint(mid, 1.0, t));
+            }
+        }
+        store.add(pts);
+        assertEquals(10, store.getNumMeasurements());
+        int held = 0;
+        for (int mid = 0; mid < 20; mid++) {
+            int capacity = store.getCapacity(mid);
+            if (capacity != 0) {
+                assertEquals(13, capacity);
+                held++;
+            }
+        }
+        assertEquals(10, held);
+        // the newest hour is still answered from the recycled buckets
+        Integer[] mids = new Integer[20];
+        for (int mid = 0; mid < 20; mid++) {
+            mids[mid] = mid;
+        }
+        int[] counts = new int[1];
+        assertTrue(store.aggregate(new Integer[] {0}, now + 3 * HOUR, now + 4 * HOUR, HOUR,
+                                   new long[1], new double[1], new double[1], new double[1],
+                                   counts));
+        assertEquals(360, counts[0]);
+        assertFalse(store.aggregate(mids, now + 3 * HOUR, now + 4 * HOUR, HOUR,
+                                    new long[1], new double[1], new double[1], new double[1],
+                                    new int[1]));
+    }
+
+    public void testFullStoreCannotAnswerForMissingMeasurements() throws Exception {
+        store = new RecentMetricDataStore(null, null, 8 * HOUR, BUCKET, 1, start - HOUR);
+        store.add(Collections.singletonList(new DataPoint(1, 1.0, start)));
+        store.add(Collections.singletonList(new DataPoint(2, 1.0, start)));
+        assertTrue(store.aggregate(new Integer[] {1}, start, now, HOUR,
+                                   new long[2], new double[2], new double[2], new double[2], new int[2]));
+        assertFalse(store.aggregate(new Integer[] {1, 2}, start, now, HOUR,
+                                    new long[2], new double[2], new double[2], new double[2], new int[2]));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.MeasRange;
+
+public class RollupTabManagerTest extends TestCase {
+
+    private static final String TAB_DATA_1H = MeasurementConstants.TAB_DATA_1H;
+    private static final String COMPAT = TAB_DATA_1H + RollupTabManager.COMPAT_SUFFIX;
+    private static final long DAY = MeasurementConstants.DAY;
+
+    private RollupTabManager manager;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        manager = new RollupTabManager();
+    }
+
+    private long start(long index) {
+        return RollupTabManager.getPartitionStartTime(TAB_DATA_1H, index);
+    }
+
+    public void testNotPartitioned() {
+        assertFalse(manager.isPartitioned(TAB_DATA_1H));
+        assertEquals(TAB_DATA_1H, manager.getTable(TAB_DATA_1H, start(100)));
+        assertEquals(TAB_DATA_1H, manager.getUnionStatement(TAB_DATA_1H, 0, start(100)));
+        assertTrue(Arrays.equals(new String[] { TAB_DATA_1H },
+                                 manager.getTables(TAB_DATA_1H, 0, start(100))));
+    }
+
+    public void testPartitionNames() {
+        assertEquals(DAY, RollupTabManager.getPartitionLength(TAB_DATA_1H));
+        assertEquals(100, RollupTabManager.getPartitionIndex(TAB_DATA_1H, start(100)));
+        assertEquals(100, RollupTabManager.getPartitionIndex(TAB_DATA_1H, start(101) - 1));
+        assertEquals("EAM_MEASUREMENT_DATA_1H_100",
+                     RollupTabManager.getPartitionTable(TAB_DATA_1H, 100));
+        assertEquals(100, RollupTabManager.getPartitionIndex(TAB_DATA_1H,
+                                                             "eam_measurement_data_1h_100"));
+        assertEquals(-1, RollupTabManager.getPartitionIndex(TAB_DATA_1H, COMPAT));
+        assertEquals(-1, RollupTabManager.getPartitionIndex(TAB_DATA_1H,
+                                                            MeasurementConstants.TAB_DATA_1D + "_1"));
+    }
+
+    public void testRollupTableOfStatements() {
+        manager.setPartitions(TAB_DATA_1H, Arrays.asList(new String[] { "EAM_MEASUREMENT_DATA_1H_100" }));
+        assertEquals(TAB_DATA_1H, RollupTabManager.getRollupTable(
+            manager.getUnionStatement(TAB_DATA_1H, start(100), start(100) + 1)));
+        assertEquals(TAB_DATA_1H, RollupTabManager.getRollupTable(COMPAT));
+        assertEquals(TAB_DATA_1H, RollupTabManager.getRollupTable(TAB_DATA_1H));
+        assertNull(RollupTabManager.getRollupTable("HQ_METRIC_DATA_0D_0S"));
+        assertNull(RollupTabManager.getRollupTable("(SELECT * FROM HQ_METRIC_DATA_0D_0S) " +
+                                                   MeasurementConstants.TAB_DATA));
+    }
+
+    public void testCompatPrecedesPartitions() {
+        manager.setPartitions(TAB_DATA_1H, Arrays.asList(new String[] {
+            "EAM_MEASUREMENT_DATA_1H_101", "EAM_MEASUREMENT_DATA_1H_100", COMPAT, "OTHER" }));
+        assertEquals(Arrays.asList(new String[] { COMPAT, "EAM_MEASUREMENT_DATA_1H_100",
+                                                  "EAM_MEASUREMENT_DATA_1H_101" }),
+                     manager.getViewTables(TAB_DATA_1H));
+        assertEquals(COMPAT, manager.getTable(TAB_DATA_1H, start(100) - 1));
+        assertEquals(-1, manager.getInsertPartition(TAB_DATA_1H, start(99)));
+        assertEquals("EAM_MEASUREMENT_DATA_1H_101", manager.getTable(TAB_DATA_1H, start(101)));
+        // not created yet
+        assertNull(manager.getTable(TAB_DATA_1H, start(102)));
+        assertEquals(102, manager.getInsertPartition(TAB_DATA_1H, start(102)));
+        manager.addPartition(TAB_DATA_1H, 102);
+        assertEquals("EAM_MEASUREMENT_DATA_1H_102", manager.getTable(TAB_DATA_1H, start(102)));
+    }
+
+    public void testRangesOnlyCoverOverlappingPartitions() {
+        manager.setPartitions(TAB_DATA_1H, Arrays.asList(new String[] {
+            "EAM_MEASUREMENT_DATA_1H_100", "EAM_MEASUREMENT_DATA_1H_101",
+            "EAM_MEASUREMENT_DATA_1H_102" }));
+        List<MeasRange> ranges = manager.getRanges(TAB_DATA_1H, start(101) + 10, start(102) + 10);
+        assertEquals(2, ranges.size());
+        assertEquals("EAM_MEASUREMENT_DATA_1H_101", ranges.get(0).getTable());
+        assertEquals(start(101) + 10, ranges.get(0).getMinTimestamp());
+        assertEquals(start(102) - 1, ranges.get(0).getMaxTimestamp());
+        assertEquals("EAM_MEASUREMENT_DATA_1H_102", ranges.get(1).getTable());
+        assertEquals(start(102), ranges.get(1).getMinTimestamp());
+        assertEquals(start(102) + 10, ranges.get(1).getMaxTimestamp());
+
+        ranges = manager.getRanges(TAB_DATA_1H, start(99), start(100));
+        assertEquals(2, ranges.size());
+        assertEquals(COMPAT, ranges.get(0).getTable());
+        assertEquals(start(100) - 1, ranges.get(0).getMaxTimestamp());
+
+        assertEquals("(SELECT * FROM EAM_MEASUREMENT_DATA_1H_102 WHERE timestamp between " +
+                     start(102) + " and " + (start(102) + 10) + ") " + TAB_DATA_1H,
+                     manager.getUnionStatement(TAB_DATA_1H, start(102), start(102) + 10));
+    }
+
+    public void testRetiredPartitionsAreHandedOutOnTheNextPurge() {
+        manager.setPartitions(TAB_DATA_1H, Arrays.asList(new String[] {
+            "EAM_MEASUREMENT_DATA_1H_100", "EAM_MEASUREMENT_DATA_1H_101",
+            "EAM_MEASUREMENT_DATA_1H_102" }));
+        assertTrue(manager.takeRetiredPartitions(TAB_DATA_1H).isEmpty());
+        // the partition which holds the cutoff stays
+        assertEquals(Arrays.asList(new String[] { "EAM_MEASUREMENT_DATA_1H_100" }),
+                     manager.retirePartitions(TAB_DATA_1H, start(102) - 2));
+        assertEquals(Arrays.asList(new String[] { "EAM_MEASUREMENT_DATA_1H_101" }),
+                     manager.retirePartitions(TAB_DATA_1H, start(102) - 1));
+        assertEquals(Arrays.asList(new String[] { COMPAT, "EAM_MEASUREMENT_DATA_1H_102" }),
+                     manager.getViewTables(TAB_DATA_1H));
+        // each partition is dropped before its marker
+        assertEquals(Arrays.asList(new String[] { "EAM_MEASUREMENT_DATA_1H_100",
+                                                  "EAM_MEASUREMENT_DATA_1H_100R",
+                                                  "EAM_MEASUREMENT_DATA_1H_101",
+                                                  "EAM_MEASUREMENT_DATA_1H_101R" }),
+                     manager.takeRetiredPartitions(TAB_DATA_1H));
+        assertTrue(manager.takeRetiredPartitions(TAB_DATA_1H).isEmpty());
+        // the compat table now covers the retired range
+        assertEquals(COMPAT, manager.getTable(TAB_DATA_1H, start(101)));
+    }
+
+    public void testRetiredPartitionsStayRetiredAfterRestart() {
+        // 100 was retired, 101 was dropped but not its marker
+        manager.setPartitions(TAB_DATA_1H, Arrays.asList(new String[] {
+            "eam_measurement_data_1h_100", "eam_measurement_data_1h_100r",
+            "EAM_MEASUREMENT_DATA_1H_101R", "EAM_MEASUREMENT_DATA_1H_102", COMPAT }));
+        assertEquals(Arrays.asList(new String[] { COMPAT, "EAM_MEASUREMENT_DATA_1H_102" }),
+                     manager.getViewTables(TAB_DATA_1H));
+        assertEquals(COMPAT, manager.getTable(TAB_DATA_1H, start(100)));
+        assertEquals(COMPAT, manager.getTable(TAB_DATA_1H, start(101)));
+        assertEquals(Arrays.asList(new String[] { "EAM_MEASUREMENT_DATA_1H_100",
+                                                  "EAM_MEASUREMENT_DATA_1H_100R",
+                                                  "EAM_MEASUREMENT_DATA_1H_101R" }),
+                     manager.takeRetiredPartitions(TAB_DATA_1H));
+        assertTrue(manager.takeRetiredPartitions(TAB_DATA_1H).isEmpty());
+        assertEquals(-1, RollupTabManager.getPartitionIndex(TAB_DATA_1H,
+                                                            "EAM_MEASUREMENT_DATA_1H_100R"));
+    }
+}
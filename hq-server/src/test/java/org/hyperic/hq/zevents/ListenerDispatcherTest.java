@@ -0,0 +1,187 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use Hyperic
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of Hyperic.
+ *
+ * Hyperic is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.zevents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.thread.ThreadWatchdog;
+
+public class ListenerDispatcherTest extends TestCase {
+
+    private ThreadWatchdog threadWatchdog;
+    private ConcurrentStatsCollector concurrentStatsCollector;
+    private ListenerDispatcher dispatcher;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        threadWatchdog = new ThreadWatchdog();
+        threadWatchdog.initialize();
+        concurrentStatsCollector = new ConcurrentStatsCollector(null, null);
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        threadWatchdog.destroy();
+    }
+
+    public void testEventsOfASourceStayInOrder() throws Exception {
+        final int sources = 10, perSource = 500;
+        final CountDownLatch done = new CountDownLatch(sources * perSource);
+        final Map<Integer, List<Integer>> received = new HashMap<Integer, List<Integer>>();
+        ZeventListener<Zevent> listener = new ZeventListener<Zevent>() {
+            public void processEvents(List<Zevent> events) {
+                synchronized (received) {
+                    for (Zevent e : events) {
+                        TestZevent z = (TestZevent) e;
+                        List<Integer> seqs = received.get(z.source);
+                        if (seqs == null) {
+                            seqs = new ArrayList<Integer>();
+                            received.put(z.source, seqs);
+                        }
+                        seqs.add(z.seq);
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        dispatcher = newDispatcher(listener, 4, 10000, true);
+        List<Zevent> batch = new ArrayList<Zevent>();
+        for (int seq = 0; seq < perSource; seq++) {
+            for (int source = 0; source < sources; source++) {
+                batch.add(new TestZevent(source, seq));
+            }
+            if (batch.size() >= 100) {
+                dispatcher.enqueue(batch);
+                batch = new ArrayList<Zevent>();
+            }
+        }
+        dispatcher.enqueue(batch);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (List<Integer> seqs : received.values()) {
+            for (int i = 0; i < seqs.size(); i++) {
+                assertEquals(i, seqs.get(i).intValue());
+            }
+        }
+        assertEquals(sources, received.size());
+    }
+
+    public void testSlowListenerDropsWhenFull() throws Exception {
+        final CountDownLatch busy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ZeventListener<Zevent> listener = new ZeventListener<Zevent>() {
+            public void processEvents(List<Zevent> events) {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // test is over
+                }
+            }
+        };
+        dispatcher = newDispatcher(listener, 1, 5, false);
+        List<Zevent> batch = new ArrayList<Zevent>();
+        batch.add(new TestZevent(0, 0));
+        dispatcher.enqueue(batch);
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+
+        batch = new ArrayList<Zevent>();
+        for (int i = 1; i <= 20; i++) {
+            batch.add(new TestZevent(0, i));
+        }
+        long start = System.currentTimeMillis();
+        dispatcher.enqueue(batch);
+        // the drop policy never waits for the listener
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(5, dispatcher.getQueueSize());
+        assertEquals(15, dispatcher.getNumDropped());
+        release.countDown();
+    }
+
+    public void testWorkerSurvivesError() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        ZeventListener<Zevent> listener = new ZeventListener<Zevent>() {
+            public void processEvents(List<Zevent> events) {
+                if (failed.getCount() > 0) {
+                    failed.countDown();
+                    throw new AssertionError("listener failed");
+                }
+                done.countDown();
+            }
+        };
+        dispatcher = newDispatcher(listener, 1, 10, true);
+        List<Zevent> batch = new ArrayList<Zevent>();
+        batch.add(new TestZevent(0, 0));
+        dispatcher.enqueue(batch);
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        batch = new ArrayList<Zevent>();
+        batch.add(new TestZevent(0, 1));
+        dispatcher.enqueue(batch);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private ListenerDispatcher newDispatcher(ZeventListener<Zevent> listener, int threads,
+                                             int queueSize, boolean block) {
+        return new ListenerDispatcher(new TimingListenerWrapper<Zevent>(listener),
+            Thread.currentThread().getThreadGroup(), threads, queueSize, 100, 60, block,
+            threadWatchdog, concurrentStatsCollector);
+    }
+
+    private static class TestSourceId implements ZeventSourceId {
+        private final int id;
+        private TestSourceId(int id) {
+            this.id = id;
+        }
+        public boolean equals(Object o) {
+            return (o instanceof TestSourceId) && ((TestSourceId) o).id == id;
+        }
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    private static class TestZevent extends Zevent {
+        private final Integer source;
+        private final int seq;
+        private TestZevent(int source, int seq) {
+            super(new TestSourceId(source), new NullPayload());
+            this.source = source;
+            this.seq = seq;
+            enterQueue();
+        }
+    }
+}
@@ -433,10 +433,9 @@ public class IntHashMap {
         int[] keys = new int[count];
         int i=0;
         for (int index = tab.length; --index >= 0;) {
-            if (tab[index] == null) {
-                continue;
+            for (Entry e = tab[index]; e != null; e = e.next) {
+                keys[i++] = e.key;
             }
-            keys[i++] = tab[index].key;
         }
         return keys;
     }
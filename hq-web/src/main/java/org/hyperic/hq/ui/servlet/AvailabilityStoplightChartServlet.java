@@ -25,6 +25,7 @@
 
 package org.hyperic.hq.ui.servlet;
 
+import java.util.Collections;
 import java.util.Iterator;
 
 import javax.servlet.ServletException;
@@ -70,6 +71,14 @@ public class AvailabilityStoplightChartServlet extends ChartServlet {
         return new AvailabilityReportChart();
     }
 
+    protected String getCacheKey(HttpServletRequest request) {
+        String scope = getUserScope(request);
+        if (scope == null) {
+            return null;
+        }
+        return scope + ChartRenderCache.getParameterKey(request, Collections.<String>emptySet());
+    }
+
     /* (non-Javadoc)
      * @see org.hyperic.hq.ui.servlet.ChartServlet#plotData(javax.servlet.http.HttpServletRequest)
      */
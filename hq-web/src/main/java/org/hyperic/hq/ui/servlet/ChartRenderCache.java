@@ -0,0 +1,282 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.ui.servlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hyperic.hq.common.DiagnosticObject;
+
+/**
+ * Holds the images rendered by the {@link ImageServlet}s so that charts
+ * which are refreshed by dashboards, or viewed by several browser tabs, are
+ * not queried and rendered again on every request.  Each image carries an
+ * ETag which is derived from its content, so a browser which revalidates an
+ * image gets a 304 even after the cache entry expired if the image rendered
+ * again is the same.
+ *
+ * The cache is bounded by the total number of bytes of the images, the least
+ * recently used images are evicted first.
+ */
+class ChartRenderCache implements DiagnosticObject {
+    private static final String PROP_MAX_BYTES = "org.hq.chart.cache.maxBytes";
+    private static final String PROP_TIMEOUT = "org.hq.chart.cache.timeoutSeconds";
+    private static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int DEFAULT_TIMEOUT = 60;
+
+    private static final ChartRenderCache INSTANCE = new ChartRenderCache(
+        Integer.getInteger(PROP_MAX_BYTES, DEFAULT_MAX_BYTES).intValue(),
+        Integer.getInteger(PROP_TIMEOUT, DEFAULT_TIMEOUT).intValue() * 1000l);
+
+    static class Entry {
+        private final byte[] image;
+        private final String contentType;
+        private final String eTag;
+        private final long lastModified;
+        private final long expires;
+
+        private Entry(byte[] image, String contentType, String eTag, long lastModified,
+                      long expires) {
+            this.image = image;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        byte[] getImage() {
+            return image;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return the time the image was first rendered with this content,
+         *         truncated to seconds as it is sent in the Last-Modified header
+         */
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final Object lock = new Object();
+    // access ordered for the LRU eviction
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private final long maxBytes;
+    private final long timeout;
+    // all guarded by lock
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long notModified = 0;
+    private long evictions = 0;
+    private long renders = 0;
+    private long renderTime = 0;
+    private long maxRenderTime = 0;
+
+    ChartRenderCache(long maxBytes, long timeout) {
+        this.maxBytes = maxBytes;
+        this.timeout = timeout;
+    }
+
+    static ChartRenderCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return how long a rendered image is served from the cache
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return the cached image, or null if it is not cached or has expired
+     */
+    Entry get(String key, long now) {
+        synchronized (lock) {
+            final Entry entry = entries.get(key);
+            if (entry == null || entry.expires <= now) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return entry;
+        }
+    }
+
+    /**
+     * Cache the image which has been rendered for the key.  If it is the same
+     * as the image which was cached before, it keeps its last modified time.
+     *
+     * @param timeout millis the image may be served from the cache
+     * @param renderMillis the time it took to query and render the image
+     */
+    Entry put(String key, byte[] image, String contentType, long now, long timeout,
+              long renderMillis) {
+        final String eTag = getETag(image);
+        synchronized (lock) {
+            renders++;
+            renderTime += renderMillis;
+            maxRenderTime = Math.max(maxRenderTime, renderMillis);
+            final Entry prev = entries.remove(key);
+            if (prev != null) {
+                bytes -= prev.image.length;
+            }
+            final long lastModified = (prev != null && prev.eTag.equals(eTag)) ?
+                prev.lastModified : (now / 1000) * 1000;
+            final Entry entry = new Entry(image, contentType, eTag, lastModified, now + timeout);
+            if (image.length > maxBytes) {
+                return entry;
+            }
+            entries.put(key, entry);
+            bytes += image.length;
+            final Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().image.length;
+                it.remove();
+                evictions++;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match header of the request, may be null
+     * @param ifModifiedSince the If-Modified-Since header of the request, -1
+     *        if it is not set
+     * @return true if the browser already has the image
+     */
+    boolean isNotModified(Entry entry, String ifNoneMatch, long ifModifiedSince) {
+        final boolean rtn;
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            rtn = ifNoneMatch.trim().equals("*") ||
+                  Arrays.asList(ifNoneMatch.split("\\s*,\\s*")).contains(entry.eTag);
+        } else {
+            rtn = ifModifiedSince >= entry.lastModified;
+        }
+        if (rtn) {
+            synchronized (lock) {
+                notModified++;
+            }
+        }
+        return rtn;
+    }
+
+    void clear() {
+        synchronized (lock) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Build a key out of the parameters of the request.  The parameter names
+     * are sorted so that the order they are passed in does not matter.
+     *
+     * @param excluded names of parameters which are not part of the key, e.g.
+     *        timestamps which are added to the key after they were rounded
+     */
+    static String getParameterKey(HttpServletRequest request, Set<String> excluded) {
+        final List<String> names = new ArrayList<String>();
+        for (final Object name : Collections.list(request.getParameterNames())) {
+            if (!excluded.contains(name)) {
+                names.add((String) name);
+            }
+        }
+        Collections.sort(names);
+        final StringBuilder rtn = new StringBuilder();
+        for (final String name : names) {
+            rtn.append('&').append(name).append('=');
+            final String[] values = request.getParameterValues(name);
+            for (int i = 0; i < values.length; i++) {
+                rtn.append((i == 0) ? "" : ",").append(values[i]);
+            }
+        }
+        return rtn.toString();
+    }
+
+    private static String getETag(byte[] image) {
+        final CRC32 crc = new CRC32();
+        crc.update(image);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(image.length) +
+               "\"";
+    }
+
+    int getSize() {
+        synchronized (lock) {
+            return entries.size();
+        }
+    }
+
+    long getBytes() {
+        synchronized (lock) {
+            return bytes;
+        }
+    }
+
+    public String getName() {
+        return "Chart Render Cache";
+    }
+
+    public String getShortName() {
+        return "chartRenderCache";
+    }
+
+    public String getStatus() {
+        synchronized (lock) {
+            return "Chart render cache: images=" + entries.size() + " bytes=" + bytes +
+                   " maxBytes=" + maxBytes + " hits=" + hits + " misses=" + misses +
+                   " notModified=" + notModified + " evictions=" + evictions + " renders=" + renders +
+                   " avgRenderMillis=" + ((renders == 0) ? 0 : renderTime / renders) +
+                   " maxRenderMillis=" + maxRenderTime;
+        }
+    }
+
+    public String getShortStatus() {
+        return getStatus();
+    }
+
+    public String toString() {
+        return getShortName();
+    }
+}
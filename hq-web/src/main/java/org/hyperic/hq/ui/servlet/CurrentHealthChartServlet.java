@@ -26,6 +26,7 @@
 package org.hyperic.hq.ui.servlet;
 
 import java.rmi.RemoteException;
+import java.util.Collections;
 import java.util.List;
 
 import javax.security.auth.login.LoginException;
@@ -113,6 +114,19 @@ public abstract class CurrentHealthChartServlet extends VerticalChartServlet {
      */
     protected abstract String getMetricCategory();
 
+    /**
+     * The chart always shows the last hours, the image is reused until the
+     * cache entry expires.  A chart which is rendered for the user passed
+     * in the parameters is scoped to that user.
+     */
+    protected String getCacheKey(HttpServletRequest request) {
+        String scope = (request.getParameter("user") != null) ? "" : getUserScope(request);
+        if (scope == null) {
+            return null;
+        }
+        return scope + ChartRenderCache.getParameterKey(request, Collections.<String>emptySet());
+    }
+
     protected void initializeChart(Chart chart, HttpServletRequest request) {
         super.initializeChart(chart, request);
         chart.font = Chart.SMALL_FONT;
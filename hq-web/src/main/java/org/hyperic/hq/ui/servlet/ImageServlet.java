@@ -25,15 +25,22 @@
 
 package org.hyperic.hq.ui.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.common.DiagnosticsLogger;
+import org.hyperic.hq.context.Bootstrap;
+import org.hyperic.hq.ui.WebUser;
+import org.hyperic.hq.ui.util.RequestUtils;
 
 /**
  * <p>This servlet returns a response that contains the binary data of
@@ -50,6 +57,11 @@ import org.apache.commons.logging.LogFactory;
  * <tr><td> imageHeight      </td><td> &lt;integer <b>(350)</b>&gt;      </td></tr>
  * </table>
  *
+ * <p>Subclasses which return a {@link #getCacheKey(HttpServletRequest) cache
+ * key} have their rendered images held in the {@link ChartRenderCache} and
+ * answer conditional requests of browsers which already have the image
+ * with a 304.</p>
+ *
  */
 public abstract class ImageServlet extends ParameterizedServlet {
     /** Request parameter for image format. */
@@ -73,6 +85,8 @@ public abstract class ImageServlet extends ParameterizedServlet {
     /** Default image height. */
     public static final int IMAGE_HEIGHT_DEFAULT = 350;
 
+    private static final AtomicBoolean cacheRegistered = new AtomicBoolean(false);
+
     // member data
     private Log log = LogFactory.getLog( ImageServlet.class.getName() );
     public ImageServlet () {}
@@ -82,6 +96,14 @@ public abstract class ImageServlet extends ParameterizedServlet {
             log.debug( "java.awt.headless=" +
                        System.getProperty("java.awt.headless") );
         }
+        if (cacheRegistered.compareAndSet(false, true)) {
+            try {
+                Bootstrap.getBean(DiagnosticsLogger.class)
+                    .addDiagnosticObject(ChartRenderCache.getInstance());
+            } catch (Exception e) {
+                log.warn("Unable to register the chart render cache diagnostics: " + e);
+            }
+        }
     }
 
     public void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -105,6 +127,12 @@ public abstract class ImageServlet extends ParameterizedServlet {
                 log.debug(sb.toString());
             }
 
+            String cacheKey = getCacheKey(request);
+            if (cacheKey != null) {
+                writeCachedImage(request, response, imageFormat, cacheKey);
+                return;
+            }
+
             Object imgObj = createImage(request);
         
             // render the chart
@@ -127,6 +155,102 @@ public abstract class ImageServlet extends ParameterizedServlet {
         }
     }
 
+    /**
+     * Serve the image from the cache, rendering it if it is not cached.
+     */
+    private void writeCachedImage(HttpServletRequest request, HttpServletResponse response,
+                                  String imageFormat, String cacheKey)
+        throws ServletException, IOException {
+        final ChartRenderCache cache = ChartRenderCache.getInstance();
+        final String key = getClass().getName() + '|' + imageFormat + '|' + cacheKey;
+        final long now = System.currentTimeMillis();
+        ChartRenderCache.Entry entry = cache.get(key, now);
+        if (entry == null) {
+            Object imgObj = createImage(request);
+            log.debug("Rendering image.");
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final ServletOutputStream out = new ServletOutputStream() {
+                public void write(int b) {
+                    bytes.write(b);
+                }
+                public void write(byte[] b, int off, int len) {
+                    bytes.write(b, off, len);
+                }
+            };
+            final String contentType;
+            if ( imageFormat.equals(IMAGE_FORMAT_PNG) ) {
+                contentType = "image/png";
+                renderPngImage(out, imgObj);
+            } else {
+                contentType = "image/jpeg";
+                renderJpegImage(out, imgObj);
+            }
+            entry = cache.put(key, bytes.toByteArray(), contentType, now,
+                              getCacheTimeout(request), System.currentTimeMillis() - now);
+        }
+
+        // the image depends on the permissions of the user, so only the
+        // browser may keep it and it has to revalidate it every time
+        response.setHeader("Cache-Control", "private, max-age=0, must-revalidate");
+        response.setHeader("ETag", entry.getETag());
+        response.setDateHeader("Last-Modified", entry.getLastModified());
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            ifModifiedSince = -1;
+        }
+        if (cache.isNotModified(entry, request.getHeader("If-None-Match"), ifModifiedSince)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(entry.getContentType());
+        response.setContentLength(entry.getImage().length);
+        ServletOutputStream out = response.getOutputStream();
+        out.write(entry.getImage());
+        out.flush();
+    }
+
+    /**
+     * Return the key under which the rendered image may be cached.  The key
+     * must cover everything the image depends on, including what the user
+     * is permitted to see, the parameters have already been parsed.
+     *
+     * @param request the servlet request
+     * @return null if the image must be rendered on every request, which is
+     *         the default
+     */
+    protected String getCacheKey(HttpServletRequest request) {
+        return null;
+    }
+
+    /**
+     * Return the number of millis a rendered image may be served from the
+     * cache.
+     */
+    protected long getCacheTimeout(HttpServletRequest request) {
+        return ChartRenderCache.getInstance().getTimeout();
+    }
+
+    /**
+     * Return the part of the cache key which scopes the image to the
+     * permissions of the user.
+     *
+     * @return null if there is no logged in user
+     */
+    protected String getUserScope(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        if (session == null) {
+            return null;
+        }
+        try {
+            WebUser user = RequestUtils.getWebUser(session);
+            return (user == null || user.getId() == null) ? null : "subject=" + user.getId();
+        } catch (ServletException e) {
+            return null;
+        }
+    }
+
     /**
      * Create the image being rendered.
      *
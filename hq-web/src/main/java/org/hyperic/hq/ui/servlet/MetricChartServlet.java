@@ -27,8 +27,11 @@ package org.hyperic.hq.ui.servlet;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -89,11 +92,38 @@ public class MetricChartServlet extends VerticalChartServlet {
     /** Request parameter for whether or not to show control actions. */
     public static final String SHOW_EVENTS_PARAM = "showEvents";
 
+    private static final Set<String> TIME_PARAMS =
+        new HashSet<String>(Arrays.asList(new String[] { "start", "end" }));
+
     // member data
     private Log log = LogFactory.getLog( MetricChartServlet.class.getName() );
 
     public MetricChartServlet () {}
 
+    /**
+     * The time window is rounded to the interval of the chart points, so
+     * that refreshing a chart of the last hours reuses the image until the
+     * window moved by a whole point.
+     */
+    protected String getCacheKey(HttpServletRequest request) {
+        String scope = getUserScope(request);
+        if (scope == null) {
+            return null;
+        }
+        long start;
+        long end;
+        try {
+            start = Long.parseLong(request.getParameter("start"));
+            end = Long.parseLong(request.getParameter("end"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        long interval = Math.max(1, TimeUtil.getInterval(start, end,
+                                                         Constants.DEFAULT_CHART_POINTS));
+        return scope + ChartRenderCache.getParameterKey(request, TIME_PARAMS) +
+               "&start=" + (start / interval) + "&end=" + (end / interval);
+    }
+
     /**
      * Create the image being rendered.
      *
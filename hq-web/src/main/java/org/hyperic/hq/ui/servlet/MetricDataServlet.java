@@ -25,14 +25,18 @@
 
 package org.hyperic.hq.ui.servlet;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -51,7 +55,7 @@ import org.hyperic.hq.context.Bootstrap;
 import org.hyperic.hq.measurement.MeasurementNotFoundException;
 import org.hyperic.hq.measurement.server.session.Measurement;
 import org.hyperic.hq.measurement.server.session.MeasurementTemplate;
-import org.hyperic.hq.measurement.shared.HighLowMetricValue;
+import org.hyperic.hq.measurement.shared.MetricDataRowHandler;
 import org.hyperic.hq.ui.WebUser;
 import org.hyperic.hq.ui.exception.ParameterNotFoundException;
 import org.hyperic.hq.ui.util.MonitorUtilsNG;
@@ -59,16 +63,22 @@ import org.hyperic.hq.ui.util.RequestUtils;
 import org.hyperic.util.pager.PageControl;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 /**
- * The MetricDataServlet generates raw metric data in CVS format
+ * The MetricDataServlet generates raw metric data in CVS format, or in JSON
+ * format if the format parameter is json.  The rows are streamed from the
+ * database to the client merged by timestamp, gzipped if the client accepts
+ * it, so that exports of long time ranges or large groups are not held in
+ * memory.
  */
 public class MetricDataServlet extends HttpServlet {
 
     private static final String CSV_DELIM = ",";
 
-    private static final SimpleDateFormat _df
-        = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final String FORMAT_JSON = "json";
+
+    private static final int BUFFER_SIZE = 8192;
 
     private final Log _log = LogFactory.getLog(MetricDataServlet.class);
 
@@ -175,125 +185,141 @@ public class MetricDataServlet extends HttpServlet {
             throw new ServletException("Error looking up measurement.", e);
         }
 
-        List<RowData> rows = new ArrayList<RowData>();
-        for (int i = 0; i < resources.size(); i++) {
-            AppdefResourceValue rValue = (AppdefResourceValue) resources.get(i);
+        List<Measurement> measurements = new ArrayList<Measurement>(resources.size());
+        List<String> names = new ArrayList<String>(resources.size());
+        for (Iterator i = resources.iterator(); i.hasNext();) {
+            AppdefResourceValue rValue = (AppdefResourceValue) i.next();
+            Measurement m = null;
             try {
-                List<HighLowMetricValue> list = null;
-                try {
-                    Measurement m = Bootstrap.getBean(MeasurementBoss.class).findMeasurement(sessionId, templ.getId(),rValue.getEntityId());
-                    list = Bootstrap.getBean(MeasurementBoss.class).findMeasurementData(sessionId,m,begin.longValue(),end.longValue(), PageControl.PAGE_ALL);
-                } catch (MeasurementNotFoundException mnfe) {
-                    _log.debug(mnfe.getMessage());
-                    // HHQ-3611: Measurement not found, so set data to an empty list
-                    list = new ArrayList<HighLowMetricValue>(0);
-                }
-                List<RowData> hold = new ArrayList<RowData>();
-                for (int j = 0; j < list.size(); j++) {
-                    HighLowMetricValue metric = list.get(j);
-
-                    RowData row = new RowData(new Date(metric.getTimestamp()));
-                    if (rows.indexOf(row) > -1) {
-                        row = (RowData) rows.remove(rows.indexOf(row));
-                        row.addData(metric.getValue());
-                    } else {
-                        for (int f = 0; f < i; f++) {
-                            row.addData(Double.NaN);
-                        }
-                        row.addData(metric.getValue());
-                    }
-                    // Move to hold list
-                    hold.add(row);
-                }
-                
-                // Go through the left-overs
-                for (int j = 0; j < rows.size(); j++) {
-                    RowData row = (RowData) rows.get(j);
-                    row.addData(Double.NaN);
-                    hold.add(row);
-                }
-                rows = hold;
+                m = Bootstrap.getBean(MeasurementBoss.class).findMeasurement(sessionId, templ.getId(),
+                                                                             rValue.getEntityId());
+            } catch (MeasurementNotFoundException mnfe) {
+                _log.debug(mnfe.getMessage());
+                // HHQ-3611: Measurement not found, export an empty column
             } catch (Exception e) {
                 throw new ServletException("Error loading measurement data", e);
             }
+            measurements.add(m);
+            names.add(rValue.getName());
         }
 
-        StringBuffer buf = new StringBuffer();
-
-        // Print header
-        for (Iterator i = resources.iterator(); i.hasNext(); ) {
-            AppdefResourceValue val = (AppdefResourceValue)i.next();
-            buf.append(CSV_DELIM).append(val.getName());
-        }
-
-        // Print data, sorted from oldest to newest.
-        Collections.sort(rows);
-        
-        buf.append("\n");
-        for (int i = 0; i < rows.size(); i++) {
-            RowData row = rows.get(i);
-            buf.append(_df.format(row.getDate()));
-            List<Double> data = row.getData();
-            for (int j = 0; j < data.size(); j++) {
-                Double metricdata = data.get(j);
-                buf.append(CSV_DELIM);
-                // Comparing to Double.NaN doesn't work
-                if (!Double.isNaN(metricdata))
-                    buf.append(metricdata);
-            }
-            buf.append("\n");
-        }
-
+        boolean json = FORMAT_JSON.equals(RequestUtils.getStringParameter(request, "format", ""));
+        String encoding = request.getHeader("Accept-Encoding");
+        boolean gzip = encoding != null && encoding.indexOf("gzip") > -1;
         try {
-            response.setContentType("text/csv");
-            response.addHeader("Content-disposition",
-                               "attachment; filename=" +
-                               templ.getAlias() + ".csv");
-            response.getOutputStream().write(buf.toString().getBytes());
+            // No content length is set, the rows are sent as they are read
+            // using chunked encoding
+            response.setContentType((json ? "application/json" : "text/csv") + "; charset=UTF-8");
+            response.addHeader("Content-disposition", "attachment; filename=" + templ.getAlias() +
+                                                      (json ? ".json" : ".csv"));
+            OutputStream out = response.getOutputStream();
+            if (gzip) {
+                response.setHeader("Content-Encoding", "gzip");
+                response.addHeader("Vary", "Accept-Encoding");
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+            RowWriter rowWriter = json ? new JsonRowWriter(writer) : new CsvRowWriter(writer);
+            rowWriter.writeHeader(names);
+            Bootstrap.getBean(MeasurementBoss.class).exportMeasurementData(sessionId, measurements,
+                begin.longValue(), end.longValue(), rowWriter);
+            rowWriter.writeFooter();
+            writer.close();
         } catch (IOException e) {
             throw new ServletException("Error writing data to the client: ", e);
+        } catch (Exception e) {
+            throw new ServletException("Error loading measurement data", e);
         }
     }
 
-    private class RowData implements Comparable {
+    /**
+     * Writes the rows of an export to the client as they are handed over
+     */
+    abstract static class RowWriter implements MetricDataRowHandler {
+        protected final Writer _writer;
+
+        protected RowWriter(Writer writer) {
+            _writer = writer;
+        }
 
-        private Date _date;
-        private List<Double> _data;
+        abstract void writeHeader(List<String> names) throws IOException;
 
-        protected RowData(Date date) {
-            _date = date;
-            _data = new ArrayList<Double>();
+        abstract void writeFooter() throws IOException;
+    }
+
+    /**
+     * One line per timestamp, the header holds the resource names and
+     * missing values are left empty
+     */
+    static class CsvRowWriter extends RowWriter {
+        // not thread safe, there is one writer per request
+        private final SimpleDateFormat _df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        private final Date _date = new Date();
+
+        CsvRowWriter(Writer writer) {
+            super(writer);
         }
 
-        protected void setDate(Date date) {
-            _date = date;
+        void writeHeader(List<String> names) throws IOException {
+            for (String name : names) {
+                _writer.write(CSV_DELIM);
+                _writer.write(name);
+            }
+            _writer.write("\n");
         }
 
-        protected Date getDate() {
-            return _date;
+        public void handleRow(long timestamp, double[] values) throws IOException {
+            _date.setTime(timestamp);
+            _writer.write(_df.format(_date));
+            for (int i = 0; i < values.length; i++) {
+                _writer.write(CSV_DELIM);
+                // Comparing to Double.NaN doesn't work
+                if (!Double.isNaN(values[i])) {
+                    _writer.write(Double.toString(values[i]));
+                }
+            }
+            _writer.write("\n");
         }
 
-        protected void addData(double data) {
-            _data.add(new Double(data));
+        void writeFooter() {
         }
+    }
+
+    /**
+     * {"resources":[names...],"data":[[timestamp,values...],...]} where
+     * missing values are null
+     */
+    static class JsonRowWriter extends RowWriter {
+        private boolean _first = true;
 
-        protected List<Double> getData() {
-            return _data;
+        JsonRowWriter(Writer writer) {
+            super(writer);
         }
 
-        public boolean equals(Object other) {
-            return ((RowData)other).getDate().equals(getDate());
+        void writeHeader(List<String> names) throws IOException {
+            _writer.write("{\"resources\":[");
+            for (int i = 0; i < names.size(); i++) {
+                _writer.write((i == 0) ? "" : ",");
+                _writer.write(JSONObject.quote(names.get(i)));
+            }
+            _writer.write("],\"data\":[");
         }
 
-        public int hashCode() {
-            return getDate().hashCode();
+        public void handleRow(long timestamp, double[] values) throws IOException {
+            _writer.write(_first ? "\n[" : ",\n[");
+            _first = false;
+            _writer.write(Long.toString(timestamp));
+            for (int i = 0; i < values.length; i++) {
+                _writer.write(',');
+                // NaN and infinite values are not valid JSON numbers
+                _writer.write((Double.isNaN(values[i]) || Double.isInfinite(values[i])) ?
+                              "null" : Double.toString(values[i]));
+            }
+            _writer.write(']');
         }
 
-        public int compareTo(Object o) {
-            if (!(o instanceof RowData))
-                return 0;
-            
-            return getDate().compareTo(((RowData) o).getDate());
+        void writeFooter() throws IOException {
+            _writer.write("]}\n");
         }
     }
 }
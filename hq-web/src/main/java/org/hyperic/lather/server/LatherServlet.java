@@ -25,11 +25,15 @@
 
 package org.hyperic.lather.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,6 +43,8 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -139,16 +145,35 @@ public class LatherServlet extends HttpServlet {
     }
 
     private static void issueSuccessResponse(HttpServletResponse resp, LatherXCoder xCoder, 
-                                             LatherValue res)
+                                             LatherValue res, boolean binary, boolean gzip)
     throws IOException {
         ByteArrayOutputStream bOs;
         DataOutputStream dOs;
         byte[] rawData;
 
-        resp.setContentType("text/latherValue");
+        // let the client know it may switch to the binary wire format
+        resp.setHeader(LatherHTTPClient.HDR_BINARY, LatherHTTPClient.ENCODING_GZIP);
         resp.setHeader(LatherHTTPClient.HDR_VALUECLASS, 
                        res.getClass().getName());
 
+        if (binary) {
+            resp.setContentType(LatherHTTPClient.CONTENT_TYPE_BINARY);
+            OutputStream out = resp.getOutputStream();
+            GZIPOutputStream gOs = null;
+            if (gzip) {
+                resp.setHeader("Content-Encoding", LatherHTTPClient.ENCODING_GZIP);
+                out = gOs = new GZIPOutputStream(out);
+            }
+            dOs = new DataOutputStream(new BufferedOutputStream(out));
+            xCoder.encode(res, dOs);
+            dOs.flush();
+            if (gOs != null) {
+                gOs.finish();
+            }
+            return;
+        }
+
+        resp.setContentType("text/latherValue");
         bOs = new ByteArrayOutputStream();
         dOs = new DataOutputStream(bOs);
         xCoder.encode(res, dOs);
@@ -162,7 +187,8 @@ public class LatherServlet extends HttpServlet {
         boolean gotConn = false;
         int connRnd;
         connRnd = this.rand.nextInt();
-        String method = req.getParameter("method");
+        String method = isBinaryRequest(req) ?
+            req.getHeader(LatherHTTPClient.HDR_METHOD) : req.getParameter("method");
         try {
             gotConn = connManager.get().grabConn(method);
             if (!gotConn) {
@@ -192,8 +218,26 @@ public class LatherServlet extends HttpServlet {
         }
     }
 
+    /**
+     * @return true if the request uses the binary wire format, see
+     * {@link LatherHTTPClient}
+     */
+    private static boolean isBinaryRequest(HttpServletRequest req) {
+        return req.getHeader(LatherHTTPClient.HDR_METHOD) != null &&
+               LatherHTTPClient.CONTENT_TYPE_BINARY.equals(req.getContentType());
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String accept = req.getHeader("Accept-Encoding");
+        return accept != null && accept.indexOf(LatherHTTPClient.ENCODING_GZIP) != -1;
+    }
+
     public void doPost(HttpServletRequest req, HttpServletResponse resp)
     throws ServletException, IOException {
+        if (isBinaryRequest(req)) {
+            doBinaryPost(req, resp);
+            return;
+        }
         ByteArrayInputStream bIs;
         DataInputStream dIs;
         LatherXCoder xCoder;
@@ -249,7 +293,64 @@ public class LatherServlet extends HttpServlet {
             return;
         }
 
-        this.doServiceCall(req, resp, method[0], val, xCoder, ctx);
+        this.doServiceCall(req, resp, method[0], val, xCoder, ctx, false);
+    }
+
+    /**
+     * Handles a request in the binary wire format.  The arguments are
+     * decoded straight from the request body rather than from a Base64
+     * encoded form parameter.
+     */
+    private void doBinaryPost(HttpServletRequest req, HttpServletResponse resp)
+    throws IOException {
+        LatherXCoder xCoder = new LatherXCoder();
+        LatherContext ctx = new LatherContext();
+        ctx.setCallerIP(req.getRemoteAddr());
+        ctx.setRequestTime(System.currentTimeMillis());
+
+        String method = req.getHeader(LatherHTTPClient.HDR_METHOD);
+        String argsClass = req.getHeader(LatherHTTPClient.HDR_VALUECLASS);
+
+        if (argsClass == null) {
+            String msg = "Invalid Lather request made from " + req.getRemoteAddr();
+            log.error(msg);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+            return;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Invoking binary method '" + method +
+                      "' for connID=" +  req.getAttribute(PROP_CONNID));
+        }
+
+        Class<?> valClass;
+        try {
+            valClass = Class.forName(argsClass, true, 
+                                     xCoder.getClass().getClassLoader());
+        } catch(ClassNotFoundException exc){
+            String msg = "Lather request from " + req.getRemoteAddr() + 
+                         " required an argument object of class '" +  argsClass +
+                         "' which could not be found";
+            log.error(msg);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+            return;
+        }
+
+        LatherValue val;
+        InputStream in = req.getInputStream();
+        try {
+            if (LatherHTTPClient.ENCODING_GZIP.equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            val = xCoder.decode(new DataInputStream(new BufferedInputStream(in)), valClass);
+        } catch(LatherRemoteException exc){
+            LatherServlet.issueErrorResponse(resp, exc.toString());
+            return;
+        } finally {
+            in.close();
+        }
+
+        this.doServiceCall(req, resp, method, val, xCoder, ctx, true);
     }
 
     private class ServiceCaller implements Runnable {
@@ -261,6 +362,8 @@ public class LatherServlet extends HttpServlet {
         private LatherContext ctx;
         private String method;
         private LatherDispatcher latherDispatcher;
+        private boolean binary;
+        private boolean gzip;
         
         private Thread thread;
         private final AtomicBoolean finished = new AtomicBoolean(false);
@@ -268,7 +371,7 @@ public class LatherServlet extends HttpServlet {
         
 
         private ServiceCaller(HttpServletResponse resp, LatherXCoder xcoder, LatherContext ctx, String method,
-                LatherValue arg, LatherDispatcher latherDispatcher) {
+                LatherValue arg, LatherDispatcher latherDispatcher, boolean binary, boolean gzip) {
             
             this.resp = resp;
             this.xcoder = xcoder;
@@ -276,6 +379,8 @@ public class LatherServlet extends HttpServlet {
             this.method = method;
             this.arg = arg;
             this.latherDispatcher = latherDispatcher;
+            this.binary = binary;
+            this.gzip = gzip;
             this.thread = Thread.currentThread();
         }
 
@@ -305,7 +410,7 @@ public class LatherServlet extends HttpServlet {
                     res = handleAutoApprovals(res);
                 }
                 
-                issueSuccessResponse(this.resp, this.xcoder, res);
+                issueSuccessResponse(this.resp, this.xcoder, res, this.binary, this.gzip);
             
             } catch(Exception e) {
                 Throwable cause = e.getCause();
@@ -370,11 +475,12 @@ public class LatherServlet extends HttpServlet {
     }
 
     private void doServiceCall(HttpServletRequest req, HttpServletResponse resp, String methName, LatherValue args,
-            LatherXCoder xCoder, LatherContext ctx)
+            LatherXCoder xCoder, LatherContext ctx, boolean binary)
                     throws IOException {
         
         final LatherDispatcher latherDispatcher = Bootstrap.getBean(LatherDispatcher.class);
-        final ServiceCaller caller = new ServiceCaller(resp, xCoder, ctx, methName, args, latherDispatcher);
+        final ServiceCaller caller = new ServiceCaller(resp, xCoder, ctx, methName, args, latherDispatcher,
+                                                       binary, binary && acceptsGzip(req));
         final Thread currentThread = Thread.currentThread();
         final String threadName = currentThread.getName();
 
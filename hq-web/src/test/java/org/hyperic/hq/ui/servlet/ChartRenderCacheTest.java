@@ -0,0 +1,115 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMWare, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.ui.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+public class ChartRenderCacheTest {
+
+    private static final long TIMEOUT = 60000;
+
+    private final ChartRenderCache cache = new ChartRenderCache(100, TIMEOUT);
+
+    @Test
+    public void testEntryExpires() {
+        cache.put("a", new byte[10], "image/png", 1000, TIMEOUT, 5);
+        assertNotNull(cache.get("a", 1000 + TIMEOUT - 1));
+        assertNull(cache.get("a", 1000 + TIMEOUT));
+        assertNull(cache.get("b", 1000));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.put("a", new byte[40], "image/png", 1000, TIMEOUT, 5);
+        cache.put("b", new byte[40], "image/png", 1000, TIMEOUT, 5);
+        cache.get("a", 1000);
+        cache.put("c", new byte[40], "image/png", 1000, TIMEOUT, 5);
+        assertNotNull(cache.get("a", 1000));
+        assertNull(cache.get("b", 1000));
+        assertNotNull(cache.get("c", 1000));
+        assertEquals(80, cache.getBytes());
+        // too big to be held at all
+        assertNotNull(cache.put("d", new byte[101], "image/png", 1000, TIMEOUT, 5));
+        assertNull(cache.get("d", 1000));
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testSameImageKeepsETagAndLastModified() {
+        final ChartRenderCache.Entry first =
+            cache.put("a", new byte[] {1, 2, 3}, "image/png", 1500, TIMEOUT, 5);
+        assertEquals(1000, first.getLastModified());
+        final ChartRenderCache.Entry same =
+            cache.put("a", new byte[] {1, 2, 3}, "image/png", 1000 + TIMEOUT, TIMEOUT, 5);
+        assertEquals(first.getETag(), same.getETag());
+        assertEquals(1000, same.getLastModified());
+        final ChartRenderCache.Entry changed =
+            cache.put("a", new byte[] {1, 2, 4}, "image/png", 2000 + TIMEOUT, TIMEOUT, 5);
+        assertFalse(first.getETag().equals(changed.getETag()));
+        assertEquals(2000 + TIMEOUT, changed.getLastModified());
+    }
+
+    @Test
+    public void testNotModified() {
+        final ChartRenderCache.Entry entry =
+            cache.put("a", new byte[] {1, 2, 3}, "image/png", 1000, TIMEOUT, 5);
+        assertTrue(cache.isNotModified(entry, entry.getETag(), -1));
+        assertTrue(cache.isNotModified(entry, "\"x\", " + entry.getETag(), -1));
+        assertTrue(cache.isNotModified(entry, "*", -1));
+        assertFalse(cache.isNotModified(entry, "\"x\"", 1000));
+        assertTrue(cache.isNotModified(entry, null, 1000));
+        assertFalse(cache.isNotModified(entry, null, 999));
+        assertFalse(cache.isNotModified(entry, null, -1));
+    }
+
+    @Test
+    public void testParameterKeyIgnoresOrderAndExcludedParameters() {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("m", "10");
+        request.addParameter("eid", new String[] {"1:1", "1:2"});
+        request.addParameter("start", "100");
+        final MockHttpServletRequest other = new MockHttpServletRequest();
+        other.addParameter("start", "200");
+        other.addParameter("eid", new String[] {"1:1", "1:2"});
+        other.addParameter("m", "10");
+        final HashSet<String> excluded = new HashSet<String>(Collections.singleton("start"));
+        assertEquals("&eid=1:1,1:2&m=10", ChartRenderCache.getParameterKey(request, excluded));
+        assertEquals(ChartRenderCache.getParameterKey(request, excluded),
+                     ChartRenderCache.getParameterKey(other, excluded));
+        assertFalse(ChartRenderCache.getParameterKey(request, Collections.<String>emptySet())
+            .equals(ChartRenderCache.getParameterKey(other, Collections.<String>emptySet())));
+    }
+}